@@ -16,6 +16,7 @@
 package com.android.tradefed.build;
 
 import com.android.ddmlib.Log;
+import com.android.tradefed.build.FileDownloadCacheIndex.IndexRecord;
 import com.android.tradefed.command.FatalHostError;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.FileUtil;
@@ -24,19 +25,41 @@ import com.google.common.annotations.VisibleForTesting;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * A helper class that maintains a local filesystem LRU cache of downloaded files.
+ *
+ * <p>Each cached remote path has its own read/write lock: concurrent cache hits of the same file
+ * only share the read lock, while a download or a deletion takes the write lock. The LRU order is
+ * tracked with an access sequence number per entry, and eviction runs on a background thread so
+ * that it never holds up a request.
+ *
+ * <p>Inserts, accesses and deletions are journaled in a {@link FileDownloadCacheIndex}, so that a
+ * restarted cache is rebuilt from the index instead of walking the whole cache directory. The walk
+ * still happens, but on the background thread, to reconcile the index with the filesystem.
+ *
+ * <p>Downloaded files are also stored by content: each one is hardlinked to a blob named after its
+ * hash, and a download whose content is already cached is replaced by a hardlink to the existing
+ * blob. Identical artifacts of different builds then use a single copy on disk, which is only
+ * accounted once in the cache size.
  */
 public class FileDownloadCache {
 
@@ -44,27 +67,97 @@ public class FileDownloadCache {
 
     private static final char REL_PATH_SEPARATOR = '/';
 
+    /** Prefix of the files of the cache root that are not cached files. */
+    private static final String INTERNAL_FILE_PREFIX = ".tf_cache_";
+
+    /** Name of the directory holding the content-addressed blobs, in the cache root. */
+    private static final String BLOB_DIR_NAME = INTERNAL_FILE_PREFIX + "blobs";
+
+    /** Name of the directory holding the downloads in progress, in the cache root. */
+    private static final String TMP_DIR_NAME = INTERNAL_FILE_PREFIX + "tmp";
+
+    /** Min number of superseded records in the index before it is compacted. */
+    private static final long INDEX_COMPACTION_THRESHOLD = 10000;
+
     /** fixed location of download cache. */
     private final File mCacheRoot;
 
+    /** Location of the content-addressed blobs. */
+    private final File mBlobRoot;
+
+    /** Location of the downloads in progress. */
+    private final File mTmpRoot;
+
+    /** The download layer, coalescing the concurrent downloads of the same file. */
+    private final FileDownloadCoordinator mDownloads;
+
+    /** Number of entries sharing each blob. */
+    @GuardedBy("itself")
+    private final Map<String, Integer> mBlobRefs = new HashMap<>();
+
     /**
-     * The map of remote file paths to local files, stored in least-recently-used order.
+     * The map of remote file paths to cache entries. The keys are collapsed so that they always
+     * look like an actual folder hierarchy.
      *
      * <p>Used for performance reasons. Functionally speaking, this data structure is not needed,
      * since all info could be obtained from inspecting the filesystem.
      */
-    private final Map<String, File> mCacheMap = new CollapsedKeyMap<>();
+    private final Map<String, CacheEntry> mCacheEntries = new ConcurrentHashMap<>();
 
-    /** the lock for <var>mCacheMap</var> */
-    private final ReentrantLock mCacheMapLock = new ReentrantLock();
+    /** Source of the access sequence numbers used to order the entries. */
+    private final AtomicLong mAccessCounter = new AtomicLong();
 
-    /** A map of remote file paths to locks. */
-    private final Map<String, ReentrantLock> mFileLocks = new CollapsedKeyMap<>();
-
-    private long mCurrentCacheSize = 0;
+    private final AtomicLong mCurrentCacheSize = new AtomicLong();
 
     /** The approximate maximum allowed size of the local file cache. Default to 20 gig */
-    private long mMaxFileCacheSize = 20L * 1024L * 1024L * 1024L;
+    private volatile long mMaxFileCacheSize = 20L * 1024L * 1024L * 1024L;
+
+    /** The journal of the cache entries. */
+    private final FileDownloadCacheIndex mIndex;
+
+    /** Single background thread running the eviction and the index maintenance. */
+    private final ExecutorService mBackgroundExecutor =
+            Executors.newSingleThreadExecutor(
+                    r -> {
+                        Thread t = new Thread(r, "FileDownloadCache-background");
+                        t.setDaemon(true);
+                        return t;
+                    });
+
+    /** Whether an eviction is already scheduled and not started yet. */
+    private final AtomicBoolean mEvictionPending = new AtomicBoolean(false);
+
+    /** Whether an index flush is already scheduled and not started yet. */
+    private final AtomicBoolean mIndexFlushPending = new AtomicBoolean(false);
+
+    /** Serializes the eviction passes. */
+    private final Object mEvictionLock = new Object();
+
+    /** A cached remote file and the lock guarding it. */
+    private static class CacheEntry {
+        final String mKey;
+        final File mFile;
+        final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+        /** Access sequence number, the higher the more recently used. */
+        volatile long mLastAccess;
+        /** Size of the file or directory, or -1 if not downloaded yet. Written under mLock. */
+        volatile long mSize = -1;
+        /** Hash of the blob shared by the file, or null if not stored by content. */
+        volatile String mHash = null;
+        /** Incremented every time the file is downloaded. Guarded by mLock. */
+        int mGeneration = 0;
+        /** False once the entry has been removed from the cache. Guarded by mLock. */
+        boolean mLive = true;
+
+        CacheEntry(String key, File file) {
+            mKey = key;
+            mFile = file;
+        }
+
+        boolean isDownloaded() {
+            return mSize >= 0 && mFile.exists();
+        }
+    }
 
     /**
      * Struct for a {@link File} and its remote relative path
@@ -99,7 +192,21 @@ public class FileDownloadCache {
      * Essentially, the LRU cache is a mirror of a given remote file path hierarchy.
      */
     FileDownloadCache(File cacheRoot) {
+        this(cacheRoot, new FileDownloadCoordinator());
+    }
+
+    /**
+     * Create a {@link FileDownloadCache} downloading the missing files with the given {@link
+     * FileDownloadCoordinator}.
+     */
+    FileDownloadCache(File cacheRoot, FileDownloadCoordinator downloads) {
         mCacheRoot = cacheRoot;
+        mDownloads = downloads;
+        mIndex = new FileDownloadCacheIndex(mCacheRoot);
+        mBlobRoot = new File(mCacheRoot, BLOB_DIR_NAME);
+        mTmpRoot = new File(mCacheRoot, TMP_DIR_NAME);
+        // Downloads in progress of a previous run are incomplete.
+        FileUtil.recursiveDelete(mTmpRoot);
         if (!mCacheRoot.exists()) {
             Log.d(LOG_TAG, String.format("Creating file cache at %s",
                     mCacheRoot.getAbsolutePath()));
@@ -107,9 +214,18 @@ public class FileDownloadCache {
                 throw new FatalHostError(String.format("Could not create cache directory at %s",
                         mCacheRoot.getAbsolutePath()));
             }
+        } else if (mIndex.exists()) {
+            Log.d(LOG_TAG, String.format("Loading file cache index at %s",
+                    mCacheRoot.getAbsolutePath()));
+            loadIndex();
+            // Fix any drift between the index and the filesystem in the background, the cache can
+            // already serve requests.
+            mBackgroundExecutor.execute(this::reconcileIndex);
         } else {
             Log.d(LOG_TAG, String.format("Building file cache from contents at %s",
                     mCacheRoot.getAbsolutePath()));
+            // Without an index, nothing is known to reference the blobs.
+            FileUtil.recursiveDelete(mBlobRoot);
             // create an unsorted list of all the files in mCacheRoot. Need to create list first
             // rather than inserting in Map directly because Maps cannot be sorted
             List<FilePair> cacheEntryList = new LinkedList<FilePair>();
@@ -118,13 +234,140 @@ public class FileDownloadCache {
             Collections.sort(cacheEntryList, new FileTimeComparator());
             // now insert them into the map
             for (FilePair cacheEntry : cacheEntryList) {
-                mCacheMap.put(cacheEntry.mRelPath, cacheEntry.mFile);
-                mCurrentCacheSize += cacheEntry.mFile.length();
+                String key = getKey(cacheEntry.mRelPath);
+                CacheEntry entry = new CacheEntry(key, cacheEntry.mFile);
+                entry.mSize = cacheEntry.mFile.length();
+                entry.mLastAccess = mAccessCounter.incrementAndGet();
+                mCacheEntries.put(key, entry);
+                mCurrentCacheSize.addAndGet(entry.mSize);
             }
             // this would be an unusual situation, but check if current cache is already too big
-            if (mCurrentCacheSize > getMaxFileCacheSize()) {
-                incrementAndAdjustCache(0);
+            if (mCurrentCacheSize.get() > getMaxFileCacheSize()) {
+                adjustCache(getMaxFileCacheSize());
+            }
+            rewriteIndex();
+        }
+    }
+
+    /** Build the cache entries from the index, in O(entries). */
+    private void loadIndex() {
+        long maxAccess = 0;
+        for (IndexRecord record : mIndex.load().values()) {
+            CacheEntry entry =
+                    new CacheEntry(record.mKey, new File(mCacheRoot, convertPath(record.mKey)));
+            entry.mSize = record.mSize;
+            entry.mHash = record.mHash;
+            entry.mLastAccess = record.mLastAccess;
+            maxAccess = Math.max(maxAccess, record.mLastAccess);
+            mCacheEntries.put(record.mKey, entry);
+            mCurrentCacheSize.addAndGet(retain(entry));
+        }
+        mAccessCounter.set(maxAccess);
+        incrementAndAdjustCache(0);
+    }
+
+    /**
+     * Reconcile the index with the content of the cache directory: files that are not indexed are
+     * added as the most recently used entries, entries whose file is missing are removed, and so
+     * are the blobs that no entry references. The index is then compacted.
+     */
+    private void reconcileIndex() {
+        long startTime = System.currentTimeMillis();
+        List<FilePair> cacheEntryList = new LinkedList<FilePair>();
+        addFiles(mCacheRoot, new Stack<String>(), cacheEntryList);
+        int added = 0;
+        for (FilePair cacheEntry : cacheEntryList) {
+            if (isIndexed(cacheEntry.mRelPath)) {
+                continue;
+            }
+            String key = getKey(cacheEntry.mRelPath);
+            CacheEntry entry = new CacheEntry(key, cacheEntry.mFile);
+            entry.mSize = cacheEntry.mFile.length();
+            entry.mLastAccess = mAccessCounter.incrementAndGet();
+            if (mCacheEntries.putIfAbsent(key, entry) == null) {
+                mCurrentCacheSize.addAndGet(entry.mSize);
+                added++;
+            }
+        }
+        int removed = 0;
+        for (CacheEntry entry : mCacheEntries.values()) {
+            if (entry.mSize < 0 || entry.mFile.exists()) {
+                continue;
             }
+            if (entry.mLock.writeLock().tryLock()) {
+                try {
+                    if (entry.mSize >= 0 && !entry.mFile.exists()) {
+                        removeEntry(entry.mKey, entry);
+                        removed++;
+                    }
+                } finally {
+                    entry.mLock.writeLock().unlock();
+                }
+            }
+        }
+        File[] blobs = mBlobRoot.listFiles();
+        if (blobs != null) {
+            synchronized (mBlobRefs) {
+                for (File blob : blobs) {
+                    if (!mBlobRefs.containsKey(blob.getName())) {
+                        FileUtil.deleteFile(blob);
+                    }
+                }
+            }
+        }
+        CLog.d(
+                "Reconciled file cache index in %d ms: %d files added, %d entries removed.",
+                System.currentTimeMillis() - startTime, added, removed);
+        rewriteIndex();
+        adjustCache(getMaxFileCacheSize());
+    }
+
+    /** Returns true if the given path or one of its parent directories is a cache entry. */
+    private boolean isIndexed(String relPath) {
+        File path = new File(getKey(relPath));
+        while (path != null) {
+            if (mCacheEntries.containsKey(path.getPath())) {
+                return true;
+            }
+            path = path.getParentFile();
+        }
+        return false;
+    }
+
+    /** Replace the index with a snapshot of the downloaded entries. */
+    private void rewriteIndex() {
+        mIndex.rewrite(
+                () -> {
+                    List<IndexRecord> records = new ArrayList<>();
+                    for (CacheEntry entry : mCacheEntries.values()) {
+                        if (entry.mSize >= 0) {
+                            records.add(
+                                    new IndexRecord(
+                                            entry.mKey,
+                                            entry.mSize,
+                                            entry.mLastAccess,
+                                            entry.mHash));
+                        }
+                    }
+                    return records;
+                });
+    }
+
+    /**
+     * Schedule writing the queued index records on the background thread, compacting the index
+     * if it grew too large compared to the number of entries.
+     */
+    private void scheduleIndexFlush() {
+        if (mIndexFlushPending.compareAndSet(false, true)) {
+            mBackgroundExecutor.execute(
+                    () -> {
+                        mIndexFlushPending.set(false);
+                        mIndex.flush();
+                        if (mIndex.getRecordCount()
+                                > 2L * mCacheEntries.size() + INDEX_COMPACTION_THRESHOLD) {
+                            rewriteIndex();
+                        }
+                    });
         }
     }
 
@@ -147,6 +390,11 @@ public class FileDownloadCache {
             return;
         }
         for (File childFile : fileList) {
+            if (relPathSegments.isEmpty()
+                    && childFile.getName().startsWith(INTERNAL_FILE_PREFIX)) {
+                // The index, the blobs and the downloads in progress are not cached files.
+                continue;
+            }
             if (childFile.isDirectory()) {
                 relPathSegments.push(childFile.getName());
                 addFiles(childFile, relPathSegments, cacheEntryList);
@@ -166,51 +414,25 @@ public class FileDownloadCache {
         }
     }
 
-    /** Acquires the lock for a file. */
-    protected void lockFile(String remoteFilePath) {
-        ReentrantLock fileLock;
-
-        synchronized (mFileLocks) {
-            fileLock = mFileLocks.get(remoteFilePath);
-            if (fileLock == null) {
-                fileLock = new ReentrantLock();
-                mFileLocks.put(remoteFilePath, fileLock);
-            }
-        }
-        fileLock.lock();
-    }
-
     /**
-     * Acquire the lock for a file only if it is not held by another thread.
-     *
-     * @return true if the lock was acquired, and false otherwise.
+     * Returns the key of a remote path, ensuring it always looks like an actual folder hierarchy.
      */
-    protected boolean tryLockFile(String remoteFilePath) {
-        synchronized (mFileLocks) {
-            ReentrantLock fileLock = mFileLocks.get(remoteFilePath);
-            if (fileLock == null) {
-                fileLock = new ReentrantLock();
-                mFileLocks.put(remoteFilePath, fileLock);
-            }
-            try {
-                return fileLock.tryLock(0, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                return false;
-            }
-        }
+    private static String getKey(String remotePath) {
+        return new File(remotePath).getPath();
     }
 
-    /** Attempt to release a lock for a file. */
-    protected void unlockFile(String remoteFilePath) {
-        synchronized (mFileLocks) {
-            ReentrantLock fileLock = mFileLocks.get(remoteFilePath);
-            if (fileLock != null) {
-                if (!fileLock.hasQueuedThreads()) {
-                    mFileLocks.remove(remoteFilePath);
-                }
-                fileLock.unlock();
-            }
-        }
+    /** Returns the entry of a remote path, creating it if needed. */
+    private CacheEntry getOrCreateEntry(String remotePath) {
+        return mCacheEntries.computeIfAbsent(
+                getKey(remotePath),
+                k -> new CacheEntry(k, new File(mCacheRoot, convertPath(k))));
+    }
+
+    /** Mark an entry as the most recently used. */
+    private void touch(CacheEntry entry) {
+        entry.mLastAccess = mAccessCounter.incrementAndGet();
+        mIndex.recordAccess(entry.mKey, entry.mLastAccess);
+        scheduleIndexFlush();
     }
 
     /**
@@ -222,10 +444,7 @@ public class FileDownloadCache {
      * @param numBytes
      */
     public void setMaxCacheSize(long numBytes) {
-        // for simplicity, get global lock
-        mCacheMapLock.lock();
         mMaxFileCacheSize = numBytes;
-        mCacheMapLock.unlock();
     }
 
     /**
@@ -241,67 +460,311 @@ public class FileDownloadCache {
      */
     public File fetchRemoteFile(IFileDownloader downloader, String remotePath)
             throws BuildRetrievalError {
-        boolean download = false;
-        File cachedFile, copyFile;
+        while (true) {
+            CacheEntry entry = getOrCreateEntry(remotePath);
+            File copyFile = fetchFromEntry(downloader, remotePath, entry);
+            if (copyFile != null) {
+                return copyFile;
+            }
+            // The entry was removed while waiting for its lock, retry with a new one.
+        }
+    }
 
-        lockFile(remotePath);
+    /**
+     * Fetch a remote file through the given entry.
+     *
+     * @return the local copy of the file, or null if the entry was removed from the cache.
+     */
+    private File fetchFromEntry(IFileDownloader downloader, String remotePath, CacheEntry entry)
+            throws BuildRetrievalError {
+        // Fast path: cache hits of the same file only share the read lock.
+        int staleGeneration = -1;
+        boolean failed = false;
+        entry.mLock.readLock().lock();
         try {
-            mCacheMapLock.lock();
-            try {
-                cachedFile = mCacheMap.remove(remotePath);
-                if (cachedFile == null) {
-                    download = true;
-                    String localRelativePath = convertPath(remotePath);
-                    cachedFile = new File(mCacheRoot, localRelativePath);
-                }
-                mCacheMap.put(remotePath, cachedFile);
-            } finally {
-                mCacheMapLock.unlock();
+            if (!entry.mLive) {
+                return null;
             }
-            try {
-                if (!download
-                        && cachedFile.exists()
-                        && !downloader.isFresh(cachedFile, remotePath)) {
+            if (entry.isDownloaded()) {
+                if (downloader.isFresh(entry.mFile, remotePath)) {
+                    touch(entry);
                     Log.d(
                             LOG_TAG,
                             String.format(
-                                    "Cached file %s for %s is out of date, re-download.",
-                                    cachedFile, remotePath));
-                    FileUtil.recursiveDelete(cachedFile);
-                    download = true;
+                                    "Retrieved remote file %s from cached file %s",
+                                    remotePath, entry.mFile.getAbsolutePath()));
+                    return copyFile(remotePath, entry.mFile);
                 }
-                if (download || !cachedFile.exists()) {
-                    cachedFile.getParentFile().mkdirs();
-                    downloadFile(downloader, remotePath, cachedFile);
-                } else {
+                staleGeneration = entry.mGeneration;
+            }
+        } catch (BuildRetrievalError | RuntimeException e) {
+            failed = true;
+            throw e;
+        } finally {
+            entry.mLock.readLock().unlock();
+            if (failed) {
+                // cached file is likely incomplete, delete it.
+                deleteCacheEntry(remotePath);
+            }
+        }
+
+        // Slow path: checking the file again or starting a download requires exclusive access.
+        CompletableFuture<Void> inFlight = null;
+        CompletableFuture<Void> download = null;
+        entry.mLock.writeLock().lock();
+        try {
+            if (!entry.mLive) {
+                return null;
+            }
+            inFlight = mDownloads.getInFlight(entry.mKey);
+            if (inFlight == null) {
+                boolean needsDownload = !entry.isDownloaded();
+                if (!needsDownload) {
+                    // Only check the freshness again if the file changed since it was found stale.
+                    needsDownload =
+                            staleGeneration == entry.mGeneration
+                                    || !downloader.isFresh(entry.mFile, remotePath);
+                    if (!needsDownload) {
+                        Log.d(
+                                LOG_TAG,
+                                String.format(
+                                        "Retrieved remote file %s from cached file %s",
+                                        remotePath, entry.mFile.getAbsolutePath()));
+                        touch(entry);
+                        return copyFile(remotePath, entry.mFile);
+                    }
                     Log.d(
                             LOG_TAG,
                             String.format(
-                                    "Retrieved remote file %s from cached file %s",
-                                    remotePath, cachedFile.getAbsolutePath()));
+                                    "Cached file %s for %s is out of date, re-download.",
+                                    entry.mFile, remotePath));
                 }
-                copyFile = copyFile(remotePath, cachedFile);
-            } catch (BuildRetrievalError | RuntimeException e) {
-                // cached file is likely incomplete, delete it.
-                deleteCacheEntry(remotePath);
-                throw e;
+                download = mDownloads.register(entry.mKey);
+                if (download == null) {
+                    // A removed entry of the same remote path is still downloading.
+                    inFlight = mDownloads.getInFlight(entry.mKey);
+                } else {
+                    // Stop accounting for the previous content, if any.
+                    mCurrentCacheSize.addAndGet(-release(entry));
+                    entry.mSize = -1;
+                    entry.mHash = null;
+                    FileUtil.recursiveDelete(entry.mFile);
+                }
+            }
+        } catch (BuildRetrievalError | RuntimeException e) {
+            // cached file is likely incomplete, delete it.
+            removeEntry(entry.mKey, entry);
+            throw e;
+        } finally {
+            entry.mLock.writeLock().unlock();
+        }
+        if (download == null) {
+            // Wait for the download in flight rather than queuing on the entry lock.
+            if (inFlight != null && mDownloads.await(inFlight)) {
+                return copyDownloadedFile(remotePath, entry);
+            }
+            return null;
+        }
+        return downloadToEntry(downloader, remotePath, entry, download);
+    }
+
+    /**
+     * Copy the file that another thread just downloaded, without checking its freshness again.
+     *
+     * @return the local copy of the file, or null if the entry was removed or replaced.
+     */
+    private File copyDownloadedFile(String remotePath, CacheEntry entry)
+            throws BuildRetrievalError {
+        entry.mLock.readLock().lock();
+        try {
+            if (!entry.mLive || !entry.isDownloaded()) {
+                return null;
+            }
+            touch(entry);
+            return copyFile(remotePath, entry.mFile);
+        } finally {
+            entry.mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Download a file outside of the entry lock, then install it in the cache.
+     *
+     * @return the local copy of the file, or null if the entry was removed during the download.
+     */
+    private File downloadToEntry(
+            IFileDownloader downloader,
+            String remotePath,
+            CacheEntry entry,
+            CompletableFuture<Void> download)
+            throws BuildRetrievalError {
+        Throwable error = null;
+        File tmpFile = null;
+        try {
+            tmpFile = createDownloadFile(entry);
+            downloadFile(downloader, remotePath, tmpFile);
+            return installFile(remotePath, entry, tmpFile);
+        } catch (BuildRetrievalError | RuntimeException e) {
+            error = e;
+            entry.mLock.writeLock().lock();
+            try {
+                removeEntry(entry.mKey, entry);
+            } finally {
+                entry.mLock.writeLock().unlock();
             }
+            throw e;
+        } finally {
+            FileUtil.recursiveDelete(tmpFile);
+            mDownloads.complete(entry.mKey, download, error);
+        }
+    }
 
-            // Only the thread that first downloads the file should increment the cache.
-            if (download) {
-               incrementAndAdjustCache(cachedFile.length());
+    /**
+     * Move a downloaded file in place of the entry file, and account for it.
+     *
+     * @return the local copy of the file, or null if the entry was removed during the download.
+     */
+    private File installFile(String remotePath, CacheEntry entry, File downloadedFile)
+            throws BuildRetrievalError {
+        entry.mLock.writeLock().lock();
+        try {
+            if (!entry.mLive) {
+                return null;
             }
+            entry.mFile.getParentFile().mkdirs();
+            FileUtil.recursiveDelete(entry.mFile);
+            if (!downloadedFile.renameTo(entry.mFile)) {
+                throw new BuildRetrievalError(
+                        String.format("Failed to move %s to %s", downloadedFile, entry.mFile));
+            }
+            entry.mHash = storeBlob(entry.mFile);
+            entry.mSize = getSize(entry.mFile);
+            entry.mGeneration++;
+            entry.mLastAccess = mAccessCounter.incrementAndGet();
+            mIndex.recordInsert(entry.mKey, entry.mSize, entry.mLastAccess, entry.mHash);
+            incrementAndAdjustCache(retain(entry));
+            return copyFile(remotePath, entry.mFile);
         } finally {
-            unlockFile(remotePath);
+            entry.mLock.writeLock().unlock();
+        }
+    }
+
+    /** Returns a non-existing file to download to, on the same filesystem as the cache. */
+    private File createDownloadFile(CacheEntry entry) throws BuildRetrievalError {
+        try {
+            mTmpRoot.mkdirs();
+            File tmpFile =
+                    FileUtil.createTempFile("download", "_" + entry.mFile.getName(), mTmpRoot);
+            tmpFile.delete();
+            return tmpFile;
+        } catch (IOException e) {
+            throw new BuildRetrievalError(
+                    String.format("Failed to create a download file in %s", mTmpRoot), e);
         }
-        return copyFile;
     }
 
     /** Do the actual file download, clean up on exception is done by the caller. */
-    private void downloadFile(IFileDownloader downloader, String remotePath, File cachedFile)
+    private void downloadFile(IFileDownloader downloader, String remotePath, File destFile)
             throws BuildRetrievalError {
         Log.d(LOG_TAG, String.format("Downloading %s to cache", remotePath));
-        downloader.downloadFile(remotePath, cachedFile);
+        mDownloads.download(downloader, remotePath, destFile);
+    }
+
+    /**
+     * Store a downloaded file by content. If a blob with the same content already exists, the file
+     * is replaced by a hardlink to it, otherwise the file becomes the blob.
+     *
+     * @return the hash of the blob, or null if the file is not stored by content.
+     */
+    private String storeBlob(File cachedFile) throws BuildRetrievalError {
+        if (!cachedFile.isFile()) {
+            // Directories are not deduplicated.
+            return null;
+        }
+        String hash;
+        try {
+            hash = FileUtil.calculateMd5(cachedFile) + "_" + cachedFile.length();
+        } catch (IOException e) {
+            CLog.w("Failed to hash %s, not storing it by content: %s", cachedFile, e.toString());
+            return null;
+        }
+        File blob = new File(mBlobRoot, hash);
+        synchronized (mBlobRefs) {
+            try {
+                if (blob.exists()) {
+                    CLog.d("Content of %s is already cached as %s", cachedFile, blob);
+                    FileUtil.deleteFile(cachedFile);
+                    FileUtil.hardlinkFile(blob, cachedFile);
+                } else {
+                    mBlobRoot.mkdirs();
+                    FileUtil.hardlinkFile(cachedFile, blob);
+                }
+            } catch (IOException e) {
+                throw new BuildRetrievalError(
+                        String.format("Failed to link %s with blob %s", cachedFile, blob), e);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Add a reference from an entry to its content.
+     *
+     * @return the size to add to the cache, which is 0 if the entry shares an already accounted
+     *     blob.
+     */
+    private long retain(CacheEntry entry) {
+        if (entry.mSize < 0) {
+            return 0;
+        }
+        if (entry.mHash == null) {
+            return entry.mSize;
+        }
+        synchronized (mBlobRefs) {
+            return mBlobRefs.merge(entry.mHash, 1, Integer::sum) == 1 ? entry.mSize : 0;
+        }
+    }
+
+    /**
+     * Remove the reference from an entry to its content, deleting the blob if it was the last one.
+     *
+     * @return the size to remove from the cache, which is 0 if the blob is still shared.
+     */
+    private long release(CacheEntry entry) {
+        if (entry.mSize < 0) {
+            return 0;
+        }
+        if (entry.mHash == null) {
+            return entry.mSize;
+        }
+        synchronized (mBlobRefs) {
+            Integer refs = mBlobRefs.get(entry.mHash);
+            if (refs == null) {
+                return 0;
+            }
+            if (refs > 1) {
+                mBlobRefs.put(entry.mHash, refs - 1);
+                return 0;
+            }
+            mBlobRefs.remove(entry.mHash);
+            FileUtil.deleteFile(new File(mBlobRoot, entry.mHash));
+            return entry.mSize;
+        }
+    }
+
+    /** Returns the size of a file, or the total size of the files in a directory. */
+    static long getSize(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        long size = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += getSize(child);
+            }
+        }
+        return size;
     }
 
     @VisibleForTesting
@@ -344,44 +807,99 @@ public class FileDownloadCache {
     }
 
     /**
-     * Adjust file cache size to mMaxFileCacheSize if necessary by deleting old files
+     * Account for a change of the cache size, and schedule an eviction on the background thread
+     * if the cache grew over its max size.
      */
     private void incrementAndAdjustCache(long length) {
-        mCacheMapLock.lock();
-        try {
-            mCurrentCacheSize += length;
-            Iterator<String> keyIterator = mCacheMap.keySet().iterator();
-            while (mCurrentCacheSize > getMaxFileCacheSize() && keyIterator.hasNext()) {
-                String remotePath = keyIterator.next();
+        long currentSize = mCurrentCacheSize.addAndGet(length);
+        if (currentSize > getMaxFileCacheSize() && mEvictionPending.compareAndSet(false, true)) {
+            mBackgroundExecutor.execute(
+                    () -> {
+                        mEvictionPending.set(false);
+                        adjustCache(getMaxFileCacheSize());
+                    });
+        }
+    }
+
+    /**
+     * Adjust file cache size to the given max size if necessary by deleting the least recently
+     * used files. Files being used by another thread are skipped.
+     */
+    private void adjustCache(long maxSize) {
+        synchronized (mEvictionLock) {
+            if (mCurrentCacheSize.get() <= maxSize) {
+                return;
+            }
+            List<Map.Entry<String, CacheEntry>> entries = new ArrayList<>(mCacheEntries.entrySet());
+            Collections.sort(
+                    entries, Comparator.comparingLong(e -> e.getValue().mLastAccess));
+            for (Map.Entry<String, CacheEntry> mapEntry : entries) {
+                if (mCurrentCacheSize.get() <= maxSize) {
+                    break;
+                }
+                CacheEntry entry = mapEntry.getValue();
+                if (entry.mSize < 0) {
+                    // Nothing to evict, the file is still being downloaded.
+                    continue;
+                }
                 // Only delete the file if it is not being used by another thread.
-                if (tryLockFile(remotePath)) {
+                if (entry.mLock.writeLock().tryLock()) {
                     try {
-                        File file = mCacheMap.get(remotePath);
-                        mCurrentCacheSize -= file.length();
-                        file.delete();
-                        keyIterator.remove();
+                        removeEntry(mapEntry.getKey(), entry);
                     } finally {
-                        unlockFile(remotePath);
+                        entry.mLock.writeLock().unlock();
                     }
                 } else {
                     CLog.i(
                             String.format(
                                     "File %s is being used by another invocation. Skipping.",
-                                    remotePath));
+                                    mapEntry.getKey()));
                 }
             }
             // audit cache size
-            if (mCurrentCacheSize < 0) {
+            if (mCurrentCacheSize.get() < 0) {
                 // should never happen
                 Log.e(LOG_TAG, "Cache size is less than 0!");
                 // TODO: throw fatal error?
-            } else if (mCurrentCacheSize > getMaxFileCacheSize()) {
+            } else if (mCurrentCacheSize.get() > maxSize) {
                 // May occur if the cache is configured to be too small or if mCurrentCacheSize is
                 // accounting for non-existent files.
                 Log.w(LOG_TAG, "File cache is over-capacity.");
             }
-        } finally {
-            mCacheMapLock.unlock();
+        }
+    }
+
+    /** Remove an entry from the cache and delete its file. The entry write lock must be held. */
+    private void removeEntry(String key, CacheEntry entry) {
+        if (!entry.mLive) {
+            return;
+        }
+        entry.mLive = false;
+        mCacheEntries.remove(key, entry);
+        FileUtil.recursiveDelete(entry.mFile);
+        mCurrentCacheSize.addAndGet(-release(entry));
+        if (entry.mSize >= 0) {
+            mIndex.recordDelete(key);
+            scheduleIndexFlush();
+        }
+    }
+
+    /** Returns the download layer of the cache, which tracks the download metrics. */
+    public FileDownloadCoordinator getDownloadCoordinator() {
+        return mDownloads;
+    }
+
+    /**
+     * Wait for the pending background eviction and index maintenance, if any, to complete.
+     * <p/>
+     * Exposed for unit testing
+     */
+    @VisibleForTesting
+    void waitForBackgroundTasks() {
+        try {
+            mBackgroundExecutor.submit(() -> {}).get();
+        } catch (InterruptedException | ExecutionException e) {
+            CLog.e(e);
         }
     }
 
@@ -394,12 +912,8 @@ public class FileDownloadCache {
      * @return the cached {@link File} or <code>null</code>
      */
      File getCachedFile(String remoteFilePath) {
-        mCacheMapLock.lock();
-        try {
-            return mCacheMap.get(remoteFilePath);
-        } finally {
-            mCacheMapLock.unlock();
-        }
+        CacheEntry entry = mCacheEntries.get(getKey(remoteFilePath));
+        return entry == null ? null : entry.mFile;
      }
 
     /**
@@ -408,11 +922,7 @@ public class FileDownloadCache {
      * exposed for unit testing
      */
      void empty() {
-        long currentMax = getMaxFileCacheSize();
-        // reuse incrementAndAdjustCache to clear cache, by setting cache cap to 0
-        setMaxCacheSize(0L);
-        incrementAndAdjustCache(0);
-        setMaxCacheSize(currentMax);
+        adjustCache(0L);
     }
 
     /**
@@ -423,16 +933,24 @@ public class FileDownloadCache {
      * @return the remote path or <code>null</null> if cache is empty
      */
     String getOldestEntry() {
-        mCacheMapLock.lock();
-        try {
-            if (!mCacheMap.isEmpty()) {
-                return mCacheMap.keySet().iterator().next();
-            } else {
-                return null;
+        String oldest = null;
+        long oldestAccess = Long.MAX_VALUE;
+        for (Map.Entry<String, CacheEntry> mapEntry : mCacheEntries.entrySet()) {
+            if (mapEntry.getValue().mLastAccess < oldestAccess) {
+                oldestAccess = mapEntry.getValue().mLastAccess;
+                oldest = mapEntry.getKey();
             }
-        } finally {
-            mCacheMapLock.unlock();
         }
+        return oldest;
+    }
+
+    /**
+     * Get the current size of the file cache.
+     * <p/>
+     * exposed for unit testing.
+     */
+    long getCurrentCacheSize() {
+        return mCurrentCacheSize.get();
     }
 
     /**
@@ -450,48 +968,17 @@ public class FileDownloadCache {
      * Allow deleting an entry from the cache. In case the entry is invalid or corrupted.
      */
     public void deleteCacheEntry(String remoteFilePath) {
-        lockFile(remoteFilePath);
+        String key = getKey(remoteFilePath);
+        CacheEntry entry = mCacheEntries.get(key);
+        if (entry == null) {
+            CLog.i("No cache entry to delete for %s", remoteFilePath);
+            return;
+        }
+        entry.mLock.writeLock().lock();
         try {
-            mCacheMapLock.lock();
-            try {
-                File file = mCacheMap.remove(remoteFilePath);
-                if (file != null) {
-                    FileUtil.recursiveDelete(file);
-                } else {
-                    CLog.i("No cache entry to delete for %s", remoteFilePath);
-                }
-            } finally {
-                mCacheMapLock.unlock();
-            }
+            removeEntry(key, entry);
         } finally {
-            unlockFile(remoteFilePath);
-        }
-    }
-
-    /**
-     * Class that ensure the remote file path as the key is always similar to an actual folder
-     * hierarchy.
-     */
-    private static class CollapsedKeyMap<V> extends LinkedHashMap<String, V> {
-        @Override
-        public V put(String key, V value) {
-            return super.put(new File(key).getPath(), value);
-        }
-
-        @Override
-        public V get(Object key) {
-            if (key instanceof String) {
-                return super.get(new File((String) key).getPath());
-            }
-            return super.get(key);
-        }
-
-        @Override
-        public V remove(Object key) {
-            if (key instanceof String) {
-                return super.remove(new File((String) key).getPath());
-            }
-            return super.remove(key);
+            entry.mLock.writeLock().unlock();
         }
     }
 }
@@ -15,6 +15,8 @@
  */
 package com.android.tradefed.build;
 
+import com.android.tradefed.host.IHostOptions;
+
 import java.io.File;
 import java.util.Collections;
 import java.util.HashMap;
@@ -51,10 +53,34 @@ public class FileDownloadCacheFactory {
      * @param cacheDir the local filesystem directory to use as a cache
      * @return the {@link FileDownloadCache} for given cacheDir
      */
-    public synchronized FileDownloadCache getCache(File cacheDir) {
+    public FileDownloadCache getCache(File cacheDir) {
+        return getCache(
+                cacheDir,
+                FileDownloadCoordinator.DEFAULT_PARALLELISM,
+                FileDownloadCoordinator.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Retrieve the {@link FileDownloadCache} of the download cache directory of the host,
+     * creating it if necessary with the chunked download settings of the host.
+     *
+     * @param hostOptions the {@link IHostOptions} of the host
+     * @return the {@link FileDownloadCache} of the host
+     */
+    public FileDownloadCache getCache(IHostOptions hostOptions) {
+        return getCache(
+                hostOptions.getDownloadCacheDir(),
+                hostOptions.getChunkedDownloadThreads(),
+                hostOptions.getChunkedDownloadChunkSize());
+    }
+
+    private synchronized FileDownloadCache getCache(
+            File cacheDir, int chunkParallelism, long chunkSize) {
         FileDownloadCache cache = mCacheObjectMap.get(cacheDir.getAbsolutePath());
         if (cache == null) {
-            cache = new FileDownloadCache(cacheDir);
+            cache =
+                    new FileDownloadCache(
+                            cacheDir, new FileDownloadCoordinator(chunkParallelism, chunkSize));
             mCacheObjectMap.put(cacheDir.getAbsolutePath(), cache);
         }
         return cache;
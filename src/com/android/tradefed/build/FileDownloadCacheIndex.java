@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.build;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the {@link FileDownloadCache} entries, so that the cache can be
+ * rebuilt at startup without walking its whole content.
+ *
+ * <p>Each line is one record: an insert with the size, access sequence number and content hash of
+ * an entry, an access with a new sequence number, or a delete. Every record ends with a CRC32 of
+ * its fields so that a record torn by a crash is ignored. Inserts are written immediately, while
+ * accesses and deletes are queued and written in batches by {@link #flush()}; anything lost is
+ * fixed by the reconciliation of the cache with the filesystem.
+ */
+class FileDownloadCacheIndex {
+
+    /** Name of the index file, in the cache root directory. */
+    static final String INDEX_FILE_NAME = ".tf_cache_index";
+
+    private static final char SEPARATOR = '\t';
+    private static final String INSERT = "I";
+    private static final String ACCESS = "A";
+    private static final String DELETE = "D";
+
+    /** An indexed cache entry. */
+    static class IndexRecord {
+        final String mKey;
+        final long mSize;
+        long mLastAccess;
+        /** Hash of the content blob of the entry, or null if it is not stored by content. */
+        final String mHash;
+
+        IndexRecord(String key, long size, long lastAccess, String hash) {
+            mKey = key;
+            mSize = size;
+            mLastAccess = lastAccess;
+            mHash = hash;
+        }
+    }
+
+    private final File mIndexFile;
+    private final Queue<String> mPendingRecords = new ConcurrentLinkedQueue<>();
+    /** Number of records in the index file, including the ones superseded by later records. */
+    private long mRecordCount = 0;
+
+    FileDownloadCacheIndex(File cacheRoot) {
+        mIndexFile = new File(cacheRoot, INDEX_FILE_NAME);
+    }
+
+    /** Returns true if the index file exists. */
+    boolean exists() {
+        return mIndexFile.isFile();
+    }
+
+    /**
+     * Load the index file.
+     *
+     * @return the indexed entries by key, in no particular order.
+     */
+    synchronized Map<String, IndexRecord> load() {
+        Map<String, IndexRecord> records = new LinkedHashMap<>();
+        mRecordCount = 0;
+        long corrupted = 0;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mIndexFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                mRecordCount++;
+                if (!applyRecord(line, records)) {
+                    corrupted++;
+                }
+            }
+        } catch (IOException e) {
+            CLog.e("Failed to read cache index %s", mIndexFile);
+            CLog.e(e);
+        } finally {
+            StreamUtil.close(reader);
+        }
+        if (corrupted > 0) {
+            CLog.w("Ignored %d corrupted records in cache index %s", corrupted, mIndexFile);
+        }
+        return records;
+    }
+
+    /** Apply one record to the loaded entries. Returns false if the record is corrupted. */
+    private boolean applyRecord(String line, Map<String, IndexRecord> records) {
+        int crcIndex = line.lastIndexOf(SEPARATOR);
+        if (crcIndex < 0 || !line.substring(crcIndex + 1).equals(checksum(line, crcIndex))) {
+            return false;
+        }
+        String[] fields = line.substring(0, crcIndex).split(String.valueOf(SEPARATOR), -1);
+        try {
+            switch (fields[0]) {
+                case INSERT:
+                    if (fields.length != 5) {
+                        return false;
+                    }
+                    records.put(
+                            fields[1],
+                            new IndexRecord(
+                                    fields[1],
+                                    Long.parseLong(fields[2]),
+                                    Long.parseLong(fields[3]),
+                                    fields[4].isEmpty() ? null : fields[4]));
+                    return true;
+                case ACCESS:
+                    if (fields.length != 3) {
+                        return false;
+                    }
+                    IndexRecord record = records.get(fields[1]);
+                    if (record != null) {
+                        long lastAccess = Long.parseLong(fields[2]);
+                        record.mLastAccess = Math.max(record.mLastAccess, lastAccess);
+                    }
+                    return true;
+                case DELETE:
+                    if (fields.length != 2) {
+                        return false;
+                    }
+                    records.remove(fields[1]);
+                    return true;
+                default:
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /** Record that an entry was downloaded. Written to disk immediately. */
+    synchronized void recordInsert(String key, long size, long lastAccess, String hash) {
+        mPendingRecords.add(formatInsert(key, size, lastAccess, hash));
+        flush();
+    }
+
+    /** Record that an entry was accessed. Written to disk on the next {@link #flush()}. */
+    void recordAccess(String key, long lastAccess) {
+        mPendingRecords.add(formatRecord(ACCESS, key, Long.toString(lastAccess)));
+    }
+
+    /** Record that an entry was deleted. Written to disk on the next {@link #flush()}. */
+    void recordDelete(String key) {
+        mPendingRecords.add(formatRecord(DELETE, key));
+    }
+
+    /** Write all the queued records to the index file. */
+    synchronized void flush() {
+        if (mPendingRecords.isEmpty()) {
+            return;
+        }
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(mIndexFile, true));
+            String record;
+            while ((record = mPendingRecords.poll()) != null) {
+                writer.write(record);
+                mRecordCount++;
+            }
+        } catch (IOException e) {
+            CLog.e("Failed to write cache index %s", mIndexFile);
+            CLog.e(e);
+        } finally {
+            StreamUtil.close(writer);
+        }
+    }
+
+    /**
+     * Replace the index file with one insert record per entry, dropping all the superseded
+     * records. The new file is written next to the current one and then renamed over it.
+     *
+     * <p>The snapshot of the entries is taken after counting the queued records: those records
+     * describe changes already applied to the entries, so they are dropped, while the records
+     * queued while the snapshot is taken are kept and written after the new file.
+     *
+     * @param snapshot returns the current entries of the cache.
+     */
+    synchronized void rewrite(Supplier<Collection<IndexRecord>> snapshot) {
+        // Only this method and flush() remove records, both under the lock, so the first records
+        // of the queue are the ones counted here.
+        int supersededRecords = mPendingRecords.size();
+        Collection<IndexRecord> entries = snapshot.get();
+        File tmpFile = new File(mIndexFile.getParentFile(), INDEX_FILE_NAME + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(tmpFile));
+            for (IndexRecord entry : entries) {
+                writer.write(formatInsert(entry.mKey, entry.mSize, entry.mLastAccess, entry.mHash));
+            }
+            writer.close();
+            writer = null;
+            if (!tmpFile.renameTo(mIndexFile)) {
+                throw new IOException(String.format("Failed to rename %s", tmpFile));
+            }
+            mRecordCount = entries.size();
+            for (int i = 0; i < supersededRecords; i++) {
+                mPendingRecords.poll();
+            }
+        } catch (IOException e) {
+            CLog.e("Failed to rewrite cache index %s", mIndexFile);
+            CLog.e(e);
+            FileUtil.deleteFile(tmpFile);
+        } finally {
+            StreamUtil.close(writer);
+        }
+        flush();
+    }
+
+    /** Returns the number of records in the index file. */
+    synchronized long getRecordCount() {
+        return mRecordCount;
+    }
+
+    private static String formatInsert(String key, long size, long lastAccess, String hash) {
+        return formatRecord(
+                INSERT,
+                key,
+                Long.toString(size),
+                Long.toString(lastAccess),
+                hash == null ? "" : hash);
+    }
+
+    private static String formatRecord(String... fields) {
+        StringBuilder record = new StringBuilder();
+        for (String field : fields) {
+            if (record.length() > 0) {
+                record.append(SEPARATOR);
+            }
+            record.append(field);
+        }
+        record.append(SEPARATOR).append(checksum(record, record.length())).append('\n');
+        return record.toString();
+    }
+
+    private static String checksum(CharSequence record, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(record.subSequence(0, length).toString().getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+}
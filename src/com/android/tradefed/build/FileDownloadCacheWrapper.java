@@ -15,6 +15,8 @@
  */
 package com.android.tradefed.build;
 
+import com.android.tradefed.host.IHostOptions;
+
 import java.io.File;
 
 /**
@@ -33,6 +35,15 @@ public class FileDownloadCacheWrapper implements IFileDownloader {
         mDelegateDownloader = delegateDownloader;
     }
 
+    /**
+     * Creates a {@link FileDownloadCacheWrapper} using the download cache of the host, configured
+     * with the host options.
+     */
+    public FileDownloadCacheWrapper(IHostOptions hostOptions, IFileDownloader delegateDownloader) {
+        mCache = FileDownloadCacheFactory.getInstance().getCache(hostOptions);
+        mDelegateDownloader = delegateDownloader;
+    }
+
     /**
      * {@inheritDoc}
      */
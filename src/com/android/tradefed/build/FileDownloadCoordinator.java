@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.build;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The download layer between {@link FileDownloadCache} and the {@link IFileDownloader}s.
+ *
+ * <p>Concurrent misses on the same remote path are coalesced: the first one registers an in-flight
+ * download, and the following ones wait for it instead of starting their own. Files served by an
+ * {@link IRangeFileDownloader} that are larger than one chunk are downloaded as parallel ranged
+ * chunks. The number of downloads and the throughput are tracked across all the downloads.
+ */
+public class FileDownloadCoordinator {
+
+    /** Default max number of chunks downloaded in parallel. */
+    public static final int DEFAULT_PARALLELISM = 4;
+    /** Default size of a chunk. */
+    public static final long DEFAULT_CHUNK_SIZE = 32L * 1024L * 1024L;
+
+    /** Number of attempts to download a single chunk. */
+    private static final int CHUNK_ATTEMPTS = 3;
+
+    private final Map<String, CompletableFuture<Void>> mInFlight = new ConcurrentHashMap<>();
+    private final int mParallelism;
+    private final long mChunkSize;
+    private final ExecutorService mChunkExecutor;
+
+    private final AtomicLong mDownloadCount = new AtomicLong();
+    private final AtomicLong mChunkedDownloadCount = new AtomicLong();
+    private final AtomicLong mCoalescedCount = new AtomicLong();
+    private final AtomicLong mDownloadedBytes = new AtomicLong();
+    private final AtomicLong mDownloadTimeMs = new AtomicLong();
+
+    public FileDownloadCoordinator() {
+        this(DEFAULT_PARALLELISM, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a {@link FileDownloadCoordinator}.
+     *
+     * @param parallelism the max number of chunks downloaded in parallel, 1 to disable chunked
+     *     downloads.
+     * @param chunkSize the size of a chunk in bytes.
+     */
+    public FileDownloadCoordinator(int parallelism, long chunkSize) {
+        mParallelism = parallelism;
+        mChunkSize = chunkSize;
+        mChunkExecutor =
+                Executors.newFixedThreadPool(
+                        Math.max(1, parallelism),
+                        r -> {
+                            Thread t = new Thread(r, "FileDownloadCoordinator-chunk");
+                            t.setDaemon(true);
+                            return t;
+                        });
+    }
+
+    /**
+     * Register a new in-flight download.
+     *
+     * @param key the key of the downloaded file
+     * @return the future to complete with {@link #complete(String, CompletableFuture, Throwable)}
+     *     once the download is done, or null if a download of the same key is already in flight.
+     */
+    CompletableFuture<Void> register(String key) {
+        CompletableFuture<Void> download = new CompletableFuture<>();
+        return mInFlight.putIfAbsent(key, download) == null ? download : null;
+    }
+
+    /** Returns the in-flight download of the given key, or null if there is none. */
+    CompletableFuture<Void> getInFlight(String key) {
+        return mInFlight.get(key);
+    }
+
+    /** Complete a download registered with {@link #register(String)}. */
+    void complete(String key, CompletableFuture<Void> download, Throwable error) {
+        mInFlight.remove(key, download);
+        if (error == null) {
+            download.complete(null);
+        } else {
+            download.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Wait for a download in flight in another thread.
+     *
+     * @return true if the download succeeded, false otherwise.
+     */
+    boolean await(CompletableFuture<Void> download) {
+        mCoalescedCount.incrementAndGet();
+        try {
+            download.get();
+            return true;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            CLog.w("Interrupted while waiting for a download in flight.");
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Download a remote file, as parallel chunks if the downloader supports it. The file is
+     * downloaded whole if the chunked download fails.
+     *
+     * @param downloader the {@link IFileDownloader} to use
+     * @param remotePath the remote file path
+     * @param destFile the local file to download to
+     * @throws BuildRetrievalError if the file could not be downloaded
+     */
+    public void download(IFileDownloader downloader, String remotePath, File destFile)
+            throws BuildRetrievalError {
+        long startTime = System.currentTimeMillis();
+        boolean chunked = false;
+        if (downloader instanceof IRangeFileDownloader && mParallelism > 1) {
+            try {
+                chunked =
+                        downloadChunks((IRangeFileDownloader) downloader, remotePath, destFile);
+            } catch (BuildRetrievalError e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                CLog.w(
+                        "Chunked download of %s failed, downloading it whole: %s",
+                        remotePath, e.getMessage());
+                FileUtil.deleteFile(destFile);
+            }
+        }
+        if (!chunked) {
+            downloader.downloadFile(remotePath, destFile);
+        }
+        recordDownload(remotePath, FileDownloadCache.getSize(destFile), startTime);
+    }
+
+    /**
+     * Download a remote file as parallel ranged chunks.
+     *
+     * @return false if the file is too small or its size is unknown, in which case nothing was
+     *     downloaded.
+     * @throws BuildRetrievalError if the file could not be downloaded
+     */
+    public boolean downloadChunks(IRangeFileDownloader source, String remotePath, File destFile)
+            throws BuildRetrievalError {
+        long size;
+        try {
+            size = source.getRemoteFileSize(remotePath);
+        } catch (IOException e) {
+            CLog.w("Failed to get the size of %s: %s", remotePath, e.toString());
+            return false;
+        }
+        if (size <= mChunkSize) {
+            return false;
+        }
+        CLog.d("Downloading %s as %d chunks", remotePath, (size + mChunkSize - 1) / mChunkSize);
+        ChunkTracker tracker = new ChunkTracker();
+        List<Future<Void>> chunks = new ArrayList<>();
+        try (RandomAccessFile file = new RandomAccessFile(destFile, "rw")) {
+            try {
+                file.setLength(size);
+                FileChannel channel = file.getChannel();
+                for (long offset = 0; offset < size; offset += mChunkSize) {
+                    final long chunkOffset = offset;
+                    final long chunkLength = Math.min(mChunkSize, size - offset);
+                    chunks.add(
+                            mChunkExecutor.submit(
+                                    () -> {
+                                        if (tracker.start()) {
+                                            try {
+                                                downloadChunk(
+                                                        source,
+                                                        remotePath,
+                                                        channel,
+                                                        chunkOffset,
+                                                        chunkLength,
+                                                        tracker);
+                                            } finally {
+                                                tracker.finish();
+                                            }
+                                        }
+                                        return null;
+                                    }));
+                }
+                for (Future<Void> chunk : chunks) {
+                    chunk.get();
+                }
+            } catch (IOException | ExecutionException | InterruptedException e) {
+                // Stop the other chunks before the file is closed under them.
+                tracker.abort();
+                for (Future<Void> chunk : chunks) {
+                    chunk.cancel(true);
+                }
+                tracker.awaitRunning();
+                throw e;
+            }
+        } catch (IOException | ExecutionException | InterruptedException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            throw new BuildRetrievalError(
+                    String.format("Failed to download %s: %s", remotePath, cause.getMessage()),
+                    cause);
+        }
+        mChunkedDownloadCount.incrementAndGet();
+        return true;
+    }
+
+    private void downloadChunk(
+            IRangeFileDownloader source,
+            String remotePath,
+            FileChannel channel,
+            long offset,
+            long length,
+            ChunkTracker tracker)
+            throws IOException {
+        IOException lastError = null;
+        for (int attempt = 0; attempt < CHUNK_ATTEMPTS; attempt++) {
+            PositionalOutputStream out = new PositionalOutputStream(channel, offset, length);
+            try {
+                source.downloadRange(remotePath, offset, length, out);
+                if (out.getWritten() == length) {
+                    return;
+                }
+                lastError =
+                        new IOException(
+                                String.format(
+                                        "Got %d bytes instead of %d at offset %d",
+                                        out.getWritten(), length, offset));
+            } catch (IOException e) {
+                lastError = e;
+            }
+            if (tracker.isAborted()) {
+                break;
+            }
+            CLog.w(
+                    "Attempt %d to download chunk at offset %d of %s failed: %s",
+                    attempt + 1, offset, remotePath, lastError.getMessage());
+        }
+        throw lastError;
+    }
+
+    private void recordDownload(String remotePath, long bytes, long startTime) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        mDownloadCount.incrementAndGet();
+        mDownloadedBytes.addAndGet(bytes);
+        mDownloadTimeMs.addAndGet(elapsed);
+        CLog.d(
+                "Downloaded %s (%s) in %d ms, %s/s",
+                remotePath,
+                FileUtil.convertToReadableSize(bytes),
+                elapsed,
+                FileUtil.convertToReadableSize(bytes * 1000 / elapsed));
+    }
+
+    /** Returns the number of downloads. */
+    public long getDownloadCount() {
+        return mDownloadCount.get();
+    }
+
+    /** Returns the number of downloads made of parallel chunks. */
+    public long getChunkedDownloadCount() {
+        return mChunkedDownloadCount.get();
+    }
+
+    /** Returns the number of requests that waited for a download in flight. */
+    public long getCoalescedCount() {
+        return mCoalescedCount.get();
+    }
+
+    /** Returns the total number of bytes downloaded. */
+    public long getDownloadedBytes() {
+        return mDownloadedBytes.get();
+    }
+
+    /** Returns the average throughput of the downloads, in bytes per second. */
+    public long getThroughput() {
+        long time = mDownloadTimeMs.get();
+        return time == 0 ? 0 : mDownloadedBytes.get() * 1000 / time;
+    }
+
+    /** Returns a one line summary of the download metrics. */
+    public String getStats() {
+        return String.format(
+                "downloads=%d chunked=%d coalesced=%d bytes=%d throughput=%s/s",
+                getDownloadCount(),
+                getChunkedDownloadCount(),
+                getCoalescedCount(),
+                getDownloadedBytes(),
+                FileUtil.convertToReadableSize(getThroughput()));
+    }
+
+    /**
+     * Tracks the chunks of a download that are running, so that a failed download can stop them
+     * and wait for them before closing the file they write to.
+     */
+    private static class ChunkTracker {
+        private int mRunning = 0;
+        private boolean mAborted = false;
+
+        /** Returns false if the download was aborted, in which case the chunk must not run. */
+        synchronized boolean start() {
+            if (mAborted) {
+                return false;
+            }
+            mRunning++;
+            return true;
+        }
+
+        synchronized void finish() {
+            mRunning--;
+            notifyAll();
+        }
+
+        synchronized void abort() {
+            mAborted = true;
+        }
+
+        synchronized boolean isAborted() {
+            return mAborted;
+        }
+
+        /** Wait for the running chunks to finish, without being interrupted. */
+        synchronized void awaitRunning() {
+            boolean interrupted = false;
+            while (mRunning > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** An {@link OutputStream} writing a range of a {@link FileChannel}. */
+    private static class PositionalOutputStream extends OutputStream {
+        private final FileChannel mChannel;
+        private final long mOffset;
+        private final long mLength;
+        private long mWritten = 0;
+
+        PositionalOutputStream(FileChannel channel, long offset, long length) {
+            mChannel = channel;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        long getWritten() {
+            return mWritten;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mWritten + len > mLength) {
+                throw new IOException(
+                        String.format("Received more than the %d bytes requested", mLength));
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                mWritten += mChannel.write(buffer, mOffset + mWritten);
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.build;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A source of remote files that can download byte ranges of a file, which allows fetching large
+ * files as several chunks in parallel.
+ */
+public interface IRangeFileDownloader {
+
+    /**
+     * Returns the size in bytes of a remote file.
+     *
+     * @param remotePath the remote file path
+     * @return the size of the file, or -1 if it is unknown, if the remote path is not a single
+     *     file, or if the source cannot serve byte ranges of it.
+     * @throws IOException if the remote file could not be queried
+     */
+    public long getRemoteFileSize(String remotePath) throws IOException;
+
+    /**
+     * Download a range of bytes of a remote file.
+     *
+     * @param remotePath the remote file path
+     * @param start the offset of the first byte to download
+     * @param length the number of bytes to download
+     * @param out the {@link OutputStream} to write the bytes to
+     * @throws IOException if the range could not be downloaded
+     */
+    public void downloadRange(String remotePath, long start, long length, OutputStream out)
+            throws IOException;
+}
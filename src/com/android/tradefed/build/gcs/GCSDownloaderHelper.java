@@ -43,8 +43,7 @@ public class GCSDownloaderHelper {
     private IFileDownloader getGCSFileDownloader() {
         if (mFileDownloader == null) {
             mFileDownloader =
-                    new FileDownloadCacheWrapper(
-                            getHostOptions().getDownloadCacheDir(), new GCSFileDownloader());
+                    new FileDownloadCacheWrapper(getHostOptions(), new GCSFileDownloader());
         }
         return mFileDownloader;
     }
@@ -22,6 +22,7 @@ import com.android.tradefed.device.metric.AutoLogCollector;
 import com.android.tradefed.config.OptionCopier;
 import com.android.tradefed.config.OptionUpdateRule;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.MultiMap;
 import com.android.tradefed.util.UniqueMultiMap;
 
 import java.util.LinkedHashSet;
@@ -176,6 +177,39 @@ public class CommandOptions implements ICommandOptions {
     )
     private boolean mUseParallelRemoteSetup = false;
 
+    @Option(
+        name = "parallel-setup",
+        description =
+                "For multi-device invocations, whether or not to fetch the builds and run the "
+                        + "target preparers of the devices in parallel."
+    )
+    private boolean mUseParallelSetup = false;
+
+    @Option(
+        name = "parallel-setup-dependency",
+        description =
+                "For parallel multi-device setup, a device name as key and the name of a device "
+                        + "whose build fetch and setup must be done before its own as value. "
+                        + "Can be repeated."
+    )
+    private MultiMap<String, String> mParallelSetupDependencies = new MultiMap<>();
+
+    @Option(
+        name = "async-result-reporting",
+        description =
+                "Deliver the test events to each result reporter from a thread of its own, so "
+                        + "that a slow reporter does not slow down the tests."
+    )
+    private boolean mUseAsyncResultReporting = false;
+
+    @Option(
+        name = "async-result-queue-size",
+        description =
+                "With async-result-reporting, the maximum number of events waiting to be "
+                        + "delivered to a reporter before the tests wait for it."
+    )
+    private int mAsyncResultQueueSize = 1024;
+
     @Option(
         name = "auto-collect",
         description =
@@ -536,4 +570,28 @@ public class CommandOptions implements ICommandOptions {
     public boolean shouldUseParallelRemoteSetup() {
         return mUseParallelRemoteSetup;
     }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean shouldUseParallelSetup() {
+        return mUseParallelSetup;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public MultiMap<String, String> getParallelSetupDependencies() {
+        return mParallelSetupDependencies;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean shouldUseAsyncResultReporting() {
+        return mUseAsyncResultReporting;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getAsyncResultQueueSize() {
+        return mAsyncResultQueueSize;
+    }
 }
@@ -17,12 +17,13 @@
 package com.android.tradefed.command;
 
 import com.android.ddmlib.DdmPreferences;
-import com.android.ddmlib.Log;
 import com.android.ddmlib.Log.LogLevel;
 import com.android.tradefed.clearcut.ClearcutClient;
 import com.android.tradefed.command.CommandFileParser.CommandLine;
 import com.android.tradefed.command.CommandFileWatcher.ICommandFileListener;
 import com.android.tradefed.command.CommandRunner.ExitCode;
+import com.android.tradefed.command.SchedulerEventQueue.SchedulerEvent;
+import com.android.tradefed.command.SchedulerEventQueue.SchedulerEventType;
 import com.android.tradefed.command.remote.DeviceDescriptor;
 import com.android.tradefed.command.remote.IRemoteClient;
 import com.android.tradefed.command.remote.RemoteClient;
@@ -39,12 +40,14 @@ import com.android.tradefed.config.IGlobalConfiguration;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.RetryConfigurationFactory;
 import com.android.tradefed.config.SandboxConfigurationFactory;
+import com.android.tradefed.device.AvailableDeviceIndex;
 import com.android.tradefed.device.DeviceAllocationState;
 import com.android.tradefed.device.DeviceManager;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.DeviceUnresponsiveException;
 import com.android.tradefed.device.FreeDeviceState;
 import com.android.tradefed.device.IDeviceManager;
+import com.android.tradefed.device.IDeviceSelection;
 import com.android.tradefed.device.IDeviceMonitor;
 import com.android.tradefed.device.IManagedTestDevice;
 import com.android.tradefed.device.ITestDevice;
@@ -160,7 +163,10 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
 
     private WaitObj mHandoverHandshake = new WaitObj();
 
-    private WaitObj mCommandProcessWait = new WaitObj();
+    private SchedulerEventQueue mSchedulerEvents = new SchedulerEventQueue();
+
+    /** Number of times the scheduler main loop woke up, only updated by the scheduler thread. */
+    private volatile long mWakeCount = 0L;
 
     /** The last {@link InvocationThread} that ran error code and error stack*/
     private ExitCode mLastInvocationExitCode = ExitCode.NO_ERROR;
@@ -180,6 +186,18 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
     )
     private long mPollTime = 30 * 1000; // 30 seconds
 
+    @Option(
+        name = "indexed-device-matching",
+        description =
+                "only re-evaluate the ready commands that a newly available device could satisfy, "
+                        + "instead of attempting allocation for every command on each wake up. A "
+                        + "full evaluation still happens every max-poll-time."
+    )
+    private boolean mIndexedDeviceMatching = true;
+
+    /** Whether the next scheduling pass should evaluate every ready command. */
+    private boolean mFullMatchPending = true;
+
     @Option(name = "shutdown-on-cmdfile-error", description =
             "terminate TF session if a configuration exception on command file occurs")
     private boolean mShutdownOnCmdfileError = false;
@@ -281,6 +299,8 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         private final boolean mRescheduled;
         private final long mCreationTime;
         private Long mSleepTime;
+        /** The device index generation at which this command last failed to get devices. */
+        private long mMatchGeneration = AvailableDeviceIndex.ANY_GENERATION;
 
         private ExecutableCommand(CommandTracker tracker, IConfiguration config,
                 boolean rescheduled) {
@@ -318,7 +338,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                 mExecutingCommands.remove(this);
             }
             if (isShuttingDown()) {
-                mCommandProcessWait.signalEventReceived();
+                mSchedulerEvents.post(SchedulerEventType.STATE_CHANGED);
             }
         }
 
@@ -341,6 +361,14 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         public String getCommandFilePath() {
             return mCmdTracker.getCommandFilePath();
         }
+
+        long getMatchGeneration() {
+            return mMatchGeneration;
+        }
+
+        void setMatchGeneration(long generation) {
+            mMatchGeneration = generation;
+        }
     }
 
     /**
@@ -829,7 +857,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                 DeviceAllocationState newState) {
             if (newState.equals(DeviceAllocationState.Available)) {
                 // new avail device was added, wake up scheduler
-                mCommandProcessWait.signalEventReceived();
+                mSchedulerEvents.post(SchedulerEventType.DEVICE_AVAILABLE);
             }
         }
     }
@@ -972,20 +1000,23 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             // add a listener that will wake up scheduler when a new avail device is added
             manager.addDeviceMonitor(new AvailDeviceMonitor());
 
+            long nextPoll = System.currentTimeMillis() + mPollTime;
             while (!isShutdown()) {
                 // wait until processing is required again
-                mCommandProcessWait.waitAndReset(mPollTime);
-                checkInvocations();
-                try {
-                    processReadyCommands(manager);
-                    postProcessReadyCommands();
-                } catch (RuntimeException e) {
-                    CLog.e(e);
-                    Map<String, String> information = new HashMap<>();
-                    information.put("Exception", "CommandScheduler");
-                    information.put("stack", StreamUtil.getStackTrace(e));
-                    logEvent(EventType.UNEXPECTED_EXCEPTION, information);
+                long waitTime = 0L;
+                if (mPollTime > 0) {
+                    waitTime = Math.max(1L, nextPoll - System.currentTimeMillis());
                 }
+                List<SchedulerEvent> events = mSchedulerEvents.waitForEvents(waitTime);
+                long now = System.currentTimeMillis();
+                if (mPollTime > 0 && now >= nextPoll) {
+                    // Periodically check the invocations and re-evaluate all commands, since some
+                    // criteria like battery level can change without any device event.
+                    events.add(new SchedulerEvent(SchedulerEventType.INVOCATION_CHECK, nextPoll));
+                    events.add(new SchedulerEvent(SchedulerEventType.POLL, nextPoll));
+                    nextPoll = now + mPollTime;
+                }
+                processSchedulerEvents(manager, events);
             }
             mCommandTimer.shutdown();
             // We signal the device manager to stop device recovery threads because it could
@@ -1011,6 +1042,67 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         }
     }
 
+    /**
+     * Perform the work required by a batch of scheduler events: check the running invocations
+     * and/or match the ready commands with devices, then report the wake up to the host monitors.
+     */
+    private void processSchedulerEvents(IDeviceManager manager, List<SchedulerEvent> events) {
+        mWakeCount++;
+        boolean checkInvocations = false;
+        boolean processCommands = false;
+        for (SchedulerEvent event : events) {
+            checkInvocations |= event.getType().requiresInvocationCheck();
+            processCommands |= event.getType().requiresCommandProcessing();
+            if (SchedulerEventType.POLL.equals(event.getType())) {
+                synchronized (this) {
+                    mFullMatchPending = true;
+                }
+            }
+        }
+        if (checkInvocations) {
+            checkInvocations();
+        }
+        if (processCommands) {
+            try {
+                processReadyCommands(manager);
+                postProcessReadyCommands();
+            } catch (RuntimeException e) {
+                CLog.e(e);
+                Map<String, String> information = new HashMap<>();
+                information.put("Exception", "CommandScheduler");
+                information.put("stack", StreamUtil.getStackTrace(e));
+                logEvent(EventType.UNEXPECTED_EXCEPTION, information);
+            }
+        }
+        reportSchedulerEvents(events);
+    }
+
+    /** Report the wake up count and the processing latency of each event to the host monitors. */
+    private void reportSchedulerEvents(List<SchedulerEvent> events) {
+        List<IHostMonitor> hostMonitors;
+        try {
+            hostMonitors = getHostMonitor();
+        } catch (IllegalStateException e) {
+            // Global configuration is not available, nothing to report to.
+            return;
+        }
+        if (hostMonitors == null || hostMonitors.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        HostDataPoint wakeUp =
+                new HostDataPoint("wake_count", (int) mWakeCount, Integer.toString(events.size()));
+        for (IHostMonitor hm : hostMonitors) {
+            hm.addHostEvent(HostMetricType.SCHEDULER_WAKE_UP, wakeUp);
+            for (SchedulerEvent event : events) {
+                HostDataPoint latency =
+                        new HostDataPoint(
+                                event.getType().name(), (int) (now - event.getTimestamp()));
+                hm.addHostEvent(HostMetricType.SCHEDULER_EVENT_LATENCY, latency);
+            }
+        }
+    }
+
     /**
      * Placeholder method within the scheduler main loop, called after {@link
      * #processReadyCommands(IDeviceManager)}. Default implementation is empty and does not provide
@@ -1035,12 +1127,21 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         // minimize length of synchronized block by just matching commands with device first,
         // then scheduling invocations/adding looping commands back to queue
         synchronized (this) {
+            AvailableDeviceIndex index =
+                    mIndexedDeviceMatching ? manager.getAvailableDeviceIndex() : null;
+            boolean fullMatch = mFullMatchPending;
+            mFullMatchPending = false;
             // sort ready commands by priority, so high priority commands are matched first
             Collections.sort(mReadyCommands, new ExecutableCommandComparator());
             Iterator<ExecutableCommand> cmdIter = mReadyCommands.iterator();
             while (cmdIter.hasNext()) {
                 ExecutableCommand cmd = cmdIter.next();
                 IConfiguration config = cmd.getConfiguration();
+                if (index != null && !fullMatch && !hasNewDeviceCandidate(cmd, index)) {
+                    // Nothing that could satisfy this command became available since last time.
+                    continue;
+                }
+                long generation = index != null ? index.getGeneration() : 0L;
                 IInvocationContext context = new InvocationContext();
                 context.setConfigurationDescriptor(config.getConfigurationDescription());
                 Map<String, ITestDevice> devices = allocateDevices(config, manager);
@@ -1054,6 +1155,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                     // clean warned list to avoid piling over time.
                     mUnscheduledWarning.remove(cmd);
                 } else {
+                    cmd.setMatchGeneration(generation);
                     if (!mUnscheduledWarning.contains(cmd)) {
                         CLog.logAndDisplay(LogLevel.DEBUG, "No available device matching all the "
                                 + "config's requirements for cmd id %d.",
@@ -1082,6 +1184,39 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         CLog.d("done processReadyCommands...");
     }
 
+    /**
+     * Returns true if a device that became available since the command last failed allocation
+     * could satisfy one of its device requirements, while all of its requirements still have at
+     * least one candidate.
+     */
+    private boolean hasNewDeviceCandidate(ExecutableCommand cmd, AvailableDeviceIndex index) {
+        long since = cmd.getMatchGeneration();
+        if (since == AvailableDeviceIndex.ANY_GENERATION) {
+            return true;
+        }
+        boolean newCandidate = false;
+        for (IDeviceConfiguration deviceConfig : cmd.getConfiguration().getDeviceConfig()) {
+            if (deviceConfig.isFake()) {
+                // Temporary devices are created on demand and are never indexed.
+                return true;
+            }
+            IDeviceSelection requirements = deviceConfig.getDeviceRequirements();
+            if (!index.hasCandidate(requirements, AvailableDeviceIndex.ANY_GENERATION)) {
+                return false;
+            }
+            if (!newCandidate && index.hasCandidate(requirements, since)) {
+                newCandidate = true;
+            }
+        }
+        return newCandidate;
+    }
+
+    /** Returns the number of times the scheduler main loop woke up. */
+    @VisibleForTesting
+    long getWakeCount() {
+        return mWakeCount;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -1385,7 +1520,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                     synchronized (CommandScheduler.this) {
                         if (mSleepingCommands.remove(cmd)) {
                             mReadyCommands.add(cmd);
-                            mCommandProcessWait.signalEventReceived();
+                            mSchedulerEvents.post(SchedulerEventType.COMMAND_RESCHEDULED);
                         }
                     }
                 }
@@ -1393,7 +1528,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             mCommandTimer.schedule(delayCommand, delayTime, TimeUnit.MILLISECONDS);
         } else {
             mReadyCommands.add(cmd);
-            mCommandProcessWait.signalEventReceived();
+            mSchedulerEvents.post(SchedulerEventType.COMMAND_READY);
         }
         return true;
     }
@@ -1618,7 +1753,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             if (mCommandTimer != null) {
                 mCommandTimer.shutdownNow();
             }
-            mCommandProcessWait.signalEventReceived();
+            mSchedulerEvents.post(SchedulerEventType.STATE_CHANGED);
         }
     }
 
@@ -1632,7 +1767,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         if (!isShuttingDown()) {
             CLog.d("initiating shutdown on empty");
             mShutdownOnEmpty = true;
-            mCommandProcessWait.signalEventReceived();
+            mSchedulerEvents.post(SchedulerEventType.STATE_CHANGED);
         }
     }
 
@@ -1654,7 +1789,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         mReadyCommands.clear();
         mSleepingCommands.clear();
         if (isShuttingDown()) {
-            mCommandProcessWait.signalEventReceived();
+            mSchedulerEvents.post(SchedulerEventType.STATE_CHANGED);
         }
     }
 
@@ -1682,7 +1817,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             }
         }
         if (isShuttingDown()) {
-            mCommandProcessWait.signalEventReceived();
+            mSchedulerEvents.post(SchedulerEventType.STATE_CHANGED);
         }
     }
 
@@ -1779,7 +1914,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
     @SuppressWarnings("deprecation")
     protected void initLogging() {
         DdmPreferences.setLogLevel(LogLevel.VERBOSE.getStringValue());
-        Log.setLogOutput(LogRegistry.getLogRegistry());
+        CLog.setLogOutput(LogRegistry.getLogRegistry());
     }
 
     /**
@@ -2102,15 +2237,6 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             mEventReceived = false;
         }
 
-        /**
-         * Wait for given ms for event to be received, and reset state back to 'no event received'
-         * upon completion.
-         */
-        public synchronized void waitAndReset(long maxWaitTime) {
-            waitForEvent(maxWaitTime);
-            reset();
-        }
-
         /**
          * Notify listeners that event was received.
          */
@@ -17,6 +17,7 @@
 package com.android.tradefed.command;
 
 import com.android.tradefed.device.metric.AutoLogCollector;
+import com.android.tradefed.util.MultiMap;
 import com.android.tradefed.util.UniqueMultiMap;
 
 import java.util.Set;
@@ -199,4 +200,19 @@ public interface ICommandOptions {
 
     /** Whether or not to attempt parallel setup of the remote devices. */
     public boolean shouldUseParallelRemoteSetup();
+
+    /** Whether or not to fetch the builds and set up the devices of the invocation in parallel. */
+    public boolean shouldUseParallelSetup();
+
+    /**
+     * Returns, for each device name, the names of the devices whose parallel fetch and setup must
+     * be done before its own.
+     */
+    public MultiMap<String, String> getParallelSetupDependencies();
+
+    /** Whether to deliver the test events to each result reporter from a thread of its own. */
+    public boolean shouldUseAsyncResultReporting();
+
+    /** Returns the maximum number of events waiting to be delivered to a result reporter. */
+    public int getAsyncResultQueueSize();
 }
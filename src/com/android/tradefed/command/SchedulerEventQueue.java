@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The queue of typed events that wake up the {@link CommandScheduler} main loop.
+ *
+ * <p>Each {@link SchedulerEventType} declares the work it requires, so that the scheduler only
+ * checks the running invocations or matches the ready commands when an event actually calls for
+ * it. Events of the same type that are posted before the scheduler wakes up are coalesced, keeping
+ * the time of the oldest one so that the processing latency is not under-reported.
+ */
+class SchedulerEventQueue {
+
+    /** The different reasons to wake up the scheduler. */
+    enum SchedulerEventType {
+        /** A new command was added to the ready queue. */
+        COMMAND_READY(true, false),
+        /** A looping or rescheduled command is back in the ready queue after its delay. */
+        COMMAND_RESCHEDULED(true, false),
+        /** A device became available for allocation. */
+        DEVICE_AVAILABLE(true, false),
+        /** The running invocations are due for their device battery check. */
+        INVOCATION_CHECK(false, true),
+        /** Periodic full evaluation of all ready commands. */
+        POLL(true, false),
+        /** The scheduler state changed, for example a shutdown was requested. */
+        STATE_CHANGED(false, false);
+
+        private final boolean mProcessCommands;
+        private final boolean mCheckInvocations;
+
+        SchedulerEventType(boolean processCommands, boolean checkInvocations) {
+            mProcessCommands = processCommands;
+            mCheckInvocations = checkInvocations;
+        }
+
+        /** Returns true if the event requires matching the ready commands with devices. */
+        boolean requiresCommandProcessing() {
+            return mProcessCommands;
+        }
+
+        /** Returns true if the event requires checking the running invocations. */
+        boolean requiresInvocationCheck() {
+            return mCheckInvocations;
+        }
+    }
+
+    /** One occurrence of a {@link SchedulerEventType}. */
+    static class SchedulerEvent {
+        private final SchedulerEventType mType;
+        private final long mTimestamp;
+
+        SchedulerEvent(SchedulerEventType type, long timestamp) {
+            mType = type;
+            mTimestamp = timestamp;
+        }
+
+        SchedulerEventType getType() {
+            return mType;
+        }
+
+        /** Returns the time in ms at which the event was posted. */
+        long getTimestamp() {
+            return mTimestamp;
+        }
+    }
+
+    private final Map<SchedulerEventType, SchedulerEvent> mPendingEvents = new LinkedHashMap<>();
+
+    /** Post an event, waking up the scheduler if it is waiting. */
+    synchronized void post(SchedulerEventType type) {
+        if (!mPendingEvents.containsKey(type)) {
+            mPendingEvents.put(type, new SchedulerEvent(type, getCurrentTime()));
+        }
+        notifyAll();
+    }
+
+    /**
+     * Wait for at least one event to be posted and return all the pending events.
+     *
+     * @param maxWaitTime the max time to wait in ms, or 0 to wait indefinitely.
+     * @return the list of pending events, in the order they were first posted. Empty if the wait
+     *     time elapsed without any event.
+     */
+    synchronized List<SchedulerEvent> waitForEvents(long maxWaitTime) {
+        long startTime = getCurrentTime();
+        long remainingTime = maxWaitTime;
+        while (mPendingEvents.isEmpty() && (maxWaitTime == 0 || remainingTime > 0)) {
+            try {
+                wait(maxWaitTime == 0 ? 0 : remainingTime);
+            } catch (InterruptedException e) {
+                // The scheduler is only stopped through its state, keep waiting for an event.
+                CLog.w("interrupted");
+            }
+            remainingTime = maxWaitTime - (getCurrentTime() - startTime);
+        }
+        List<SchedulerEvent> events = new ArrayList<>(mPendingEvents.values());
+        mPendingEvents.clear();
+        return events;
+    }
+
+    @VisibleForTesting
+    long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+}
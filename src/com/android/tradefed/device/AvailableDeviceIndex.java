@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IDevice;
+import com.android.tradefed.device.DeviceSelectionOptions.DeviceRequestedType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * An index of the devices currently available for allocation, keyed by the attributes that {@link
+ * DeviceSelectionOptions} filters on: serial, product type, properties and device class.
+ *
+ * <p>The index is kept up to date incrementally from allocation state change notifications, and
+ * every device that becomes available is stamped with a monotonically increasing generation. This
+ * allows a caller that failed to allocate a device at a given generation to cheaply ask whether a
+ * newly available device could possibly satisfy its requirements, instead of running the full
+ * {@link IDeviceSelection#matches(IDevice)} check against every device.
+ *
+ * <p>The index is only a pre-filter: it never reports false negatives for the attributes it
+ * covers, but the final decision is always left to {@link IDeviceSelection#matches(IDevice)}.
+ * Volatile attributes like battery level are not indexed.
+ */
+public class AvailableDeviceIndex implements IDeviceMonitor {
+
+    /** Generation value that is older than any indexed device. */
+    public static final long ANY_GENERATION = -1L;
+
+    /** Attributes of one available device. */
+    private static class IndexedDevice {
+        final String mSerial;
+        final long mGeneration;
+        /** null until the device attributes have been resolved. */
+        IDevice mDevice = null;
+        String mProductType = null;
+        /** The properties resolved so far, queried without holding the index lock. */
+        final Map<String, String> mProperties = new HashMap<>();
+
+        IndexedDevice(String serial, long generation) {
+            mSerial = serial;
+            mGeneration = generation;
+        }
+    }
+
+    private final Function<String, IDevice> mResolver;
+    private final DeviceSelectionOptions mSelector = new DeviceSelectionOptions();
+
+    @GuardedBy("this")
+    private long mGeneration = 0L;
+
+    @GuardedBy("this")
+    private final Map<String, IndexedDevice> mBySerial = new LinkedHashMap<>();
+
+    @GuardedBy("this")
+    private final Map<String, Set<String>> mByProductType = new HashMap<>();
+
+    @GuardedBy("this")
+    private final Map<Class<?>, Set<String>> mByDeviceClass = new HashMap<>();
+
+    @GuardedBy("this")
+    private final Set<String> mUnresolved = new HashSet<>();
+
+    /**
+     * Creates an {@link AvailableDeviceIndex}.
+     *
+     * @param resolver a function returning the current {@link IDevice} for a serial, or null if
+     *     the device is not known. It is never called while holding the index lock.
+     */
+    public AvailableDeviceIndex(Function<String, IDevice> resolver) {
+        mResolver = resolver;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void run() {
+        // ignore
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void stop() {
+        // ignore
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setDeviceLister(DeviceLister lister) {
+        // ignore
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void notifyDeviceStateChange(
+            String serial, DeviceAllocationState oldState, DeviceAllocationState newState) {
+        if (DeviceAllocationState.Available.equals(newState)) {
+            removeDevice(serial);
+            mGeneration++;
+            mBySerial.put(serial, new IndexedDevice(serial, mGeneration));
+            mUnresolved.add(serial);
+        } else if (DeviceAllocationState.Available.equals(oldState)) {
+            removeDevice(serial);
+        }
+    }
+
+    /** Returns the generation of the most recently available device. */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /** Returns the number of devices currently indexed as available. */
+    public synchronized int size() {
+        return mBySerial.size();
+    }
+
+    /**
+     * Returns whether at least one device that became available after {@code sinceGeneration}
+     * could match the given options.
+     *
+     * @param options the {@link IDeviceSelection} to evaluate
+     * @param sinceGeneration only consider devices made available after this generation. Use
+     *     {@link #ANY_GENERATION} to consider all available devices.
+     */
+    public boolean hasCandidate(IDeviceSelection options, long sinceGeneration) {
+        resolvePending();
+        resolveProperties(options);
+        synchronized (this) {
+            for (String serial : getCandidateSerials(options)) {
+                IndexedDevice d = mBySerial.get(serial);
+                if (d != null && d.mGeneration > sinceGeneration && isCandidate(options, d)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the serials of the available devices that could match the given options, in the
+     * order they became available.
+     */
+    public List<String> getCandidates(IDeviceSelection options) {
+        resolvePending();
+        resolveProperties(options);
+        List<String> candidates = new ArrayList<>();
+        synchronized (this) {
+            for (IndexedDevice d : mBySerial.values()) {
+                if (isCandidate(options, d)) {
+                    candidates.add(d.mSerial);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Resolve the attributes of the devices that became available since the last query. The
+     * resolver is called without holding the index lock since it may need the device list lock,
+     * which is held while allocation events are being notified.
+     */
+    private void resolvePending() {
+        List<String> pending;
+        synchronized (this) {
+            if (mUnresolved.isEmpty()) {
+                return;
+            }
+            pending = new ArrayList<>(mUnresolved);
+        }
+        Map<String, IDevice> resolved = new HashMap<>();
+        Map<String, String> productTypes = new HashMap<>();
+        for (String serial : pending) {
+            IDevice device = mResolver.apply(serial);
+            if (device != null) {
+                resolved.put(serial, device);
+                // May query the device, so done before taking the index lock.
+                productTypes.put(serial, mSelector.getDeviceProductType(device));
+            }
+        }
+        synchronized (this) {
+            for (Map.Entry<String, IDevice> entry : resolved.entrySet()) {
+                IndexedDevice d = mBySerial.get(entry.getKey());
+                if (d == null || d.mDevice != null) {
+                    continue;
+                }
+                d.mDevice = entry.getValue();
+                d.mProductType = productTypes.get(d.mSerial);
+                addToBucket(mByProductType, d.mProductType, d.mSerial);
+                addToBucket(mByDeviceClass, d.mDevice.getClass(), d.mSerial);
+                mUnresolved.remove(d.mSerial);
+            }
+        }
+    }
+
+    /**
+     * Query the properties requested by the options that are not resolved yet on the indexed
+     * devices. Like {@link #resolvePending()}, the devices are queried without holding the index
+     * lock.
+     */
+    private void resolveProperties(IDeviceSelection options) {
+        if (!(options instanceof DeviceSelectionOptions)) {
+            return;
+        }
+        Set<String> names = ((DeviceSelectionOptions) options).getProperties().keySet();
+        if (names.isEmpty()) {
+            return;
+        }
+        List<IndexedDevice> missing = new ArrayList<>();
+        synchronized (this) {
+            for (IndexedDevice d : mBySerial.values()) {
+                if (d.mDevice != null && !d.mProperties.keySet().containsAll(names)) {
+                    missing.add(d);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        Map<IndexedDevice, Map<String, String>> resolved = new HashMap<>();
+        for (IndexedDevice d : missing) {
+            Map<String, String> properties = new HashMap<>();
+            for (String name : names) {
+                properties.put(name, d.mDevice.getProperty(name));
+            }
+            resolved.put(d, properties);
+        }
+        synchronized (this) {
+            for (Map.Entry<IndexedDevice, Map<String, String>> entry : resolved.entrySet()) {
+                entry.getKey().mProperties.putAll(entry.getValue());
+            }
+        }
+    }
+
+    /** Narrow down the set of serials to evaluate using the most selective index available. */
+    @GuardedBy("this")
+    private Collection<String> getCandidateSerials(IDeviceSelection options) {
+        if (!(options instanceof DeviceSelectionOptions)) {
+            return new ArrayList<>(mBySerial.keySet());
+        }
+        DeviceSelectionOptions selection = (DeviceSelectionOptions) options;
+        if (!selection.getSerials().isEmpty()) {
+            return selection.getSerials();
+        }
+        Set<String> serials = new HashSet<>(mUnresolved);
+        Collection<String> productTypes = getProductTypes(selection);
+        if (!productTypes.isEmpty()) {
+            for (String productType : productTypes) {
+                addAll(serials, mByProductType.get(productType));
+            }
+            return serials;
+        }
+        Class<?> requiredClass = getRequiredClass(selection);
+        if (requiredClass != null) {
+            addAll(serials, mByDeviceClass.get(requiredClass));
+            return serials;
+        }
+        return new ArrayList<>(mBySerial.keySet());
+    }
+
+    /** Evaluate the indexed attributes of a device against the options. */
+    @GuardedBy("this")
+    private boolean isCandidate(IDeviceSelection options, IndexedDevice d) {
+        if (d.mDevice == null || !(options instanceof DeviceSelectionOptions)) {
+            // Without more information, always let the full matching decide.
+            return true;
+        }
+        DeviceSelectionOptions selection = (DeviceSelectionOptions) options;
+        List<String> serials = selection.getSerials();
+        if (!serials.isEmpty() && !serials.contains(d.mSerial)) {
+            return false;
+        }
+        if (selection.getExcludeSerials().contains(d.mSerial)) {
+            return false;
+        }
+        Collection<String> productTypes = getProductTypes(selection);
+        if (!productTypes.isEmpty() && !productTypes.contains(d.mProductType)) {
+            return false;
+        }
+        for (Map.Entry<String, String> propEntry : selection.getProperties().entrySet()) {
+            if (!d.mProperties.containsKey(propEntry.getKey())) {
+                // Not resolved yet, let the full matching decide.
+                continue;
+            }
+            if (!propEntry.getValue().equals(d.mProperties.get(propEntry.getKey()))) {
+                return false;
+            }
+        }
+        return selection.checkDeviceTypeRequested(d.mDevice);
+    }
+
+    /** Returns the product types requested without their variants. */
+    private static Collection<String> getProductTypes(DeviceSelectionOptions selection) {
+        Set<String> productTypes = new HashSet<>();
+        for (String productType : selection.getProductTypes()) {
+            productTypes.add(productType.split(DeviceSelectionOptions.VARIANT_SEPARATOR)[0]);
+        }
+        return productTypes;
+    }
+
+    /** Returns the exact {@link IDevice} class a placeholder request needs, null otherwise. */
+    private static Class<?> getRequiredClass(DeviceSelectionOptions selection) {
+        DeviceRequestedType type = selection.getDeviceTypeRequested();
+        if (type != null) {
+            return type.getRequiredClass();
+        }
+        if (selection.tcpDeviceRequested()) {
+            return TcpDevice.class;
+        }
+        if (selection.gceDeviceRequested()) {
+            return RemoteAvdIDevice.class;
+        }
+        return null;
+    }
+
+    @GuardedBy("this")
+    private void removeDevice(String serial) {
+        IndexedDevice d = mBySerial.remove(serial);
+        mUnresolved.remove(serial);
+        if (d != null && d.mDevice != null) {
+            removeFromBucket(mByProductType, d.mProductType, serial);
+            removeFromBucket(mByDeviceClass, d.mDevice.getClass(), serial);
+        }
+    }
+
+    private static <K> void addToBucket(Map<K, Set<String>> index, K key, String serial) {
+        Set<String> bucket = index.get(key);
+        if (bucket == null) {
+            bucket = new HashSet<>();
+            index.put(key, bucket);
+        }
+        bucket.add(serial);
+    }
+
+    private static <K> void removeFromBucket(Map<K, Set<String>> index, K key, String serial) {
+        Set<String> bucket = index.get(key);
+        if (bucket != null) {
+            bucket.remove(serial);
+            if (bucket.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static void addAll(Set<String> serials, Set<String> bucket) {
+        if (bucket != null) {
+            serials.addAll(bucket);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
+import com.android.tradefed.result.FileInputStreamSource;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link IShellOutputReceiver} which streams the whole shell output to a temporary file. Unlike
+ * {@link CollectingByteOutputReceiver}, the output is never held in memory, which makes it suited
+ * to commands producing several megabytes of output such as a logcat dump.
+ */
+public class CollectingFileOutputReceiver implements IShellOutputReceiver {
+    private File mFile;
+    private OutputStream mOutput;
+    private boolean mIsCanceled = false;
+
+    /**
+     * Creates a {@link CollectingFileOutputReceiver}.
+     *
+     * @param prefix the prefix of the name of the temporary file.
+     * @throws IOException if the temporary file cannot be created.
+     */
+    public CollectingFileOutputReceiver(String prefix) throws IOException {
+        mFile = FileUtil.createTempFile(prefix, ".txt");
+        try {
+            mOutput = new BufferedOutputStream(new FileOutputStream(mFile));
+        } catch (IOException e) {
+            FileUtil.deleteFile(mFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the collected output as a {@link InputStreamSource} backed by the temporary file. The
+     * file is deleted when the source is closed, the receiver should not be used afterward.
+     */
+    public synchronized InputStreamSource getData() {
+        StreamUtil.close(mOutput);
+        mOutput = null;
+        if (mFile == null) {
+            return new ByteArrayInputStreamSource(new byte[0]);
+        }
+        InputStreamSource source = new FileInputStreamSource(mFile, true);
+        mFile = null;
+        return source;
+    }
+
+    /** Deletes the collected output. */
+    public synchronized void delete() {
+        StreamUtil.close(mOutput);
+        mOutput = null;
+        FileUtil.deleteFile(mFile);
+        mFile = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean isCancelled() {
+        return mIsCanceled;
+    }
+
+    /**
+     * Cancel the output collection
+     */
+    public synchronized void cancel() {
+        mIsCanceled = true;
+        delete();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void addOutput(byte[] data, int offset, int length) {
+        if (mIsCanceled || mOutput == null) {
+            return;
+        }
+        try {
+            mOutput.write(data, offset, length);
+        } catch (IOException e) {
+            CLog.w("Failed to write shell output to %s: %s", mFile, e.getMessage());
+            cancel();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void flush() {
+        if (mOutput == null) {
+            return;
+        }
+        try {
+            mOutput.flush();
+        } catch (IOException e) {
+            CLog.w("Failed to flush shell output to %s: %s", mFile, e.getMessage());
+        }
+    }
+}
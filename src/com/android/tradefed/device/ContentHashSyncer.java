@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Incrementally syncs a local directory to a device by comparing file contents instead of
+ * timestamps.
+ *
+ * <p>A manifest of the content hash of each file pushed to the device is kept for the lifetime of
+ * the device object, which spans many invocations. A file whose local hash differs from the
+ * manifest is pushed right away. The other files, either unchanged since the last sync or unknown
+ * to the manifest, are verified against the device with batched {@code md5sum} calls, since the
+ * device may have been wiped or modified in between, and only the mismatching ones are pushed.
+ */
+class ContentHashSyncer {
+
+    /** Output line of md5sum: the hash, then the path. */
+    private static final Pattern MD5SUM_LINE = Pattern.compile("^([0-9a-fA-F]{32})\\s+(.+)$");
+
+    /** Local hashes, by file path, valid as long as the file size and timestamp are the same. */
+    private static class LocalHash {
+        final long mLength;
+        final long mLastModified;
+        final String mHash;
+
+        LocalHash(long length, long lastModified, String hash) {
+            mLength = length;
+            mLastModified = lastModified;
+            mHash = hash;
+        }
+    }
+
+    private final ITestDevice mDevice;
+    /** Hash of the content known to be on the device, by remote path. */
+    private final Map<String, String> mManifest = new ConcurrentHashMap<>();
+
+    private final Map<String, LocalHash> mLocalHashes = new ConcurrentHashMap<>();
+
+    private final AtomicLong mCheckedFiles = new AtomicLong();
+    private final AtomicLong mVerifiedFiles = new AtomicLong();
+    private final AtomicLong mPushedFiles = new AtomicLong();
+    private final AtomicLong mHashCommands = new AtomicLong();
+
+    ContentHashSyncer(ITestDevice device) {
+        mDevice = device;
+    }
+
+    /**
+     * Sync the content of a local directory to a remote directory.
+     *
+     * @param localDir the local directory to sync, hidden files are ignored.
+     * @param remoteDir the remote directory, with its path variables interpolated.
+     * @return true if the files were synced successfully.
+     */
+    boolean sync(File localDir, String remoteDir) throws DeviceNotAvailableException {
+        long start = System.currentTimeMillis();
+        List<String> remoteDirs = new ArrayList<>();
+        remoteDirs.add(remoteDir);
+        Map<File, String> files = new LinkedHashMap<>();
+        if (!collect(localDir, remoteDir, remoteDirs, files)) {
+            return false;
+        }
+
+        Map<String, String> localHashes = new HashMap<>();
+        List<String> toVerify = new ArrayList<>();
+        Map<File, String> toPush = new LinkedHashMap<>();
+        for (Entry<File, String> entry : files.entrySet()) {
+            String hash = getLocalHash(entry.getKey());
+            if (hash == null) {
+                return false;
+            }
+            String remotePath = entry.getValue();
+            localHashes.put(remotePath, hash);
+            String known = mManifest.get(remotePath);
+            if (known != null && !known.equals(hash)) {
+                // Known to be different, no need to check the device.
+                toPush.put(entry.getKey(), remotePath);
+            } else {
+                toVerify.add(remotePath);
+            }
+        }
+        mCheckedFiles.addAndGet(files.size());
+
+        Map<String, String> remoteHashes = getRemoteHashes(remoteDir, toVerify);
+        for (Entry<File, String> entry : files.entrySet()) {
+            String remotePath = entry.getValue();
+            if (toPush.containsKey(entry.getKey())) {
+                continue;
+            }
+            String remoteHash = remoteHashes.get(remotePath);
+            if (localHashes.get(remotePath).equals(remoteHash)) {
+                mManifest.put(remotePath, remoteHash);
+            } else {
+                mManifest.remove(remotePath);
+                toPush.put(entry.getKey(), remotePath);
+            }
+        }
+
+        if (!toPush.isEmpty()) {
+            CLog.d("Syncing %d changed files out of %d", toPush.size(), files.size());
+            if (!createDirectoryPusher().pushFiles(remoteDirs, toPush)) {
+                // Some files may not be on the device anymore, check them again next time.
+                for (String remotePath : toPush.values()) {
+                    mManifest.remove(remotePath);
+                }
+                return false;
+            }
+            for (String remotePath : toPush.values()) {
+                mManifest.put(remotePath, localHashes.get(remotePath));
+            }
+            mPushedFiles.addAndGet(toPush.size());
+        }
+        CLog.d(
+                "Synced %s to %s on %s in %d ms: %s",
+                localDir,
+                remoteDir,
+                mDevice.getSerialNumber(),
+                System.currentTimeMillis() - start,
+                getStats());
+        return true;
+    }
+
+    /** Walk the local tree, skipping hidden files, and collect the directories and files. */
+    private boolean collect(
+            File localDir, String remoteDir, List<String> remoteDirs, Map<File, String> files) {
+        File[] childFiles = localDir.listFiles((dir, name) -> !name.startsWith("."));
+        if (childFiles == null) {
+            CLog.e("Could not read files in %s", localDir.getAbsolutePath());
+            return false;
+        }
+        for (File childFile : childFiles) {
+            String remotePath = String.format("%s/%s", remoteDir, childFile.getName());
+            if (childFile.isDirectory()) {
+                remoteDirs.add(remotePath);
+                if (!collect(childFile, remotePath, remoteDirs, files)) {
+                    return false;
+                }
+            } else if (childFile.isFile()) {
+                files.put(childFile, remotePath);
+            }
+        }
+        return true;
+    }
+
+    /** Returns the hash of a local file, or null if it cannot be read. */
+    private String getLocalHash(File localFile) {
+        String path = localFile.getAbsolutePath();
+        LocalHash cached = mLocalHashes.get(path);
+        if (cached != null
+                && cached.mLength == localFile.length()
+                && cached.mLastModified == localFile.lastModified()) {
+            return cached.mHash;
+        }
+        try {
+            LocalHash hash =
+                    new LocalHash(
+                            localFile.length(),
+                            localFile.lastModified(),
+                            FileUtil.calculateMd5(localFile));
+            mLocalHashes.put(path, hash);
+            return hash.mHash;
+        } catch (IOException e) {
+            CLog.e("Failed to compute the hash of %s", path);
+            CLog.e(e);
+            return null;
+        }
+    }
+
+    /**
+     * Hash remote files with as few md5sum commands as possible. Paths are passed relative to the
+     * remote directory to keep the commands short.
+     *
+     * @return the hash of each remote file that exists, by remote path.
+     */
+    private Map<String, String> getRemoteHashes(String remoteDir, List<String> remotePaths)
+            throws DeviceNotAvailableException {
+        Map<String, String> hashes = new HashMap<>();
+        if (remotePaths.isEmpty()) {
+            return hashes;
+        }
+        String prefix = String.format("cd \"%s\" && md5sum", remoteDir);
+        StringBuilder command = new StringBuilder(prefix);
+        int args = 0;
+        for (String remotePath : remotePaths) {
+            String arg = String.format(" \"%s\"", remotePath.substring(remoteDir.length() + 1));
+            if (args > 0 && command.length() + arg.length() > DirectoryPusher.MAX_COMMAND_LENGTH) {
+                parseRemoteHashes(remoteDir, runHashCommand(command), hashes);
+                command.setLength(0);
+                command.append(prefix);
+                args = 0;
+            }
+            command.append(arg);
+            args++;
+        }
+        parseRemoteHashes(remoteDir, runHashCommand(command), hashes);
+        mVerifiedFiles.addAndGet(remotePaths.size());
+        return hashes;
+    }
+
+    private String runHashCommand(StringBuilder command) throws DeviceNotAvailableException {
+        mHashCommands.incrementAndGet();
+        // Missing files are reported on stderr, and are simply absent from the result.
+        return mDevice.executeShellCommand(command.toString() + " 2>/dev/null");
+    }
+
+    @VisibleForTesting
+    static void parseRemoteHashes(String remoteDir, String output, Map<String, String> hashes) {
+        if (output == null) {
+            return;
+        }
+        for (String line : output.split("\r?\n")) {
+            Matcher matcher = MD5SUM_LINE.matcher(line.trim());
+            if (matcher.matches()) {
+                hashes.put(
+                        String.format("%s/%s", remoteDir, matcher.group(2)),
+                        matcher.group(1).toLowerCase());
+            }
+        }
+    }
+
+    @VisibleForTesting
+    DirectoryPusher createDirectoryPusher() {
+        return new DirectoryPusher(mDevice);
+    }
+
+    /** Returns the number of files pushed because their content changed. */
+    @VisibleForTesting
+    long getPushedFiles() {
+        return mPushedFiles.get();
+    }
+
+    /** Returns a one line summary of the sync metrics. */
+    String getStats() {
+        return String.format(
+                "checked=%d verified_on_device=%d pushed=%d hash_cmds=%d manifest_size=%d",
+                mCheckedFiles.get(),
+                mVerifiedFiles.get(),
+                mPushedFiles.get(),
+                mHashCommands.get(),
+                mManifest.size());
+    }
+}
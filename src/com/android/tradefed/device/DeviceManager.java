@@ -54,15 +54,14 @@ import java.io.PrintWriter;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -76,8 +75,6 @@ public class DeviceManager implements IDeviceManager {
 
     /** max wait time in ms for fastboot devices command to complete */
     private static final long FASTBOOT_CMD_TIMEOUT = 1 * 60 * 1000;
-    /** time to wait in ms between fastboot devices requests */
-    private static final long FASTBOOT_POLL_WAIT_TIME = 5 * 1000;
     /**
      * time to wait for device adb shell responsive connection before declaring it unavailable for
      * testing
@@ -124,12 +121,14 @@ public class DeviceManager implements IDeviceManager {
     private boolean mIsInitialized = false;
 
     private ManagedDeviceList mManagedDeviceList;
+    private AvailableDeviceIndex mAvailableDeviceIndex;
 
     private IAndroidDebugBridge mAdbBridge;
     private ManagedDeviceListener mManagedDeviceListener;
     protected boolean mFastbootEnabled;
-    private Set<IFastbootListener> mFastbootListeners;
-    private FastbootMonitor mFastbootMonitor;
+    private FastbootDeviceDiscovery mFastbootDiscovery;
+    /** Whether each serial seen in fastboot matches the global device filter. */
+    private final Map<String, Boolean> mFastbootFilterMatches = new ConcurrentHashMap<>();
     private boolean mIsTerminated = false;
     private IDeviceSelection mGlobalDeviceFilter;
     private IDeviceSelection mDeviceSelectionOptions;
@@ -176,6 +175,15 @@ public class DeviceManager implements IDeviceManager {
     private File mUnpackedFastbootDir = null;
     private File mUnpackedFastboot = null;
 
+    @Option(
+        name = "device-snapshot-battery-ttl",
+        description =
+                "max age of the cached battery level and temperature used to match devices "
+                        + "during allocation.",
+        isTimeVal = true
+    )
+    private long mSnapshotBatteryTtl = DeviceSnapshotCache.DEFAULT_BATTERY_TTL_MS;
+
     private DeviceRecoverer mDeviceRecoverer;
 
     private List<IHostMonitor> mGlobalHostMonitors = null;
@@ -238,7 +246,15 @@ public class DeviceManager implements IDeviceManager {
         if (globalDeviceMonitors != null) {
             mDvcMon.addMonitors(globalDeviceMonitors);
         }
-        mManagedDeviceList = new ManagedDeviceList(deviceFactory);
+        mManagedDeviceList =
+                new ManagedDeviceList(deviceFactory, new DeviceSnapshotCache(mSnapshotBatteryTtl));
+        mAvailableDeviceIndex =
+                new AvailableDeviceIndex(
+                        serial -> {
+                            IManagedTestDevice device = mManagedDeviceList.find(serial);
+                            return device == null ? null : device.getIDevice();
+                        });
+        mDvcMon.addMonitor(mAvailableDeviceIndex);
 
         // Setup fastboot- if it's zipped, unzip it
         if (".zip".equals(FileUtil.getExtension(mFastbootFile.getName()))) {
@@ -257,10 +273,9 @@ public class DeviceManager implements IDeviceManager {
 
         final FastbootHelper fastboot = new FastbootHelper(getRunUtil(), getFastbootPath());
         if (fastboot.isFastbootAvailable()) {
-            mFastbootListeners = Collections.synchronizedSet(new HashSet<IFastbootListener>());
-            mFastbootMonitor = new FastbootMonitor();
+            mFastbootDiscovery = new FastbootDeviceDiscovery(fastboot, this::handleFastbootScan);
             startFastbootMonitor();
-            // don't set fastboot enabled bit until mFastbootListeners has been initialized
+            // don't set fastboot enabled bit until mFastbootDiscovery has been initialized
             mFastbootEnabled = true;
             deviceFactory.setFastbootEnabled(mFastbootEnabled);
             // Populate the fastboot devices
@@ -268,8 +283,7 @@ public class DeviceManager implements IDeviceManager {
             addFastbootDevices();
         } else {
             CLog.w("Fastboot is not available.");
-            mFastbootListeners = null;
-            mFastbootMonitor = null;
+            mFastbootDiscovery = null;
             mFastbootEnabled = false;
             deviceFactory.setFastbootEnabled(mFastbootEnabled);
         }
@@ -366,7 +380,7 @@ public class DeviceManager implements IDeviceManager {
      * Exposed for unit testing.
      */
     void startFastbootMonitor() {
-        mFastbootMonitor.start();
+        mFastbootDiscovery.start();
     }
 
     /**
@@ -524,11 +538,44 @@ public class DeviceManager implements IDeviceManager {
         final FastbootHelper fastboot = new FastbootHelper(getRunUtil(), getFastbootPath());
         Set<String> serials = fastboot.getDevices();
         for (String serial : serials) {
-            FastbootDevice d = new FastbootDevice(serial);
-            if (mGlobalDeviceFilter != null && mGlobalDeviceFilter.matches(d)) {
-                addAvailableDevice(d);
+            if (matchesFastbootFilter(serial)) {
+                addAvailableDevice(new FastbootDevice(serial));
+            }
+        }
+    }
+
+    /**
+     * Update the managed devices with the result of a fastboot scan. Only the new serials, and the
+     * ones that are in fastboot but not available, are added as available devices.
+     */
+    private void handleFastbootScan(Set<String> serials, Set<String> added, Set<String> removed) {
+        // Update known fastboot devices state
+        mManagedDeviceList.updateFastbootStates(serials);
+        for (String serial : serials) {
+            if (!added.contains(serial)) {
+                IManagedTestDevice d = mManagedDeviceList.find(serial);
+                if (d != null
+                        && !DeviceAllocationState.Unavailable.equals(d.getAllocationState())
+                        && !DeviceAllocationState.Unknown.equals(d.getAllocationState())) {
+                    continue;
+                }
             }
+            if (matchesFastbootFilter(serial)) {
+                addAvailableDevice(new FastbootDevice(serial));
+            }
+        }
+        for (String serial : removed) {
+            mFastbootFilterMatches.remove(serial);
+        }
+    }
+
+    /** Returns true if a device in fastboot matches the global device filter. */
+    private boolean matchesFastbootFilter(String serial) {
+        if (mGlobalDeviceFilter == null) {
+            return false;
         }
+        return mFastbootFilterMatches.computeIfAbsent(
+                serial, s -> mGlobalDeviceFilter.matches(new FastbootDevice(s)));
     }
 
     public static class FastbootDevice extends StubDevice {
@@ -896,7 +943,7 @@ public class DeviceManager implements IDeviceManager {
         if (!mIsTerminated) {
             mIsTerminated = true;
             stopAdbBridgeAndDependentServices();
-            // We are not terminating mFastbootMonitor here since it is a daemon thread.
+            // We are not terminating mFastbootDiscovery here since it is a daemon thread.
             // Early terminating it can cause other threads to be blocked if they check
             // fastboot state of a device.
             if (mGlobalHostMonitors != null ) {
@@ -904,6 +951,10 @@ public class DeviceManager implements IDeviceManager {
                     hm.terminate();
                 }
             }
+            CLog.d("Device snapshot cache stats: %s", getDeviceSnapshotCache().getStats());
+            if (mFastbootDiscovery != null) {
+                CLog.d("Fastboot discovery stats: %s", mFastbootDiscovery.getStats());
+            }
         }
         FileUtil.recursiveDelete(mUnpackedFastbootDir);
     }
@@ -1213,7 +1264,7 @@ public class DeviceManager implements IDeviceManager {
     public void addFastbootListener(IFastbootListener listener) {
         checkInit();
         if (mFastbootEnabled) {
-            mFastbootListeners.add(listener);
+            mFastbootDiscovery.addListener(listener);
         } else {
             throw new UnsupportedOperationException("fastboot is not enabled");
         }
@@ -1226,55 +1277,7 @@ public class DeviceManager implements IDeviceManager {
     public void removeFastbootListener(IFastbootListener listener) {
         checkInit();
         if (mFastbootEnabled) {
-            mFastbootListeners.remove(listener);
-        }
-    }
-
-    /**
-     * A class to monitor and update fastboot state of devices.
-     */
-    private class FastbootMonitor extends Thread {
-
-        private boolean mQuit = false;
-
-        FastbootMonitor() {
-            super("FastbootMonitor");
-            setDaemon(true);
-        }
-
-        @Override
-        public void interrupt() {
-            mQuit = true;
-            super.interrupt();
-        }
-
-        @Override
-        public void run() {
-            final FastbootHelper fastboot = new FastbootHelper(getRunUtil(), getFastbootPath());
-            while (!mQuit) {
-                Set<String> serials = fastboot.getDevices();
-                if (serials != null) {
-                    // Update known fastboot devices state
-                    mManagedDeviceList.updateFastbootStates(serials);
-                    // Add new fastboot devices.
-                    for (String serial : serials) {
-                        FastbootDevice d = new FastbootDevice(serial);
-                        if (mGlobalDeviceFilter != null && mGlobalDeviceFilter.matches(d)) {
-                            addAvailableDevice(d);
-                        }
-                    }
-                }
-                if (!mFastbootListeners.isEmpty()) {
-                    // create a copy of listeners for notification to prevent deadlocks
-                    Collection<IFastbootListener> listenersCopy =
-                            new ArrayList<IFastbootListener>(mFastbootListeners.size());
-                    listenersCopy.addAll(mFastbootListeners);
-                    for (IFastbootListener listener : listenersCopy) {
-                        listener.stateUpdated();
-                    }
-                }
-                getRunUtil().sleep(FASTBOOT_POLL_WAIT_TIME);
-            }
+            mFastbootDiscovery.removeListener(listener);
         }
     }
 
@@ -1369,6 +1372,17 @@ public class DeviceManager implements IDeviceManager {
         mDvcMon.removeMonitor(mon);
     }
 
+    /** Returns the {@link DeviceSnapshotCache} used to match devices during allocation. */
+    public DeviceSnapshotCache getDeviceSnapshotCache() {
+        return mManagedDeviceList.getSnapshotCache();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public AvailableDeviceIndex getAvailableDeviceIndex() {
+        return mAvailableDeviceIndex;
+    }
+
     @Override
     public String getAdbPath() {
         return mAdbPath;
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Host side cache of the properties of a device.
+ *
+ * <p>Read-only properties ({@code ro.*}) can only be set once until the device reboots, so their
+ * value is kept until the cache is invalidated. They are not cached while they are still empty,
+ * since some of them are only set late during boot. Other properties are kept for a short time
+ * to absorb bursts of reads, or not cached at all if that time is 0.
+ */
+class DevicePropertyCache {
+
+    private static final String READ_ONLY_PREFIX = "ro.";
+
+    /** Loads the value of a property from the device. */
+    interface IPropertyLoader {
+        String load(String name) throws DeviceNotAvailableException;
+    }
+
+    private static class CachedValue {
+        final String mValue;
+        final long mLoadTime;
+
+        CachedValue(String value, long loadTime) {
+            mValue = value;
+            mLoadTime = loadTime;
+        }
+    }
+
+    private final long mTtlMs;
+    private final Map<String, CachedValue> mValues = new ConcurrentHashMap<>();
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mInvalidations = new AtomicLong();
+
+    /**
+     * Creates a {@link DevicePropertyCache}.
+     *
+     * @param ttlMs how long to keep the value of the properties that are not read-only.
+     */
+    DevicePropertyCache(long ttlMs) {
+        mTtlMs = ttlMs;
+    }
+
+    /**
+     * Returns the value of a property, loading it if it is not cached.
+     *
+     * @param name the name of the property.
+     * @param loader loads the value of the property from the device.
+     */
+    String get(String name, IPropertyLoader loader) throws DeviceNotAvailableException {
+        boolean readOnly = name.startsWith(READ_ONLY_PREFIX);
+        if (readOnly || mTtlMs > 0) {
+            CachedValue cached = mValues.get(name);
+            if (cached != null
+                    && (readOnly || getCurrentTime() - cached.mLoadTime < mTtlMs)) {
+                mHits.incrementAndGet();
+                return cached.mValue;
+            }
+        }
+        mMisses.incrementAndGet();
+        long loadTime = getCurrentTime();
+        String value = loader.load(name);
+        if (value != null && (readOnly ? !value.isEmpty() : mTtlMs > 0)) {
+            mValues.put(name, new CachedValue(value, loadTime));
+        }
+        return value;
+    }
+
+    /** Forget the properties that are not read-only, and the given property. */
+    void invalidateMutable(String name) {
+        mValues.remove(name);
+        mValues.keySet().removeIf(key -> !key.startsWith(READ_ONLY_PREFIX));
+    }
+
+    /** Forget all the properties, for example because the device rebooted. */
+    void invalidateAll() {
+        if (!mValues.isEmpty()) {
+            mInvalidations.incrementAndGet();
+            mValues.clear();
+        }
+    }
+
+    @VisibleForTesting
+    long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+
+    /** Returns a one line summary of the cache metrics. */
+    String getStats() {
+        long hits = mHits.get();
+        long lookups = hits + mMisses.get();
+        return String.format(
+                "hits=%d misses=%d hit_rate=%d%% invalidations=%d size=%d",
+                hits,
+                mMisses.get(),
+                lookups == 0 ? 0 : hits * 100 / lookups,
+                mInvalidations.get(),
+                mValues.size());
+    }
+}
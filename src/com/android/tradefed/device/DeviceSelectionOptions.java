@@ -19,6 +19,7 @@ import com.android.annotations.VisibleForTesting;
 import com.android.ddmlib.IDevice;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.device.DeviceManager.FastbootDevice;
+import com.android.tradefed.device.DeviceSnapshotCache.DeviceSnapshot;
 import com.android.tradefed.device.cloud.VmRemoteDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 
@@ -160,7 +161,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
     // If we have tried to fetch the environment variable ANDROID_SERIAL before.
     private boolean mFetchedEnvVariable = false;
 
-    private static final String VARIANT_SEPARATOR = ":";
+    static final String VARIANT_SEPARATOR = ":";
 
     /**
      * Add a serial number to the device selection options.
@@ -442,6 +443,19 @@ public class DeviceSelectionOptions implements IDeviceSelection {
      */
     @Override
     public boolean matches(IDevice device) {
+        return matches(device, null);
+    }
+
+    /**
+     * Variant of {@link #matches(IDevice)} that reads the device properties and battery
+     * information from a {@link DeviceSnapshot} instead of querying the device.
+     *
+     * @param device the {@link IDevice} to evaluate
+     * @param snapshot the {@link DeviceSnapshot} of the device, or null to query the device
+     * @return <code>true</code> if the given {@link IDevice} is a match for the provided options.
+     *     <code>false</code> otherwise
+     */
+    public boolean matches(IDevice device, DeviceSnapshot snapshot) {
         Collection<String> serials = getSerials(device);
         Collection<String> excludeSerials = getExcludeSerials();
         Map<String, Collection<String>> productVariants = splitOnVariant(getProductTypes());
@@ -456,10 +470,10 @@ public class DeviceSelectionOptions implements IDeviceSelection {
             return false;
         }
         if (!productTypes.isEmpty()) {
-            String productType = getDeviceProductType(device);
+            String productType = getDeviceProductType(device, snapshot);
             if (productTypes.contains(productType)) {
                 // check variant
-                String productVariant = getDeviceProductVariant(device);
+                String productVariant = getDeviceProductVariant(device, snapshot);
                 Collection<String> variants = productVariants.get(productType);
                 if (variants != null && !variants.contains(productVariant)) {
                     return false;
@@ -470,7 +484,8 @@ public class DeviceSelectionOptions implements IDeviceSelection {
             }
         }
         for (Map.Entry<String, String> propEntry : properties.entrySet()) {
-            if (!propEntry.getValue().equals(device.getProperty(propEntry.getKey()))) {
+            String value = getProperty(device, snapshot, propEntry.getKey());
+            if (!propEntry.getValue().equals(value)) {
                 return false;
             }
         }
@@ -480,7 +495,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
         }
 
         if ((mMinSdk != null) || (mMaxSdk != null)) {
-            int deviceSdkLevel = getDeviceSdkLevel(device);
+            int deviceSdkLevel = getDeviceSdkLevel(device, snapshot);
             if (deviceSdkLevel < 0) {
                 return false;
             }
@@ -501,7 +516,8 @@ public class DeviceSelectionOptions implements IDeviceSelection {
                     // Ready battery of fastboot device does not work and could lead to weird log.
                     return false;
                 }
-                Integer deviceBattery = getBatteryLevel(device);
+                Integer deviceBattery =
+                        snapshot != null ? snapshot.getBatteryLevel() : getBatteryLevel(device);
                 if (deviceBattery == null) {
                     // Couldn't determine battery level when that check is required; reject device
                     return false;
@@ -529,10 +545,15 @@ public class DeviceSelectionOptions implements IDeviceSelection {
                 }
 
                 // Extract the temperature from the file
-                IBatteryTemperature temp = new BatteryTemperature();
-                Integer deviceBatteryTemp = temp.getBatteryTemperature(device);
+                Integer deviceBatteryTemp;
+                if (snapshot != null) {
+                    deviceBatteryTemp = snapshot.getBatteryTemperature();
+                } else {
+                    IBatteryTemperature temp = new BatteryTemperature();
+                    deviceBatteryTemp = temp.getBatteryTemperature(device);
+                }
 
-                if (deviceBatteryTemp <= 0) {
+                if (deviceBatteryTemp == null || deviceBatteryTemp <= 0) {
                     // Couldn't determine battery temp when that check is required; reject device
                     return false;
                 }
@@ -548,7 +569,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
     }
 
     /** Determine whether a device match the requested type or not. */
-    private boolean checkDeviceTypeRequested(IDevice device) {
+    boolean checkDeviceTypeRequested(IDevice device) {
         if ((emulatorRequested() || stubEmulatorRequested()) && !device.isEmulator()) {
             return false;
         }
@@ -633,10 +654,14 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 
     @Override
     public String getDeviceProductType(IDevice device) {
-        String prop = getProperty(device, DeviceProperties.BOARD);
+        return getDeviceProductType(device, null);
+    }
+
+    private String getDeviceProductType(IDevice device, DeviceSnapshot snapshot) {
+        String prop = getProperty(device, snapshot, DeviceProperties.BOARD);
         // fallback to ro.hardware for legacy devices
         if (Strings.isNullOrEmpty(prop)) {
-            prop = getProperty(device, DeviceProperties.HARDWARE);
+            prop = getProperty(device, snapshot, DeviceProperties.HARDWARE);
         }
         if (prop != null) {
             prop = prop.toLowerCase();
@@ -644,18 +669,25 @@ public class DeviceSelectionOptions implements IDeviceSelection {
         return prop;
     }
 
-    private String getProperty(IDevice device, String propName) {
+    private String getProperty(IDevice device, DeviceSnapshot snapshot, String propName) {
+        if (snapshot != null) {
+            return snapshot.getProperty(propName);
+        }
         return device.getProperty(propName);
     }
 
     @Override
     public String getDeviceProductVariant(IDevice device) {
-        String prop = getProperty(device, DeviceProperties.VARIANT);
+        return getDeviceProductVariant(device, null);
+    }
+
+    private String getDeviceProductVariant(IDevice device, DeviceSnapshot snapshot) {
+        String prop = getProperty(device, snapshot, DeviceProperties.VARIANT);
         if (prop == null) {
-            prop = getProperty(device, DeviceProperties.VARIANT_LEGACY_O_MR1);
+            prop = getProperty(device, snapshot, DeviceProperties.VARIANT_LEGACY_O_MR1);
         }
         if (prop == null) {
-            prop = getProperty(device, DeviceProperties.VARIANT_LEGACY_LESS_EQUAL_O);
+            prop = getProperty(device, snapshot, DeviceProperties.VARIANT_LEGACY_LESS_EQUAL_O);
         }
         if (prop != null) {
             prop = prop.toLowerCase();
@@ -681,11 +713,12 @@ public class DeviceSelectionOptions implements IDeviceSelection {
     /**
      * Get the device's supported API level or -1 if it cannot be retrieved
      * @param device
+     * @param snapshot the {@link DeviceSnapshot} of the device, or null to query the device
      * @return the device's supported API level.
      */
-    private int getDeviceSdkLevel(IDevice device) {
+    private int getDeviceSdkLevel(IDevice device, DeviceSnapshot snapshot) {
         int apiLevel = -1;
-        String prop = getProperty(device, DeviceProperties.SDK_VERSION);
+        String prop = getProperty(device, snapshot, DeviceProperties.SDK_VERSION);
         try {
             apiLevel = Integer.parseInt(prop);
         } catch (NumberFormatException nfe) {
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IDevice;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A per-device cache of the properties and battery information evaluated by {@link
+ * DeviceSelectionOptions#matches(IDevice)}, so that repeated allocation attempts become in-memory
+ * comparisons instead of device queries.
+ *
+ * <p>Properties are cached until the snapshot is invalidated, which happens on device state
+ * changes and when a device is freed. Battery level and temperature are refreshed once they are
+ * older than the configured time to live. Each invalidation bumps the snapshot version of the
+ * device.
+ */
+public class DeviceSnapshotCache {
+
+    /** Default time to live of the battery information. */
+    public static final long DEFAULT_BATTERY_TTL_MS = 60 * 1000;
+
+    /** Max time to wait for the battery level query, same as the non cached path. */
+    private static final long BATTERY_QUERY_TIMEOUT_MS = 500;
+
+    private final Map<String, DeviceSnapshot> mSnapshots = new ConcurrentHashMap<>();
+    private final Map<String, Long> mVersions = new ConcurrentHashMap<>();
+    private final long mBatteryTtlMs;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mStaleRefreshes = new AtomicLong();
+    private final AtomicLong mInvalidations = new AtomicLong();
+
+    /** A snapshot of the attributes of one {@link IDevice}. */
+    public class DeviceSnapshot {
+        private final IDevice mDevice;
+        private final long mVersion;
+        private final Map<String, String> mProperties = new HashMap<>();
+        private Integer mBatteryLevel = null;
+        private long mBatteryTimestamp = 0L;
+        private Integer mBatteryTemperature = null;
+        private long mBatteryTemperatureTimestamp = 0L;
+
+        DeviceSnapshot(IDevice device, long version) {
+            mDevice = device;
+            mVersion = version;
+        }
+
+        /** Returns the version of the snapshot, increased every time it is invalidated. */
+        public long getVersion() {
+            return mVersion;
+        }
+
+        /** Returns the value of the given property, querying the device on first access. */
+        public synchronized String getProperty(String name) {
+            if (mProperties.containsKey(name)) {
+                mHits.incrementAndGet();
+                return mProperties.get(name);
+            }
+            mMisses.incrementAndGet();
+            String value = mDevice.getProperty(name);
+            mProperties.put(name, value);
+            return value;
+        }
+
+        /** Returns the battery level, or null if it cannot be determined. */
+        public synchronized Integer getBatteryLevel() {
+            if (isFresh(mBatteryLevel, mBatteryTimestamp)) {
+                mHits.incrementAndGet();
+                return mBatteryLevel;
+            }
+            countMissOrStale(mBatteryTimestamp);
+            mBatteryLevel = queryBatteryLevel(mDevice);
+            mBatteryTimestamp = getCurrentTime();
+            return mBatteryLevel;
+        }
+
+        /** Returns the battery temperature, or null if it cannot be determined. */
+        public synchronized Integer getBatteryTemperature() {
+            if (isFresh(mBatteryTemperature, mBatteryTemperatureTimestamp)) {
+                mHits.incrementAndGet();
+                return mBatteryTemperature;
+            }
+            countMissOrStale(mBatteryTemperatureTimestamp);
+            mBatteryTemperature = queryBatteryTemperature(mDevice);
+            mBatteryTemperatureTimestamp = getCurrentTime();
+            return mBatteryTemperature;
+        }
+
+        private boolean isFresh(Integer value, long timestamp) {
+            return value != null && getCurrentTime() - timestamp < mBatteryTtlMs;
+        }
+
+        private void countMissOrStale(long timestamp) {
+            if (timestamp == 0L) {
+                mMisses.incrementAndGet();
+            } else {
+                mStaleRefreshes.incrementAndGet();
+            }
+        }
+    }
+
+    public DeviceSnapshotCache() {
+        this(DEFAULT_BATTERY_TTL_MS);
+    }
+
+    /**
+     * Creates a {@link DeviceSnapshotCache}.
+     *
+     * @param batteryTtlMs the max age in ms of battery information before it is queried again.
+     */
+    public DeviceSnapshotCache(long batteryTtlMs) {
+        mBatteryTtlMs = batteryTtlMs;
+    }
+
+    /**
+     * Returns the snapshot for the given device. A new snapshot is created if none exists yet, or
+     * if the {@link IDevice} instance backing the serial has changed.
+     */
+    public DeviceSnapshot getSnapshot(IDevice device) {
+        String serial = device.getSerialNumber();
+        DeviceSnapshot snapshot = mSnapshots.get(serial);
+        if (snapshot != null && snapshot.mDevice == device) {
+            return snapshot;
+        }
+        DeviceSnapshot newSnapshot = new DeviceSnapshot(device, getVersion(serial));
+        if (snapshot == null) {
+            snapshot = mSnapshots.putIfAbsent(serial, newSnapshot);
+            return snapshot != null && snapshot.mDevice == device ? snapshot : newSnapshot;
+        }
+        mSnapshots.replace(serial, snapshot, newSnapshot);
+        return newSnapshot;
+    }
+
+    /** Drop the cached information of a device, it will be queried again on next access. */
+    public void invalidate(String serial) {
+        mVersions.merge(serial, 1L, Long::sum);
+        if (mSnapshots.remove(serial) != null) {
+            mInvalidations.incrementAndGet();
+        }
+    }
+
+    /** Returns the current snapshot version of a device. */
+    public long getVersion(String serial) {
+        Long version = mVersions.get(serial);
+        return version == null ? 0L : version;
+    }
+
+    /** Returns the number of lookups served from the cache. */
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    /** Returns the number of lookups that had to query the device for the first time. */
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /** Returns the number of battery lookups that had to refresh an expired value. */
+    public long getStaleCount() {
+        return mStaleRefreshes.get();
+    }
+
+    /** Returns the number of snapshots dropped because of device events. */
+    public long getInvalidationCount() {
+        return mInvalidations.get();
+    }
+
+    /** Returns a one line summary of the cache counters. */
+    public String getStats() {
+        return String.format(
+                "hits=%d misses=%d stale=%d invalidations=%d",
+                getHitCount(), getMissCount(), getStaleCount(), getInvalidationCount());
+    }
+
+    @VisibleForTesting
+    long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+
+    @VisibleForTesting
+    Integer queryBatteryLevel(IDevice device) {
+        try {
+            Future<Integer> batteryFuture = device.getBattery();
+            return batteryFuture.get(BATTERY_QUERY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException
+                | ExecutionException
+                | java.util.concurrent.TimeoutException e) {
+            CLog.w(
+                    "Failed to query battery level for %s: %s",
+                    device.getSerialNumber(), e.toString());
+        }
+        return null;
+    }
+
+    @VisibleForTesting
+    Integer queryBatteryTemperature(IDevice device) {
+        return new BatteryTemperature().getBatteryTemperature(device);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.SyncService;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.TarUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pulls a remote directory tree from a device in bulk.
+ *
+ * <p>The whole remote tree is listed with a single shell command, then the files are pulled
+ * through long-lived sync sessions, see {@link SyncTransferQueue}, instead of listing each
+ * directory through the file listing service and opening one session per file. Files failing to
+ * pull are pulled again one by one through {@link ITestDevice#pullFile(String, File)}, which
+ * handles recovery.
+ *
+ * <p>Optionally, the tree is first archived with the on-device {@code tar} and transferred as a
+ * single file, which is much faster for many small files such as traces.
+ */
+class DirectoryPuller {
+
+    /** Separates the directories from the files in the listing output. */
+    @VisibleForTesting static final String FILES_MARKER = "TF_PULL_DIR_FILES";
+
+    private static final String REMOTE_TAR_DIR = "/data/local/tmp";
+
+    private final ITestDevice mDevice;
+    private final SyncTransferQueue<Entry<String, File>> mTransfers;
+
+    private final AtomicLong mPulledFiles = new AtomicLong();
+    private final AtomicLong mPulledBytes = new AtomicLong();
+
+    DirectoryPuller(ITestDevice device) {
+        this(device, SyncTransferQueue.DEFAULT_SESSION_COUNT);
+    }
+
+    DirectoryPuller(ITestDevice device, int sessionCount) {
+        mDevice = device;
+        mTransfers = new SyncTransferQueue<>(device, "DirectoryPuller", sessionCount);
+    }
+
+    /**
+     * Pull the content of a remote directory.
+     *
+     * @param remoteDir the remote directory to pull, with its path variables interpolated.
+     * @param localDir the existing local directory to pull to.
+     * @param useTar whether to transfer the tree as a single archive made with the on-device tar.
+     *     Falls back to pulling the files one by one if the archive cannot be made or extracted.
+     * @return true if all the files were pulled.
+     */
+    boolean pull(String remoteDir, File localDir, boolean useTar)
+            throws DeviceNotAvailableException {
+        long start = System.currentTimeMillis();
+        if (useTar && pullAsTar(remoteDir, localDir)) {
+            logStats(remoteDir, "tar", start);
+            return true;
+        }
+        List<String> dirs = new ArrayList<>();
+        List<String> files = new ArrayList<>();
+        if (!list(remoteDir, dirs, files)) {
+            CLog.e("Device path %s is not a directory", remoteDir);
+            return false;
+        }
+        for (String dir : dirs) {
+            File localSubDir = new File(localDir, dir);
+            if (!localSubDir.isDirectory() && !localSubDir.mkdirs()) {
+                CLog.w("Failed to create sub directory %s, aborting.", localSubDir);
+                return false;
+            }
+        }
+        Map<String, File> toPull = new LinkedHashMap<>();
+        for (String file : files) {
+            toPull.put(String.format("%s/%s", remoteDir, file), new File(localDir, file));
+        }
+        List<Entry<String, File>> failed =
+                mTransfers.run(
+                        toPull.entrySet(),
+                        (session, entry) -> {
+                            session.pullFile(
+                                    entry.getKey(),
+                                    entry.getValue().getAbsolutePath(),
+                                    SyncService.getNullProgressMonitor());
+                            mPulledFiles.incrementAndGet();
+                            mPulledBytes.addAndGet(entry.getValue().length());
+                        });
+        // Pull the files that failed again one by one, with device recovery.
+        for (Entry<String, File> entry : failed) {
+            if (!mDevice.pullFile(entry.getKey(), entry.getValue())) {
+                CLog.w("Failed to pull file %s from device, aborting", entry.getKey());
+                return false;
+            }
+            mPulledFiles.incrementAndGet();
+            mPulledBytes.addAndGet(entry.getValue().length());
+        }
+        logStats(remoteDir, "sync", start);
+        return true;
+    }
+
+    /**
+     * List the remote tree with a single command.
+     *
+     * @param dirs filled with the sub directories, relative to the remote directory.
+     * @param files filled with the files, relative to the remote directory.
+     * @return false if the remote directory does not exist.
+     */
+    private boolean list(String remoteDir, List<String> dirs, List<String> files)
+            throws DeviceNotAvailableException {
+        String output =
+                mDevice.executeShellCommand(
+                        String.format(
+                                "cd \"%s\" && find . -type d && echo %s && find . -type f",
+                                remoteDir, FILES_MARKER));
+        return parseListing(output, dirs, files);
+    }
+
+    @VisibleForTesting
+    static boolean parseListing(String output, List<String> dirs, List<String> files) {
+        if (output == null) {
+            return false;
+        }
+        boolean inFiles = false;
+        boolean foundRoot = false;
+        for (String line : output.split("\r?\n")) {
+            if (FILES_MARKER.equals(line)) {
+                inFiles = true;
+            } else if (".".equals(line)) {
+                foundRoot = true;
+            } else if (line.startsWith("./")) {
+                (inFiles ? files : dirs).add(line.substring(2));
+            }
+            // Anything else is an error message, for example for an unreadable directory.
+        }
+        return foundRoot && inFiles;
+    }
+
+    /** Pull the tree as a single archive, returns false if it could not be done. */
+    private boolean pullAsTar(String remoteDir, File localDir) throws DeviceNotAvailableException {
+        String remoteTar =
+                String.format("%s/tf_pull_dir_%d.tar", REMOTE_TAR_DIR, System.nanoTime());
+        File localTar = null;
+        try {
+            String output =
+                    mDevice.executeShellCommand(
+                            String.format(
+                                    "tar -cf \"%s\" -C \"%s\" . && echo %s",
+                                    remoteTar, remoteDir, FILES_MARKER));
+            if (output == null || !output.contains(FILES_MARKER)) {
+                CLog.w("Could not archive %s on device: %s", remoteDir, output);
+                return false;
+            }
+            localTar = FileUtil.createTempFile("pull_dir", ".tar");
+            if (!mDevice.pullFile(remoteTar, localTar)) {
+                return false;
+            }
+            List<File> extracted = TarUtil.unTar(localTar, localDir);
+            mPulledFiles.addAndGet(extracted.size());
+            mPulledBytes.addAndGet(localTar.length());
+            return true;
+        } catch (IOException e) {
+            CLog.w("Could not extract the archive of %s: %s", remoteDir, e.toString());
+            return false;
+        } finally {
+            FileUtil.deleteFile(localTar);
+            mDevice.executeShellCommand(String.format("rm -f \"%s\"", remoteTar));
+        }
+    }
+
+    private void logStats(String remoteDir, String mode, long start) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        CLog.d(
+                "Pulled %s from %s with %s: files=%d bytes=%d retries=%d time_ms=%d "
+                        + "files/s=%d bytes/s=%d",
+                remoteDir,
+                mDevice.getSerialNumber(),
+                mode,
+                mPulledFiles.get(),
+                mPulledBytes.get(),
+                mTransfers.getRetries(),
+                elapsed,
+                mPulledFiles.get() * 1000 / elapsed,
+                mPulledBytes.get() * 1000 / elapsed);
+    }
+
+    /** Returns the number of files pulled. */
+    @VisibleForTesting
+    long getPulledFiles() {
+        return mPulledFiles.get();
+    }
+}
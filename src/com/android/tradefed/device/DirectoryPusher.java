@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.SyncService;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes a local directory tree to a device in bulk.
+ *
+ * <p>The tree is walked once, all the remote directories are created with as few shell commands
+ * as possible, and the files are streamed through long-lived sync sessions instead of opening one
+ * session per file, see {@link SyncTransferQueue}. A file failing to push is retried without
+ * restarting the whole transfer, and files that still fail are pushed again one by one through
+ * {@link ITestDevice#pushFile(File, String)}, which handles recovery.
+ */
+class DirectoryPusher {
+
+    /**
+     * Max length of a batched shell command. Older adbd reject shell requests of more than about
+     * 4KB, so the commands are kept as short as the ones of {@link
+     * com.android.tradefed.testtype.GTest}.
+     */
+    static final int MAX_COMMAND_LENGTH = 1000;
+
+    private final ITestDevice mDevice;
+    private final SyncTransferQueue<Entry<File, String>> mTransfers;
+
+    private final AtomicLong mPushedFiles = new AtomicLong();
+    private final AtomicLong mPushedBytes = new AtomicLong();
+    private long mMkdirCommands = 0;
+    private long mElapsedMs = 0;
+
+    DirectoryPusher(ITestDevice device) {
+        this(device, SyncTransferQueue.DEFAULT_SESSION_COUNT);
+    }
+
+    DirectoryPusher(ITestDevice device, int sessionCount) {
+        mDevice = device;
+        mTransfers = new SyncTransferQueue<>(device, "DirectoryPusher", sessionCount);
+    }
+
+    /**
+     * Push the content of a local directory to the device.
+     *
+     * @param localDir the local directory to push.
+     * @param remoteDir the remote directory to push to, with its path variables interpolated.
+     * @param excludedDirectories the names of the directories that should not be pushed.
+     * @return true if all the files were pushed.
+     */
+    boolean push(File localDir, String remoteDir, Set<String> excludedDirectories)
+            throws DeviceNotAvailableException {
+        long start = System.currentTimeMillis();
+        List<String> remoteDirs = new ArrayList<>();
+        Map<File, String> files = new LinkedHashMap<>();
+        if (!collect(localDir, remoteDir, excludedDirectories, remoteDirs, files)) {
+            return false;
+        }
+        if (!pushFiles(remoteDirs, files)) {
+            return false;
+        }
+        mElapsedMs = System.currentTimeMillis() - start;
+        CLog.d(
+                "Pushed %s to %s on %s: %s",
+                localDir, remoteDir, mDevice.getSerialNumber(), getStats());
+        return true;
+    }
+
+    /**
+     * Push a set of files to the device.
+     *
+     * @param remoteDirs the remote directories to create before pushing the files.
+     * @param files the remote path of each local file to push.
+     * @return true if all the files were pushed.
+     */
+    boolean pushFiles(List<String> remoteDirs, Map<File, String> files)
+            throws DeviceNotAvailableException {
+        if (!createDirectories(remoteDirs)) {
+            return false;
+        }
+        List<Entry<File, String>> failed = pushAll(files);
+        // Push the files that failed again one by one, with device recovery.
+        for (Entry<File, String> entry : failed) {
+            if (!mDevice.pushFile(entry.getKey(), entry.getValue())) {
+                return false;
+            }
+            mPushedFiles.incrementAndGet();
+            mPushedBytes.addAndGet(entry.getKey().length());
+        }
+        return true;
+    }
+
+    /** Walk the local tree, and collect the remote directories to create and files to push. */
+    private boolean collect(
+            File localDir,
+            String remoteDir,
+            Set<String> excludedDirectories,
+            List<String> remoteDirs,
+            Map<File, String> files) {
+        File[] childFiles = localDir.listFiles();
+        if (childFiles == null) {
+            CLog.e("Could not read files in %s", localDir.getAbsolutePath());
+            return false;
+        }
+        for (File childFile : childFiles) {
+            String remotePath = String.format("%s/%s", remoteDir, childFile.getName());
+            if (childFile.isDirectory()) {
+                // If we encounter a filtered directory do not push it.
+                if (excludedDirectories.contains(childFile.getName())) {
+                    CLog.d(
+                            "%s directory was not pushed because it was filtered.",
+                            childFile.getAbsolutePath());
+                    continue;
+                }
+                remoteDirs.add(remotePath);
+                if (!collect(childFile, remotePath, excludedDirectories, remoteDirs, files)) {
+                    return false;
+                }
+            } else if (childFile.isFile()) {
+                files.put(childFile, remotePath);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Create all the remote directories, batching them in as few commands as possible.
+     *
+     * @return false if a directory could not be created.
+     */
+    private boolean createDirectories(List<String> remoteDirs) throws DeviceNotAvailableException {
+        StringBuilder command = new StringBuilder();
+        for (String remoteDir : remoteDirs) {
+            String arg = String.format(" \"%s\"", remoteDir);
+            if (command.length() > 0
+                    && command.length() + arg.length() > MAX_COMMAND_LENGTH) {
+                if (!runMkdir(command.toString())) {
+                    return false;
+                }
+                command.setLength(0);
+            }
+            if (command.length() == 0) {
+                command.append("mkdir -p");
+            }
+            command.append(arg);
+        }
+        return command.length() == 0 || runMkdir(command.toString());
+    }
+
+    /** Run a mkdir command, which prints nothing when it succeeds. */
+    private boolean runMkdir(String command) throws DeviceNotAvailableException {
+        mMkdirCommands++;
+        String output = mDevice.executeShellCommand(command);
+        if (output != null && !output.trim().isEmpty()) {
+            CLog.e(
+                    "Failed to create directories on %s: %s",
+                    mDevice.getSerialNumber(), output.trim());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Push the files through the sync sessions.
+     *
+     * @return the files that could not be pushed.
+     */
+    private List<Entry<File, String>> pushAll(Map<File, String> files) {
+        return mTransfers.run(
+                files.entrySet(),
+                (session, entry) -> {
+                    session.pushFile(
+                            entry.getKey().getAbsolutePath(),
+                            entry.getValue(),
+                            SyncService.getNullProgressMonitor());
+                    mPushedFiles.incrementAndGet();
+                    mPushedBytes.addAndGet(entry.getKey().length());
+                });
+    }
+
+    /** Returns the number of files pushed. */
+    @VisibleForTesting
+    long getPushedFiles() {
+        return mPushedFiles.get();
+    }
+
+    /** Returns the number of times a file push was retried on a new sync session. */
+    @VisibleForTesting
+    long getRetries() {
+        return mTransfers.getRetries();
+    }
+
+    /** Returns a one line summary of the transfer metrics. */
+    String getStats() {
+        long elapsed = Math.max(1, mElapsedMs);
+        return String.format(
+                "files=%d bytes=%d mkdir_cmds=%d retries=%d time_ms=%d files/s=%d bytes/s=%d",
+                mPushedFiles.get(),
+                mPushedBytes.get(),
+                mMkdirCommands,
+                mTransfers.getRetries(),
+                mElapsedMs,
+                mPushedFiles.get() * 1000 / elapsed,
+                mPushedBytes.get() * 1000 / elapsed);
+    }
+}
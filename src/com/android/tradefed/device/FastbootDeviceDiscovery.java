@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.device.IDeviceManager.IFastbootListener;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Discovers the devices in fastboot and notifies the {@link IFastbootListener}s.
+ *
+ * <p>Each scan is diffed with the previous one, and listeners are only notified when the set of
+ * devices in fastboot actually changed. A newly added listener is also notified once after the
+ * next complete scan, so that it can wait for the fastboot state to be up to date.
+ *
+ * <p>Scans are not done at a fixed rate: they are done often while listeners wait for a fastboot
+ * transition, at the base interval while devices are in fastboot, and back off up to the max
+ * interval while nothing is in fastboot. On Linux, USB devices being plugged or re-enumerated
+ * trigger an immediate scan, polling then only serves as a safety net.
+ */
+class FastbootDeviceDiscovery extends Thread {
+
+    /** Interval between scans while listeners are waiting for a fastboot state change. */
+    static final long ACTIVE_POLL_INTERVAL = 1 * 1000;
+    /** Interval between scans while devices are in fastboot. */
+    static final long BASE_POLL_INTERVAL = 5 * 1000;
+    /** Max interval between scans when polling is the only way to discover devices. */
+    static final long MAX_POLL_INTERVAL = 30 * 1000;
+    /** Max interval between scans when USB device changes trigger the scans. */
+    static final long MAX_WATCHED_POLL_INTERVAL = 2 * 60 * 1000;
+
+    /** Handles the result of a scan. */
+    interface IScanHandler {
+        /**
+         * Called after each successful scan.
+         *
+         * @param serials the serials of all the devices in fastboot
+         * @param added the serials that were not in fastboot in the previous scan
+         * @param removed the serials that are not in fastboot anymore
+         */
+        void onScan(Set<String> serials, Set<String> added, Set<String> removed);
+    }
+
+    private final FastbootHelper mFastboot;
+    private final IScanHandler mHandler;
+    private final Set<IFastbootListener> mListeners =
+            Collections.synchronizedSet(new LinkedHashSet<>());
+
+    @GuardedBy("this")
+    private final Set<IFastbootListener> mPendingListeners = new HashSet<>();
+
+    @GuardedBy("this")
+    private boolean mWakeUpRequested = false;
+
+    private volatile boolean mQuit = false;
+    private volatile UsbDeviceWatcher mWatcher = null;
+    private volatile Set<String> mSerials = Collections.emptySet();
+    private volatile long mPollInterval = BASE_POLL_INTERVAL;
+
+    private final AtomicLong mScanCount = new AtomicLong();
+    private final AtomicLong mChangeCount = new AtomicLong();
+    private final AtomicLong mWatchEventCount = new AtomicLong();
+
+    FastbootDeviceDiscovery(FastbootHelper fastboot, IScanHandler handler) {
+        super("FastbootMonitor");
+        setDaemon(true);
+        mFastboot = fastboot;
+        mHandler = handler;
+    }
+
+    /** Add a listener, and trigger a scan that will notify it once complete. */
+    void addListener(IFastbootListener listener) {
+        synchronized (this) {
+            mListeners.add(listener);
+            mPendingListeners.add(listener);
+        }
+        wakeUp();
+    }
+
+    void removeListener(IFastbootListener listener) {
+        synchronized (this) {
+            mListeners.remove(listener);
+            mPendingListeners.remove(listener);
+        }
+    }
+
+    /** Trigger a scan as soon as possible. */
+    void wakeUp() {
+        synchronized (this) {
+            mWakeUpRequested = true;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void interrupt() {
+        mQuit = true;
+        if (mWatcher != null) {
+            mWatcher.terminate();
+        }
+        super.interrupt();
+    }
+
+    @Override
+    public void run() {
+        mWatcher = createUsbWatcher();
+        if (mWatcher != null) {
+            CLog.d("Watching USB devices to discover fastboot devices.");
+            mWatcher.start();
+        } else {
+            CLog.d("Polling to discover fastboot devices.");
+        }
+        while (!mQuit) {
+            boolean changed = scan();
+            waitForNextScan(computePollInterval(changed));
+        }
+    }
+
+    /**
+     * Scan the devices in fastboot, and notify the listeners if needed.
+     *
+     * @return true if the devices in fastboot changed since the previous scan.
+     */
+    @VisibleForTesting
+    boolean scan() {
+        Collection<IFastbootListener> pending;
+        synchronized (this) {
+            // Listeners added during the scan will be notified after the next one.
+            pending = new ArrayList<>(mPendingListeners);
+            mPendingListeners.clear();
+            mWakeUpRequested = false;
+        }
+        Set<String> serials = mFastboot.getDevices();
+        mScanCount.incrementAndGet();
+        boolean changed = false;
+        if (serials != null) {
+            Set<String> added = new HashSet<>(serials);
+            added.removeAll(mSerials);
+            Set<String> removed = new HashSet<>(mSerials);
+            removed.removeAll(serials);
+            changed = !added.isEmpty() || !removed.isEmpty();
+            mSerials = serials;
+            mHandler.onScan(serials, added, removed);
+            if (changed) {
+                mChangeCount.incrementAndGet();
+                CLog.d("Fastboot devices changed, added: %s removed: %s", added, removed);
+            }
+        }
+        List<IFastbootListener> toNotify;
+        if (changed) {
+            // create a copy of listeners for notification to prevent deadlocks
+            synchronized (mListeners) {
+                toNotify = new ArrayList<>(mListeners);
+            }
+        } else {
+            toNotify = new ArrayList<>(pending);
+        }
+        for (IFastbootListener listener : toNotify) {
+            listener.stateUpdated();
+        }
+        return changed;
+    }
+
+    /** Returns the time to wait before the next scan. */
+    @VisibleForTesting
+    long computePollInterval(boolean changed) {
+        if (!mListeners.isEmpty()) {
+            return ACTIVE_POLL_INTERVAL;
+        }
+        if (changed || !mSerials.isEmpty()) {
+            mPollInterval = BASE_POLL_INTERVAL;
+        } else {
+            long maxInterval =
+                    mWatcher != null ? MAX_WATCHED_POLL_INTERVAL : MAX_POLL_INTERVAL;
+            mPollInterval = Math.min(mPollInterval * 2, maxInterval);
+        }
+        return mPollInterval;
+    }
+
+    private synchronized void waitForNextScan(long interval) {
+        long deadline = System.currentTimeMillis() + interval;
+        long remaining = interval;
+        while (!mWakeUpRequested && !mQuit && remaining > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                return;
+            }
+            remaining = deadline - System.currentTimeMillis();
+        }
+    }
+
+    /** Returns the USB device watcher to use, or null to rely on polling only. */
+    @VisibleForTesting
+    UsbDeviceWatcher createUsbWatcher() {
+        return UsbDeviceWatcher.create(
+                () -> {
+                    mWatchEventCount.incrementAndGet();
+                    // A device rebooting to fastboot re-enumerates, look for it quickly.
+                    mPollInterval = BASE_POLL_INTERVAL;
+                    wakeUp();
+                });
+    }
+
+    /** Returns the serials of the devices in fastboot found by the last scan. */
+    Set<String> getSerials() {
+        return mSerials;
+    }
+
+    /** Returns a one line summary of the discovery metrics. */
+    String getStats() {
+        return String.format(
+                "scans=%d changes=%d usb_events=%d watching=%s",
+                mScanCount.get(), mChangeCount.get(), mWatchEventCount.get(), mWatcher != null);
+    }
+}
@@ -286,4 +286,12 @@ public interface IDeviceManager {
 
     /** Get the adb version currently in use by the device manager. */
     public String getAdbVersion();
+
+    /**
+     * Returns the {@link AvailableDeviceIndex} tracking the devices available for allocation, or
+     * null if this manager does not maintain one.
+     */
+    public default AvailableDeviceIndex getAvailableDeviceIndex() {
+        return null;
+    }
 }
@@ -171,4 +171,12 @@ public interface IDeviceStateMonitor {
      */
     public void setDefaultAvailableTimeout(long timeoutMs);
 
+    /**
+     * Set whether to wait for boot completion with a long-lived shell command that returns as soon
+     * as the boot property is set, instead of polling the property.
+     */
+    public default void setShellBootDetection(boolean enabled) {
+        // ignore
+    }
+
 }
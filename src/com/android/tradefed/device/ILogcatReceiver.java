@@ -43,5 +43,17 @@ public interface ILogcatReceiver {
     public default InputStreamSource getLogcatData(int maxBytes, int offset) {
         return getLogcatData(maxBytes);
     }
+
+    /**
+     * Returns the captured logcat logged since the given date, without querying the device.
+     *
+     * @param date in millisecond since epoch of the start of the logcat to return.
+     * @return The logcat since the date, or null if it is not available: the receiver does not
+     *     support it, the start of the logcat was not captured or was discarded, or the logcat
+     *     logged until the time of the call was not captured yet.
+     */
+    public default InputStreamSource getLogcatDataSince(long date) {
+        return null;
+    }
 }
 
@@ -377,6 +377,24 @@ public interface INativeDevice {
             int retryAttempts)
             throws DeviceNotAvailableException;
 
+    /**
+     * Executes a list of independent adb shell commands with as few round trips to the device as
+     * possible, usually a single one. Each command runs in its own shell with no input, so a
+     * command cannot affect the following ones.
+     *
+     * <p>Unlike {@link #executeShellV2Command(String)}, the stderr of each command is merged into
+     * its stdout, as with {@link #executeShellCommand(String)}.
+     *
+     * @param commands the adb shell commands to run.
+     * @return the {@link CommandResult} of each command, in the same order, with its output and
+     *     exit code. A command whose result could not be read has the {@link
+     *     com.android.tradefed.util.CommandStatus#EXCEPTION} status.
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     *     recovered.
+     */
+    public List<CommandResult> executeShellCommands(List<String> commands)
+            throws DeviceNotAvailableException;
+
     /**
      * Helper method which executes a adb command as a system command.
      * <p/>
@@ -585,6 +603,22 @@ public interface INativeDevice {
     public boolean pullDir(String deviceFilePath, File localDir)
             throws DeviceNotAvailableException;
 
+    /**
+     * Recursively pull directory contents from device, optimized for large trees and many small
+     * files. The remote tree is listed with a single command and the files are pulled through a
+     * few reused sync sessions.
+     *
+     * @param deviceFilePath the absolute file path of the remote source
+     * @param localDir the local directory to pull files into
+     * @param useTar whether to transfer the tree as a single archive made with the on-device tar.
+     *     Falls back to pulling the files if the archive cannot be made.
+     * @return <code>true</code> if file was pulled successfully. <code>false</code> otherwise.
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     * recovered.
+     */
+    public boolean bulkPullDir(String deviceFilePath, File localDir, boolean useTar)
+            throws DeviceNotAvailableException;
+
     /**
      * Push a file to device
      *
@@ -642,6 +676,9 @@ public interface INativeDevice {
      * equivalents. Only 'newer' or non-existent files will be pushed to device. Thus overhead
      * should be relatively small if file set on device is already up to date.
      * <p/>
+     * When the content-hash-sync device option is set, files are compared by content hash
+     * instead, and only the files whose content changed are pushed.
+     * <p/>
      * Hidden files (with names starting with ".") will be ignored.
      * <p/>
      * Example usage: syncFiles("/tmp/files", "/sdcard") will created a /sdcard/files directory if
@@ -93,6 +93,38 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
         return new ByteArrayInputStreamSource(new byte[0]);
     }
 
+    /**
+     * Gets the collected output received after the given position as a {@link InputStreamSource}.
+     *
+     * @param position the number of bytes received before the data to return. Data discarded
+     *     because of the size limit is counted, so a position stays valid as more output is
+     *     received.
+     * @return The collected output after the position, or all of it if the data at the position
+     *     was discarded.
+     */
+    public synchronized InputStreamSource getDataFrom(long position) {
+        if (mOutStream != null) {
+            long offset = Math.max(0, position - mOutStream.getDiscardedSize());
+            try (InputStream stream = mOutStream.getData(offset)) {
+                return new SnapshotInputStreamSource("LargeOutputReceiver", stream);
+            } catch (IOException e) {
+                CLog.e("failed to get %s data for %s.", mDescriptor, mSerialNumber);
+                CLog.e(e);
+            }
+        }
+
+        // return an empty InputStreamSource
+        return new ByteArrayInputStreamSource(new byte[0]);
+    }
+
+    /**
+     * Returns the number of bytes received but discarded because of the size limit, since the
+     * data was last cleared.
+     */
+    public synchronized long getDiscardedSize() {
+        return mOutStream == null ? 0 : mOutStream.getDiscardedSize();
+    }
+
     /**
      * Gets the last <var>maxBytes</var> of collected output as a {@link InputStreamSource}.
      *
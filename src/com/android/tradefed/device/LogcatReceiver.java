@@ -17,6 +17,7 @@ package com.android.tradefed.device;
 
 import com.android.tradefed.result.InputStreamSource;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.errorprone.annotations.MustBeClosed;
 
 /**
@@ -25,10 +26,12 @@ import com.google.errorprone.annotations.MustBeClosed;
  */
 public class LogcatReceiver implements ILogcatReceiver {
     private BackgroundDeviceAction mDeviceAction;
-    private LargeOutputReceiver mReceiver;
+    private IndexedOutputReceiver mReceiver;
 
     static final String LOGCAT_CMD = "logcat -v threadtime";
     private static final String LOGCAT_DESC = "logcat";
+    /** Max time to wait for the captured logcat to reach the time of a request. */
+    private static final long CATCH_UP_TIMEOUT_MS = 2 * 1000;
 
     /**
      * Creates an instance with any specified logcat command
@@ -41,7 +44,7 @@ public class LogcatReceiver implements ILogcatReceiver {
     public LogcatReceiver(ITestDevice device, String logcatCmd,
             long maxFileSize, int logStartDelay) {
 
-        mReceiver = new LargeOutputReceiver(LOGCAT_DESC, device.getSerialNumber(),
+        mReceiver = new IndexedOutputReceiver(LOGCAT_DESC, device.getSerialNumber(),
                 maxFileSize);
         // FIXME: remove mLogStartDelay. Currently delay starting logcat, as starting
         // immediately after a device comes online has caused adb instability
@@ -88,8 +91,79 @@ public class LogcatReceiver implements ILogcatReceiver {
         return mReceiver.getData(maxBytes, offset);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The logcat is sliced using an index of the captured data by second, so this does not
+     * require querying the device. The capture lags behind the device, so this waits a little for
+     * a line logged after the time of the call, and returns null if none was received.
+     */
+    @MustBeClosed
+    @Override
+    public InputStreamSource getLogcatDataSince(long date) {
+        return mReceiver.getDataSince(date, System.currentTimeMillis(), CATCH_UP_TIMEOUT_MS);
+    }
+
     @Override
     public void clear() {
         mReceiver.clear();
     }
+
+    /** A {@link LargeOutputReceiver} indexing the received logcat by time. */
+    @VisibleForTesting
+    static class IndexedOutputReceiver extends LargeOutputReceiver {
+        private final LogcatTimestampIndex mIndex = new LogcatTimestampIndex();
+
+        IndexedOutputReceiver(String descriptor, String serialNumber, long maxDataSize) {
+            super(descriptor, serialNumber, maxDataSize);
+        }
+
+        @Override
+        public synchronized void addOutput(byte[] data, int offset, int length) {
+            if (isCancelled()) {
+                return;
+            }
+            super.addOutput(data, offset, length);
+            mIndex.addOutput(data, offset, length);
+            mIndex.trim(getDiscardedSize());
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void clear() {
+            super.clear();
+            mIndex.clear();
+        }
+
+        /**
+         * Returns the data logged since a date, once the data logged until another date was
+         * received.
+         *
+         * @param date in millisecond since epoch of the start of the data to return.
+         * @param until in millisecond since epoch of the time the data must cover.
+         * @param timeoutMs the max time to wait for the data logged until {@code until}.
+         * @return the data, or null if the start of the data is not available or the data until
+         *     the end date was not received in time.
+         */
+        synchronized InputStreamSource getDataSince(long date, long until, long timeoutMs) {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (!mIndex.hasDataAfter(until)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || isCancelled()) {
+                    return null;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            long position = mIndex.getPosition(date);
+            if (position < 0) {
+                return null;
+            }
+            return getDataFrom(position);
+        }
+    }
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import java.util.Calendar;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sparse index of a logcat stream by time, built as the data is received.
+ *
+ * <p>The position of the first line of each second is recorded, keyed by the {@code MM-dd
+ * HH:mm:ss} timestamp starting the lines of the {@code threadtime} and {@code time} formats. Since
+ * the timestamp has no year, the index does not work across a new year. Lines whose timestamp is
+ * not after the last indexed second, for example when the logcat is dumped again after a reboot,
+ * are not indexed.
+ *
+ * <p>Not thread safe, access must be synchronized with the receiver of the data.
+ */
+class LogcatTimestampIndex {
+
+    /** Length of the {@code MM-dd HH:mm:ss} prefix of the lines. */
+    private static final int PREFIX_LENGTH = 14;
+
+    /** Position of the first line of each second, by second. */
+    private final TreeMap<Long, Long> mPositions = new TreeMap<>();
+
+    private final byte[] mPrefix = new byte[PREFIX_LENGTH];
+    private int mPrefixLength = 0;
+    private long mLineStart = 0;
+    private long mPosition = 0;
+    private long mLastSecond = -1;
+
+    /** Index the next chunk of the logcat. */
+    void addOutput(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            byte b = data[i];
+            if (b == '\n') {
+                mLineStart = mPosition + i - offset + 1;
+                mPrefixLength = 0;
+            } else if (mPrefixLength < PREFIX_LENGTH) {
+                mPrefix[mPrefixLength++] = b;
+                if (mPrefixLength == PREFIX_LENGTH) {
+                    indexLine();
+                }
+            }
+        }
+        mPosition += length;
+    }
+
+    private void indexLine() {
+        long second = parseSecond(mPrefix);
+        if (second > mLastSecond) {
+            mPositions.put(second, mLineStart);
+            mLastSecond = second;
+        }
+    }
+
+    /**
+     * Forget the seconds whose first line is before the given position, because the data was
+     * discarded.
+     */
+    void trim(long position) {
+        while (!mPositions.isEmpty() && mPositions.firstEntry().getValue() < position) {
+            mPositions.pollFirstEntry();
+        }
+    }
+
+    /** Forget all the data, the next data received is at position 0. */
+    void clear() {
+        mPositions.clear();
+        mPrefixLength = 0;
+        mLineStart = 0;
+        mPosition = 0;
+        mLastSecond = -1;
+    }
+
+    /**
+     * Returns the position of the first line logged during or after the second of the given date.
+     *
+     * @param date in millisecond since epoch, in the time zone of the host.
+     * @return the position, or -1 if the data for that date is not available: either it was
+     *     discarded or it was logged before the start of the data.
+     */
+    long getPosition(long date) {
+        long second = toSecond(date);
+        if (mPositions.isEmpty() || mPositions.firstKey() > second) {
+            return -1;
+        }
+        Map.Entry<Long, Long> entry = mPositions.ceilingEntry(second);
+        return entry == null ? mPosition : entry.getValue();
+    }
+
+    /**
+     * Returns true if a line logged after the second of the given date was received, so all the
+     * lines logged until that date were received too.
+     *
+     * @param date in millisecond since epoch, in the time zone of the host.
+     */
+    boolean hasDataAfter(long date) {
+        return mLastSecond > toSecond(date);
+    }
+
+    /** Returns the number of indexed seconds. */
+    int size() {
+        return mPositions.size();
+    }
+
+    /** Parse the {@code MM-dd HH:mm:ss} prefix of a line, returns -1 if it is not a timestamp. */
+    private static long parseSecond(byte[] prefix) {
+        if (prefix[2] != '-' || prefix[5] != ' ' || prefix[8] != ':' || prefix[11] != ':') {
+            return -1;
+        }
+        int month = parseNumber(prefix, 0);
+        int day = parseNumber(prefix, 3);
+        int hour = parseNumber(prefix, 6);
+        int minute = parseNumber(prefix, 9);
+        int second = parseNumber(prefix, 12);
+        if (month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0) {
+            return -1;
+        }
+        return toSecond(month, day, hour, minute, second);
+    }
+
+    private static int parseNumber(byte[] prefix, int index) {
+        int high = prefix[index] - '0';
+        int low = prefix[index + 1] - '0';
+        if (high < 0 || high > 9 || low < 0 || low > 9) {
+            return -1;
+        }
+        return high * 10 + low;
+    }
+
+    private static long toSecond(long date) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(date);
+        return toSecond(
+                calendar.get(Calendar.MONTH) + 1,
+                calendar.get(Calendar.DAY_OF_MONTH),
+                calendar.get(Calendar.HOUR_OF_DAY),
+                calendar.get(Calendar.MINUTE),
+                calendar.get(Calendar.SECOND));
+    }
+
+    private static long toSecond(int month, int day, int hour, int minute, int second) {
+        return (((month * 32L + day) * 24 + hour) * 60 + minute) * 60 + second;
+    }
+}
@@ -47,28 +47,49 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
      */
     private static class AllocationMatcher implements IMatcher<IManagedTestDevice> {
         private IDeviceSelection mDeviceSelectionMatcher;
+        private DeviceSnapshotCache mSnapshotCache;
 
-        AllocationMatcher(IDeviceSelection options) {
+        AllocationMatcher(IDeviceSelection options, DeviceSnapshotCache snapshotCache) {
             mDeviceSelectionMatcher = options;
+            mSnapshotCache = snapshotCache;
         }
 
         @Override
         public boolean matches(IManagedTestDevice element) {
-            if (mDeviceSelectionMatcher.matches(element.getIDevice())) {
+            if (matchesSelection(element.getIDevice())) {
                 DeviceEventResponse r = element.handleAllocationEvent(DeviceEvent.ALLOCATE_REQUEST);
                 return r.stateChanged && r.allocationState == DeviceAllocationState.Allocated;
             }
             return false;
         }
+
+        private boolean matchesSelection(IDevice idevice) {
+            if (mDeviceSelectionMatcher instanceof DeviceSelectionOptions) {
+                return ((DeviceSelectionOptions) mDeviceSelectionMatcher)
+                        .matches(idevice, mSnapshotCache.getSnapshot(idevice));
+            }
+            return mDeviceSelectionMatcher.matches(idevice);
+        }
     }
 
     private final ReentrantLock mListLock = new ReentrantLock(true);
     @GuardedBy("mListLock")
     private List<IManagedTestDevice> mList = new LinkedList<IManagedTestDevice>();
     private final IManagedTestDeviceFactory mDeviceFactory;
+    private final DeviceSnapshotCache mSnapshotCache;
 
     public ManagedDeviceList(IManagedTestDeviceFactory d) {
+        this(d, new DeviceSnapshotCache());
+    }
+
+    public ManagedDeviceList(IManagedTestDeviceFactory d, DeviceSnapshotCache snapshotCache) {
         mDeviceFactory = d;
+        mSnapshotCache = snapshotCache;
+    }
+
+    /** Returns the {@link DeviceSnapshotCache} used to match devices during allocation. */
+    DeviceSnapshotCache getSnapshotCache() {
+        return mSnapshotCache;
     }
 
     /**
@@ -157,7 +178,7 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
      * @return the {@link IManagedTestDevice} that was successfully allocated, null otherwise
      */
     public IManagedTestDevice allocate(IDeviceSelection options) {
-        AllocationMatcher m = new AllocationMatcher(options);
+        AllocationMatcher m = new AllocationMatcher(options, mSnapshotCache);
         // this method is a variant of find, that attempts to find a device matching options
         // and that can be transitioned to allocated state.
         // if found, the device will be moved to the back of the list to try to even out
@@ -258,6 +279,10 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
         if (r != null && r.allocationState == DeviceAllocationState.Unknown) {
            remove(d);
         }
+        if (r != null && r.stateChanged && r.allocationState != DeviceAllocationState.Allocated) {
+            // Device may have been flashed, rebooted or replaced: drop its cached properties.
+            mSnapshotCache.invalidate(d.getSerialNumber());
+        }
         return r;
     }
 
@@ -220,6 +220,10 @@ public class NativeDevice implements IManagedTestDevice {
 
     private ContentProviderHandler mContentProvider = null;
     private boolean mShouldSkipContentProviderSetup = false;
+    /** Manifest of the files synced by content hash, kept across invocations. */
+    private ContentHashSyncer mContentHashSyncer = null;
+    private PersistentShell mPersistentShell = null;
+    private DevicePropertyCache mPropertyCache = null;
     /** Keep track of the last time Tradefed itself triggered a reboot. */
     private long mLastTradefedRebootTime = 0L;
 
@@ -361,6 +365,7 @@ public class NativeDevice implements IManagedTestDevice {
         mOptions = options;
         mStateMonitor.setDefaultOnlineTimeout(options.getOnlineTimeout());
         mStateMonitor.setDefaultAvailableTimeout(options.getAvailableTimeout());
+        mStateMonitor.setShellBootDetection(options.useShellBootDetection());
     }
 
     /**
@@ -455,9 +460,28 @@ public class NativeDevice implements IManagedTestDevice {
             CLog.d("Device %s is not online cannot get property %s.", getSerialNumber(), name);
             return null;
         }
+        if (getOptions().usePropertyCache()) {
+            return getPropertyCache().get(name, key -> getIDevice().getProperty(key));
+        }
         return getIDevice().getProperty(name);
     }
 
+    /** Returns the host side cache of the device properties. */
+    @VisibleForTesting
+    synchronized DevicePropertyCache getPropertyCache() {
+        if (mPropertyCache == null) {
+            mPropertyCache = new DevicePropertyCache(getOptions().getPropertyCacheTtl());
+        }
+        return mPropertyCache;
+    }
+
+    /** Forget the cached properties, for example because the device rebooted. */
+    private synchronized void invalidatePropertyCache() {
+        if (mPropertyCache != null) {
+            mPropertyCache.invalidateAll();
+        }
+    }
+
     /** {@inheritDoc} */
     @Override
     public boolean setProperty(String propKey, String propValue)
@@ -471,6 +495,12 @@ public class NativeDevice implements IManagedTestDevice {
         }
         CommandResult result =
                 executeShellV2Command(String.format("setprop \"%s\" \"%s\"", propKey, propValue));
+        synchronized (this) {
+            // Setting a property may trigger changes to other properties.
+            if (mPropertyCache != null) {
+                mPropertyCache.invalidateMutable(propKey);
+            }
+        }
         if (CommandStatus.SUCCESS.equals(result.getStatus())) {
             return true;
         }
@@ -713,9 +743,24 @@ public class NativeDevice implements IManagedTestDevice {
      */
     @Override
     public String executeShellCommand(String command) throws DeviceNotAvailableException {
-        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
-        executeShellCommand(command, receiver);
-        String output = receiver.getOutput();
+        String output = null;
+        if (getOptions().usePersistentShell()) {
+            CommandResult result = getPersistentShell().execute(command, mCmdTimeout);
+            if (result != null) {
+                output = result.getStdout();
+                if (PersistentShell.isIncomplete(result)) {
+                    // The command may still run on the device, do not run it a second time.
+                    CLog.w(
+                            "%s did not complete on %s (%s), returning its partial output.",
+                            command, getSerialNumber(), result.getStatus());
+                }
+            }
+        }
+        if (output == null) {
+            CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+            executeShellCommand(command, receiver);
+            output = receiver.getOutput();
+        }
         if (mExecuteShellCommandLogs != null) {
             // Log all output to a dedicated file as it can be very verbose.
             String formatted =
@@ -813,6 +858,13 @@ public class NativeDevice implements IManagedTestDevice {
         return adbActionV2.mResult;
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public List<CommandResult> executeShellCommands(List<String> commands)
+            throws DeviceNotAvailableException {
+        return new ShellCommandBatch(this).run(commands);
+    }
+
     /** {@inheritDoc} */
     @Override
     public boolean runInstrumentationTests(
@@ -1494,6 +1546,24 @@ public class NativeDevice implements IManagedTestDevice {
             CLog.e("file %s is not a directory", localFileDir.getAbsolutePath());
             return false;
         }
+        if (deviceFilePath.startsWith(SD_CARD) && getContentProvider() != null) {
+            // Files are pushed one by one through the content provider.
+            return pushDirPerFile(localFileDir, deviceFilePath, excludedDirectories);
+        }
+        return createDirectoryPusher()
+                .push(localFileDir, interpolatePathVariables(deviceFilePath), excludedDirectories);
+    }
+
+    /** Returns the {@link DirectoryPusher} used to push a directory in bulk. */
+    @VisibleForTesting
+    DirectoryPusher createDirectoryPusher() {
+        return new DirectoryPusher(this);
+    }
+
+    /** Push a directory recursively, one directory and one file at a time. */
+    private boolean pushDirPerFile(
+            File localFileDir, String deviceFilePath, Set<String> excludedDirectories)
+            throws DeviceNotAvailableException {
         File[] childFiles = localFileDir.listFiles();
         if (childFiles == null) {
             CLog.e("Could not read files in %s", localFileDir.getAbsolutePath());
@@ -1510,7 +1580,7 @@ public class NativeDevice implements IManagedTestDevice {
                     continue;
                 }
                 executeShellCommand(String.format("mkdir -p \"%s\"", remotePath));
-                if (!pushDir(childFile, remotePath, excludedDirectories)) {
+                if (!pushDirPerFile(childFile, remotePath, excludedDirectories)) {
                     return false;
                 }
             } else if (childFile.isFile()) {
@@ -1578,6 +1648,30 @@ public class NativeDevice implements IManagedTestDevice {
         return true;
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public boolean bulkPullDir(String deviceFilePath, File localDir, boolean useTar)
+            throws DeviceNotAvailableException {
+        if (deviceFilePath.startsWith(SD_CARD)) {
+            ContentProviderHandler handler = getContentProvider();
+            if (handler != null) {
+                return handler.pullDir(deviceFilePath, localDir);
+            }
+        }
+        if (!localDir.isDirectory()) {
+            CLog.e("Local path %s is not a directory", localDir.getAbsolutePath());
+            return false;
+        }
+        return createDirectoryPuller()
+                .pull(interpolatePathVariables(deviceFilePath), localDir, useTar);
+    }
+
+    /** Returns the {@link DirectoryPuller} used to pull a directory in bulk. */
+    @VisibleForTesting
+    DirectoryPuller createDirectoryPuller() {
+        return new DirectoryPuller(this);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -1597,6 +1691,9 @@ public class NativeDevice implements IManagedTestDevice {
         // implementation will add localFileDir.getName() to destination path
         deviceFilePath = String.format("%s/%s", interpolatePathVariables(deviceFilePath),
                 localFileDir.getName());
+        if (getOptions().useContentHashSync()) {
+            return getContentHashSyncer().sync(localFileDir, deviceFilePath);
+        }
         if (!doesFileExist(deviceFilePath)) {
             executeShellCommand(String.format("mkdir -p \"%s\"", deviceFilePath));
         }
@@ -1609,6 +1706,15 @@ public class NativeDevice implements IManagedTestDevice {
         return syncFiles(localFileDir, remoteFileEntry);
     }
 
+    /** Returns the {@link ContentHashSyncer} holding the manifest of the files synced. */
+    @VisibleForTesting
+    ContentHashSyncer getContentHashSyncer() {
+        if (mContentHashSyncer == null) {
+            mContentHashSyncer = new ContentHashSyncer(this);
+        }
+        return mContentHashSyncer;
+    }
+
     /**
      * Recursively sync newer files.
      *
@@ -1941,6 +2047,19 @@ public class NativeDevice implements IManagedTestDevice {
                 commandArgs);
     }
 
+    /** Returns the shell kept open on the device to run short commands. */
+    @VisibleForTesting
+    synchronized PersistentShell getPersistentShell() {
+        if (mPersistentShell == null) {
+            mPersistentShell =
+                    new PersistentShell(
+                            String.format("PersistentShell-%s", getSerialNumber()),
+                            Arrays.asList(buildAdbCommand("shell")),
+                            getRunUtil());
+        }
+        return mPersistentShell;
+    }
+
     /** Builds the OS command for the given adb shell command session and args */
     private String[] buildAdbShellCommand(String command) {
         // TODO: implement the shell v2 support in ddmlib itself.
@@ -2061,6 +2180,7 @@ public class NativeDevice implements IManagedTestDevice {
             return;
         }
         CLog.i("Attempting recovery on %s", getSerialNumber());
+        invalidatePropertyCache();
         try {
             mRecovery.recoverDevice(mStateMonitor, mRecoveryMode.equals(RecoveryMode.ONLINE));
         } catch (DeviceUnresponsiveException due) {
@@ -2169,7 +2289,16 @@ public class NativeDevice implements IManagedTestDevice {
      * {@inheritDoc}
      */
     @Override
+    @SuppressWarnings("MustBeClosedChecker")
     public InputStreamSource getLogcatSince(long date) {
+        if (mLogcatReceiver != null && getOptions().useLogcatSinceFromHost()) {
+            InputStreamSource logcat = mLogcatReceiver.getLogcatDataSince(date);
+            if (logcat != null) {
+                return logcat;
+            }
+            CLog.d("Captured logcat of %s does not cover %d, querying the device",
+                    getSerialNumber(), date);
+        }
         try {
             if (getApiLevel() <= 22) {
                 CLog.i("Api level too low to use logcat -t 'time' reverting to dump");
@@ -2186,20 +2315,23 @@ public class NativeDevice implements IManagedTestDevice {
         SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.mmm");
         String dateFormatted = format.format(new Date(date));
 
-        byte[] output = new byte[0];
+        CollectingFileOutputReceiver receiver = null;
         try {
             // use IDevice directly because we don't want callers to handle
             // DeviceNotAvailableException for this method
-            CollectingByteOutputReceiver receiver = new CollectingByteOutputReceiver();
+            receiver = createLogcatDumpReceiver();
             String command = String.format("%s -t '%s'", LogcatReceiver.LOGCAT_CMD, dateFormatted);
             getIDevice().executeShellCommand(command, receiver);
-            output = receiver.getOutput();
+            return receiver.getData();
         } catch (IOException|AdbCommandRejectedException|
                 ShellCommandUnresponsiveException|TimeoutException e) {
             CLog.w("Failed to get logcat dump from %s: %s", getSerialNumber(), e.getMessage());
             CLog.e(e);
         }
-        return new ByteArrayInputStreamSource(output);
+        if (receiver != null) {
+            receiver.delete();
+        }
+        return new ByteArrayInputStreamSource(new byte[0]);
     }
 
     /**
@@ -2207,15 +2339,15 @@ public class NativeDevice implements IManagedTestDevice {
      */
     @Override
     public InputStreamSource getLogcatDump() {
-        byte[] output = new byte[0];
+        CollectingFileOutputReceiver receiver = null;
         try {
             // use IDevice directly because we don't want callers to handle
             // DeviceNotAvailableException for this method
-            CollectingByteOutputReceiver receiver = new CollectingByteOutputReceiver();
+            receiver = createLogcatDumpReceiver();
             // add -d parameter to make this a non blocking call
             getIDevice().executeShellCommand(LogcatReceiver.LOGCAT_CMD + " -d", receiver,
                     LOGCAT_DUMP_TIMEOUT, TimeUnit.MILLISECONDS);
-            output = receiver.getOutput();
+            return receiver.getData();
         } catch (IOException e) {
             CLog.w("Failed to get logcat dump from %s: ", getSerialNumber(), e.getMessage());
         } catch (TimeoutException e) {
@@ -2225,7 +2357,19 @@ public class NativeDevice implements IManagedTestDevice {
         } catch (ShellCommandUnresponsiveException e) {
             CLog.w("Failed to get logcat dump from %s: ", getSerialNumber(), e.getMessage());
         }
-        return new ByteArrayInputStreamSource(output);
+        if (receiver != null) {
+            receiver.delete();
+        }
+        return new ByteArrayInputStreamSource(new byte[0]);
+    }
+
+    /**
+     * Creates the receiver of a logcat dump. The dump is streamed to a temporary file rather than
+     * collected in memory since it can be several megabytes, and is requested on test failures.
+     */
+    @VisibleForTesting
+    CollectingFileOutputReceiver createLogcatDumpReceiver() throws IOException {
+        return new CollectingFileOutputReceiver("logcat_dump_" + getSerialNumber() + "_");
     }
 
     /**
@@ -2971,6 +3115,7 @@ public class NativeDevice implements IManagedTestDevice {
      * @throws DeviceNotAvailableException
      */
     protected void doAdbReboot(final String into) throws DeviceNotAvailableException {
+        invalidatePropertyCache();
         DeviceAction rebootAction = createRebootDeviceAction(into);
         performDeviceAction("reboot", rebootAction, MAX_RETRY_ATTEMPTS);
     }
@@ -3492,6 +3637,10 @@ public class NativeDevice implements IManagedTestDevice {
             }
             mState = deviceState;
             CLog.d("Device %s state is now %s", getSerialNumber(), deviceState);
+            if (!TestDeviceState.ONLINE.equals(deviceState)) {
+                // The device may be rebooting, or being flashed.
+                invalidatePropertyCache();
+            }
             mStateMonitor.setState(deviceState);
         }
     }
@@ -4127,6 +4276,22 @@ public class NativeDevice implements IManagedTestDevice {
         mIsEncryptionSupported = null;
         FileUtil.deleteFile(mExecuteShellCommandLogs);
         mExecuteShellCommandLogs = null;
+        if (mStateMonitor instanceof NativeDeviceStateMonitor) {
+            NativeDeviceStateMonitor monitor = (NativeDeviceStateMonitor) mStateMonitor;
+            CLog.d("Boot detection stats of %s: %s", getSerialNumber(),
+                    monitor.getBootDetectionStats());
+            monitor.resetBootDetectionStats();
+        }
+        if (mPersistentShell != null) {
+            CLog.d("Persistent shell stats of %s: %s", getSerialNumber(),
+                    mPersistentShell.getStats());
+            mPersistentShell.close();
+            mPersistentShell = null;
+        }
+        if (mPropertyCache != null) {
+            CLog.d("Property cache stats of %s: %s", getSerialNumber(),
+                    mPropertyCache.getStats());
+        }
         // Default implementation
         if (getIDevice() instanceof StubDevice) {
             return;
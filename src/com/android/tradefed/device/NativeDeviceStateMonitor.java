@@ -31,6 +31,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Helper class for monitoring the state of a {@link IDevice} with no framework support.
@@ -39,6 +40,18 @@ public class NativeDeviceStateMonitor implements IDeviceStateMonitor {
 
     static final String BOOTCOMPLETE_PROP = "dev.bootcomplete";
 
+    /** Printed by {@link #BOOTCOMPLETE_WAIT_CMD} once the device booted. */
+    static final String BOOTCOMPLETE_MARKER = "TF_BOOT_COMPLETE";
+    /**
+     * Device side loop returning as soon as the boot property is set. Fractional sleeps are not
+     * supported by all shells, hence the fallback to a one second sleep.
+     */
+    static final String BOOTCOMPLETE_WAIT_CMD =
+            String.format(
+                    "while [ \"$(getprop %s)\" != \"1\" ]; do "
+                            + "sleep 0.2 2>/dev/null || sleep 1; done; echo %s",
+                    BOOTCOMPLETE_PROP, BOOTCOMPLETE_MARKER);
+
     private IDevice mDevice;
     private TestDeviceState mDeviceState;
 
@@ -57,6 +70,12 @@ public class NativeDeviceStateMonitor implements IDeviceStateMonitor {
     private List<DeviceStateListener> mStateListeners;
     private IDeviceManager mMgr;
     private final boolean mFastbootEnabled;
+    private boolean mShellBootDetection = false;
+
+    /** Number of boot completions detected, and their total detection time and lag in ms. */
+    private final AtomicLong mBootDetectionCount = new AtomicLong();
+    private final AtomicLong mBootDetectionTime = new AtomicLong();
+    private final AtomicLong mBootDetectionLag = new AtomicLong();
 
     protected static final String PERM_DENIED_ERROR_PATTERN = "Permission denied";
 
@@ -94,6 +113,14 @@ public class NativeDeviceStateMonitor implements IDeviceStateMonitor {
         mDefaultAvailableTimeout = timeoutMs;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setShellBootDetection(boolean enabled) {
+        mShellBootDetection = enabled;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -235,11 +262,22 @@ public class NativeDeviceStateMonitor implements IDeviceStateMonitor {
         CLog.i("Waiting %d ms for device %s boot complete", waitTime, getSerialNumber());
         int counter = 1;
         long startTime = System.currentTimeMillis();
+        if (mShellBootDetection) {
+            Boolean booted = waitForBootCompleteWithShell(waitTime);
+            if (booted != null) {
+                return booted;
+            }
+            // The shell session was lost, poll for the remaining time.
+        }
         final String cmd = "getprop " + BOOTCOMPLETE_PROP;
+        long lastSleep = 0;
         while ((System.currentTimeMillis() - startTime) < waitTime) {
             try {
                 String bootFlag = getIDevice().getSystemProperty("dev.bootcomplete").get();
                 if ("1".equals(bootFlag)) {
+                    // The device may have booted at any time during the last sleep.
+                    long elapsed = System.currentTimeMillis() - startTime;
+                    recordBootDetection("polling", elapsed, lastSleep);
                     return true;
                 }
             } catch (InterruptedException e) {
@@ -249,13 +287,82 @@ public class NativeDeviceStateMonitor implements IDeviceStateMonitor {
             } catch (ExecutionException e) {
                 CLog.i("%s on device %s failed: %s", cmd, getSerialNumber(), e.getMessage());
             }
-            getRunUtil().sleep(Math.min(getCheckPollTime() * counter, MAX_CHECK_POLL_TIME));
+            lastSleep = Math.min(getCheckPollTime() * counter, MAX_CHECK_POLL_TIME);
+            getRunUtil().sleep(lastSleep);
             counter++;
         }
         CLog.w("Device %s did not boot after %d ms", getSerialNumber(), waitTime);
         return false;
     }
 
+    /**
+     * Wait for boot completion with a single shell command, which returns as soon as the boot
+     * property is set.
+     *
+     * @param waitTime time in ms to wait before giving up
+     * @return whether the device booted before waitTime expires, or null if the shell session was
+     *     lost before the command completed.
+     */
+    private Boolean waitForBootCompleteWithShell(final long waitTime) {
+        long startTime = System.currentTimeMillis();
+        CollectingOutputReceiver receiver = createOutputReceiver();
+        try {
+            // The command only prints once the device booted.
+            getIDevice()
+                    .executeShellCommand(
+                            BOOTCOMPLETE_WAIT_CMD, receiver, waitTime, TimeUnit.MILLISECONDS);
+        } catch (ShellCommandUnresponsiveException e) {
+            CLog.w("Device %s did not boot after %d ms", getSerialNumber(), waitTime);
+            return false;
+        } catch (IOException | AdbCommandRejectedException | TimeoutException e) {
+            CLog.i(
+                    "Boot wait command on device %s failed: %s, polling instead.",
+                    getSerialNumber(), e.toString());
+            return null;
+        }
+        if (!receiver.getOutput().contains(BOOTCOMPLETE_MARKER)) {
+            CLog.i(
+                    "Boot wait command on device %s ended early, polling instead.",
+                    getSerialNumber());
+            return null;
+        }
+        recordBootDetection("shell", System.currentTimeMillis() - startTime, 0);
+        return true;
+    }
+
+    /**
+     * Record a boot completion detection.
+     *
+     * @param mode how the boot completion was detected
+     * @param elapsed the time in ms it took to detect the boot completion
+     * @param maxLag the max time in ms between the boot completion and its detection
+     */
+    private void recordBootDetection(String mode, long elapsed, long maxLag) {
+        mBootDetectionCount.incrementAndGet();
+        mBootDetectionTime.addAndGet(elapsed);
+        mBootDetectionLag.addAndGet(maxLag);
+        CLog.i(
+                "Device %s boot complete detected by %s after %d ms, at most %d ms late.",
+                getSerialNumber(), mode, elapsed, maxLag);
+    }
+
+    /** Reset the boot completion detection stats, for example between invocations. */
+    public void resetBootDetectionStats() {
+        mBootDetectionCount.set(0);
+        mBootDetectionTime.set(0);
+        mBootDetectionLag.set(0);
+    }
+
+    /**
+     * Returns a one line summary of the boot completions detected: their number, the total time
+     * spent waiting for them and the total time they may have gone unnoticed.
+     */
+    public String getBootDetectionStats() {
+        return String.format(
+                "boots=%d wait_ms=%d max_lag_ms=%d",
+                mBootDetectionCount.get(), mBootDetectionTime.get(), mBootDetectionLag.get());
+    }
+
     /**
      * Additional checks to be done on an Online device
      *
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.IRunUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A shell process kept open on a device, to run short commands without the cost of opening a new
+ * adb connection for each of them.
+ *
+ * <p>Each command runs in its own {@code sh -c} with no input, so it cannot alter the state of the
+ * shell or read the following commands, and its output is followed by a marker line holding its
+ * exit code. Callers share the channel one command at a time: when it is busy or cannot be opened,
+ * {@link #execute(String, long)} returns null and the caller falls back to the regular path. A
+ * command that was sent to the device is never run again: if it times out or the channel breaks,
+ * the output received so far is returned, and the channel is reopened by the next command.
+ */
+class PersistentShell {
+
+    /** Prefix of the line printed after the output of each command. */
+    @VisibleForTesting static final String END_MARKER = "TF_SHELL_END";
+
+    private static final long OPEN_TIMEOUT_MS = 5 * 1000;
+
+    /** One shell process and the output it printed so far. */
+    private static class Connection {
+        final Process mProcess;
+        final Writer mInput;
+        /** Output not consumed by a command yet, guarded by itself. */
+        final StringBuilder mOutput = new StringBuilder();
+        /** Set once the process stopped printing, guarded by {@link #mOutput}. */
+        boolean mClosed = false;
+
+        Connection(Process process) {
+            mProcess = process;
+            mInput =
+                    new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+        }
+
+        void readOutput() {
+            char[] buffer = new char[8192];
+            try (Reader reader =
+                    new InputStreamReader(mProcess.getInputStream(), StandardCharsets.UTF_8)) {
+                int read;
+                while ((read = reader.read(buffer)) != -1) {
+                    synchronized (mOutput) {
+                        mOutput.append(buffer, 0, read);
+                        mOutput.notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                // The process was killed.
+            } finally {
+                synchronized (mOutput) {
+                    mClosed = true;
+                    mOutput.notifyAll();
+                }
+            }
+        }
+
+        void close() {
+            StreamUtil.close(mInput);
+            mProcess.destroy();
+        }
+    }
+
+    private final String mName;
+    private final List<String> mShellCommand;
+    private final IRunUtil mRunUtil;
+    /** Held while a command runs on the channel. */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    private Connection mConnection = null;
+    private long mCommandCount = 0;
+
+    private final AtomicLong mCommands = new AtomicLong();
+    private final AtomicLong mFallbacks = new AtomicLong();
+    private final AtomicLong mIncomplete = new AtomicLong();
+    private final AtomicLong mOpens = new AtomicLong();
+    private final AtomicLong mLatencyNanos = new AtomicLong();
+
+    /**
+     * Creates a {@link PersistentShell}, opened on its first command.
+     *
+     * @param name the name of the channel, for logging and thread names.
+     * @param shellCommand the host command opening an interactive shell on the device.
+     * @param runUtil the {@link IRunUtil} to start the shell process with.
+     */
+    PersistentShell(String name, List<String> shellCommand, IRunUtil runUtil) {
+        mName = name;
+        mShellCommand = shellCommand;
+        mRunUtil = runUtil;
+    }
+
+    /**
+     * Run a command on the channel.
+     *
+     * @param command the shell command to run.
+     * @param timeoutMs the max time to wait for the command to print some output.
+     * @return the result of the command, with its stderr merged into its stdout, or null if the
+     *     command was not sent to the device and can be run on another path. A command that timed
+     *     out or whose channel was closed has the {@link CommandStatus#TIMED_OUT} or {@link
+     *     CommandStatus#EXCEPTION} status and the output received so far, since it may still run
+     *     on the device.
+     */
+    CommandResult execute(String command, long timeoutMs) {
+        if (!mLock.tryLock()) {
+            // Another command is running, do not wait for it.
+            mFallbacks.incrementAndGet();
+            return null;
+        }
+        try {
+            long start = System.nanoTime();
+            if (mConnection == null && !open()) {
+                mFallbacks.incrementAndGet();
+                return null;
+            }
+            CommandResult result = run(command, timeoutMs);
+            if (result == null) {
+                close();
+                mFallbacks.incrementAndGet();
+                return null;
+            }
+            if (isIncomplete(result)) {
+                // The shell is still busy with the command or broken, start a new one next time.
+                close();
+                mIncomplete.incrementAndGet();
+                return result;
+            }
+            mCommands.incrementAndGet();
+            mLatencyNanos.addAndGet(System.nanoTime() - start);
+            return result;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns true if the command was sent to the device but its completion was not received. */
+    static boolean isIncomplete(CommandResult result) {
+        return CommandStatus.TIMED_OUT.equals(result.getStatus())
+                || CommandStatus.EXCEPTION.equals(result.getStatus());
+    }
+
+    /** Start the shell process, and check that it runs commands. */
+    private boolean open() {
+        Process process;
+        try {
+            process = mRunUtil.runCmdInBackground(mShellCommand);
+        } catch (IOException e) {
+            CLog.w("Failed to open %s: %s", mName, e.toString());
+            return false;
+        }
+        mOpens.incrementAndGet();
+        Connection connection = new Connection(process);
+        Thread reader = new Thread(connection::readOutput, mName + "-reader");
+        reader.setDaemon(true);
+        reader.start();
+        // Errors of the host command, for example an offline device, only need to be drained.
+        Thread errorReader =
+                new Thread(
+                        () -> {
+                            try {
+                                StreamUtil.getStringFromStream(process.getErrorStream());
+                            } catch (IOException e) {
+                                // The process was killed.
+                            }
+                        },
+                        mName + "-stderr");
+        errorReader.setDaemon(true);
+        errorReader.start();
+        mConnection = connection;
+        CommandResult result = run("true", OPEN_TIMEOUT_MS);
+        if (result == null || isIncomplete(result)) {
+            CLog.w("%s did not respond, not using it.", mName);
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Run a command on the open connection.
+     *
+     * @return the result of the command, or null if it could not be sent.
+     */
+    private CommandResult run(String command, long timeoutMs) {
+        Connection connection = mConnection;
+        String marker = String.format("%s_%d", END_MARKER, ++mCommandCount);
+        // The extra echo ends the output with a new line, removed from the result.
+        String framed =
+                String.format(
+                        "sh -c %s </dev/null 2>&1; tf_exit=$?; echo; echo %s $tf_exit\n",
+                        quote(command), marker);
+        synchronized (connection.mOutput) {
+            if (connection.mClosed) {
+                return null;
+            }
+            connection.mOutput.setLength(0);
+        }
+        try {
+            connection.mInput.write(framed);
+            connection.mInput.flush();
+        } catch (IOException e) {
+            CLog.w("Failed to write to %s: %s", mName, e.toString());
+            return null;
+        }
+        String end = "\n" + marker + " ";
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        int received = 0;
+        synchronized (connection.mOutput) {
+            StringBuilder output = connection.mOutput;
+            while (true) {
+                int index = output.indexOf(end);
+                int lineEnd = index < 0 ? -1 : output.indexOf("\n", index + end.length());
+                if (lineEnd >= 0) {
+                    return parseResult(
+                            output.substring(0, index),
+                            output.substring(index + end.length(), lineEnd));
+                }
+                if (connection.mClosed) {
+                    CLog.w("%s was closed while running '%s'", mName, command);
+                    return incompleteResult(CommandStatus.EXCEPTION, output);
+                }
+                if (output.length() > received) {
+                    // The timeout is the max time without output, like the regular path.
+                    received = output.length();
+                    deadline = System.currentTimeMillis() + timeoutMs;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    CLog.w(
+                            "'%s' did not print anything on %s for %d ms",
+                            command, mName, timeoutMs);
+                    return incompleteResult(CommandStatus.TIMED_OUT, output);
+                }
+                try {
+                    output.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return incompleteResult(CommandStatus.EXCEPTION, output);
+                }
+            }
+        }
+    }
+
+    private static CommandResult incompleteResult(CommandStatus status, CharSequence output) {
+        CommandResult result = new CommandResult(status);
+        result.setStdout(output.toString());
+        result.setStderr("");
+        return result;
+    }
+
+    private static CommandResult parseResult(String stdout, String exitCode) {
+        CommandResult result = new CommandResult(CommandStatus.SUCCESS);
+        result.setStdout(stdout);
+        result.setStderr("");
+        try {
+            result.setExitCode(Integer.parseInt(exitCode.trim()));
+        } catch (NumberFormatException e) {
+            result.setExitCode(-1);
+        }
+        if (result.getExitCode() != 0) {
+            result.setStatus(CommandStatus.FAILED);
+        }
+        return result;
+    }
+
+    /** Quote a command as a single shell argument. */
+    @VisibleForTesting
+    static String quote(String command) {
+        return "'" + command.replace("'", "'\\''") + "'";
+    }
+
+    /** Stop the shell process, it is started again by the next command. */
+    void close() {
+        mLock.lock();
+        try {
+            if (mConnection != null) {
+                mConnection.close();
+                mConnection = null;
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Returns a one line summary of the channel metrics. */
+    String getStats() {
+        long commands = mCommands.get();
+        return String.format(
+                "commands=%d fallbacks=%d incomplete=%d opens=%d avg_latency_us=%d",
+                commands,
+                mFallbacks.get(),
+                mIncomplete.get(),
+                mOpens.get(),
+                commands == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(mLatencyNanos.get()) / commands);
+    }
+}
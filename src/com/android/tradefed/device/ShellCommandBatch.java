@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a list of independent shell commands in as few shell invocations as possible.
+ *
+ * <p>Each command runs in its own {@code sh -c} with no input, so a command cannot affect the
+ * following ones, and its output is followed by a marker line holding its index and exit code.
+ * The commands are split into several invocations when they do not fit in one command line.
+ */
+class ShellCommandBatch {
+
+    /** Prefix of the line printed after the output of each command. */
+    @VisibleForTesting static final String END_MARKER = "TF_BATCH_END";
+
+    private final INativeDevice mDevice;
+    private final String mMarker;
+
+    ShellCommandBatch(INativeDevice device) {
+        this(device, String.format("%s_%d", END_MARKER, System.nanoTime()));
+    }
+
+    @VisibleForTesting
+    ShellCommandBatch(INativeDevice device, String marker) {
+        mDevice = device;
+        mMarker = marker;
+    }
+
+    /**
+     * Run the commands.
+     *
+     * @return the result of each command, in the same order.
+     */
+    List<CommandResult> run(List<String> commands) throws DeviceNotAvailableException {
+        List<CommandResult> results = new ArrayList<>();
+        StringBuilder script = new StringBuilder();
+        int first = 0;
+        for (int i = 0; i < commands.size(); i++) {
+            String framed = frame(commands.get(i), i);
+            if (script.length() > 0
+                    && script.length() + framed.length() > DirectoryPusher.MAX_COMMAND_LENGTH) {
+                results.addAll(parse(mDevice.executeShellCommand(script.toString()), first, i));
+                script.setLength(0);
+                first = i;
+            }
+            script.append(framed);
+        }
+        if (script.length() > 0) {
+            results.addAll(
+                    parse(mDevice.executeShellCommand(script.toString()), first, commands.size()));
+        }
+        return results;
+    }
+
+    /** Frame a command, the extra echo ends its output with a new line removed when parsing. */
+    @VisibleForTesting
+    String frame(String command, int index) {
+        return String.format(
+                "sh -c %s </dev/null 2>&1; tf_exit=$?; echo; echo %s_%d $tf_exit; ",
+                PersistentShell.quote(command), mMarker, index);
+    }
+
+    /**
+     * Parse the output of the framed commands.
+     *
+     * @param output the output of the shell invocation.
+     * @param first the index of the first command of the invocation.
+     * @param end the index after the last command of the invocation.
+     * @return the result of each command. Commands without framing, for example because the
+     *     invocation was interrupted, have the {@link CommandStatus#EXCEPTION} status.
+     */
+    @VisibleForTesting
+    List<CommandResult> parse(String output, int first, int end) {
+        List<CommandResult> results = new ArrayList<>();
+        int pos = 0;
+        for (int i = first; i < end; i++) {
+            String endLine = String.format("\n%s_%d ", mMarker, i);
+            int index = output == null ? -1 : output.indexOf(endLine, pos);
+            if (index < 0) {
+                CommandResult result = new CommandResult(CommandStatus.EXCEPTION);
+                result.setStdout("");
+                result.setStderr("No output received for the command.");
+                results.add(result);
+                continue;
+            }
+            int lineEnd = output.indexOf('\n', index + endLine.length());
+            if (lineEnd < 0) {
+                lineEnd = output.length();
+            }
+            String stdout = output.substring(pos, index);
+            if (stdout.endsWith("\r")) {
+                // Devices converting new lines of the output.
+                stdout = stdout.substring(0, stdout.length() - 1);
+            }
+            CommandResult result = new CommandResult(CommandStatus.SUCCESS);
+            result.setStdout(stdout);
+            result.setStderr("");
+            try {
+                result.setExitCode(
+                        Integer.parseInt(
+                                output.substring(index + endLine.length(), lineEnd).trim()));
+            } catch (NumberFormatException e) {
+                result.setExitCode(-1);
+            }
+            if (result.getExitCode() != 0) {
+                result.setStatus(CommandStatus.FAILED);
+            }
+            results.add(result);
+            pos = lineEnd + 1;
+        }
+        return results;
+    }
+}
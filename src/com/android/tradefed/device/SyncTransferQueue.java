@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.SyncException;
+import com.android.ddmlib.SyncException.SyncError;
+import com.android.ddmlib.SyncService;
+import com.android.ddmlib.TimeoutException;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transfers many files through a few long-lived sync sessions of a device.
+ *
+ * <p>ddmlib waits for the device status after each file of a session, so transfers are pipelined
+ * over several concurrent sessions draining a shared queue. A transfer failing is retried on a
+ * fresh session, and the transfers that still fail are returned to the caller, which can fall
+ * back to a slower path with device recovery.
+ *
+ * @param <T> the type describing one file transfer.
+ */
+class SyncTransferQueue<T> {
+
+    /** Number of concurrent sync sessions used by default. */
+    static final int DEFAULT_SESSION_COUNT = 2;
+
+    private static final int MAX_ATTEMPTS = 2;
+
+    /** A transfer of one file through a sync session. */
+    interface ISyncTransfer<T> {
+        void transfer(SyncService session, T item)
+                throws SyncException, IOException, TimeoutException;
+    }
+
+    private final ITestDevice mDevice;
+    private final String mName;
+    private final int mSessionCount;
+    private final AtomicLong mRetries = new AtomicLong();
+
+    /**
+     * Creates a {@link SyncTransferQueue}.
+     *
+     * @param device the device to transfer files with.
+     * @param name the name of the transfers, for logging and thread names.
+     * @param sessionCount the max number of concurrent sync sessions.
+     */
+    SyncTransferQueue(ITestDevice device, String name, int sessionCount) {
+        mDevice = device;
+        mName = name;
+        mSessionCount = Math.max(1, sessionCount);
+    }
+
+    /**
+     * Run all the transfers, and wait for them to complete.
+     *
+     * @return the items whose transfer failed.
+     */
+    List<T> run(Collection<T> items, ISyncTransfer<T> transfer) {
+        ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<>(items);
+        List<T> failed = Collections.synchronizedList(new ArrayList<>());
+        int sessionCount = Math.min(mSessionCount, items.size());
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 1; i < sessionCount; i++) {
+            Thread worker = new Thread(() -> drain(queue, transfer, failed), mName + "-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        // The calling thread drives one of the sessions itself.
+        drain(queue, transfer, failed);
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                CLog.e(e);
+                Thread.currentThread().interrupt();
+            }
+        }
+        return failed;
+    }
+
+    /** Run the queued transfers through one sync session until the queue is empty. */
+    private void drain(ConcurrentLinkedQueue<T> queue, ISyncTransfer<T> transfer, List<T> failed) {
+        SyncService session = null;
+        try {
+            T item;
+            while ((item = queue.poll()) != null) {
+                boolean done = false;
+                for (int attempt = 1; attempt <= MAX_ATTEMPTS && !done; attempt++) {
+                    if (attempt > 1) {
+                        mRetries.incrementAndGet();
+                    }
+                    try {
+                        if (session == null) {
+                            session = openSession();
+                        }
+                        if (session == null) {
+                            break;
+                        }
+                        transfer.transfer(session, item);
+                        done = true;
+                    } catch (SyncException e) {
+                        CLog.w(
+                                "%s of %s failed on device %s. Message: '%s'. Error code: %s",
+                                mName,
+                                item,
+                                mDevice.getSerialNumber(),
+                                e.getMessage(),
+                                e.getErrorCode());
+                        if (!isRetriable(e)) {
+                            break;
+                        }
+                        session = closeSession(session);
+                    } catch (IOException | TimeoutException | AdbCommandRejectedException e) {
+                        CLog.w(
+                                "%s of %s failed on device %s: %s",
+                                mName, item, mDevice.getSerialNumber(), e.toString());
+                        // The session is broken, retry on a new one.
+                        session = closeSession(session);
+                    } catch (RuntimeException e) {
+                        CLog.e(
+                                "%s of %s failed on device %s: %s",
+                                mName, item, mDevice.getSerialNumber(), e.toString());
+                        CLog.e(e);
+                        // Unexpected, so not retried, and the session is left in an unknown state.
+                        session = closeSession(session);
+                        break;
+                    }
+                }
+                if (!done) {
+                    failed.add(item);
+                }
+            }
+        } finally {
+            closeSession(session);
+        }
+    }
+
+    private SyncService openSession()
+            throws TimeoutException, IOException, AdbCommandRejectedException {
+        SyncService session = mDevice.getIDevice().getSyncService();
+        if (session == null) {
+            CLog.w("SyncService returned null for %s.", mDevice.getSerialNumber());
+        }
+        return session;
+    }
+
+    private SyncService closeSession(SyncService session) {
+        if (session != null) {
+            session.close();
+        }
+        return null;
+    }
+
+    /** Returns false for the errors that would happen again on a new session. */
+    private static boolean isRetriable(SyncException e) {
+        if (SyncError.NO_REMOTE_OBJECT.equals(e.getErrorCode())) {
+            return false;
+        }
+        return !(SyncError.TRANSFER_PROTOCOL_ERROR.equals(e.getErrorCode())
+                && e.getMessage() != null
+                && e.getMessage().contains("Permission denied"));
+    }
+
+    /** Returns the number of times a transfer was retried on a new sync session. */
+    long getRetries() {
+        return mRetries.get();
+    }
+}
@@ -100,6 +100,50 @@ public class TestDeviceOptions {
             + "to be available aka fully boot.")
     private long mAvailableTimeout = 6 * 60 * 1000;
 
+    @Option(
+            name = "shell-boot-detection",
+            description =
+                    "wait for the device boot completion with a single long-lived shell command "
+                            + "that returns as soon as the boot property is set, instead of "
+                            + "polling it.")
+    private boolean mShellBootDetection = false;
+
+    @Option(
+            name = "content-hash-sync",
+            description =
+                    "make syncFiles compare the content hash of the local and remote files instead "
+                            + "of their timestamps, and only push the files whose content changed.")
+    private boolean mContentHashSync = false;
+
+    @Option(
+            name = "persistent-shell",
+            description =
+                    "run the short shell commands whose output is collected on a shell kept open "
+                            + "on the device, instead of opening a new adb connection for each.")
+    private boolean mPersistentShell = false;
+
+    @Option(
+            name = "property-cache",
+            description =
+                    "cache the device properties on the host. Read-only properties are kept until "
+                            + "the device reboots, the other ones for property-cache-ttl.")
+    private boolean mPropertyCache = false;
+
+    @Option(
+            name = "property-cache-ttl",
+            description =
+                    "how long to cache the properties that are not read-only, 0 to not cache "
+                            + "them.",
+            isTimeVal = true)
+    private long mPropertyCacheTtl = 1000;
+
+    @Option(
+            name = "logcat-since-from-host",
+            description =
+                    "slice the logcat captured in background to get the logcat since a date, "
+                            + "instead of querying the device, when the capture covers the date.")
+    private boolean mLogcatSinceFromHost = false;
+
     @Option(name = "conn-check-url",
             description = "default URL to be used for connectivity checks.")
     private String mConnCheckUrl = "http://www.google.com";
@@ -373,6 +417,58 @@ public class TestDeviceOptions {
         return mAvailableTimeout;
     }
 
+    /**
+     * @return true if the boot completion should be detected with a long-lived shell command.
+     */
+    public boolean useShellBootDetection() {
+        return mShellBootDetection;
+    }
+
+    public void setShellBootDetection(boolean shellBootDetection) {
+        mShellBootDetection = shellBootDetection;
+    }
+
+    /** Returns true if syncFiles should compare the content hash of the files. */
+    public boolean useContentHashSync() {
+        return mContentHashSync;
+    }
+
+    public void setContentHashSync(boolean contentHashSync) {
+        mContentHashSync = contentHashSync;
+    }
+
+    /** Returns whether to run the short shell commands on a persistent shell. */
+    public boolean usePersistentShell() {
+        return mPersistentShell;
+    }
+
+    public void setPersistentShell(boolean persistentShell) {
+        mPersistentShell = persistentShell;
+    }
+
+    /** Returns whether to cache the device properties on the host. */
+    public boolean usePropertyCache() {
+        return mPropertyCache;
+    }
+
+    public void setPropertyCache(boolean propertyCache) {
+        mPropertyCache = propertyCache;
+    }
+
+    /** Returns how long in ms to cache the properties that are not read-only. */
+    public long getPropertyCacheTtl() {
+        return mPropertyCacheTtl;
+    }
+
+    /** Returns whether to get the logcat since a date from the logcat captured in background. */
+    public boolean useLogcatSinceFromHost() {
+        return mLogcatSinceFromHost;
+    }
+
+    public void setLogcatSinceFromHost(boolean logcatSinceFromHost) {
+        mLogcatSinceFromHost = logcatSinceFromHost;
+    }
+
     /**
      * @return the default URL to be used for connectivity tests.
      */
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * Watches the USB device nodes of a Linux host, the same nodes udev manages, and reports every
+ * device that is plugged, unplugged or re-enumerated, for example when rebooting into fastboot.
+ */
+class UsbDeviceWatcher extends Thread {
+
+    /** Directory holding one sub-directory of device nodes per USB bus. */
+    static final String USB_DEVICE_DIR = "/dev/bus/usb";
+
+    private final WatchService mWatchService;
+    private final Path mRoot;
+    private final Runnable mOnChange;
+    private volatile boolean mQuit = false;
+
+    private UsbDeviceWatcher(WatchService watchService, Path root, Runnable onChange) {
+        super("UsbDeviceWatcher");
+        setDaemon(true);
+        mWatchService = watchService;
+        mRoot = root;
+        mOnChange = onChange;
+    }
+
+    /**
+     * Create a watcher of the USB device nodes.
+     *
+     * @param onChange called on the watcher thread whenever a USB device node is added or removed.
+     * @return the watcher, not started, or null if the host does not support watching USB devices.
+     */
+    static UsbDeviceWatcher create(Runnable onChange) {
+        return create(new File(USB_DEVICE_DIR), onChange);
+    }
+
+    static UsbDeviceWatcher create(File usbDeviceDir, Runnable onChange) {
+        String osName = System.getProperty("os.name", "");
+        if (!osName.startsWith("Linux") || !usbDeviceDir.isDirectory()) {
+            return null;
+        }
+        WatchService watchService = null;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            Path root = usbDeviceDir.toPath();
+            register(watchService, root);
+            File[] buses = usbDeviceDir.listFiles();
+            if (buses != null) {
+                for (File bus : buses) {
+                    if (bus.isDirectory()) {
+                        register(watchService, bus.toPath());
+                    }
+                }
+            }
+            return new UsbDeviceWatcher(watchService, root, onChange);
+        } catch (IOException | UnsupportedOperationException e) {
+            CLog.w("Cannot watch USB devices in %s: %s", usbDeviceDir, e.toString());
+            if (watchService != null) {
+                try {
+                    watchService.close();
+                } catch (IOException closeError) {
+                    // ignore
+                }
+            }
+            return null;
+        }
+    }
+
+    private static void register(WatchService watchService, Path dir) throws IOException {
+        dir.register(
+                watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    @Override
+    public void run() {
+        while (!mQuit) {
+            WatchKey key;
+            try {
+                key = mWatchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (dir.equals(mRoot)
+                        && event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                        && event.context() instanceof Path) {
+                    // A new bus, watch its devices too.
+                    Path bus = dir.resolve((Path) event.context());
+                    try {
+                        register(mWatchService, bus);
+                    } catch (IOException e) {
+                        CLog.w("Cannot watch USB bus %s: %s", bus, e.toString());
+                    }
+                }
+            }
+            key.reset();
+            mOnChange.run();
+        }
+    }
+
+    /** Stop watching. */
+    void terminate() {
+        mQuit = true;
+        try {
+            mWatchService.close();
+        } catch (IOException e) {
+            CLog.w("Failed to close USB device watch: %s", e.toString());
+        }
+        interrupt();
+    }
+}
@@ -65,6 +65,14 @@ public abstract class FilePullerDeviceMetricCollector extends BaseDeviceMetricCo
     )
     private boolean mCollectOnRunEndedOnly = false;
 
+    @Option(
+        name = "pull-directory-with-tar",
+        description =
+                "Whether to archive the directories with tar on the device and pull them as a "
+                        + "single file. Faster for directories with many small files."
+    )
+    private boolean mPullDirectoryWithTar = false;
+
     @Override
     public void onTestEnd(DeviceMetricData testData,
             Map<String, Metric> currentTestCaseMetrics) {
@@ -178,7 +186,7 @@ public abstract class FilePullerDeviceMetricCollector extends BaseDeviceMetricCo
             File tmpDestDir = FileUtil.createTempDir("host_tmp");
             for (ITestDevice device : getDevices()) {
                 try {
-                    if (device.pullDir(keyDirectory, tmpDestDir)) {
+                    if (device.bulkPullDir(keyDirectory, tmpDestDir, mPullDirectoryWithTar)) {
                         if (mCleanUp) {
                             device.deleteFile(keyDirectory);
                         }
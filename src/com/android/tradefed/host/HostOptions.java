@@ -16,6 +16,7 @@
 
 package com.android.tradefed.host;
 
+import com.android.tradefed.build.FileDownloadCoordinator;
 import com.android.tradefed.config.ConfigurationException;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
@@ -55,6 +56,22 @@ public class HostOptions implements IHostOptions {
             + "filesystem.")
     private File mDownloadCacheDir = new File(System.getProperty("java.io.tmpdir"), "lc_cache");
 
+    @Option(
+        name = "chunked-download-threads",
+        description =
+                "The maximum number of chunks of a large file downloaded in parallel by the "
+                        + "download cache. Set to 1 to download each file as a whole."
+    )
+    private Integer mChunkedDownloadThreads = FileDownloadCoordinator.DEFAULT_PARALLELISM;
+
+    @Option(
+        name = "chunked-download-chunk-size",
+        description =
+                "The size in bytes of the chunks of a file downloaded in parallel. Only files "
+                        + "larger than one chunk are downloaded as chunks."
+    )
+    private Long mChunkedDownloadChunkSize = FileDownloadCoordinator.DEFAULT_CHUNK_SIZE;
+
     @Option(name = "use-sso-client", description = "Use a SingleSignOn client for HTTP requests.")
     private Boolean mUseSsoClient = true;
 
@@ -91,6 +108,18 @@ public class HostOptions implements IHostOptions {
         return mDownloadCacheDir;
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public Integer getChunkedDownloadThreads() {
+        return mChunkedDownloadThreads;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Long getChunkedDownloadChunkSize() {
+        return mChunkedDownloadChunkSize;
+    }
+
     /** {@inheritDoc} */
     @Override
     public Boolean shouldUseSsoClient() {
@@ -48,6 +48,15 @@ public interface IHostOptions {
     /** Returns the path used for storing downloaded artifacts. */
     File getDownloadCacheDir();
 
+    /**
+     * Returns the max number of chunks of a file downloaded in parallel by the download cache. 1
+     * disables the chunked downloads.
+     */
+    Integer getChunkedDownloadThreads();
+
+    /** Returns the size in bytes of the chunks of a file downloaded in parallel. */
+    Long getChunkedDownloadChunkSize();
+
     /** Check if it should use the SingleSignOn client or not. */
     Boolean shouldUseSsoClient();
 
@@ -67,8 +67,7 @@ public class GCSHostResourceManager extends LocalHostResourceManager {
     IFileDownloader getGCSFileDownloader() {
         if (mFileDownloader == null) {
             mFileDownloader =
-                    new FileDownloadCacheWrapper(
-                            getHostOptions().getDownloadCacheDir(), new GCSFileDownloader());
+                    new FileDownloadCacheWrapper(getHostOptions(), new GCSFileDownloader());
         }
         return mFileDownloader;
     }
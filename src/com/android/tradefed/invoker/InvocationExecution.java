@@ -67,8 +67,13 @@ import com.google.common.base.Strings;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 /**
@@ -79,6 +84,10 @@ import java.util.stream.Collectors;
 public class InvocationExecution implements IInvocationExecution {
 
     public static final String ADB_VERSION_KEY = "adb_version";
+    /** Build attribute holding the time in ms to fetch the build in parallel setup mode. */
+    public static final String FETCH_BUILD_TIME_ATTRIBUTE = "parallel_fetch_build_time_ms";
+    /** Build attribute holding the time in ms to set up the device in parallel setup mode. */
+    public static final String SETUP_TIME_ATTRIBUTE = "parallel_setup_time_ms";
 
     @Override
     public boolean fetchBuild(
@@ -87,58 +96,129 @@ public class InvocationExecution implements IInvocationExecution {
             IRescheduler rescheduler,
             ITestInvocationListener listener)
             throws DeviceNotAvailableException, BuildRetrievalError {
-        String currentDeviceName = null;
-        try {
-            updateInvocationContext(context, config);
-            // TODO: evaluate fetching build in parallel
+        updateInvocationContext(context, config);
+        if (shouldRunInParallel(context, config)) {
+            if (!fetchBuildsInParallel(context, config)) {
+                return false;
+            }
+        } else {
             for (String deviceName : context.getDeviceConfigNames()) {
-                currentDeviceName = deviceName;
-                IBuildInfo info = null;
-                ITestDevice device = context.getDevice(deviceName);
-                IDeviceConfiguration deviceConfig = config.getDeviceConfigByName(deviceName);
-                IBuildProvider provider = deviceConfig.getBuildProvider();
-                // Inject the context to the provider if it can receive it
-                if (provider instanceof IInvocationContextReceiver) {
-                    ((IInvocationContextReceiver) provider).setInvocationContext(context);
-                }
-                // Get the build
-                if (provider instanceof IDeviceBuildProvider) {
-                    // Download a device build if the provider can handle it.
-                    info = ((IDeviceBuildProvider) provider).getBuild(device);
-                } else {
-                    info = provider.getBuild();
-                }
-                if (info != null) {
-                    info.setDeviceSerial(device.getSerialNumber());
-                    context.addDeviceBuildInfo(deviceName, info);
-                    device.setRecovery(deviceConfig.getDeviceRecovery());
-                } else {
-                    CLog.logAndDisplay(
-                            LogLevel.WARN,
-                            "No build found to test for device: %s",
-                            device.getSerialNumber());
-                    IBuildInfo notFoundStub = new BuildInfo();
-                    updateBuild(notFoundStub, config);
-                    context.addDeviceBuildInfo(currentDeviceName, notFoundStub);
+                if (!fetchDeviceBuild(context, config, deviceName)) {
                     return false;
                 }
-                // TODO: remove build update when reporting is done on context
-                updateBuild(info, config);
-                info.setTestResourceBuild(config.isDeviceConfiguredFake(currentDeviceName));
             }
+        }
+        createSharedResources(context);
+        setAdbVersion(context);
+        return true;
+    }
+
+    /**
+     * Fetch the build of one device and add it to the context.
+     *
+     * @return false if no build was found for the device.
+     */
+    private boolean fetchDeviceBuild(
+            IInvocationContext context, IConfiguration config, String deviceName)
+            throws DeviceNotAvailableException, BuildRetrievalError {
+        try {
+            IBuildInfo info = null;
+            ITestDevice device = context.getDevice(deviceName);
+            IDeviceConfiguration deviceConfig = config.getDeviceConfigByName(deviceName);
+            IBuildProvider provider = deviceConfig.getBuildProvider();
+            // Inject the context to the provider if it can receive it
+            if (provider instanceof IInvocationContextReceiver) {
+                ((IInvocationContextReceiver) provider).setInvocationContext(context);
+            }
+            // Get the build
+            if (provider instanceof IDeviceBuildProvider) {
+                // Download a device build if the provider can handle it.
+                info = ((IDeviceBuildProvider) provider).getBuild(device);
+            } else {
+                info = provider.getBuild();
+            }
+            if (info != null) {
+                info.setDeviceSerial(device.getSerialNumber());
+                addDeviceBuildInfo(context, deviceName, info);
+                device.setRecovery(deviceConfig.getDeviceRecovery());
+            } else {
+                CLog.logAndDisplay(
+                        LogLevel.WARN,
+                        "No build found to test for device: %s",
+                        device.getSerialNumber());
+                IBuildInfo notFoundStub = new BuildInfo();
+                updateBuild(notFoundStub, config);
+                addDeviceBuildInfo(context, deviceName, notFoundStub);
+                return false;
+            }
+            // TODO: remove build update when reporting is done on context
+            updateBuild(info, config);
+            info.setTestResourceBuild(config.isDeviceConfiguredFake(deviceName));
+            return true;
         } catch (BuildRetrievalError e) {
             CLog.e(e);
-            if (currentDeviceName != null) {
-                IBuildInfo errorBuild = e.getBuildInfo();
-                updateBuild(errorBuild, config);
-                context.addDeviceBuildInfo(currentDeviceName, errorBuild);
+            IBuildInfo errorBuild = e.getBuildInfo();
+            updateBuild(errorBuild, config);
+            addDeviceBuildInfo(context, deviceName, errorBuild);
+            synchronized (context) {
                 updateInvocationContext(context, config);
             }
             throw e;
         }
-        createSharedResources(context);
-        setAdbVersion(context);
-        return true;
+    }
+
+    /**
+     * Fetch the builds of all the devices in parallel, honoring the parallel setup dependencies.
+     *
+     * @return false if no build was found for one of the devices.
+     */
+    private boolean fetchBuildsInParallel(IInvocationContext context, IConfiguration config)
+            throws DeviceNotAvailableException, BuildRetrievalError {
+        Set<String> notFound = Collections.synchronizedSet(new HashSet<>());
+        Map<String, Long> durations;
+        try {
+            durations =
+                    createParallelDeviceTasks(context, config)
+                            .run(
+                                    "Fetch build",
+                                    deviceName -> {
+                                        if (!fetchDeviceBuild(context, config, deviceName)) {
+                                            notFound.add(deviceName);
+                                        }
+                                    });
+        } catch (DeviceNotAvailableException | BuildRetrievalError | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        for (Entry<String, Long> duration : durations.entrySet()) {
+            IBuildInfo info = context.getBuildInfo(duration.getKey());
+            if (info != null) {
+                info.addBuildAttribute(FETCH_BUILD_TIME_ATTRIBUTE, duration.getValue().toString());
+            }
+        }
+        return notFound.isEmpty();
+    }
+
+    /** Add a build to the context, which may be done from several threads in parallel mode. */
+    private static void addDeviceBuildInfo(
+            IInvocationContext context, String deviceName, IBuildInfo info) {
+        synchronized (context) {
+            context.addDeviceBuildInfo(deviceName, info);
+        }
+    }
+
+    /** Returns true if the per device fetch and setup should be done in parallel. */
+    private boolean shouldRunInParallel(IInvocationContext context, IConfiguration config) {
+        return config.getCommandOptions().shouldUseParallelSetup()
+                && context.getDeviceConfigNames().size() > 1;
+    }
+
+    private ParallelDeviceTasks createParallelDeviceTasks(
+            IInvocationContext context, IConfiguration config) {
+        return new ParallelDeviceTasks(
+                context.getDeviceConfigNames(),
+                config.getCommandOptions().getParallelSetupDependencies());
     }
 
     @Override
@@ -186,32 +266,12 @@ public class InvocationExecution implements IInvocationExecution {
                     context,
                     "multi pre target preparer setup");
 
-            // TODO: evaluate doing device setup in parallel
-            for (String deviceName : context.getDeviceConfigNames()) {
-                ITestDevice device = context.getDevice(deviceName);
-                CLog.d("Starting setup for device: '%s'", device.getSerialNumber());
-                if (device instanceof ITestLoggerReceiver) {
-                    ((ITestLoggerReceiver) context.getDevice(deviceName)).setTestLogger(listener);
+            if (shouldRunInParallel(context, config)) {
+                setUpDevicesInParallel(context, config, listener);
+            } else {
+                for (String deviceName : context.getDeviceConfigNames()) {
+                    setUpDevice(context, config, deviceName, listener);
                 }
-                for (ITargetPreparer preparer :
-                        config.getDeviceConfigByName(deviceName).getTargetPreparers()) {
-                    // do not call the preparer if it was disabled
-                    if (preparer.isDisabled()) {
-                        CLog.d("%s has been disabled. skipping.", preparer);
-                        continue;
-                    }
-                    if (preparer instanceof ITestLoggerReceiver) {
-                        ((ITestLoggerReceiver) preparer).setTestLogger(listener);
-                    }
-                    CLog.d(
-                            "starting preparer '%s' on device: '%s'",
-                            preparer, device.getSerialNumber());
-                    preparer.setUp(device, context.getBuildInfo(deviceName));
-                    CLog.d(
-                            "done with preparer '%s' on device: '%s'",
-                            preparer, device.getSerialNumber());
-                }
-                CLog.d("Done with setup of device: '%s'", device.getSerialNumber());
             }
             // After all the individual setup, make the multi-devices setup
             runMultiTargetPreparers(
@@ -232,6 +292,72 @@ public class InvocationExecution implements IInvocationExecution {
         }
     }
 
+    /** Run the target preparers of one device. */
+    private void setUpDevice(
+            IInvocationContext context,
+            IConfiguration config,
+            String deviceName,
+            ITestLogger logger)
+            throws TargetSetupError, BuildError, DeviceNotAvailableException {
+        ITestDevice device = context.getDevice(deviceName);
+        CLog.d("Starting setup for device: '%s'", device.getSerialNumber());
+        if (device instanceof ITestLoggerReceiver) {
+            ((ITestLoggerReceiver) context.getDevice(deviceName)).setTestLogger(logger);
+        }
+        for (ITargetPreparer preparer :
+                config.getDeviceConfigByName(deviceName).getTargetPreparers()) {
+            // do not call the preparer if it was disabled
+            if (preparer.isDisabled()) {
+                CLog.d("%s has been disabled. skipping.", preparer);
+                continue;
+            }
+            if (preparer instanceof ITestLoggerReceiver) {
+                ((ITestLoggerReceiver) preparer).setTestLogger(logger);
+            }
+            CLog.d("starting preparer '%s' on device: '%s'", preparer, device.getSerialNumber());
+            preparer.setUp(device, context.getBuildInfo(deviceName));
+            CLog.d("done with preparer '%s' on device: '%s'", preparer, device.getSerialNumber());
+        }
+        CLog.d("Done with setup of device: '%s'", device.getSerialNumber());
+    }
+
+    /**
+     * Run the target preparers of all the devices in parallel, honoring the parallel setup
+     * dependencies. The setup time of each device is added to its build attributes.
+     */
+    private void setUpDevicesInParallel(
+            IInvocationContext context,
+            IConfiguration config,
+            ITestInvocationListener listener)
+            throws TargetSetupError, BuildError, DeviceNotAvailableException {
+        // Preparers of different devices may log at the same time.
+        ITestLogger logger =
+                (dataName, dataType, dataStream) -> {
+                    synchronized (listener) {
+                        listener.testLog(dataName, dataType, dataStream);
+                    }
+                };
+        Map<String, Long> durations;
+        try {
+            durations =
+                    createParallelDeviceTasks(context, config)
+                            .run(
+                                    "Setup",
+                                    deviceName -> setUpDevice(context, config, deviceName, logger));
+        } catch (TargetSetupError
+                | BuildError
+                | DeviceNotAvailableException
+                | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        for (Entry<String, Long> duration : durations.entrySet()) {
+            context.getBuildInfo(duration.getKey())
+                    .addBuildAttribute(SETUP_TIME_ATTRIBUTE, duration.getValue().toString());
+        }
+    }
+
     /** {@inheritDoc} */
     @Override
     public final void runDevicePreInvocationSetup(
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.MultiMap;
+import com.android.tradefed.util.TimeUtil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs one task per device of a multi-device invocation in parallel, for example the build fetch
+ * or the target preparers of each device.
+ *
+ * <p>A device can depend on other devices, in which case its task only starts once the tasks of
+ * these devices succeeded, and is skipped if one of them failed. Errors are reported in the order
+ * of the devices in the configuration, whatever the order in which the tasks failed.
+ */
+class ParallelDeviceTasks {
+
+    /** A task to run for one device. */
+    interface IDeviceTask {
+        void run(String deviceName) throws Exception;
+    }
+
+    private final List<String> mDeviceNames;
+    private final MultiMap<String, String> mDependencies;
+
+    /**
+     * Creates a {@link ParallelDeviceTasks}.
+     *
+     * @param deviceNames the names of the devices, in the configuration order.
+     * @param dependencies for each device name, the names of the devices whose task must succeed
+     *     before its own task starts.
+     * @throws IllegalArgumentException if a dependency refers to an unknown device or if the
+     *     dependencies are cyclic.
+     */
+    ParallelDeviceTasks(List<String> deviceNames, MultiMap<String, String> dependencies) {
+        mDeviceNames = new ArrayList<>(deviceNames);
+        mDependencies = dependencies == null ? new MultiMap<>() : dependencies;
+        validateDependencies();
+    }
+
+    private void validateDependencies() {
+        for (String deviceName : mDependencies.keySet()) {
+            List<String> names = new ArrayList<>(mDependencies.get(deviceName));
+            names.add(deviceName);
+            for (String name : names) {
+                if (!mDeviceNames.contains(name)) {
+                    throw new IllegalArgumentException(
+                            String.format(
+                                    "Parallel setup dependency refers to unknown device '%s'",
+                                    name));
+                }
+            }
+        }
+        // Every device must be reachable once its dependencies are done.
+        List<String> ordered = new ArrayList<>();
+        boolean progress = true;
+        while (progress && ordered.size() < mDeviceNames.size()) {
+            progress = false;
+            for (String deviceName : mDeviceNames) {
+                if (!ordered.contains(deviceName) && ordered.containsAll(getDeps(deviceName))) {
+                    ordered.add(deviceName);
+                    progress = true;
+                }
+            }
+        }
+        if (ordered.size() < mDeviceNames.size()) {
+            List<String> cyclic = new ArrayList<>(mDeviceNames);
+            cyclic.removeAll(ordered);
+            throw new IllegalArgumentException(
+                    String.format("Cyclic parallel setup dependencies between %s", cyclic));
+        }
+    }
+
+    private List<String> getDeps(String deviceName) {
+        List<String> deps = mDependencies.get(deviceName);
+        return deps == null ? new ArrayList<>() : deps;
+    }
+
+    /**
+     * Run the task of every device, and wait for all of them to complete.
+     *
+     * @param description the name of the task, for logging.
+     * @param task the task to run for each device.
+     * @return the duration in ms of each task that ran, by device name in the configuration order.
+     * @throws Exception the error of the first device in the configuration order that failed,
+     *     with the errors of the other devices attached as suppressed exceptions.
+     */
+    Map<String, Long> run(String description, IDeviceTask task) throws Exception {
+        Map<String, Long> durations = new ConcurrentHashMap<>();
+        Map<String, Exception> errors = new ConcurrentHashMap<>();
+        Map<String, ExecutorService> executors = new HashMap<>();
+        for (String deviceName : mDeviceNames) {
+            executors.put(
+                    deviceName,
+                    Executors.newSingleThreadExecutor(
+                            r -> {
+                                Thread t = new Thread(r, "ParallelDeviceTasks-" + deviceName);
+                                t.setDaemon(true);
+                                return t;
+                            }));
+        }
+        Map<String, CompletableFuture<Void>> futures = new HashMap<>();
+        try {
+            // Dependencies are always created before the devices depending on them.
+            List<String> pending = new ArrayList<>(mDeviceNames);
+            while (!pending.isEmpty()) {
+                for (String deviceName : new ArrayList<>(pending)) {
+                    List<String> deps = getDeps(deviceName);
+                    if (!futures.keySet().containsAll(deps)) {
+                        continue;
+                    }
+                    CompletableFuture<?>[] depFutures =
+                            deps.stream().map(futures::get).toArray(CompletableFuture<?>[]::new);
+                    futures.put(
+                            deviceName,
+                            CompletableFuture.allOf(depFutures)
+                                    .thenRunAsync(
+                                            () ->
+                                                    runTask(
+                                                            description,
+                                                            deviceName,
+                                                            task,
+                                                            durations,
+                                                            errors),
+                                            executors.get(deviceName)));
+                    pending.remove(deviceName);
+                }
+            }
+            for (CompletableFuture<Void> future : futures.values()) {
+                try {
+                    future.get();
+                } catch (ExecutionException | CancellationException e) {
+                    // Failures are collected by runTask, and skipped devices are reported below.
+                }
+            }
+        } catch (InterruptedException e) {
+            CLog.w("Interrupted while waiting for the %s of the devices.", description);
+            for (CompletableFuture<Void> future : futures.values()) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw e;
+        } finally {
+            // Interrupts the tasks still running.
+            for (ExecutorService executor : executors.values()) {
+                executor.shutdownNow();
+            }
+        }
+
+        Map<String, Long> orderedDurations = new LinkedHashMap<>();
+        Exception firstError = null;
+        for (String deviceName : mDeviceNames) {
+            if (durations.containsKey(deviceName)) {
+                orderedDurations.put(deviceName, durations.get(deviceName));
+            }
+            Exception error = errors.get(deviceName);
+            if (error == null) {
+                if (!durations.containsKey(deviceName)) {
+                    CLog.w(
+                            "Skipped %s of device '%s': a dependency failed.",
+                            description, deviceName);
+                }
+                continue;
+            }
+            if (firstError == null) {
+                firstError = error;
+            } else {
+                firstError.addSuppressed(error);
+            }
+        }
+        if (firstError != null) {
+            throw firstError;
+        }
+        return orderedDurations;
+    }
+
+    private void runTask(
+            String description,
+            String deviceName,
+            IDeviceTask task,
+            Map<String, Long> durations,
+            Map<String, Exception> errors) {
+        long start = System.currentTimeMillis();
+        try {
+            task.run(deviceName);
+        } catch (Exception e) {
+            CLog.e("%s of device '%s' failed.", description, deviceName);
+            CLog.e(e);
+            errors.put(deviceName, e);
+            throw new RuntimeException(e);
+        } finally {
+            long duration = System.currentTimeMillis() - start;
+            durations.put(deviceName, duration);
+            CLog.d(
+                    "%s of device '%s' took %s",
+                    description, deviceName, TimeUtil.formatElapsedTime(duration));
+        }
+    }
+}
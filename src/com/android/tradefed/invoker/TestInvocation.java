@@ -619,9 +619,17 @@ public class TestInvocation implements ITestInvocation {
                 new ArrayList<>(config.getTestInvocationListeners().size() + extraListeners.length);
         allListeners.addAll(config.getTestInvocationListeners());
         allListeners.addAll(Arrays.asList(extraListeners));
-        ITestInvocationListener listener = null;
+        boolean asyncReporting = config.getCommandOptions().shouldUseAsyncResultReporting();
+        LogSaverResultForwarder listener = null;
         if (!config.getPostProcessors().isEmpty()) {
-            ITestInvocationListener forwarder = new ResultAndLogForwarder(allListeners);
+            ResultAndLogForwarder reporters = new ResultAndLogForwarder(allListeners);
+            if (asyncReporting) {
+                // The post-processors are the only listener of the log saver forwarder, the
+                // reporters are dispatched to past them.
+                reporters.enableAsyncDispatch(
+                        config.getCommandOptions().getAsyncResultQueueSize());
+            }
+            ITestInvocationListener forwarder = reporters;
             // Post-processors are the first layer around the final reporters.
             for (IPostProcessor postProcessor : config.getPostProcessors()) {
                 if (postProcessor.isDisabled()) {
@@ -633,6 +641,9 @@ public class TestInvocation implements ITestInvocation {
             listener = new LogSaverResultForwarder(config.getLogSaver(), Arrays.asList(forwarder));
         } else {
             listener = new LogSaverResultForwarder(config.getLogSaver(), allListeners);
+            if (asyncReporting) {
+                listener.enableAsyncDispatch(config.getCommandOptions().getAsyncResultQueueSize());
+            }
         }
 
         RunMode mode = RunMode.REGULAR;
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import com.android.ddmlib.Log.LogLevel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes log records to an {@link OutputStream} on a background thread, so that logging threads
+ * only copy their records to a bounded buffer instead of waiting for the disk.
+ *
+ * <p>The writer thread drains the buffer in batches. When the buffer is full, the logging threads
+ * either wait for room or drop their records, in which case the number of dropped records is
+ * written to the log.
+ *
+ * <p>Does not log through {@link LogUtil.CLog} since it is the underlying writer of the loggers.
+ */
+class AsyncLogWriter {
+
+    /** Maximum number of records written per batch. */
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    /** Time between the checks that the writer thread is still running, when waiting for room. */
+    private static final long OFFER_TIMEOUT_MS = 100;
+
+    /** Record asking the writer thread to stop. */
+    private static final byte[] CLOSE_RECORD = new byte[0];
+
+    private final OutputStream mOutput;
+    private final BlockingQueue<byte[]> mBuffer;
+    private final boolean mBlockWhenFull;
+    private final Thread mWriterThread;
+
+    private final AtomicLong mDroppedRecords = new AtomicLong();
+    private final AtomicLong mQueuedRecords = new AtomicLong();
+    /** Guarded by {@code this}, notified when records are written or failed to be. */
+    private long mWrittenRecords = 0;
+    private long mReportedDroppedRecords = 0;
+    private volatile boolean mClosed = false;
+
+    /**
+     * Creates an {@link AsyncLogWriter} and starts its writer thread.
+     *
+     * @param output the stream to write the records to. Must be thread safe for the callers of
+     *     {@link #flush()} writing to it directly.
+     * @param capacity the maximum number of records waiting to be written.
+     * @param blockWhenFull whether to wait when the buffer is full, or to drop the record.
+     * @param name the name of the writer thread.
+     */
+    AsyncLogWriter(OutputStream output, int capacity, boolean blockWhenFull, String name) {
+        mOutput = output;
+        mBuffer = new ArrayBlockingQueue<>(capacity);
+        mBlockWhenFull = blockWhenFull;
+        mWriterThread = new Thread(this::writeRecords, name);
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    /** Queues a record to be written. */
+    void write(byte[] record) {
+        if (mClosed) {
+            return;
+        }
+        if (mBlockWhenFull) {
+            if (!offer(record)) {
+                mDroppedRecords.incrementAndGet();
+                return;
+            }
+        } else if (!mBuffer.offer(record)) {
+            mDroppedRecords.incrementAndGet();
+            return;
+        }
+        mQueuedRecords.incrementAndGet();
+    }
+
+    /**
+     * Waits for room in the buffer to queue a record.
+     *
+     * @return false if the record could not be queued because the writer thread stopped.
+     */
+    private boolean offer(byte[] record) {
+        try {
+            while (!mBuffer.offer(record, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                if (!mWriterThread.isAlive()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Waits until the records queued before the call are written to the stream, and flushes it.
+     */
+    void flush() {
+        long queued = mQueuedRecords.get();
+        synchronized (this) {
+            while (mWrittenRecords < queued && mWriterThread.isAlive()) {
+                try {
+                    wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        try {
+            mOutput.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Writes the queued records and stops the writer thread. */
+    void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        if (!offer(CLOSE_RECORD)) {
+            return;
+        }
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Returns the number of records dropped because the buffer was full. */
+    long getDroppedRecords() {
+        return mDroppedRecords.get();
+    }
+
+    private void writeRecords() {
+        List<byte[]> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        boolean closing = false;
+        while (!closing) {
+            try {
+                batch.add(mBuffer.take());
+            } catch (InterruptedException e) {
+                // Only stopped by close()
+                continue;
+            }
+            mBuffer.drainTo(batch, MAX_BATCH_SIZE - 1);
+            closing = batch.remove(CLOSE_RECORD);
+            try {
+                writeDroppedRecords();
+                for (byte[] record : batch) {
+                    mOutput.write(record);
+                }
+            } catch (IOException | RuntimeException e) {
+                // Keep running, the producers would otherwise wait for room forever.
+                e.printStackTrace();
+            }
+            int written = batch.size();
+            batch.clear();
+            synchronized (this) {
+                mWrittenRecords += written;
+                notifyAll();
+            }
+        }
+    }
+
+    private void writeDroppedRecords() throws IOException {
+        long dropped = mDroppedRecords.get();
+        if (dropped > mReportedDroppedRecords) {
+            String message =
+                    LogUtil.getLogFormatString(
+                            LogLevel.WARN,
+                            "AsyncLogWriter",
+                            String.format(
+                                    "%d log lines dropped, the log buffer was full.",
+                                    dropped - mReportedDroppedRecords));
+            mOutput.write(message.getBytes());
+            mReportedDroppedRecords = dropped;
+        }
+    }
+}
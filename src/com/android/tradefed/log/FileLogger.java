@@ -58,7 +58,36 @@ public class FileLogger extends BaseLeveledLogOutput {
     @Option(name = "max-log-size", description = "maximum allowable size of tmp log data in mB.")
     private long mMaxLogSizeMbytes = 20;
 
+    /** What to do with the log lines when the buffer of the asynchronous writer is full. */
+    public enum OverflowPolicy {
+        /** Wait until the writer makes room in the buffer. */
+        BLOCK,
+        /** Drop the line, the number of dropped lines is written to the log. */
+        DROP,
+    }
+
+    @Option(
+        name = "async-write",
+        description =
+                "write the log file on a background thread, the logging threads only add their "
+                        + "lines to a buffer."
+    )
+    private boolean mAsyncWrite = false;
+
+    @Option(
+        name = "async-buffer-size",
+        description = "maximum number of log lines waiting to be written with async-write."
+    )
+    private int mAsyncBufferSize = 8192;
+
+    @Option(
+        name = "async-overflow-policy",
+        description = "what to do with the log lines when the buffer of async-write is full."
+    )
+    private OverflowPolicy mAsyncOverflowPolicy = OverflowPolicy.BLOCK;
+
     private SizeLimitedOutputStream mLogStream;
+    private AsyncLogWriter mAsyncWriter;
 
     public FileLogger() {
     }
@@ -80,6 +109,14 @@ public class FileLogger extends BaseLeveledLogOutput {
     protected void init(String logPrefix, String fileSuffix) {
         mLogStream =
                 new SizeLimitedOutputStream(mMaxLogSizeMbytes * 1024 * 1024, logPrefix, fileSuffix);
+        if (mAsyncWrite) {
+            mAsyncWriter =
+                    new AsyncLogWriter(
+                            mLogStream,
+                            mAsyncBufferSize,
+                            OverflowPolicy.BLOCK.equals(mAsyncOverflowPolicy),
+                            "FileLogger-writer-" + logPrefix);
+        }
     }
 
     /**
@@ -139,7 +176,10 @@ public class FileLogger extends BaseLeveledLogOutput {
      * @throws IOException
      */
     void writeToLog(String outMessage) throws IOException {
-        if (mLogStream != null) {
+        AsyncLogWriter asyncWriter = mAsyncWriter;
+        if (asyncWriter != null) {
+            asyncWriter.write(outMessage.getBytes());
+        } else if (mLogStream != null) {
             mLogStream.write(outMessage.getBytes());
         }
     }
@@ -190,6 +230,7 @@ public class FileLogger extends BaseLeveledLogOutput {
     public InputStreamSource getLog() {
         if (mLogStream != null) {
             try {
+                flushAsyncWriter();
                 // create a InputStream from log file
                 mLogStream.flush();
                 return new SnapshotInputStreamSource("FileLogger", mLogStream.getData());
@@ -215,6 +256,11 @@ public class FileLogger extends BaseLeveledLogOutput {
      * Exposed for unit testing.
      */
     void doCloseLog() {
+        AsyncLogWriter asyncWriter = mAsyncWriter;
+        mAsyncWriter = null;
+        if (asyncWriter != null) {
+            asyncWriter.close();
+        }
         SizeLimitedOutputStream stream = mLogStream;
         mLogStream = null;
         StreamUtil.flushAndCloseStream(stream);
@@ -231,10 +277,19 @@ public class FileLogger extends BaseLeveledLogOutput {
      */
     void dumpToLog(InputStream inputStream) throws IOException {
         if (mLogStream != null) {
+            flushAsyncWriter();
             StreamUtil.copyStreams(inputStream, mLogStream);
         }
     }
 
+    /** Waits for the lines logged so far to be written, when writing asynchronously. */
+    private void flushAsyncWriter() {
+        AsyncLogWriter asyncWriter = mAsyncWriter;
+        if (asyncWriter != null) {
+            asyncWriter.flush();
+        }
+    }
+
     private boolean shouldWrite(String tag, LogLevel messageLogLevel, LogLevel invocationLogLevel) {
         LogLevel forcedLevel = FORCED_LOG_LEVEL.get(tag);
         if (forcedLevel == null) {
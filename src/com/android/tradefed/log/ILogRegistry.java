@@ -96,4 +96,14 @@ public interface ILogRegistry extends ILogOutput {
     /** Diagnosis method to dump all logs to files. */
     public void dumpLogs();
 
+    /**
+     * Returns whether a message at the given level would be printed by the logger of the current
+     * thread.
+     *
+     * @param logLevel the {@link LogLevel} of the message.
+     */
+    public default boolean isLoggable(LogLevel logLevel) {
+        return true;
+    }
+
 }
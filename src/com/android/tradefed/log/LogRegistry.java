@@ -26,9 +26,10 @@ import java.io.InputStream;
 import java.text.SimpleDateFormat;
 import java.util.Collection;
 import java.util.Date;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A {@link ILogRegistry} implementation that multiplexes and manages different loggers,
@@ -44,10 +45,26 @@ public class LogRegistry implements ILogRegistry {
     private static final String GLOBAL_LOG_PREFIX = "tradefed_global_log_";
     private static final String HISTORY_LOG_PREFIX = "tradefed_history_log_";
     private static LogRegistry mLogRegistry = null;
-    private Map<ThreadGroup, ILeveledLogOutput> mLogTable = new Hashtable<>();
+    private Map<ThreadGroup, ILeveledLogOutput> mLogTable = new ConcurrentHashMap<>();
+    /** Incremented when the loggers change, to invalidate the loggers cached by the threads. */
+    private final AtomicLong mLogTableVersion = new AtomicLong();
+    private final ThreadLocal<CachedLogger> mCachedLogger = new ThreadLocal<>();
     private FileLogger mGlobalLogger;
     private HistoryLogger mHistoryLogger;
 
+    /** The logger of a thread, valid as long as the loggers do not change. */
+    private static class CachedLogger {
+        final ThreadGroup mThreadGroup;
+        final ILeveledLogOutput mLog;
+        final long mVersion;
+
+        CachedLogger(ThreadGroup threadGroup, ILeveledLogOutput log, long version) {
+            mThreadGroup = threadGroup;
+            mLog = log;
+            mVersion = version;
+        }
+    }
+
     /**
      * Package-private constructor; callers should use {@link #getLogRegistry} to get an instance of
      * the {@link LogRegistry}.
@@ -107,6 +124,7 @@ public class LogRegistry implements ILogRegistry {
     public void registerLogger(ILeveledLogOutput log) {
         synchronized (mLogTable) {
             ILeveledLogOutput oldValue = mLogTable.put(getCurrentThreadGroup(), log);
+            mLogTableVersion.incrementAndGet();
             if (oldValue != null) {
                 Log.e(LOG_TAG, "Registering a new logger when one already exists for this thread!");
                 oldValue.closeLog();
@@ -123,6 +141,7 @@ public class LogRegistry implements ILogRegistry {
         if (currentThreadGroup != null) {
             synchronized (mLogTable) {
                 mLogTable.remove(currentThreadGroup);
+                mLogTableVersion.incrementAndGet();
             }
         } else {
             printLog(LogLevel.ERROR, LOG_TAG, "Unregistering when thread has no logger "
@@ -167,6 +186,12 @@ public class LogRegistry implements ILogRegistry {
         }
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public boolean isLoggable(LogLevel logLevel) {
+        return logLevel.getPriority() >= getLogger().getLogLevel().getPriority();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -178,18 +203,27 @@ public class LogRegistry implements ILogRegistry {
     /**
      * Gets the underlying logger associated with this thread.
      *
+     * <p>Called for every log line, so it does not lock: the logger is cached by the thread until
+     * a logger is registered or unregistered.
+     *
      * @return the logger for this thread group, or the global logger if one has not been registered
      *     for the thread group.
      */
     public ILeveledLogOutput getLogger() {
-        synchronized (mLogTable) {
-            ILeveledLogOutput log = mLogTable.get(getCurrentThreadGroup());
-            if (log == null) {
-                // If there's no logger set for this thread, use global logger
-                log = mGlobalLogger;
-            }
-            return log;
+        ThreadGroup threadGroup = getCurrentThreadGroup();
+        // Read the version first, a logger changing during the lookup invalidates the result.
+        long version = mLogTableVersion.get();
+        CachedLogger cached = mCachedLogger.get();
+        if (cached != null && cached.mVersion == version && cached.mThreadGroup == threadGroup) {
+            return cached.mLog;
+        }
+        ILeveledLogOutput log = mLogTable.get(threadGroup);
+        if (log == null) {
+            // If there's no logger set for this thread, use global logger
+            log = mGlobalLogger;
         }
+        mCachedLogger.set(new CachedLogger(threadGroup, log, version));
+        return log;
     }
 
     /**
@@ -205,6 +239,7 @@ public class LogRegistry implements ILogRegistry {
                 log.closeLog();
                 iter.remove();
             }
+            mLogTableVersion.incrementAndGet();
         }
         saveGlobalLog();
         mGlobalLogger.closeLog();
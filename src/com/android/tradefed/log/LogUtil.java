@@ -31,6 +31,10 @@ import java.util.Date;
  */
 public class LogUtil {
 
+    /** Format of the date of the log lines, one per thread as it is not thread safe. */
+    private static final ThreadLocal<SimpleDateFormat> LOG_DATE_FORMAT =
+            ThreadLocal.withInitial(() -> new SimpleDateFormat("MM-dd HH:mm:ss"));
+
     /**
      * Make uninstantiable
      */
@@ -56,9 +60,16 @@ public class LogUtil {
      * @see Log#getLogFormatString(LogLevel, String, String)
      */
     public static String getLogFormatString(LogLevel logLevel, String tag, String message) {
-        SimpleDateFormat formatter = new SimpleDateFormat("MM-dd HH:mm:ss");
-        return String.format("%s %c/%s: %s\n", formatter.format(new Date()),
-                logLevel.getPriorityLetter(), tag, message);
+        return new StringBuilder(128)
+                .append(LOG_DATE_FORMAT.get().format(new Date()))
+                .append(' ')
+                .append(logLevel.getPriorityLetter())
+                .append('/')
+                .append(tag)
+                .append(": ")
+                .append(message)
+                .append('\n')
+                .toString();
     }
 
     /**
@@ -69,6 +80,30 @@ public class LogUtil {
 
         protected static final String CLASS_NAME = CLog.class.getName();
         private static IGlobalConfiguration sGlobalConfig = null;
+        private static volatile ILogRegistry sLogRegistry = null;
+
+        /**
+         * Sets the {@link ILogRegistry} printing the messages of {@link Log}. The messages below
+         * the level of its logger for the calling thread are then dropped before being formatted
+         * and before the caller class name is looked up.
+         *
+         * @param logRegistry the {@link ILogRegistry} to use, or null to print to stdout.
+         */
+        public static void setLogOutput(ILogRegistry logRegistry) {
+            sLogRegistry = logRegistry;
+            Log.setLogOutput(logRegistry);
+        }
+
+        /**
+         * Returns whether a message at the given level would be printed. Callers building an
+         * expensive message can use it to skip messages that would be dropped.
+         *
+         * @param logLevel the {@link LogLevel} of the message.
+         */
+        public static boolean isLoggable(LogLevel logLevel) {
+            ILogRegistry logRegistry = sLogRegistry;
+            return logRegistry == null || logRegistry.isLoggable(logLevel);
+        }
 
         /**
          * The shim version of {@link Log#v(String, String)}.
@@ -76,6 +111,9 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void v(String message) {
+            if (!isLoggable(LogLevel.VERBOSE)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.v(getClassName(2), message);
         }
@@ -88,6 +126,9 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void v(String format, Object... args) {
+            if (!isLoggable(LogLevel.VERBOSE)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.v(getClassName(2), String.format(format, args));
         }
@@ -98,6 +139,9 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void d(String message) {
+            if (!isLoggable(LogLevel.DEBUG)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.d(getClassName(2), message);
         }
@@ -110,6 +154,9 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void d(String format, Object... args) {
+            if (!isLoggable(LogLevel.DEBUG)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.d(getClassName(2), String.format(format, args));
         }
@@ -120,6 +167,9 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void i(String message) {
+            if (!isLoggable(LogLevel.INFO)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.i(getClassName(2), message);
         }
@@ -132,6 +182,9 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void i(String format, Object... args) {
+            if (!isLoggable(LogLevel.INFO)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.i(getClassName(2), String.format(format, args));
         }
@@ -142,6 +195,9 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void w(String message) {
+            if (!isLoggable(LogLevel.WARN)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.w(getClassName(2), message);
         }
@@ -153,6 +209,9 @@ public class LogUtil {
          * @param t The {@link Throwable} to log
          */
         public static void w(Throwable t) {
+            if (!isLoggable(LogLevel.WARN)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.w(getClassName(2), getStackTraceString(t));
         }
@@ -165,6 +224,9 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void w(String format, Object... args) {
+            if (!isLoggable(LogLevel.WARN)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.w(getClassName(2), String.format(format, args));
         }
@@ -175,6 +237,9 @@ public class LogUtil {
          * @param message The {@code String} to log
          */
         public static void e(String message) {
+            if (!isLoggable(LogLevel.ERROR)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.e(getClassName(2), message);
         }
@@ -187,6 +252,9 @@ public class LogUtil {
          * @param args The format string arguments
          */
         public static void e(String format, Object... args) {
+            if (!isLoggable(LogLevel.ERROR)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.e(getClassName(2), String.format(format, args));
         }
@@ -197,6 +265,9 @@ public class LogUtil {
          * @param t the {@link Throwable} to output.
          */
         public static void e(Throwable t) {
+            if (!isLoggable(LogLevel.ERROR)) {
+                return;
+            }
             // frame 2: skip frames 0 (#getClassName) and 1 (this method)
             Log.e(getClassName(2), t);
         }
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Delivers the events of a {@link ResultForwarder} to each of its listeners on a worker thread of
+ * their own, so that a slow listener does not slow down the tests or the other listeners.
+ *
+ * <p>Each listener receives the events in order from a bounded queue: when a queue is full, the
+ * caller waits for the listener to catch up. {@link #await()} waits until all the listeners
+ * received the events dispatched so far.
+ */
+class AsyncListenerDispatcher {
+
+    /** An event waiting to be delivered. */
+    private static class Event {
+        final String mName;
+        final Consumer<ITestInvocationListener> mCall;
+        final long mDispatchTime;
+
+        Event(String name, Consumer<ITestInvocationListener> call, long dispatchTime) {
+            mName = name;
+            mCall = call;
+            mDispatchTime = dispatchTime;
+        }
+    }
+
+    /** Event asking a worker to stop, once the events queued before it are delivered. */
+    private static final Event STOP_EVENT = new Event("stop", listener -> {}, 0L);
+
+    /** The queue and worker of a listener. */
+    private static class ListenerQueue {
+        private final ITestInvocationListener mListener;
+        private final BlockingQueue<Event> mEvents;
+        private final Thread mWorker;
+
+        private final AtomicLong mDispatched = new AtomicLong();
+        private final AtomicLong mBlocked = new AtomicLong();
+        private final AtomicLong mMaxDepth = new AtomicLong();
+        private final AtomicLong mTotalLatencyNs = new AtomicLong();
+        private final AtomicLong mMaxLatencyNs = new AtomicLong();
+        /** Guarded by {@code this}, notified when events are delivered. */
+        private long mDelivered = 0;
+
+        ListenerQueue(ITestInvocationListener listener, int capacity) {
+            mListener = listener;
+            mEvents = new ArrayBlockingQueue<>(capacity);
+            mWorker = new Thread(this::deliverEvents, "ResultForwarder-" + getName());
+            mWorker.setDaemon(true);
+            mWorker.start();
+        }
+
+        String getName() {
+            String name = mListener.getClass().getSimpleName();
+            return name.isEmpty() ? mListener.getClass().getName() : name;
+        }
+
+        /**
+         * Queues an event, waiting for room in the queue. The event is queued even if the caller
+         * is interrupted, so that the listener still receives a consistent stream of events.
+         *
+         * @return true if the caller was interrupted while waiting.
+         */
+        boolean dispatch(Event event) {
+            boolean interrupted = false;
+            if (!mEvents.offer(event)) {
+                mBlocked.incrementAndGet();
+                interrupted = put(event);
+            }
+            mDispatched.incrementAndGet();
+            mMaxDepth.accumulateAndGet(mEvents.size(), Math::max);
+            return interrupted;
+        }
+
+        /**
+         * Waits until the events dispatched so far are delivered.
+         *
+         * @return true if the caller was interrupted while waiting.
+         */
+        boolean await() {
+            boolean interrupted = false;
+            long dispatched = mDispatched.get();
+            synchronized (this) {
+                while (mDelivered < dispatched && mWorker.isAlive()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            return interrupted;
+        }
+
+        /**
+         * Delivers the pending events and waits for the worker to exit, so that no listener call
+         * is still running once it returns.
+         *
+         * @return true if the caller was interrupted while waiting.
+         */
+        boolean stop() {
+            boolean interrupted = put(STOP_EVENT);
+            while (mWorker.isAlive()) {
+                try {
+                    mWorker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            return interrupted;
+        }
+
+        /** Queues an event, waiting for room uninterruptibly. Returns true if interrupted. */
+        private boolean put(Event event) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mEvents.put(event);
+                    return interrupted;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        private void deliverEvents() {
+            while (true) {
+                Event event;
+                try {
+                    event = mEvents.take();
+                } catch (InterruptedException e) {
+                    // Only stopped by STOP_EVENT, once the pending events are delivered.
+                    continue;
+                }
+                if (event == STOP_EVENT) {
+                    return;
+                }
+                try {
+                    event.mCall.accept(mListener);
+                } catch (Throwable t) {
+                    // Keep delivering the next events, as if they were delivered synchronously.
+                    CLog.e(
+                            "Exception while invoking %s#%s",
+                            mListener.getClass().getName(),
+                            event.mName);
+                    CLog.e(t);
+                }
+                long latencyNs = System.nanoTime() - event.mDispatchTime;
+                mTotalLatencyNs.addAndGet(latencyNs);
+                mMaxLatencyNs.accumulateAndGet(latencyNs, Math::max);
+                synchronized (this) {
+                    mDelivered++;
+                    notifyAll();
+                }
+            }
+        }
+
+        String getStats() {
+            long delivered;
+            synchronized (this) {
+                delivered = mDelivered;
+            }
+            return String.format(
+                    "%s: events=%d max_depth=%d blocked=%d avg_latency_us=%d max_latency_us=%d",
+                    getName(),
+                    delivered,
+                    mMaxDepth.get(),
+                    mBlocked.get(),
+                    delivered == 0 ? 0 : mTotalLatencyNs.get() / delivered / 1000,
+                    mMaxLatencyNs.get() / 1000);
+        }
+    }
+
+    private final List<ListenerQueue> mQueues = new ArrayList<>();
+
+    /**
+     * Creates a {@link AsyncListenerDispatcher} and starts the workers of the listeners. The
+     * workers belong to the thread group of the caller, so they log to the same log.
+     *
+     * @param listeners the listeners to deliver the events to.
+     * @param capacity the maximum number of events waiting to be delivered to each listener.
+     */
+    AsyncListenerDispatcher(List<ITestInvocationListener> listeners, int capacity) {
+        for (ITestInvocationListener listener : listeners) {
+            mQueues.add(new ListenerQueue(listener, capacity));
+        }
+    }
+
+    /**
+     * Queues an event for all the listeners, waiting if a queue is full. An interrupt does not
+     * prevent queueing the event for every listener, the interrupted status is restored after.
+     *
+     * @param name the name of the event, for logging.
+     * @param call delivers the event to a listener.
+     */
+    void dispatch(String name, Consumer<ITestInvocationListener> call) {
+        Event event = new Event(name, call, System.nanoTime());
+        boolean interrupted = false;
+        for (ListenerQueue queue : mQueues) {
+            interrupted |= queue.dispatch(event);
+        }
+        restoreInterrupt(interrupted, "dispatching " + name);
+    }
+
+    /** Waits until all the events dispatched so far are delivered. */
+    void await() {
+        boolean interrupted = false;
+        for (ListenerQueue queue : mQueues) {
+            interrupted |= queue.await();
+        }
+        restoreInterrupt(interrupted, "waiting for the events");
+    }
+
+    /** Delivers the pending events, and stops the workers once they are done with them. */
+    void shutdown() {
+        boolean interrupted = false;
+        for (ListenerQueue queue : mQueues) {
+            interrupted |= queue.stop();
+        }
+        restoreInterrupt(interrupted, "stopping the workers");
+    }
+
+    private static void restoreInterrupt(boolean interrupted, String action) {
+        if (interrupted) {
+            CLog.w("Interrupted while %s, completed it regardless.", action);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Returns one line per listener with its queue metrics. */
+    String getStats() {
+        StringBuilder stats = new StringBuilder();
+        for (ListenerQueue queue : mQueues) {
+            stats.append(queue.getStats()).append('\n');
+        }
+        return stats.toString();
+    }
+}
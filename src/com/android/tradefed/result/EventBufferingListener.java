@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A {@link ITestInvocationListener} that records the test run events it receives, and replays
+ * them into another listener when {@link #flush()} is called.
+ *
+ * <p>This allows test runs executing concurrently to report their events to a single listener
+ * without interleaving them: each run reports to its own buffer, and the buffers are flushed one
+ * after the other. Logs are not buffered since their source may be closed once logged, they are
+ * forwarded right away while holding the lock of the listener, like the replayed events.
+ */
+public class EventBufferingListener implements ITestInvocationListener {
+
+    private final ITestInvocationListener mListener;
+    private final List<Consumer<ITestInvocationListener>> mEvents = new ArrayList<>();
+
+    /**
+     * Creates a {@link EventBufferingListener}.
+     *
+     * @param listener the listener to replay the events into.
+     */
+    public EventBufferingListener(ITestInvocationListener listener) {
+        mListener = listener;
+    }
+
+    private synchronized void record(Consumer<ITestInvocationListener> event) {
+        mEvents.add(event);
+    }
+
+    /**
+     * Replays all the events recorded so far, in the order they were received, and forgets them.
+     */
+    public void flush() {
+        List<Consumer<ITestInvocationListener>> events;
+        synchronized (this) {
+            events = new ArrayList<>(mEvents);
+            mEvents.clear();
+        }
+        synchronized (mListener) {
+            for (Consumer<ITestInvocationListener> event : events) {
+                event.accept(mListener);
+            }
+        }
+    }
+
+    /** Returns the number of events waiting to be replayed. */
+    public synchronized int getBufferedEventCount() {
+        return mEvents.size();
+    }
+
+    @Override
+    public void testRunStarted(String runName, int testCount) {
+        record(l -> l.testRunStarted(runName, testCount));
+    }
+
+    @Override
+    public void testRunStarted(String runName, int testCount, int attemptNumber) {
+        record(l -> l.testRunStarted(runName, testCount, attemptNumber));
+    }
+
+    @Override
+    public void testRunStarted(String runName, int testCount, int attemptNumber, long startTime) {
+        record(l -> l.testRunStarted(runName, testCount, attemptNumber, startTime));
+    }
+
+    @Override
+    public void testRunFailed(String errorMessage) {
+        record(l -> l.testRunFailed(errorMessage));
+    }
+
+    @Override
+    public void testRunEnded(long elapsedTimeMillis, Map<String, String> runMetrics) {
+        record(l -> l.testRunEnded(elapsedTimeMillis, runMetrics));
+    }
+
+    @Override
+    public void testRunEnded(long elapsedTimeMillis, HashMap<String, Metric> runMetrics) {
+        record(l -> l.testRunEnded(elapsedTimeMillis, runMetrics));
+    }
+
+    @Override
+    public void testRunStopped(long elapsedTime) {
+        record(l -> l.testRunStopped(elapsedTime));
+    }
+
+    @Override
+    public void testStarted(TestDescription test) {
+        record(l -> l.testStarted(test));
+    }
+
+    @Override
+    public void testStarted(TestDescription test, long startTime) {
+        record(l -> l.testStarted(test, startTime));
+    }
+
+    @Override
+    public void testFailed(TestDescription test, String trace) {
+        record(l -> l.testFailed(test, trace));
+    }
+
+    @Override
+    public void testAssumptionFailure(TestDescription test, String trace) {
+        record(l -> l.testAssumptionFailure(test, trace));
+    }
+
+    @Override
+    public void testIgnored(TestDescription test) {
+        record(l -> l.testIgnored(test));
+    }
+
+    @Override
+    public void testEnded(TestDescription test, Map<String, String> testMetrics) {
+        record(l -> l.testEnded(test, testMetrics));
+    }
+
+    @Override
+    public void testEnded(TestDescription test, HashMap<String, Metric> testMetrics) {
+        record(l -> l.testEnded(test, testMetrics));
+    }
+
+    @Override
+    public void testEnded(TestDescription test, long endTime, Map<String, String> testMetrics) {
+        record(l -> l.testEnded(test, endTime, testMetrics));
+    }
+
+    @Override
+    public void testEnded(
+            TestDescription test, long endTime, HashMap<String, Metric> testMetrics) {
+        record(l -> l.testEnded(test, endTime, testMetrics));
+    }
+
+    @Override
+    public void testLog(String dataName, LogDataType dataType, InputStreamSource dataStream) {
+        synchronized (mListener) {
+            mListener.testLog(dataName, dataType, dataStream);
+        }
+    }
+}
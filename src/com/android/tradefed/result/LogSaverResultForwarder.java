@@ -53,6 +53,7 @@ public class LogSaverResultForwarder extends ResultForwarder implements ILogSave
      */
     @Override
     public void invocationEnded(long elapsedTime) {
+        stopAsyncDispatch();
         InvocationSummaryHelper.reportInvocationEnded(getListeners(), elapsedTime);
         // Intentionally call invocationEnded for the log saver last.
         try {
@@ -35,6 +35,7 @@ public class ResultAndLogForwarder extends ResultForwarder implements ILogSaverL
 
     @Override
     public void invocationEnded(long elapsedTime) {
+        stopAsyncDispatch();
         InvocationSummaryHelper.reportInvocationEnded(getListeners(), elapsedTime);
     }
 
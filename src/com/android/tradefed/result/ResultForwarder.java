@@ -23,6 +23,8 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * A {@link ITestInvocationListener} that forwards invocation results to a list of other listeners.
@@ -30,6 +32,7 @@ import java.util.List;
 public class ResultForwarder implements ITestInvocationListener {
 
     private List<ITestInvocationListener> mListeners;
+    private AsyncListenerDispatcher mAsyncDispatcher = null;
 
     /**
      * Create a {@link ResultForwarder} with deferred listener setting.  Intended only for use by
@@ -78,44 +81,100 @@ public class ResultForwarder implements ITestInvocationListener {
     /**
      * Get the list of listeners.  Intended only for use by subclasses.
      *
+     * <p>When the events are delivered asynchronously, waits for the pending events to be
+     * delivered, so that the subclasses calling the listeners directly keep the order of events.
+     *
      * @return The list of {@link ITestInvocationListener}s.
      */
     protected List<ITestInvocationListener> getListeners() {
+        awaitAsyncEvents();
         return mListeners;
     }
 
     /**
-     * {@inheritDoc}
+     * Delivers the test events to each listener from a worker thread of its own, rather than
+     * calling the listeners one after the other on the caller thread. The logs, whose stream may
+     * be closed by the caller once delivered, and {@link #invocationEnded(long)} are still
+     * delivered synchronously after the pending events. The workers stop at invocationEnded.
+     *
+     * <p>Must be called from the invocation thread, before the first event.
+     *
+     * @param queueSize the maximum number of events waiting to be delivered to a listener before
+     *     the caller waits for it.
      */
-    @Override
-    public void invocationStarted(IInvocationContext context) {
+    public void enableAsyncDispatch(int queueSize) {
+        mAsyncDispatcher = new AsyncListenerDispatcher(mListeners, queueSize);
+    }
+
+    /** Forwards an event to all the listeners, logging their exceptions. */
+    private void forward(String eventName, Consumer<ITestInvocationListener> event) {
+        AsyncListenerDispatcher asyncDispatcher = mAsyncDispatcher;
+        if (asyncDispatcher != null) {
+            asyncDispatcher.dispatch(eventName, event);
+            return;
+        }
         for (ITestInvocationListener listener : mListeners) {
             try {
-                listener.invocationStarted(context);
+                event.accept(listener);
             } catch (RuntimeException e) {
-                CLog.e(
-                        "Exception while invoking %s#invocationStarted",
-                        listener.getClass().getName());
+                CLog.e("Exception while invoking %s#%s", listener.getClass().getName(), eventName);
                 CLog.e(e);
             }
         }
     }
 
+    /**
+     * Forwards an event carrying metrics. When delivered asynchronously, each listener receives a
+     * copy of the metrics taken before the caller returns, since the caller and the other
+     * listeners may still modify them.
+     */
+    private void forwardMetrics(
+            String eventName,
+            HashMap<String, Metric> metrics,
+            BiConsumer<ITestInvocationListener, HashMap<String, Metric>> event) {
+        if (mAsyncDispatcher == null || metrics == null) {
+            forward(eventName, listener -> event.accept(listener, metrics));
+            return;
+        }
+        HashMap<String, Metric> snapshot = new HashMap<>(metrics);
+        forward(eventName, listener -> event.accept(listener, new HashMap<>(snapshot)));
+    }
+
+    /** Waits for the events delivered asynchronously to be received by the listeners. */
+    private void awaitAsyncEvents() {
+        AsyncListenerDispatcher asyncDispatcher = mAsyncDispatcher;
+        if (asyncDispatcher != null) {
+            asyncDispatcher.await();
+        }
+    }
+
+    /**
+     * Delivers the pending events, stops the asynchronous delivery and logs its metrics. Called at
+     * {@link #invocationEnded(long)}, subclasses overriding it must call it.
+     */
+    protected void stopAsyncDispatch() {
+        AsyncListenerDispatcher asyncDispatcher = mAsyncDispatcher;
+        if (asyncDispatcher != null) {
+            mAsyncDispatcher = null;
+            asyncDispatcher.shutdown();
+            CLog.d("Asynchronous result delivery:\n%s", asyncDispatcher.getStats());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationStarted(IInvocationContext context) {
+        forward("invocationStarted", listener -> listener.invocationStarted(context));
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void invocationFailed(Throwable cause) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.invocationFailed(cause);
-            } catch (RuntimeException e) {
-                CLog.e(
-                        "Exception while invoking %s#invocationFailed",
-                        listener.getClass().getName());
-                CLog.e(e);
-            }
-        }
+        forward("invocationFailed", listener -> listener.invocationFailed(cause));
     }
 
     /**
@@ -123,6 +182,7 @@ public class ResultForwarder implements ITestInvocationListener {
      */
     @Override
     public void invocationEnded(long elapsedTime) {
+        stopAsyncDispatch();
         InvocationSummaryHelper.reportInvocationEnded(mListeners, elapsedTime);
     }
 
@@ -140,6 +200,7 @@ public class ResultForwarder implements ITestInvocationListener {
      */
     @Override
     public void testLog(String dataName, LogDataType dataType, InputStreamSource dataStream) {
+        awaitAsyncEvents();
         for (ITestInvocationListener listener : mListeners) {
             try {
                 listener.testLog(dataName, dataType, dataStream);
@@ -155,27 +216,15 @@ public class ResultForwarder implements ITestInvocationListener {
      */
     @Override
     public void testRunStarted(String runName, int testCount) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testRunStarted(runName, testCount);
-            } catch (RuntimeException e) {
-                CLog.e("Exception while invoking %s#testRunStarted", listener.getClass().getName());
-                CLog.e(e);
-            }
-        }
+        forward("testRunStarted", listener -> listener.testRunStarted(runName, testCount));
     }
 
     /** {@inheritDoc} */
     @Override
     public void testRunStarted(String runName, int testCount, int attemptNumber) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testRunStarted(runName, testCount, attemptNumber);
-            } catch (RuntimeException e) {
-                CLog.e("Exception while invoking %s#testRunStarted", listener.getClass().getName());
-                CLog.e(e);
-            }
-        }
+        forward(
+                "testRunStarted",
+                listener -> listener.testRunStarted(runName, testCount, attemptNumber));
     }
 
     /**
@@ -183,14 +232,7 @@ public class ResultForwarder implements ITestInvocationListener {
      */
     @Override
     public void testRunFailed(String errorMessage) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testRunFailed(errorMessage);
-            } catch (RuntimeException e) {
-                CLog.e("Exception while invoking %s#testRunFailed", listener.getClass().getName());
-                CLog.e(e);
-            }
-        }
+        forward("testRunFailed", listener -> listener.testRunFailed(errorMessage));
     }
 
     /**
@@ -198,27 +240,16 @@ public class ResultForwarder implements ITestInvocationListener {
      */
     @Override
     public void testRunStopped(long elapsedTime) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testRunStopped(elapsedTime);
-            } catch (RuntimeException e) {
-                CLog.e("Exception while invoking %s#testRunStopped", listener.getClass().getName());
-                CLog.e(e);
-            }
-        }
+        forward("testRunStopped", listener -> listener.testRunStopped(elapsedTime));
     }
 
     /** {@inheritDoc} */
     @Override
     public void testRunEnded(long elapsedTime, HashMap<String, Metric> runMetrics) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testRunEnded(elapsedTime, runMetrics);
-            } catch (RuntimeException e) {
-                CLog.e("Exception while invoking %s#testRunEnded", listener.getClass().getName());
-                CLog.e(e);
-            }
-        }
+        forwardMetrics(
+                "testRunEnded",
+                runMetrics,
+                (listener, metrics) -> listener.testRunEnded(elapsedTime, metrics));
     }
 
     /** {@inheritDoc} */
@@ -230,27 +261,13 @@ public class ResultForwarder implements ITestInvocationListener {
     /** {@inheritDoc} */
     @Override
     public void testStarted(TestDescription test, long startTime) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testStarted(test, startTime);
-            } catch (RuntimeException e) {
-                CLog.e("Exception while invoking %s#testStarted", listener.getClass().getName());
-                CLog.e(e);
-            }
-        }
+        forward("testStarted", listener -> listener.testStarted(test, startTime));
     }
 
     /** {@inheritDoc} */
     @Override
     public void testFailed(TestDescription test, String trace) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testFailed(test, trace);
-            } catch (RuntimeException e) {
-                CLog.e("Exception while invoking %s#testFailed", listener.getClass().getName());
-                CLog.e(e);
-            }
-        }
+        forward("testFailed", listener -> listener.testFailed(test, trace));
     }
 
     /** {@inheritDoc} */
@@ -262,63 +279,30 @@ public class ResultForwarder implements ITestInvocationListener {
     /** {@inheritDoc} */
     @Override
     public void testEnded(TestDescription test, long endTime, HashMap<String, Metric> testMetrics) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testEnded(test, endTime, testMetrics);
-            } catch (RuntimeException e) {
-                CLog.e("Exception while invoking %s#testEnded", listener.getClass().getName());
-                CLog.e(e);
-            }
-        }
+        forwardMetrics(
+                "testEnded",
+                testMetrics,
+                (listener, metrics) -> listener.testEnded(test, endTime, metrics));
     }
 
     @Override
     public void testAssumptionFailure(TestDescription test, String trace) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testAssumptionFailure(test, trace);
-            } catch (RuntimeException e) {
-                CLog.e(
-                        "Exception while invoking %s#testAssumptionFailure",
-                        listener.getClass().getName());
-                CLog.e(e);
-            }
-        }
+        forward(
+                "testAssumptionFailure", listener -> listener.testAssumptionFailure(test, trace));
     }
 
     @Override
     public void testIgnored(TestDescription test) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testIgnored(test);
-            } catch (RuntimeException e) {
-                CLog.e("Exception while invoking %s#testIgnored", listener.getClass().getName());
-                CLog.e(e);
-            }
-        }
+        forward("testIgnored", listener -> listener.testIgnored(test));
     }
 
     @Override
     public void testModuleStarted(IInvocationContext moduleContext) {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testModuleStarted(moduleContext);
-            } catch (RuntimeException e) {
-                CLog.e("Exception while invoking testModuleStarted");
-                CLog.e(e);
-            }
-        }
+        forward("testModuleStarted", listener -> listener.testModuleStarted(moduleContext));
     }
 
     @Override
     public void testModuleEnded() {
-        for (ITestInvocationListener listener : mListeners) {
-            try {
-                listener.testModuleEnded();
-            } catch (RuntimeException e) {
-                CLog.e("Exception while invoking testModuleEnded");
-                CLog.e(e);
-            }
-        }
+        forward("testModuleEnded", listener -> listener.testModuleEnded());
     }
 }
@@ -20,6 +20,10 @@ import com.android.tradefed.config.Option;
 import com.android.tradefed.invoker.IInvocationContext;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.result.proto.LogFileProto.LogFileInfo;
+import com.android.tradefed.result.proto.ProtoResultReporter;
+import com.android.tradefed.result.proto.StreamProtoWriter;
+import com.android.tradefed.result.proto.TestRecordProto.TestRecord;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.StreamUtil;
 import com.android.tradefed.util.SubprocessEventHelper.BaseTestEventInfo;
@@ -38,11 +42,15 @@ import com.android.tradefed.util.SubprocessEventHelper.TestStartedEventInfo;
 import com.android.tradefed.util.SubprocessTestResultsParser;
 import com.android.tradefed.util.proto.TfMetricProtoUtil;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.protobuf.Any;
+
 import org.json.JSONObject;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.util.HashMap;
@@ -68,12 +76,76 @@ public class SubprocessResultsReporter
     private IBuildInfo mPrimaryBuildInfo = null;
     private Socket mReportSocket = null;
     private PrintWriter mPrintWriter = null;
+    private StreamProtoWriter mProtoWriter = null;
+    private ProtoEventReporter mProtoReporter = null;
 
     private boolean mPrintWarning = true;
 
+    /** Sends the events to the parent process as length-delimited {@link TestRecord}s. */
+    private static class ProtoEventReporter extends ProtoResultReporter {
+        private final StreamProtoWriter mWriter;
+
+        ProtoEventReporter(StreamProtoWriter writer) {
+            mWriter = writer;
+        }
+
+        @Override
+        public void processStartInvocation(
+                TestRecord invocationStartRecord, IInvocationContext invocationContext) {
+            send(invocationStartRecord, false);
+        }
+
+        @Override
+        public void processTestModuleStarted(TestRecord moduleStartRecord) {
+            send(moduleStartRecord, false);
+        }
+
+        @Override
+        public void processTestModuleEnd(TestRecord moduleRecord) {
+            send(moduleRecord, false);
+        }
+
+        @Override
+        public void processTestRunStarted(TestRecord runStartedRecord) {
+            send(runStartedRecord, false);
+        }
+
+        @Override
+        public void processTestRunEnded(TestRecord runRecord) {
+            send(runRecord, false);
+        }
+
+        @Override
+        public void processTestCaseStarted(TestRecord testCaseStartedRecord) {
+            send(testCaseStartedRecord, true);
+        }
+
+        @Override
+        public void processTestCaseEnded(TestRecord testCaseRecord) {
+            send(testCaseRecord, true);
+        }
+
+        @Override
+        public void processFinalProto(TestRecord finalRecord) {
+            send(finalRecord, false);
+        }
+
+        private void send(TestRecord record, boolean batch) {
+            try {
+                mWriter.write(record, batch);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
     /** {@inheritDoc} */
     @Override
     public void testAssumptionFailure(TestDescription testId, String trace) {
+        if (mProtoReporter != null) {
+            mProtoReporter.testAssumptionFailure(testId, trace);
+            return;
+        }
         FailedTestEventInfo info =
                 new FailedTestEventInfo(testId.getClassName(), testId.getTestName(), trace);
         printEvent(SubprocessTestResultsParser.StatusKeys.TEST_ASSUMPTION_FAILURE, info);
@@ -88,6 +160,10 @@ public class SubprocessResultsReporter
     /** {@inheritDoc} */
     @Override
     public void testEnded(TestDescription testId, long endTime, HashMap<String, Metric> metrics) {
+        if (mProtoReporter != null) {
+            mProtoReporter.testEnded(testId, endTime, metrics);
+            return;
+        }
         // TODO: transfer the proto metrics instead of string metrics
         TestEndedEventInfo info =
                 new TestEndedEventInfo(
@@ -101,6 +177,10 @@ public class SubprocessResultsReporter
     /** {@inheritDoc} */
     @Override
     public void testFailed(TestDescription testId, String reason) {
+        if (mProtoReporter != null) {
+            mProtoReporter.testFailed(testId, reason);
+            return;
+        }
         FailedTestEventInfo info =
                 new FailedTestEventInfo(testId.getClassName(), testId.getTestName(), reason);
         printEvent(SubprocessTestResultsParser.StatusKeys.TEST_FAILED, info);
@@ -109,6 +189,10 @@ public class SubprocessResultsReporter
     /** {@inheritDoc} */
     @Override
     public void testIgnored(TestDescription testId) {
+        if (mProtoReporter != null) {
+            mProtoReporter.testIgnored(testId);
+            return;
+        }
         BaseTestEventInfo info = new BaseTestEventInfo(testId.getClassName(), testId.getTestName());
         printEvent(SubprocessTestResultsParser.StatusKeys.TEST_IGNORED, info);
     }
@@ -116,6 +200,10 @@ public class SubprocessResultsReporter
     /** {@inheritDoc} */
     @Override
     public void testRunEnded(long time, HashMap<String, Metric> runMetrics) {
+        if (mProtoReporter != null) {
+            mProtoReporter.testRunEnded(time, runMetrics);
+            return;
+        }
         // TODO: Transfer the full proto instead of just Strings.
         TestRunEndedEventInfo info =
                 new TestRunEndedEventInfo(time, TfMetricProtoUtil.compatibleConvert(runMetrics));
@@ -125,6 +213,10 @@ public class SubprocessResultsReporter
     /** {@inheritDoc} */
     @Override
     public void testRunFailed(String reason) {
+        if (mProtoReporter != null) {
+            mProtoReporter.testRunFailed(reason);
+            return;
+        }
         TestRunFailedEventInfo info = new TestRunFailedEventInfo(reason);
         printEvent(SubprocessTestResultsParser.StatusKeys.TEST_RUN_FAILED, info);
     }
@@ -138,6 +230,10 @@ public class SubprocessResultsReporter
     /** {@inheritDoc} */
     @Override
     public void testRunStarted(String runName, int testCount, int attemptNumber) {
+        if (mProtoReporter != null) {
+            mProtoReporter.testRunStarted(runName, testCount, attemptNumber);
+            return;
+        }
         TestRunStartedEventInfo info =
                 new TestRunStartedEventInfo(runName, testCount, attemptNumber);
         printEvent(SubprocessTestResultsParser.StatusKeys.TEST_RUN_STARTED, info);
@@ -160,6 +256,10 @@ public class SubprocessResultsReporter
     /** {@inheritDoc} */
     @Override
     public void testStarted(TestDescription testId, long startTime) {
+        if (mProtoReporter != null) {
+            mProtoReporter.testStarted(testId, startTime);
+            return;
+        }
         TestStartedEventInfo info =
                 new TestStartedEventInfo(testId.getClassName(), testId.getTestName(), startTime);
         printEvent(SubprocessTestResultsParser.StatusKeys.TEST_STARTED, info);
@@ -170,6 +270,11 @@ public class SubprocessResultsReporter
      */
     @Override
     public void invocationStarted(IInvocationContext context) {
+        startProtoStream();
+        if (mProtoReporter != null) {
+            mProtoReporter.invocationStarted(context);
+            return;
+        }
         InvocationStartedEventInfo info =
                 new InvocationStartedEventInfo(context.getTestTag(), System.currentTimeMillis());
         printEvent(SubprocessTestResultsParser.StatusKeys.INVOCATION_STARTED, info);
@@ -193,6 +298,24 @@ public class SubprocessResultsReporter
                         FileUtil.createTempFile(
                                 "subprocess-" + dataName, "." + dataType.getFileExt());
                 FileUtil.writeToFile(dataStream.createInputStream(), tmpFile);
+                if (mProtoWriter != null) {
+                    // Sent right away, so that the log is not lost if the subprocess dies.
+                    LogFileInfo info =
+                            LogFileInfo.newBuilder()
+                                    .setPath(tmpFile.getAbsolutePath())
+                                    .setIsText(dataType.isText())
+                                    .setLogType(dataType.toString())
+                                    .setSize(tmpFile.length())
+                                    .build();
+                    mProtoWriter.write(
+                            TestRecord.newBuilder()
+                                    .setTestRecordId(
+                                            SubprocessTestResultsParser.TEST_LOG_RECORD_ID)
+                                    .putArtifacts(dataName, Any.pack(info))
+                                    .build(),
+                            false);
+                    return;
+                }
                 TestLogEventInfo info = new TestLogEventInfo(dataName, dataType, tmpFile);
                 printEvent(SubprocessTestResultsParser.StatusKeys.TEST_LOG, info);
             } catch (IOException e) {
@@ -205,6 +328,10 @@ public class SubprocessResultsReporter
     /** {@inheritDoc} */
     @Override
     public void logAssociation(String dataName, LogFile logFile) {
+        if (mProtoReporter != null) {
+            mProtoReporter.logAssociation(dataName, logFile);
+            return;
+        }
         LogAssociationEventInfo info =
                 new LogAssociationEventInfo("subprocess-a-" + dataName, logFile);
         printEvent(SubprocessTestResultsParser.StatusKeys.LOG_ASSOCIATION, info);
@@ -215,6 +342,10 @@ public class SubprocessResultsReporter
      */
     @Override
     public void invocationEnded(long elapsedTime) {
+        if (mProtoReporter != null) {
+            mProtoReporter.invocationEnded(elapsedTime);
+            return;
+        }
         if (mPrimaryBuildInfo == null) {
             return;
         }
@@ -228,6 +359,10 @@ public class SubprocessResultsReporter
      */
     @Override
     public void invocationFailed(Throwable cause) {
+        if (mProtoReporter != null) {
+            mProtoReporter.invocationFailed(cause);
+            return;
+        }
         InvocationFailedEventInfo info = new InvocationFailedEventInfo(cause);
         printEvent(SubprocessTestResultsParser.StatusKeys.INVOCATION_FAILED, info);
     }
@@ -235,6 +370,10 @@ public class SubprocessResultsReporter
     /** {@inheritDoc} */
     @Override
     public void testModuleStarted(IInvocationContext moduleContext) {
+        if (mProtoReporter != null) {
+            mProtoReporter.testModuleStarted(moduleContext);
+            return;
+        }
         TestModuleStartedEventInfo info = new TestModuleStartedEventInfo(moduleContext);
         printEvent(SubprocessTestResultsParser.StatusKeys.TEST_MODULE_STARTED, info);
     }
@@ -242,6 +381,10 @@ public class SubprocessResultsReporter
     /** {@inheritDoc} */
     @Override
     public void testModuleEnded() {
+        if (mProtoReporter != null) {
+            mProtoReporter.testModuleEnded();
+            return;
+        }
         printEvent(SubprocessTestResultsParser.StatusKeys.TEST_MODULE_ENDED, new JSONObject());
     }
 
@@ -253,6 +396,40 @@ public class SubprocessResultsReporter
         return null;
     }
 
+    /**
+     * Switches the socket to a stream of protos when the parent process accepts it. Only done at
+     * the start of the invocation, the protos describe the invocation from its start.
+     */
+    private void startProtoStream() {
+        if (mReportPort == null
+                || mReportFile != null
+                || mReportSocket != null
+                || !isProtoStreamAccepted()) {
+            return;
+        }
+        try {
+            mReportSocket = new Socket("localhost", mReportPort.intValue());
+            OutputStream output = mReportSocket.getOutputStream();
+            output.write(
+                    String.format("%s\n", SubprocessTestResultsParser.PROTO_STREAM_HEADER)
+                            .getBytes());
+            mProtoWriter =
+                    new StreamProtoWriter(
+                            output,
+                            StreamProtoWriter.DEFAULT_BATCH_SIZE,
+                            StreamProtoWriter.DEFAULT_MAX_DELAY_MS);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        mProtoReporter = new ProtoEventReporter(mProtoWriter);
+    }
+
+    /** Returns whether the parent process accepts the events as a stream of protos. */
+    @VisibleForTesting
+    boolean isProtoStreamAccepted() {
+        return System.getenv(SubprocessTestResultsParser.PROTO_STREAM_ENV_VARIABLE) != null;
+    }
+
     /**
      * Helper to print the event key and then the json object.
      */
@@ -302,6 +479,7 @@ public class SubprocessResultsReporter
     /** {@inheritDoc} */
     @Override
     public void close() {
+        StreamUtil.close(mProtoWriter);
         StreamUtil.close(mReportSocket);
         StreamUtil.close(mPrintWriter);
     }
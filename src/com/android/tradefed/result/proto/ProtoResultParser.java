@@ -364,10 +364,6 @@ public class ProtoResultParser {
     }
 
     private void handleLogs(TestRecord proto) {
-        if (!(mListener instanceof ILogSaverListener)) {
-            return;
-        }
-        ILogSaverListener logger = (ILogSaverListener) mListener;
         for (Entry<String, Any> entry : proto.getArtifacts().entrySet()) {
             try {
                 LogFileInfo info = entry.getValue().unpack(LogFileInfo.class);
@@ -391,11 +387,12 @@ public class ProtoResultParser {
                             type = LogDataType.ZIP;
                         }
                         log("Logging %s from subprocess: %s ", entry.getKey(), file.getPath());
-                        logger.testLog(mFilePrefix + entry.getKey(), type, source);
+                        mListener.testLog(mFilePrefix + entry.getKey(), type, source);
                     }
-                } else {
+                } else if (mListener instanceof ILogSaverListener) {
                     log("Logging %s from subprocess: %s", entry.getKey(), file.getUrl());
-                    logger.logAssociation(mFilePrefix + entry.getKey(), file);
+                    ((ILogSaverListener) mListener)
+                            .logAssociation(mFilePrefix + entry.getKey(), file);
                 }
             } catch (InvalidProtocolBufferException e) {
                 CLog.e("Couldn't unpack %s as a LogFileInfo", entry.getKey());
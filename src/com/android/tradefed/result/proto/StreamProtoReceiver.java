@@ -23,9 +23,10 @@ import com.android.tradefed.result.proto.TestRecordProto.TestRecord;
 import com.android.tradefed.util.StreamUtil;
 import com.android.tradefed.util.TimeUtil;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.CountDownLatch;
@@ -133,12 +134,13 @@ public class StreamProtoReceiver implements Closeable {
         @Override
         public void run() {
             Socket client = null;
-            BufferedReader in = null;
+            InputStream in = null;
             try {
                 client = mSocket.accept();
+                // Buffer the stream, parsing the size of each record reads it byte by byte.
+                in = new BufferedInputStream(client.getInputStream());
                 TestRecord received = null;
-                while ((received = TestRecord.parseDelimitedFrom(client.getInputStream()))
-                        != null) {
+                while ((received = TestRecord.parseDelimitedFrom(in)) != null) {
                     parse(received);
                 }
             } catch (IOException e) {
@@ -35,59 +35,87 @@ public final class StreamProtoResultReporter extends ProtoResultReporter {
     )
     private Integer mReportPort = null;
 
+    @Option(
+        name = "proto-report-batch-size",
+        description = "the maximum number of test case protos sent together, 1 to send each one "
+                + "as soon as it is created."
+    )
+    private int mBatchSize = StreamProtoWriter.DEFAULT_BATCH_SIZE;
+
+    @Option(
+        name = "proto-report-max-delay",
+        description = "the maximum time a test case proto waits to be sent with the next ones.",
+        isTimeVal = true
+    )
+    private long mMaxDelayMs = StreamProtoWriter.DEFAULT_MAX_DELAY_MS;
+
     private Socket mReportSocket = null;
+    private StreamProtoWriter mWriter = null;
 
     @Override
     public void processStartInvocation(
             TestRecord invocationStartRecord, IInvocationContext context) {
-        writeRecordToSocket(invocationStartRecord);
+        writeRecordToSocket(invocationStartRecord, false);
     }
 
     @Override
     public void processTestModuleStarted(TestRecord moduleStartRecord) {
-        writeRecordToSocket(moduleStartRecord);
+        writeRecordToSocket(moduleStartRecord, false);
     }
 
     @Override
     public void processTestModuleEnd(TestRecord moduleRecord) {
-        writeRecordToSocket(moduleRecord);
+        writeRecordToSocket(moduleRecord, false);
     }
 
     @Override
     public void processTestRunStarted(TestRecord runStartedRecord) {
-        writeRecordToSocket(runStartedRecord);
+        writeRecordToSocket(runStartedRecord, false);
     }
 
     @Override
     public void processTestRunEnded(TestRecord runRecord) {
-        writeRecordToSocket(runRecord);
+        writeRecordToSocket(runRecord, false);
     }
 
     @Override
     public void processTestCaseStarted(TestRecord testCaseStartedRecord) {
-        writeRecordToSocket(testCaseStartedRecord);
+        writeRecordToSocket(testCaseStartedRecord, true);
     }
 
     @Override
     public void processTestCaseEnded(TestRecord testCaseRecord) {
-        writeRecordToSocket(testCaseRecord);
+        writeRecordToSocket(testCaseRecord, true);
     }
 
     @Override
     public void processFinalProto(TestRecord finalRecord) {
-        writeRecordToSocket(finalRecord);
+        writeRecordToSocket(finalRecord, false);
+        if (mWriter != null) {
+            CLog.d("Proto results stream: %s", mWriter.getStats());
+        }
+        StreamUtil.close(mWriter);
         StreamUtil.close(mReportSocket);
     }
 
-    private void writeRecordToSocket(TestRecord record) {
+    /**
+     * Sends a record to the port.
+     *
+     * @param record the {@link TestRecord} to send.
+     * @param batch whether the record can be batched with the next ones.
+     */
+    private void writeRecordToSocket(TestRecord record, boolean batch) {
         if (mReportPort == null) {
             CLog.d("No port set. Skipping the reporter.");
         }
         try {
             if (mReportSocket == null) {
                 mReportSocket = new Socket("localhost", mReportPort);
+                mWriter =
+                        new StreamProtoWriter(
+                                mReportSocket.getOutputStream(), mBatchSize, mMaxDelayMs);
             }
-            record.writeDelimitedTo(mReportSocket.getOutputStream());
+            mWriter.write(record, batch);
         } catch (IOException e) {
             CLog.e(e);
         }
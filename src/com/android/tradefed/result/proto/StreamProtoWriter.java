@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result.proto;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.proto.TestRecordProto.TestRecord;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Writes {@link TestRecord}s to a stream with the length-delimited framing read by {@link
+ * StreamProtoReceiver}.
+ *
+ * <p>The small records of the test cases can be batched: they are buffered until the batch is
+ * full, the next record that is not batched, or at most the maximum delay, so the receiver still
+ * follows the progress of the invocation.
+ */
+public class StreamProtoWriter implements Closeable {
+
+    /** Default maximum number of records buffered before being sent. */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    /** Default maximum time a record stays buffered. */
+    public static final long DEFAULT_MAX_DELAY_MS = 1000L;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream mOutput;
+    private final int mBatchSize;
+    private final Timer mFlushTimer;
+
+    /** Guarded by {@code this}. */
+    private int mPendingRecords = 0;
+    private long mWrittenRecords = 0;
+    private long mBatches = 0;
+    private boolean mClosed = false;
+
+    /**
+     * Creates a {@link StreamProtoWriter}.
+     *
+     * @param output the stream to write the records to.
+     * @param batchSize the maximum number of records sent together, 1 to send each record as it
+     *     is written.
+     * @param maxDelayMs the maximum time a record stays buffered.
+     */
+    public StreamProtoWriter(OutputStream output, int batchSize, long maxDelayMs) {
+        mOutput = new BufferedOutputStream(output, BUFFER_SIZE);
+        mBatchSize = Math.max(1, batchSize);
+        if (mBatchSize > 1 && maxDelayMs > 0) {
+            mFlushTimer = new Timer("StreamProtoWriter-flush", true);
+            mFlushTimer.schedule(
+                    new TimerTask() {
+                        @Override
+                        public void run() {
+                            try {
+                                flush();
+                            } catch (IOException e) {
+                                CLog.e(e);
+                            }
+                        }
+                    },
+                    maxDelayMs,
+                    maxDelayMs);
+        } else {
+            mFlushTimer = null;
+        }
+    }
+
+    /**
+     * Writes a record.
+     *
+     * @param record the {@link TestRecord} to write.
+     * @param batch whether the record can wait for the next ones, or must be sent right away with
+     *     the pending ones.
+     * @throws IOException if the record could not be written.
+     */
+    public synchronized void write(TestRecord record, boolean batch) throws IOException {
+        if (mClosed) {
+            throw new IOException("The proto stream is closed.");
+        }
+        record.writeDelimitedTo(mOutput);
+        mWrittenRecords++;
+        mPendingRecords++;
+        if (!batch || mPendingRecords >= mBatchSize) {
+            flush();
+        }
+    }
+
+    /** Sends the pending records. */
+    public synchronized void flush() throws IOException {
+        if (mClosed || mPendingRecords == 0) {
+            return;
+        }
+        mOutput.flush();
+        mPendingRecords = 0;
+        mBatches++;
+    }
+
+    /** Returns the number of records written and the number of batches they were sent in. */
+    public synchronized String getStats() {
+        return String.format("records=%d batches=%d", mWrittenRecords, mBatches);
+    }
+
+    /** Sends the pending records and closes the stream. */
+    @Override
+    public void close() throws IOException {
+        if (mFlushTimer != null) {
+            mFlushTimer.cancel();
+        }
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            try {
+                flush();
+            } finally {
+                mClosed = true;
+                mOutput.close();
+            }
+        }
+    }
+}
@@ -25,6 +25,8 @@ import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.StubDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.BinaryState;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
 import com.android.tradefed.util.MultiMap;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -302,6 +304,13 @@ public class DeviceSetup extends BaseTargetPreparer implements ITargetCleaner {
             "will be ignored.")
     protected boolean mForceSkipRunCommands = false;
 
+    @Option(
+            name = "batch-commands",
+            description =
+                    "Run the additional commands, and the settings when they are not restored, "
+                            + "with a single shell invocation instead of one per command.")
+    protected boolean mBatchCommands = false;
+
     @Option(name = "set-test-harness",
             description = "Set the read-only test harness flag on boot")
     protected boolean mSetTestHarness = true;
@@ -821,6 +830,15 @@ public class DeviceSetup extends BaseTargetPreparer implements ITargetCleaner {
                 break;
         }
 
+        if (mBatchCommands && !mRestoreSettings) {
+            List<String> commands = new ArrayList<>();
+            addSettingCommands(commands, "system", mSystemSettings);
+            addSettingCommands(commands, "secure", mSecureSettings);
+            addSettingCommands(commands, "global", mGlobalSettings);
+            runBatch(device, commands);
+            return;
+        }
+
         for (String key : mSystemSettings.keySet()) {
             for (String value : mSystemSettings.get(key)) {
                 if (mRestoreSettings) {
@@ -869,11 +887,48 @@ public class DeviceSetup extends BaseTargetPreparer implements ITargetCleaner {
             return;
         }
 
+        if (mBatchCommands) {
+            runBatch(device, commands);
+            return;
+        }
         for (String command : commands) {
             device.executeShellCommand(command);
         }
     }
 
+    /** Add the commands changing the settings of a namespace, in order. */
+    private void addSettingCommands(
+            List<String> commands, String namespace, MultiMap<String, String> settings) {
+        for (String key : settings.keySet()) {
+            for (String value : settings.get(key)) {
+                CLog.d("Changing %s setting %s to %s", namespace, key, value);
+                commands.add(
+                        String.format(
+                                "settings put %s %s %s", namespace, key.trim(), value.trim()));
+            }
+        }
+    }
+
+    /** Run independent commands with a single round trip, and log the ones that failed. */
+    private void runBatch(ITestDevice device, List<String> commands)
+            throws DeviceNotAvailableException {
+        if (commands.isEmpty()) {
+            return;
+        }
+        List<CommandResult> results = device.executeShellCommands(commands);
+        for (int i = 0; i < commands.size() && i < results.size(); i++) {
+            CommandResult result = results.get(i);
+            if (!CommandStatus.SUCCESS.equals(result.getStatus())) {
+                CLog.w(
+                        "Command '%s' failed on %s with exit code %s: %s",
+                        commands.get(i),
+                        device.getSerialNumber(),
+                        result.getExitCode(),
+                        result.getStdout());
+            }
+        }
+    }
+
     /**
      * Connects device to Wifi if SSID is specified.
      *
@@ -1348,6 +1403,11 @@ public class DeviceSetup extends BaseTargetPreparer implements ITargetCleaner {
         mRestoreSettings = restoreSettings;
     }
 
+    /** Exposed for unit testing */
+    protected void setBatchCommands(boolean batchCommands) {
+        mBatchCommands = batchCommands;
+    }
+
     /**
      * Exposed for unit testing
      * @deprecated use {@link #setMinExternalStorageKb(long)} instead.
@@ -24,6 +24,7 @@ import com.android.tradefed.device.CollectingOutputReceiver;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.EventBufferingListener;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.util.FileUtil;
 
@@ -34,8 +35,19 @@ import org.json.JSONObject;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /** A Test that runs a native test package on given device. */
 @OptionClass(alias = "gtest")
@@ -58,8 +70,50 @@ public class GTest extends GTestBase implements IDeviceTest {
             description = "Stops the Java application runtime before test execution.")
     private boolean mStopRuntime = false;
 
+    @Option(
+            name = "single-pass-discovery",
+            description =
+                    "List all the test binaries with a single shell command instead of walking "
+                            + "the test directory one file at a time. The listing is reused by the "
+                            + "following runs of the invocation.")
+    private boolean mSinglePassDiscovery = false;
+
+    @Option(
+            name = "parallel-binary-count",
+            description =
+                    "Max number of test binaries to run concurrently on the device. Results are "
+                            + "still reported one binary after the other, in the discovery order. "
+                            + "Ignored with reboot-before-test, before-test-cmd and "
+                            + "after-test-cmd.")
+    private int mParallelBinaryCount = 1;
+
+    @Option(
+            name = "serial-binary-regex",
+            description =
+                    "Regex of the full path of the test binaries that must not run concurrently "
+                            + "with other binaries when parallel-binary-count is set. May be "
+                            + "repeated.")
+    private List<String> mSerialBinaryRegex = new ArrayList<>();
+
+    /** Serializes the binaries run through the shared command script. */
+    private final Object mScriptLock = new Object();
+
     // Max characters allowed for executing GTest via command line
     private static final int GTEST_CMD_CHAR_LIMIT = 1000;
+
+    /** Printed once the discovery command listed all the files. */
+    private static final String DISCOVERY_DONE = "TF_GTEST_DISCOVERY_DONE";
+    /** Output line of the discovery command: the file mode, then the full path. */
+    private static final Pattern DISCOVERED_FILE = Pattern.compile("^(\\S{10})\\s+(/.*)$");
+    /** Same as the executable check of NativeDevice. */
+    private static final Pattern EXE_MODE = Pattern.compile("^[-l]r.x.+");
+
+    /**
+     * Listings of the test binaries, by device serial and root path. Only kept for the invocation,
+     * since the test binaries can be pushed again independently of the device build.
+     */
+    private final Map<String, List<String>> mDiscoveryCache = new HashMap<>();
+
     /**
      * {@inheritDoc}
      */
@@ -127,25 +181,263 @@ public class GTest extends GTestBase implements IDeviceTest {
     void doRunAllTestsInSubdirectory(
             String root, ITestDevice testDevice, ITestInvocationListener listener)
             throws DeviceNotAvailableException {
+        List<String> binaries = new ArrayList<>();
+        collectTestBinaries(root, testDevice, binaries);
+        if (canRunBinariesInParallel()) {
+            runTestBinariesInParallel(binaries, testDevice, listener);
+        } else {
+            for (String binary : binaries) {
+                runTestBinary(binary, testDevice, listener);
+            }
+        }
+    }
+
+    /** Collect the test binaries to run under a root, in the order they should be reported. */
+    private void collectTestBinaries(String root, ITestDevice testDevice, List<String> binaries)
+            throws DeviceNotAvailableException {
+        if (mSinglePassDiscovery) {
+            List<String> discovered = discoverTestBinaries(root, testDevice);
+            if (discovered != null) {
+                for (String binary : discovered) {
+                    if (!matchesFileExclusionFilter(binary)) {
+                        binaries.add(binary);
+                    }
+                }
+                return;
+            }
+            CLog.w("Could not list %s in a single pass, walking the directories.", root);
+        }
+        walkTestBinaries(root, testDevice, binaries);
+    }
+
+    private void walkTestBinaries(String root, ITestDevice testDevice, List<String> binaries)
+            throws DeviceNotAvailableException {
         if (testDevice.isDirectory(root)) {
-            // recursively run tests in all subdirectories
+            // recursively collect tests in all subdirectories
             for (String child : testDevice.getChildren(root)) {
-                doRunAllTestsInSubdirectory(root + "/" + child, testDevice, listener);
+                walkTestBinaries(root + "/" + child, testDevice, binaries);
             }
         } else {
             // assume every file is a valid gtest binary.
-            IShellOutputReceiver resultParser = createResultParser(getFileName(root), listener);
             if (shouldSkipFile(root)) {
                 return;
             }
-            String flags = getAllGTestFlags(root);
-            CLog.i("Running gtest %s %s on %s", root, flags, testDevice.getSerialNumber());
-            if (isEnableXmlOutput()) {
-                runTestXml(testDevice, root, flags, listener);
+            binaries.add(root);
+        }
+    }
+
+    /**
+     * Run the test binaries concurrently, at most {@code parallel-binary-count} at a time. Each
+     * binary reports to its own {@link EventBufferingListener}, flushed in the order of the
+     * binaries once it completed, so the listener receives the same events in the same order as
+     * a serial run. Binaries matching {@code serial-binary-regex} run alone, after the binaries
+     * before them completed.
+     */
+    private void runTestBinariesInParallel(
+            List<String> binaries, ITestDevice testDevice, ITestInvocationListener listener)
+            throws DeviceNotAvailableException {
+        List<String> batch = new ArrayList<>();
+        for (String binary : binaries) {
+            if (mustRunSerially(binary)) {
+                runTestBinaryBatch(batch, testDevice, listener);
+                batch.clear();
+                runTestBinary(binary, testDevice, listener);
             } else {
-                runTest(testDevice, resultParser, root, flags);
+                batch.add(binary);
+            }
+        }
+        runTestBinaryBatch(batch, testDevice, listener);
+    }
+
+    /**
+     * Returns true if the binaries can run concurrently. The commands run before and after each
+     * binary, and the reboot, would affect the binaries that are running.
+     */
+    private boolean canRunBinariesInParallel() {
+        if (mParallelBinaryCount <= 1) {
+            return false;
+        }
+        if (mRebootBeforeTest || !getBeforeTestCmd().isEmpty() || !getAfterTestCmd().isEmpty()) {
+            CLog.w(
+                    "Ignoring parallel-binary-count, the binaries run one after the other with "
+                            + "reboot-before-test, before-test-cmd or after-test-cmd.");
+            return false;
+        }
+        return true;
+    }
+
+    private boolean mustRunSerially(String fullPath) {
+        for (String regex : mSerialBinaryRegex) {
+            if (fullPath.matches(regex)) {
+                CLog.d("Binary %s matches serial binary regex %s", fullPath, regex);
+                return true;
             }
         }
+        return false;
+    }
+
+    private void runTestBinaryBatch(
+            List<String> batch, ITestDevice testDevice, ITestInvocationListener listener)
+            throws DeviceNotAvailableException {
+        if (batch.size() <= 1) {
+            for (String binary : batch) {
+                runTestBinary(binary, testDevice, listener);
+            }
+            return;
+        }
+        ExecutorService executor =
+                Executors.newFixedThreadPool(
+                        Math.min(mParallelBinaryCount, batch.size()),
+                        r -> {
+                            Thread t = new Thread(r, "GTest-" + testDevice.getSerialNumber());
+                            t.setDaemon(true);
+                            return t;
+                        });
+        Map<EventBufferingListener, Future<?>> runs = new LinkedHashMap<>();
+        try {
+            for (String binary : batch) {
+                EventBufferingListener buffer = new EventBufferingListener(listener);
+                // The parser and the flags depend on the shared filters, prepare them here.
+                IShellOutputReceiver resultParser =
+                        createResultParser(getFileName(binary), buffer);
+                String flags = getAllGTestFlags(binary);
+                runs.put(
+                        buffer,
+                        executor.submit(
+                                () -> {
+                                    runTestBinary(
+                                            binary, flags, resultParser, testDevice, buffer);
+                                    return null;
+                                }));
+            }
+            Throwable error = null;
+            for (Map.Entry<EventBufferingListener, Future<?>> run : runs.entrySet()) {
+                try {
+                    run.getValue().get();
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = e.getCause();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+                run.getKey().flush();
+            }
+            if (error instanceof DeviceNotAvailableException) {
+                throw (DeviceNotAvailableException) error;
+            } else if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            } else if (error instanceof Error) {
+                throw (Error) error;
+            } else if (error != null) {
+                throw new RuntimeException(error);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Run one gtest binary. */
+    private void runTestBinary(
+            String fullPath, ITestDevice testDevice, ITestInvocationListener listener)
+            throws DeviceNotAvailableException {
+        IShellOutputReceiver resultParser = createResultParser(getFileName(fullPath), listener);
+        String flags = getAllGTestFlags(fullPath);
+        runTestBinary(fullPath, flags, resultParser, testDevice, listener);
+    }
+
+    private void runTestBinary(
+            String fullPath,
+            String flags,
+            IShellOutputReceiver resultParser,
+            ITestDevice testDevice,
+            ITestInvocationListener listener)
+            throws DeviceNotAvailableException {
+        CLog.i("Running gtest %s %s on %s", fullPath, flags, testDevice.getSerialNumber());
+        if (isEnableXmlOutput()) {
+            runTestXml(testDevice, fullPath, flags, listener);
+        } else {
+            runTest(testDevice, resultParser, fullPath, flags);
+        }
+    }
+
+    /**
+     * Lists all the executable files under a root in a single shell command. The listing is
+     * cached for the device until the end of the invocation, before applying the file exclusion
+     * filters.
+     *
+     * @param root the root folder of the native tests, or a single test binary.
+     * @param testDevice the device to list the files of.
+     * @return the full path of the executable files in the order of a depth-first walk of the
+     *     sorted directories, or null if they could not be listed.
+     */
+    @VisibleForTesting
+    List<String> discoverTestBinaries(String root, ITestDevice testDevice)
+            throws DeviceNotAvailableException {
+        String key = String.format("%s:%s", testDevice.getSerialNumber(), root);
+        synchronized (mDiscoveryCache) {
+            List<String> cached = mDiscoveryCache.get(key);
+            if (cached != null) {
+                CLog.d("Using cached listing of %s", root);
+                return cached;
+            }
+        }
+        String output =
+                testDevice.executeShellCommand(
+                        String.format(
+                                "find \"%s\" \\( -type f -o -type l \\) -exec stat -c '%%A %%n' "
+                                        + "{} + && echo %s",
+                                root, DISCOVERY_DONE));
+        List<String> binaries = parseTestBinaries(output);
+        if (binaries != null) {
+            synchronized (mDiscoveryCache) {
+                mDiscoveryCache.put(key, binaries);
+            }
+        }
+        return binaries;
+    }
+
+    /**
+     * Parse the output of the discovery command.
+     *
+     * @return the sorted executable files, or null if the output is incomplete.
+     */
+    @VisibleForTesting
+    static List<String> parseTestBinaries(String output) {
+        if (output == null) {
+            return null;
+        }
+        List<String> binaries = new ArrayList<>();
+        boolean done = false;
+        for (String line : output.split("\r?\n")) {
+            if (DISCOVERY_DONE.equals(line)) {
+                done = true;
+            }
+            // Same check as ITestDevice#isExecutable, symlinks are considered executable.
+            Matcher matcher = DISCOVERED_FILE.matcher(line);
+            if (matcher.matches() && EXE_MODE.matcher(matcher.group(1)).find()) {
+                binaries.add(matcher.group(2));
+            }
+        }
+        if (!done) {
+            return null;
+        }
+        Collections.sort(binaries, GTest::comparePaths);
+        return Collections.unmodifiableList(binaries);
+    }
+
+    /** Orders paths as a depth-first walk of the directories sorted by name. */
+    private static int comparePaths(String path1, String path2) {
+        String[] parts1 = path1.split("/");
+        String[] parts2 = path2.split("/");
+        for (int i = 0; i < Math.min(parts1.length, parts2.length); i++) {
+            int result = parts1[i].compareTo(parts2[i]);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return Integer.compare(parts1.length, parts2.length);
     }
 
     String getFileName(String fullPath) {
@@ -174,6 +466,16 @@ public class GTest extends GTestBase implements IDeviceTest {
         if (!mDevice.isExecutable(fullPath)) {
             return true;
         }
+        return matchesFileExclusionFilter(fullPath);
+    }
+
+    /**
+     * Helper method to determine if a file matches one of the file exclusion filters.
+     *
+     * @param fullPath the full path of the file in question
+     * @return true if we should skip the said file.
+     */
+    private boolean matchesFileExclusionFilter(String fullPath) {
         List<String> fileExclusionFilterRegex = getFileExclusionFilterRegex();
         if (fileExclusionFilterRegex == null || fileExclusionFilterRegex.isEmpty()) {
             return false;
@@ -197,16 +499,19 @@ public class GTest extends GTestBase implements IDeviceTest {
     protected void executeCommandByScript(final ITestDevice testDevice, final String cmd,
             final IShellOutputReceiver resultParser) throws DeviceNotAvailableException {
         String tmpFileDevice = "/data/local/tmp/gtest_script.sh";
-        testDevice.pushString(String.format("#!/bin/bash\n%s", cmd), tmpFileDevice);
-        // force file to be executable
-        testDevice.executeShellCommand(String.format("chmod 755 %s", tmpFileDevice));
-        testDevice.executeShellCommand(
-                String.format("sh %s", tmpFileDevice),
-                resultParser,
-                getMaxTestTimeMs() /* maxTimeToShellOutputResponse */,
-                TimeUnit.MILLISECONDS,
-                0 /* retry attempts */);
-        testDevice.deleteFile(tmpFileDevice);
+        // The script path is shared by the binaries running concurrently.
+        synchronized (mScriptLock) {
+            testDevice.pushString(String.format("#!/bin/bash\n%s", cmd), tmpFileDevice);
+            // force file to be executable
+            testDevice.executeShellCommand(String.format("chmod 755 %s", tmpFileDevice));
+            testDevice.executeShellCommand(
+                    String.format("sh %s", tmpFileDevice),
+                    resultParser,
+                    getMaxTestTimeMs() /* maxTimeToShellOutputResponse */,
+                    TimeUnit.MILLISECONDS,
+                    0 /* retry attempts */);
+            testDevice.deleteFile(tmpFileDevice);
+        }
     }
 
     @Override
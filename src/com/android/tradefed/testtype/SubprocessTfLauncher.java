@@ -80,6 +80,13 @@ public abstract class SubprocessTfLauncher
             + "arrived instead of using a temporary file and parsing at the end.")
     private boolean mEventStreaming = true;
 
+    @Option(
+            name = "use-proto-event-stream",
+            description =
+                    "Offer the subprocess to stream its events as protos instead of JSON. "
+                            + "Subprocesses not supporting it keep sending JSON.")
+    private boolean mProtoEventStream = true;
+
     @Option(name = "sub-global-config", description = "The global config name to pass to the"
             + "sub process, can be local or from jar resources. Be careful of conflicts with "
             + "parent process.")
@@ -179,6 +186,11 @@ public abstract class SubprocessTfLauncher
         mRunUtil.unsetEnvVariable(GlobalConfiguration.GLOBAL_CONFIG_VARIABLE);
         mRunUtil.unsetEnvVariable(GlobalConfiguration.GLOBAL_CONFIG_SERVER_CONFIG_VARIABLE);
         mRunUtil.unsetEnvVariable(ANDROID_SERIAL_VAR);
+        if (mEventStreaming && mProtoEventStream) {
+            mRunUtil.setEnvVariable(SubprocessTestResultsParser.PROTO_STREAM_ENV_VARIABLE, "1");
+        } else {
+            mRunUtil.unsetEnvVariable(SubprocessTestResultsParser.PROTO_STREAM_ENV_VARIABLE);
+        }
 
         if (mGlobalConfig == null) {
             // If the global configuration is not set in option, create a filtered global
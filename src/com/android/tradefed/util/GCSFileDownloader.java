@@ -18,6 +18,7 @@ package com.android.tradefed.util;
 
 import com.android.tradefed.build.BuildRetrievalError;
 import com.android.tradefed.build.IFileDownloader;
+import com.android.tradefed.build.IRangeFileDownloader;
 import com.android.tradefed.log.LogUtil.CLog;
 
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
@@ -32,6 +33,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -44,7 +46,8 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /** File downloader to download file from google cloud storage (GCS). */
-public class GCSFileDownloader extends GCSCommon implements IFileDownloader {
+public class GCSFileDownloader extends GCSCommon
+        implements IFileDownloader, IRangeFileDownloader {
     public static final String GCS_PREFIX = "gs://";
     public static final String GCS_APPROX_PREFIX = "gs:/";
 
@@ -127,6 +130,39 @@ public class GCSFileDownloader extends GCSCommon implements IFileDownloader {
         downloadFile(pathParts[0], pathParts[1], destFile);
     }
 
+    @Override
+    public long getRemoteFileSize(String remotePath) throws IOException {
+        String[] pathParts;
+        try {
+            pathParts = parseGcsPath(remotePath);
+        } catch (BuildRetrievalError e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        StorageObject remoteFileMeta = getRemoteFileMetaData(pathParts[0], pathParts[1]);
+        if (remoteFileMeta == null || remoteFileMeta.getSize() == null) {
+            // A folder, or a missing file: let the regular download handle it.
+            return -1;
+        }
+        return remoteFileMeta.getSize().longValue();
+    }
+
+    @Override
+    public void downloadRange(String remotePath, long start, long length, OutputStream out)
+            throws IOException {
+        String[] pathParts;
+        try {
+            pathParts = parseGcsPath(remotePath);
+        } catch (BuildRetrievalError e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        Storage.Objects.Get get = getStorage().objects().get(pathParts[0], pathParts[1]);
+        // In chunked mode, the media downloader replaces the range with its own ones until the
+        // whole object is read.
+        get.getMediaHttpDownloader().setDirectDownloadEnabled(true);
+        get.getRequestHeaders().setRange(String.format("bytes=%d-%d", start, start + length - 1));
+        get.executeMediaAndDownloadTo(out);
+    }
+
     private boolean isFileFresh(File localFile, StorageObject remoteFile) throws IOException {
         if (localFile == null && remoteFile == null) {
             return true;
@@ -50,6 +50,7 @@ public class SizeLimitedOutputStream extends OutputStream {
     private final long mMaxFileSize;
     private CountingOutputStream mCurrentOutputStream;
     private int mCurrentFilePos = 0;
+    private long mDiscardedSize = 0;
     private final String mTempFilePrefix;
     private final String mTempFileSuffix;
 
@@ -91,14 +92,34 @@ public class SizeLimitedOutputStream extends OutputStream {
      * @return The collected output as a {@link InputStream}.
      */
     public synchronized InputStream getData() throws IOException {
+        return getData(0);
+    }
+
+    /**
+     * Gets the collected output starting at the given offset as a {@link InputStream}. Only the
+     * backing files holding data after the offset are read.
+     *
+     * @param offset the number of bytes to skip from the start of the collected output.
+     * @return The collected output after the offset as a {@link InputStream}.
+     */
+    public synchronized InputStream getData(long offset) throws IOException {
         flush();
         InputStream combinedStream = null;
         for (int i = 0; i < mFiles.length; i++) {
             // oldest/starting file is always the next one up from current
             int currentPos = (mCurrentFilePos + i + 1) % mFiles.length;
             if (mFiles[currentPos] != null) {
+                long length = mFiles[currentPos].length();
+                if (offset >= length) {
+                    offset -= length;
+                    continue;
+                }
                 @SuppressWarnings("resource")
                 FileInputStream fStream = new FileInputStream(mFiles[currentPos]);
+                if (offset > 0) {
+                    fStream.skip(offset);
+                    offset = 0;
+                }
                 if (combinedStream == null) {
                     combinedStream = fStream;
                 } else {
@@ -113,6 +134,14 @@ public class SizeLimitedOutputStream extends OutputStream {
 
     }
 
+    /**
+     * Returns the number of bytes dropped from the start of the collected output since the stream
+     * was created, because the maximum size was reached.
+     */
+    public synchronized long getDiscardedSize() {
+        return mDiscardedSize;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -163,6 +192,9 @@ public class SizeLimitedOutputStream extends OutputStream {
         // close current stream
         close();
         mCurrentFilePos = getNextIndex(mCurrentFilePos);
+        if (mFiles[mCurrentFilePos] != null) {
+            mDiscardedSize += mFiles[mCurrentFilePos].length();
+        }
         FileUtil.deleteFile(mFiles[mCurrentFilePos]);
         mFiles[mCurrentFilePos] = FileUtil.createTempFile(mTempFilePrefix, mTempFileSuffix);
         mCurrentOutputStream = new CountingOutputStream(new BufferedOutputStream(
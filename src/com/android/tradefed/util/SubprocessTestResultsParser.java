@@ -17,12 +17,19 @@ package com.android.tradefed.util;
 
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.invoker.IInvocationContext;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.invoker.proto.InvocationContext.Context;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.FileInputStreamSource;
 import com.android.tradefed.result.ILogSaverListener;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.result.TestDescription;
+import com.android.tradefed.result.proto.ProtoResultParser;
+import com.android.tradefed.result.proto.LogFileProto.LogFileInfo;
+import com.android.tradefed.result.proto.ProtoResultParser.TestLevel;
+import com.android.tradefed.result.proto.TestRecordProto.TestRecord;
 import com.android.tradefed.util.SubprocessEventHelper.BaseTestEventInfo;
 import com.android.tradefed.util.SubprocessEventHelper.FailedTestEventInfo;
 import com.android.tradefed.util.SubprocessEventHelper.InvocationEndedEventInfo;
@@ -38,16 +45,22 @@ import com.android.tradefed.util.SubprocessEventHelper.TestRunStartedEventInfo;
 import com.android.tradefed.util.SubprocessEventHelper.TestStartedEventInfo;
 import com.android.tradefed.util.proto.TfMetricProtoUtil;
 
+import com.google.protobuf.Any;
+import com.google.protobuf.InvalidProtocolBufferException;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.ServerSocket;
 import java.net.Socket;
@@ -55,6 +68,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
@@ -66,6 +80,23 @@ import java.util.regex.Pattern;
  */
 public class SubprocessTestResultsParser implements Closeable {
 
+    /**
+     * Environment variable set for the subprocess when the parent accepts the events as a stream
+     * of protos. Older subprocesses ignore it and keep sending the events as JSON.
+     */
+    public static final String PROTO_STREAM_ENV_VARIABLE = "TF_SUBPROCESS_PROTO_STREAM";
+    /**
+     * First line sent by the subprocess when it switches the socket to a stream of length-delimited
+     * {@link TestRecord}s.
+     */
+    public static final String PROTO_STREAM_HEADER = "PROTO_STREAM_V1";
+    /**
+     * Id of the {@link TestRecord}s of the proto stream that only carry a log, as artifact, sent
+     * as soon as it is logged like the {@link StatusKeys#TEST_LOG} events. The file is a temporary
+     * copy, deleted once logged.
+     */
+    public static final String TEST_LOG_RECORD_ID = StatusKeys.TEST_LOG;
+
     private ITestInvocationListener mListener;
 
     private TestDescription mCurrentTest = null;
@@ -135,31 +166,81 @@ public class SubprocessTestResultsParser implements Closeable {
         @Override
         public void run() {
             Socket client = null;
+            InputStream stream = null;
             BufferedReader in = null;
             try {
                 client = mSocket.accept();
-                in = new BufferedReader(new InputStreamReader(client.getInputStream()));
-                String event = null;
-                while ((event = in.readLine()) != null) {
-                    try {
-                        if (mShouldParse) {
-                            CLog.d("received event: '%s'", event);
-                            parse(event);
-                        } else {
-                            CLog.d("Skipping parsing of event: '%s'", event);
-                        }
-                    } catch (JSONException e) {
-                        CLog.e(e);
-                    }
+                stream = new BufferedInputStream(client.getInputStream());
+                String event = readFirstLine(stream);
+                if (PROTO_STREAM_HEADER.equals(event)) {
+                    CLog.d("Receiving the events as protos.");
+                    receiveProtos(stream);
+                } else {
+                    in = new BufferedReader(new InputStreamReader(stream));
+                    receiveEvents(event, in);
                 }
             } catch (IOException e) {
                 CLog.e(e);
             } finally {
                 StreamUtil.close(in);
+                StreamUtil.close(stream);
                 mCountDown.countDown();
             }
             CLog.d("EventReceiverThread done.");
         }
+
+        private void receiveEvents(String firstEvent, BufferedReader in) throws IOException {
+            String event = firstEvent;
+            while (event != null) {
+                try {
+                    if (mShouldParse) {
+                        CLog.d("received event: '%s'", event);
+                        parse(event);
+                    } else {
+                        CLog.d("Skipping parsing of event: '%s'", event);
+                    }
+                } catch (JSONException e) {
+                    CLog.e(e);
+                }
+                event = in.readLine();
+            }
+        }
+
+        /**
+         * Reads the first line without reading ahead, so that the rest of the stream can be read
+         * as protos.
+         */
+        private String readFirstLine(InputStream stream) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = stream.read()) != -1 && b != '\n') {
+                line.write(b);
+            }
+            if (b == -1 && line.size() == 0) {
+                return null;
+            }
+            String firstLine = line.toString();
+            if (firstLine.endsWith("\r")) {
+                firstLine = firstLine.substring(0, firstLine.length() - 1);
+            }
+            return firstLine;
+        }
+
+        private void receiveProtos(InputStream stream) throws IOException {
+            ProtoResultParser parser = new ProtoResultParser(mListener, mContext, false);
+            TestRecord record = null;
+            while ((record = TestRecord.parseDelimitedFrom(stream)) != null) {
+                try {
+                    if (mShouldParse) {
+                        parseProto(parser, record);
+                    } else {
+                        CLog.d("Skipping parsing of proto: '%s'", record.getTestRecordId());
+                    }
+                } catch (RuntimeException e) {
+                    CLog.e(e);
+                }
+            }
+        }
     }
 
     /**
@@ -320,6 +401,61 @@ public class SubprocessTestResultsParser implements Closeable {
         }
     }
 
+    /** Replays a proto received from the subprocess, and tracks the state of the invocation. */
+    private void parseProto(ProtoResultParser parser, TestRecord record) {
+        if (TEST_LOG_RECORD_ID.equals(record.getTestRecordId()) && !record.hasStartTime()) {
+            handleTestLogProto(record);
+            return;
+        }
+        if (record.getParentTestRecordId().isEmpty() && !record.hasEndTime()) {
+            handleInvocationStartedProto(record);
+        }
+        TestLevel level = parser.processNewProto(record);
+        if (TestLevel.TEST_CASE.equals(level)) {
+            if (record.hasEndTime()) {
+                mCurrentTest = null;
+            } else {
+                String[] info = record.getTestRecordId().split("#");
+                mCurrentTest = new TestDescription(info[0], info[1]);
+            }
+        } else if (TestLevel.TEST_RUN.equals(level) && record.hasEndTime()) {
+            mCurrentTest = null;
+        }
+    }
+
+    private void handleTestLogProto(TestRecord record) {
+        for (Entry<String, Any> entry : record.getArtifacts().entrySet()) {
+            LogFileInfo info;
+            try {
+                info = entry.getValue().unpack(LogFileInfo.class);
+            } catch (InvalidProtocolBufferException e) {
+                CLog.e("Couldn't unpack %s as a LogFileInfo", entry.getKey());
+                CLog.e(e);
+                continue;
+            }
+            String name = String.format("subprocess-%s", entry.getKey());
+            try (InputStreamSource data =
+                    new FileInputStreamSource(new File(info.getPath()), true)) {
+                mListener.testLog(name, LogDataType.valueOf(info.getLogType()), data);
+            }
+        }
+    }
+
+    private void handleInvocationStartedProto(TestRecord record) {
+        mStartTime =
+                record.getStartTime().getSeconds() * 1000L
+                        + record.getStartTime().getNanos() / 1000000L;
+        try {
+            IInvocationContext context =
+                    InvocationContext.fromProto(record.getDescription().unpack(Context.class));
+            if (mContext.getTestTag() == null || "stub".equals(mContext.getTestTag())) {
+                mContext.setTestTag(context.getTestTag());
+            }
+        } catch (InvalidProtocolBufferException e) {
+            CLog.e(e);
+        }
+    }
+
     private void checkCurrentTestId(String className, String testName) {
         if (mCurrentTest == null) {
             mCurrentTest = new TestDescription(className, testName);
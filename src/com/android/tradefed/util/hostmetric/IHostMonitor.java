@@ -23,6 +23,8 @@ public interface IHostMonitor {
     public enum HostMetricType {
         NONE,
         INVOCATION_STRAY_THREAD,
+        SCHEDULER_WAKE_UP,
+        SCHEDULER_EVENT_LATENCY,
     }
 
     /**
@@ -22,7 +22,9 @@ import com.android.tradefed.build.BuildInfoTest;
 import com.android.tradefed.build.DeviceBuildDescriptorTest;
 import com.android.tradefed.build.DeviceBuildInfoTest;
 import com.android.tradefed.build.DeviceFolderBuildInfoTest;
+import com.android.tradefed.build.FileDownloadCacheIndexTest;
 import com.android.tradefed.build.FileDownloadCacheTest;
+import com.android.tradefed.build.FileDownloadCoordinatorTest;
 import com.android.tradefed.build.GCSTestResourceProviderTest;
 import com.android.tradefed.build.LocalDeviceBuildProviderTest;
 import com.android.tradefed.build.OtaZipfileBuildProviderTest;
@@ -34,6 +36,7 @@ import com.android.tradefed.command.CommandOptionsTest;
 import com.android.tradefed.command.CommandRunnerTest;
 import com.android.tradefed.command.CommandSchedulerTest;
 import com.android.tradefed.command.ConsoleTest;
+import com.android.tradefed.command.SchedulerEventQueueTest;
 import com.android.tradefed.command.VerifyTest;
 import com.android.tradefed.command.remote.RemoteManagerTest;
 import com.android.tradefed.command.remote.RemoteOperationTest;
@@ -54,19 +57,31 @@ import com.android.tradefed.config.gcs.GCSConfigurationFactoryTest;
 import com.android.tradefed.config.gcs.GCSConfigurationServerTest;
 import com.android.tradefed.config.remote.GcsRemoteFileResolverTest;
 import com.android.tradefed.device.AndroidDebugBridgeWrapperTest;
+import com.android.tradefed.device.AvailableDeviceIndexTest;
 import com.android.tradefed.device.BackgroundDeviceActionTest;
+import com.android.tradefed.device.CollectingFileOutputReceiverTest;
+import com.android.tradefed.device.ContentHashSyncerTest;
 import com.android.tradefed.device.CpuStatsCollectorTest;
 import com.android.tradefed.device.DeviceManagerTest;
+import com.android.tradefed.device.DevicePropertyCacheTest;
 import com.android.tradefed.device.DeviceSelectionOptionsTest;
+import com.android.tradefed.device.DeviceSnapshotCacheTest;
 import com.android.tradefed.device.DeviceStateMonitorTest;
 import com.android.tradefed.device.DeviceUtilStatsMonitorTest;
+import com.android.tradefed.device.DirectoryPullerTest;
+import com.android.tradefed.device.DirectoryPusherTest;
 import com.android.tradefed.device.DumpsysPackageReceiverTest;
+import com.android.tradefed.device.FastbootDeviceDiscoveryTest;
 import com.android.tradefed.device.FastbootHelperTest;
+import com.android.tradefed.device.LogcatReceiverTest;
+import com.android.tradefed.device.LogcatTimestampIndexTest;
 import com.android.tradefed.device.ManagedDeviceListTest;
 import com.android.tradefed.device.ManagedTestDeviceFactoryTest;
 import com.android.tradefed.device.NativeDeviceTest;
+import com.android.tradefed.device.PersistentShellTest;
 import com.android.tradefed.device.ReconnectingRecoveryTest;
 import com.android.tradefed.device.RemoteAndroidDeviceTest;
+import com.android.tradefed.device.ShellCommandBatchTest;
 import com.android.tradefed.device.TestDeviceTest;
 import com.android.tradefed.device.TopHelperTest;
 import com.android.tradefed.device.WaitDeviceRecoveryTest;
@@ -116,6 +131,7 @@ import com.android.tradefed.host.LocalHostResourceManagerTest;
 import com.android.tradefed.host.gcs.GCSHostResourceManagerTest;
 import com.android.tradefed.invoker.InvocationContextTest;
 import com.android.tradefed.invoker.InvocationExecutionTest;
+import com.android.tradefed.invoker.ParallelDeviceTasksTest;
 import com.android.tradefed.invoker.RemoteInvocationExecutionTest;
 import com.android.tradefed.invoker.SandboxedInvocationExecutionTest;
 import com.android.tradefed.invoker.ShardListenerTest;
@@ -129,9 +145,11 @@ import com.android.tradefed.invoker.shard.ShardHelperTest;
 import com.android.tradefed.invoker.shard.StrictShardHelperTest;
 import com.android.tradefed.invoker.shard.TestsPoolPollerTest;
 import com.android.tradefed.invoker.shard.token.TokenProviderHelperTest;
+import com.android.tradefed.log.AsyncLogWriterTest;
 import com.android.tradefed.log.FileLoggerTest;
 import com.android.tradefed.log.HistoryLoggerTest;
 import com.android.tradefed.log.LogRegistryTest;
+import com.android.tradefed.log.LogUtilTest;
 import com.android.tradefed.log.TerribleFailureEmailHandlerTest;
 import com.android.tradefed.postprocessor.AggregatePostProcessorTest;
 import com.android.tradefed.postprocessor.AveragePostProcessorTest;
@@ -142,6 +160,7 @@ import com.android.tradefed.result.ConsoleResultReporterTest;
 import com.android.tradefed.result.DeviceFileReporterTest;
 import com.android.tradefed.result.DeviceUnavailEmailResultReporterTest;
 import com.android.tradefed.result.EmailResultReporterTest;
+import com.android.tradefed.result.EventBufferingListenerTest;
 import com.android.tradefed.result.FailureEmailResultReporterTest;
 import com.android.tradefed.result.FileSystemLogSaverTest;
 import com.android.tradefed.result.InvocationFailureEmailResultReporterTest;
@@ -152,6 +171,7 @@ import com.android.tradefed.result.LegacySubprocessResultsReporterTest;
 import com.android.tradefed.result.LogFileSaverTest;
 import com.android.tradefed.result.LogcatCrashResultForwarderTest;
 import com.android.tradefed.result.MetricsXMLResultReporterTest;
+import com.android.tradefed.result.ResultForwarderTest;
 import com.android.tradefed.result.SnapshotInputStreamSourceTest;
 import com.android.tradefed.result.SubprocessResultsReporterTest;
 import com.android.tradefed.result.TestDescriptionTest;
@@ -165,6 +185,7 @@ import com.android.tradefed.result.proto.FileProtoResultReporterTest;
 import com.android.tradefed.result.proto.ProtoResultParserTest;
 import com.android.tradefed.result.proto.ProtoResultReporterTest;
 import com.android.tradefed.result.proto.StreamProtoResultReporterTest;
+import com.android.tradefed.result.proto.StreamProtoWriterTest;
 import com.android.tradefed.result.suite.FormattedGeneratorReporterTest;
 import com.android.tradefed.result.suite.XmlSuiteResultFormatterTest;
 import com.android.tradefed.sandbox.SandboxConfigDumpTest;
@@ -373,7 +394,9 @@ import org.junit.runners.Suite.SuiteClasses;
     DeviceBuildInfoTest.class,
     DeviceBuildDescriptorTest.class,
     DeviceFolderBuildInfoTest.class,
+    FileDownloadCacheIndexTest.class,
     FileDownloadCacheTest.class,
+    FileDownloadCoordinatorTest.class,
     GCSTestResourceProviderTest.class,
     LocalDeviceBuildProviderTest.class,
     OtaZipfileBuildProviderTest.class,
@@ -389,6 +412,7 @@ import org.junit.runners.Suite.SuiteClasses;
     CommandRunnerTest.class,
     CommandSchedulerTest.class,
     ConsoleTest.class,
+    SchedulerEventQueueTest.class,
     VerifyTest.class,
 
     // command.remote
@@ -419,20 +443,32 @@ import org.junit.runners.Suite.SuiteClasses;
 
     // device
     AndroidDebugBridgeWrapperTest.class,
+    AvailableDeviceIndexTest.class,
     BackgroundDeviceActionTest.class,
+    CollectingFileOutputReceiverTest.class,
+    ContentHashSyncerTest.class,
     CpuStatsCollectorTest.class,
     DeviceManagerTest.class,
+    DevicePropertyCacheTest.class,
     DeviceSelectionOptionsTest.class,
+    DeviceSnapshotCacheTest.class,
     DeviceStateMonitorTest.class,
     DeviceUtilStatsMonitorTest.class,
+    DirectoryPullerTest.class,
+    DirectoryPusherTest.class,
     DumpsysPackageReceiverTest.class,
+    FastbootDeviceDiscoveryTest.class,
     FastbootHelperTest.class,
+    LogcatReceiverTest.class,
+    LogcatTimestampIndexTest.class,
     ManagedDeviceListTest.class,
     ManagedTestDeviceFactoryTest.class,
     NativeDeviceTest.class,
+    PersistentShellTest.class,
     ReconnectingRecoveryTest.class,
     RemoteAndroidDeviceTest.class,
     PropertyChangerTest.class,
+    ShellCommandBatchTest.class,
     TestDeviceTest.class,
     TopHelperTest.class,
     WaitDeviceRecoveryTest.class,
@@ -501,6 +537,7 @@ import org.junit.runners.Suite.SuiteClasses;
     // invoker
     InvocationContextTest.class,
     InvocationExecutionTest.class,
+    ParallelDeviceTasksTest.class,
     RemoteInvocationExecutionTest.class,
     SandboxedInvocationExecutionTest.class,
     ShardListenerTest.class,
@@ -524,9 +561,11 @@ import org.junit.runners.Suite.SuiteClasses;
     ParentSandboxInvocationExecutionTest.class,
 
     // log
+    AsyncLogWriterTest.class,
     FileLoggerTest.class,
     HistoryLoggerTest.class,
     LogRegistryTest.class,
+    LogUtilTest.class,
     TerribleFailureEmailHandlerTest.class,
 
     // postprocessor
@@ -541,6 +580,7 @@ import org.junit.runners.Suite.SuiteClasses;
     DeviceFileReporterTest.class,
     DeviceUnavailEmailResultReporterTest.class,
     EmailResultReporterTest.class,
+    EventBufferingListenerTest.class,
     FailureEmailResultReporterTest.class,
     FileSystemLogSaverTest.class,
     InvocationFailureEmailResultReporterTest.class,
@@ -551,6 +591,7 @@ import org.junit.runners.Suite.SuiteClasses;
     LogcatCrashResultForwarderTest.class,
     LogFileSaverTest.class,
     MetricsXMLResultReporterTest.class,
+    ResultForwarderTest.class,
     SnapshotInputStreamSourceTest.class,
     SubprocessResultsReporterTest.class,
     TestDescriptionTest.class,
@@ -568,6 +609,7 @@ import org.junit.runners.Suite.SuiteClasses;
     ProtoResultParserTest.class,
     ProtoResultReporterTest.class,
     StreamProtoResultReporterTest.class,
+    StreamProtoWriterTest.class,
 
     // result.suite
     FormattedGeneratorReporterTest.class,
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.build;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.build.FileDownloadCacheIndex.IndexRecord;
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/** Unit tests for {@link FileDownloadCacheIndex}. */
+@RunWith(JUnit4.class)
+public class FileDownloadCacheIndexTest {
+
+    private File mCacheRoot;
+    private FileDownloadCacheIndex mIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        mCacheRoot = FileUtil.createTempDir("cache-index-unittest");
+        mIndex = new FileDownloadCacheIndex(mCacheRoot);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mCacheRoot);
+    }
+
+    /** Test that the records are replayed in order when loading the index. */
+    @Test
+    public void testLoad() {
+        assertFalse(mIndex.exists());
+        mIndex.recordInsert("foo/bar", 10, 1, "hash1");
+        mIndex.recordInsert("foo/baz", 20, 2, null);
+        mIndex.recordAccess("foo/bar", 3);
+        mIndex.recordDelete("foo/baz");
+        mIndex.flush();
+        assertTrue(mIndex.exists());
+
+        Map<String, IndexRecord> records = new FileDownloadCacheIndex(mCacheRoot).load();
+        assertEquals(1, records.size());
+        IndexRecord record = records.get("foo/bar");
+        assertEquals(10, record.mSize);
+        assertEquals(3, record.mLastAccess);
+        assertEquals("hash1", record.mHash);
+    }
+
+    /** Test that a corrupted record is ignored without losing the other ones. */
+    @Test
+    public void testLoad_corruptedRecord() throws Exception {
+        mIndex.recordInsert("foo/bar", 10, 1, "hash1");
+        File indexFile = new File(mCacheRoot, FileDownloadCacheIndex.INDEX_FILE_NAME);
+        String contents = FileUtil.readStringFromFile(indexFile);
+        // Simulate a record torn by a crash, followed by a valid one.
+        FileUtil.writeToFile(contents.replace("foo/bar", "foo/bax"), indexFile);
+        mIndex.recordInsert("foo/baz", 20, 2, null);
+
+        FileDownloadCacheIndex index = new FileDownloadCacheIndex(mCacheRoot);
+        Map<String, IndexRecord> records = index.load();
+        assertEquals(1, records.size());
+        assertTrue(records.containsKey("foo/baz"));
+        assertEquals(2, index.getRecordCount());
+    }
+
+    /** Test that rewriting the index drops the superseded records. */
+    @Test
+    public void testRewrite() {
+        mIndex.recordInsert("foo/bar", 10, 1, "hash1");
+        mIndex.recordAccess("foo/bar", 2);
+        mIndex.recordAccess("foo/bar", 3);
+        mIndex.flush();
+        assertEquals(3, mIndex.getRecordCount());
+        mIndex.rewrite(() -> Arrays.asList(new IndexRecord("foo/bar", 10, 3, null)));
+        assertEquals(1, mIndex.getRecordCount());
+
+        FileDownloadCacheIndex index = new FileDownloadCacheIndex(mCacheRoot);
+        assertEquals(3, index.load().get("foo/bar").mLastAccess);
+        assertEquals(1, index.getRecordCount());
+    }
+
+    /**
+     * Test that the records queued while the snapshot is taken are kept, so that an entry deleted
+     * concurrently does not come back.
+     */
+    @Test
+    public void testRewrite_concurrentDelete() {
+        mIndex.recordInsert("foo/bar", 10, 1, null);
+        mIndex.recordInsert("foo/baz", 20, 2, null);
+        mIndex.recordAccess("foo/bar", 3);
+        mIndex.rewrite(
+                () -> {
+                    // Snapshot taken right before foo/baz is deleted.
+                    List<IndexRecord> entries =
+                            Arrays.asList(
+                                    new IndexRecord("foo/bar", 10, 3, null),
+                                    new IndexRecord("foo/baz", 20, 2, null));
+                    mIndex.recordDelete("foo/baz");
+                    return entries;
+                });
+        assertEquals(3, mIndex.getRecordCount());
+
+        Map<String, IndexRecord> records = new FileDownloadCacheIndex(mCacheRoot).load();
+        assertEquals(1, records.size());
+        assertEquals(3, records.get("foo/bar").mLastAccess);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.build;
+
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test for {@link FileDownloadCache}. Measures the throughput of concurrent cache hits on the
+ * same file, of concurrent misses on distinct files, and of misses that keep the cache evicting.
+ *
+ * <p>Not part of the unit tests, intended to be run manually.
+ */
+public class FileDownloadCacheLoadTest extends TestCase {
+
+    private static final int[] NUM_THREADS = {1, 8, 32};
+    private static final int FETCHES_PER_THREAD = 200;
+    private static final String CONTENTS = "downloaded contents";
+
+    /** A downloader writing a small file, always reporting cached files as fresh. */
+    private static class FakeDownloader implements IFileDownloader {
+        @Override
+        public File downloadFile(String remoteFilePath) throws BuildRetrievalError {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void downloadFile(String relativeRemotePath, File destFile)
+                throws BuildRetrievalError {
+            try {
+                FileUtil.writeToFile(CONTENTS, destFile);
+            } catch (IOException e) {
+                throw new BuildRetrievalError("failed to write", e);
+            }
+        }
+    }
+
+    /** A remote path for each fetch of each thread. */
+    private interface PathSupplier {
+        String getPath(int thread, int fetch);
+    }
+
+    public void testConcurrentHits() throws Exception {
+        for (int numThreads : NUM_THREADS) {
+            runScenario("hits", numThreads, Long.MAX_VALUE, (thread, fetch) -> "shared/file.zip");
+        }
+    }
+
+    public void testConcurrentMisses() throws Exception {
+        for (int numThreads : NUM_THREADS) {
+            runScenario(
+                    "misses",
+                    numThreads,
+                    Long.MAX_VALUE,
+                    (thread, fetch) -> String.format("t%d/file%d.zip", thread, fetch));
+        }
+    }
+
+    public void testEviction() throws Exception {
+        for (int numThreads : NUM_THREADS) {
+            // Only a handful of files fit, so most downloads trigger an eviction.
+            runScenario(
+                    "eviction",
+                    numThreads,
+                    CONTENTS.length() * 10L,
+                    (thread, fetch) -> String.format("t%d/file%d.zip", thread, fetch));
+        }
+    }
+
+    private void runScenario(String name, int numThreads, long maxSize, PathSupplier paths)
+            throws Exception {
+        File cacheDir = FileUtil.createTempDir("cache-loadtest");
+        try {
+            FileDownloadCache cache = new FileDownloadCache(cacheDir);
+            cache.setMaxCacheSize(maxSize);
+            IFileDownloader downloader = new FakeDownloader();
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicLong failures = new AtomicLong();
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < numThreads; i++) {
+                final int threadIndex = i;
+                Thread t =
+                        new Thread(
+                                () -> {
+                                    try {
+                                        start.await();
+                                        for (int f = 0; f < FETCHES_PER_THREAD; f++) {
+                                            File copy =
+                                                    cache.fetchRemoteFile(
+                                                            downloader,
+                                                            paths.getPath(threadIndex, f));
+                                            FileUtil.deleteFile(copy);
+                                        }
+                                    } catch (InterruptedException | BuildRetrievalError e) {
+                                        failures.incrementAndGet();
+                                    }
+                                });
+                threads.add(t);
+                t.start();
+            }
+            long startTime = System.nanoTime();
+            start.countDown();
+            for (Thread t : threads) {
+                t.join();
+            }
+            long elapsedUs = (System.nanoTime() - startTime) / 1000;
+            cache.waitForBackgroundTasks();
+            long fetches = (long) numThreads * FETCHES_PER_THREAD;
+            System.out.println(
+                    String.format(
+                            "%s threads=%d fetches=%d total=%dus per fetch=%dus failures=%d",
+                            name,
+                            numThreads,
+                            fetches,
+                            elapsedUs,
+                            elapsedUs / fetches,
+                            failures.get()));
+            cache.empty();
+        } finally {
+            FileUtil.recursiveDelete(cacheDir);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        FileDownloadCacheLoadTest test = new FileDownloadCacheLoadTest();
+        test.testConcurrentHits();
+        test.testConcurrentMisses();
+        test.testEviction();
+    }
+}
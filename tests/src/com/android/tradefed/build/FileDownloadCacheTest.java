@@ -16,6 +16,7 @@
 package com.android.tradefed.build;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -36,9 +37,11 @@ import org.junit.runners.JUnit4;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 /** Unit tests for {@link FileDownloadCache}. */
 @RunWith(JUnit4.class)
@@ -46,6 +49,7 @@ public class FileDownloadCacheTest {
 
     private static final String REMOTE_PATH = "foo/path";
     private static final String DOWNLOADED_CONTENTS = "downloaded contents";
+    private static final String OTHER_CONTENTS = "different contents";
 
 
     private IFileDownloader mMockDownloader;
@@ -126,12 +130,13 @@ public class FileDownloadCacheTest {
         final String remotePath2 = "anotherpath";
         // set cache size to be small
         mCache.setMaxCacheSize(DOWNLOADED_CONTENTS.length() + 1);
-        setDownloadExpections(remotePath2);
+        setDownloadExpections(remotePath2, null, OTHER_CONTENTS);
         setDownloadExpections();
         EasyMock.replay(mMockDownloader);
-        assertFetchRemoteFile(remotePath2, null);
+        FileUtil.deleteFile(mCache.fetchRemoteFile(mMockDownloader, remotePath2));
         // now retrieve another file, which will exceed size of cache
         assertFetchRemoteFile();
+        mCache.waitForBackgroundTasks();
         assertNotNull(mCache.getCachedFile(REMOTE_PATH));
         assertNull(mCache.getCachedFile(remotePath2));
         EasyMock.verify(mMockDownloader);
@@ -306,6 +311,213 @@ public class FileDownloadCacheTest {
         }
     }
 
+    /** Test that a cache hit moves the entry to the most recently used position. */
+    @Test
+    public void testFetchRemoteFile_lruOrder() throws Exception {
+        final String remotePath2 = "anotherpath";
+        setDownloadExpections(REMOTE_PATH);
+        setDownloadExpections(remotePath2);
+        setFreshnessExpections(true);
+        EasyMock.replay(mMockDownloader);
+        assertFetchRemoteFile();
+        assertFetchRemoteFile(remotePath2, null);
+        assertEquals(REMOTE_PATH, mCache.getOldestEntry());
+        assertFetchRemoteFile();
+        assertEquals(remotePath2, mCache.getOldestEntry());
+        EasyMock.verify(mMockDownloader);
+    }
+
+    /** Test that concurrent misses on the same file only download it once. */
+    @Test
+    public void testFetchRemoteFile_coalesced() throws Exception {
+        final CountDownLatch downloadStarted = new CountDownLatch(1);
+        final CountDownLatch releaseDownload = new CountDownLatch(1);
+        mMockDownloader.downloadFile(EasyMock.eq(REMOTE_PATH), EasyMock.<File>anyObject());
+        EasyMock.expectLastCall()
+                .andAnswer(
+                        () -> {
+                            downloadStarted.countDown();
+                            releaseDownload.await();
+                            File fileArg = (File) EasyMock.getCurrentArguments()[1];
+                            FileUtil.writeToFile(DOWNLOADED_CONTENTS, fileArg);
+                            return null;
+                        });
+        EasyMock.makeThreadSafe(mMockDownloader, true);
+        EasyMock.replay(mMockDownloader);
+        List<File> files = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            Thread t =
+                    new Thread(
+                            () -> {
+                                try {
+                                    File file =
+                                            mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH);
+                                    synchronized (files) {
+                                        files.add(file);
+                                    }
+                                } catch (BuildRetrievalError e) {
+                                    // ignore
+                                }
+                            });
+            threads.add(t);
+            t.start();
+            if (i == 0) {
+                downloadStarted.await();
+            }
+        }
+        try {
+            FileDownloadCoordinator downloads = mCache.getDownloadCoordinator();
+            while (downloads.getCoalescedCount() == 0) {
+                Thread.sleep(10);
+            }
+        } finally {
+            releaseDownload.countDown();
+            for (Thread t : threads) {
+                t.join();
+            }
+        }
+        try {
+            assertEquals(2, files.size());
+            for (File file : files) {
+                assertEquals(DOWNLOADED_CONTENTS, FileUtil.readStringFromFile(file));
+            }
+            assertEquals(1, mCache.getDownloadCoordinator().getDownloadCount());
+        } finally {
+            for (File file : files) {
+                FileUtil.deleteFile(file);
+            }
+        }
+        EasyMock.verify(mMockDownloader);
+    }
+
+    /** Test that a file in use by another thread is not evicted and does not block eviction. */
+    @Test
+    public void testEviction_skipsEntryInUse() throws Exception {
+        final String remotePath2 = "anotherpath";
+        final String remotePath3 = "thirdpath";
+        final CountDownLatch downloadStarted = new CountDownLatch(1);
+        final CountDownLatch releaseDownload = new CountDownLatch(1);
+        mCache.setMaxCacheSize(DOWNLOADED_CONTENTS.length() + 1);
+        setDownloadExpections(remotePath2);
+        setDownloadExpections(remotePath3, null, OTHER_CONTENTS);
+        mMockDownloader.downloadFile(EasyMock.eq(REMOTE_PATH), EasyMock.<File>anyObject());
+        EasyMock.expectLastCall()
+                .andAnswer(
+                        () -> {
+                            downloadStarted.countDown();
+                            releaseDownload.await();
+                            File fileArg = (File) EasyMock.getCurrentArguments()[1];
+                            FileUtil.writeToFile(DOWNLOADED_CONTENTS, fileArg);
+                            return null;
+                        });
+        EasyMock.makeThreadSafe(mMockDownloader, false);
+        EasyMock.replay(mMockDownloader);
+        List<File> slowFile = new ArrayList<>();
+        Thread slowThread =
+                new Thread(
+                        () -> {
+                            try {
+                                slowFile.add(mCache.fetchRemoteFile(mMockDownloader, REMOTE_PATH));
+                            } catch (BuildRetrievalError e) {
+                                // ignore
+                            }
+                        });
+        slowThread.start();
+        try {
+            downloadStarted.await();
+            assertFetchRemoteFile(remotePath2, null);
+            FileUtil.deleteFile(mCache.fetchRemoteFile(mMockDownloader, remotePath3));
+            mCache.waitForBackgroundTasks();
+            assertNotNull(mCache.getCachedFile(REMOTE_PATH));
+            assertNull(mCache.getCachedFile(remotePath2));
+            assertNotNull(mCache.getCachedFile(remotePath3));
+        } finally {
+            releaseDownload.countDown();
+            slowThread.join();
+            for (File f : slowFile) {
+                FileUtil.deleteFile(f);
+            }
+        }
+        EasyMock.verify(mMockDownloader);
+    }
+
+    /** Test that a new cache is loaded from the index, keeping the LRU order. */
+    @Test
+    public void testCacheRebuild_fromIndex() throws Exception {
+        final String remotePath2 = "anotherpath";
+        setDownloadExpections(REMOTE_PATH);
+        setDownloadExpections(remotePath2);
+        setFreshnessExpections(true);
+        EasyMock.replay(mMockDownloader);
+        assertFetchRemoteFile();
+        assertFetchRemoteFile(remotePath2, null);
+        assertFetchRemoteFile();
+        EasyMock.verify(mMockDownloader);
+        mCache.waitForBackgroundTasks();
+
+        mCache = new FileDownloadCache(mCacheDir);
+        assertNotNull(mCache.getCachedFile(REMOTE_PATH));
+        assertNotNull(mCache.getCachedFile(remotePath2));
+        assertEquals(remotePath2, mCache.getOldestEntry());
+    }
+
+    /** Test that the background reconciliation fixes the drift between index and filesystem. */
+    @Test
+    public void testCacheRebuild_reconcileIndex() throws Exception {
+        setDownloadExpections(REMOTE_PATH);
+        EasyMock.replay(mMockDownloader);
+        assertFetchRemoteFile();
+        EasyMock.verify(mMockDownloader);
+        mCache.waitForBackgroundTasks();
+        // Remove the indexed file and add one the index does not know about.
+        FileUtil.deleteFile(mCache.getCachedFile(REMOTE_PATH));
+        File unindexed = new File(mCacheDir, "unindexed");
+        FileUtil.writeToFile(DOWNLOADED_CONTENTS, unindexed);
+
+        mCache = new FileDownloadCache(mCacheDir);
+        mCache.waitForBackgroundTasks();
+        assertNull(mCache.getCachedFile(REMOTE_PATH));
+        assertEquals(unindexed, mCache.getCachedFile("unindexed"));
+    }
+
+    /** Test that identical files of different remote paths share one copy in the cache. */
+    @Test
+    public void testFetchRemoteFile_sameContent() throws Exception {
+        final String remotePath2 = "anotherpath";
+        setDownloadExpections(REMOTE_PATH);
+        setDownloadExpections(remotePath2);
+        EasyMock.replay(mMockDownloader);
+        assertFetchRemoteFile();
+        assertFetchRemoteFile(remotePath2, null);
+        EasyMock.verify(mMockDownloader);
+        assertEquals(DOWNLOADED_CONTENTS.length(), mCache.getCurrentCacheSize());
+        assertEquals(
+                Files.getAttribute(mCache.getCachedFile(REMOTE_PATH).toPath(), "unix:ino"),
+                Files.getAttribute(mCache.getCachedFile(remotePath2).toPath(), "unix:ino"));
+        // The content is only released with its last reference.
+        mCache.deleteCacheEntry(REMOTE_PATH);
+        assertEquals(DOWNLOADED_CONTENTS.length(), mCache.getCurrentCacheSize());
+        mCache.deleteCacheEntry(remotePath2);
+        assertEquals(0, mCache.getCurrentCacheSize());
+    }
+
+    /** Test that the size of a cached folder accounts for all of its files. */
+    @Test
+    public void testFetchRemoteFile_folderSize() throws Exception {
+        List<String> relativePaths = new ArrayList<String>();
+        relativePaths.add("file.txt");
+        relativePaths.add("folder1/file1.txt");
+        setDownloadExpections(REMOTE_PATH, relativePaths);
+        EasyMock.replay(mMockDownloader);
+        assertFetchRemoteFile(REMOTE_PATH, relativePaths);
+        EasyMock.verify(mMockDownloader);
+        assertEquals(2 * DOWNLOADED_CONTENTS.length(), mCache.getCurrentCacheSize());
+        mCache.deleteCacheEntry(REMOTE_PATH);
+        assertEquals(0, mCache.getCurrentCacheSize());
+        assertFalse(new File(mCacheDir, REMOTE_PATH).exists());
+    }
+
     /** Perform one fetchRemoteFile call and verify contents for default remote path */
     private void assertFetchRemoteFile() throws BuildRetrievalError, IOException {
         assertFetchRemoteFile(REMOTE_PATH, null);
@@ -349,20 +561,27 @@ public class FileDownloadCacheTest {
     /** Set EasyMock expectations for a downloadFile call */
     private IExpectationSetters<Object> setDownloadExpections(
             String remotePath, List<String> relativePaths) throws BuildRetrievalError {
+        return setDownloadExpections(remotePath, relativePaths, DOWNLOADED_CONTENTS);
+    }
+
+    /** Set EasyMock expectations for a downloadFile call writing the given contents. */
+    private IExpectationSetters<Object> setDownloadExpections(
+            String remotePath, List<String> relativePaths, String contents)
+            throws BuildRetrievalError {
         IAnswer<Object> downloadAnswer =
                 new IAnswer<Object>() {
                     @Override
                     public Object answer() throws Throwable {
                         File fileArg = (File) EasyMock.getCurrentArguments()[1];
                         if (relativePaths == null || relativePaths.size() == 0) {
-                            FileUtil.writeToFile(DOWNLOADED_CONTENTS, fileArg);
+                            FileUtil.writeToFile(contents, fileArg);
                         } else {
                             fileArg.mkdir();
                             for (String relativePath : relativePaths) {
                                 File file =
                                         Paths.get(fileArg.getAbsolutePath(), relativePath).toFile();
                                 file.getParentFile().mkdirs();
-                                FileUtil.writeToFile(DOWNLOADED_CONTENTS, file);
+                                FileUtil.writeToFile(contents, file);
                             }
                         }
                         return null;
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.build;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.net.FakeHttpFileServer;
+import com.android.tradefed.util.StreamUtil;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Unit tests for {@link FileDownloadCoordinator}. */
+@RunWith(JUnit4.class)
+public class FileDownloadCoordinatorTest {
+
+    private static final int CHUNK_SIZE = 1024;
+    private static final String FILE_PATH = "build/img.zip";
+
+    /** An {@link IRangeFileDownloader} of http urls, using HEAD and Range requests. */
+    private static class HttpRangeDownloader implements IRangeFileDownloader {
+        @Override
+        public long getRemoteFileSize(String url) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("HEAD");
+            try {
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK
+                        || !"bytes".equals(connection.getHeaderField("Accept-Ranges"))) {
+                    return -1;
+                }
+                return connection.getContentLengthLong();
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        @Override
+        public void downloadRange(String url, long start, long length, OutputStream out)
+                throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestProperty(
+                    "Range", String.format("bytes=%d-%d", start, start + length - 1));
+            InputStream remote = null;
+            try {
+                int code = connection.getResponseCode();
+                if (code != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new IOException(
+                            String.format("Range request for %s returned %d", url, code));
+                }
+                remote = connection.getInputStream();
+                StreamUtil.copyStreams(remote, out);
+            } finally {
+                StreamUtil.close(remote);
+                connection.disconnect();
+            }
+        }
+    }
+
+    /** A downloader of whole files and byte ranges. */
+    private interface RangeFileDownloader extends IFileDownloader, IRangeFileDownloader {}
+
+    private FakeHttpFileServer mServer;
+    private FileDownloadCoordinator mCoordinator;
+    private byte[] mContents;
+    private File mDestFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mContents = new byte[CHUNK_SIZE * 10 + 17];
+        new Random(0).nextBytes(mContents);
+        mServer = new FakeHttpFileServer();
+        mServer.addFile(FILE_PATH, mContents);
+        mServer.start();
+        mCoordinator = new FileDownloadCoordinator(4, CHUNK_SIZE);
+        mDestFile = FileUtil.createTempFile("coordinator-unittest", ".zip");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+        FileUtil.deleteFile(mDestFile);
+    }
+
+    /** Test that a file larger than a chunk is downloaded as ranged chunks. */
+    @Test
+    public void testDownloadChunks() throws Exception {
+        assertTrue(
+                mCoordinator.downloadChunks(
+                        new HttpRangeDownloader(), mServer.getUrl(FILE_PATH), mDestFile));
+        assertArrayEquals(mContents, Files.readAllBytes(mDestFile.toPath()));
+        assertEquals(11, mServer.getRangeRequestCount());
+        assertEquals(0, mServer.getFullRequestCount());
+        assertEquals(1, mCoordinator.getChunkedDownloadCount());
+    }
+
+    /** Test that a failed chunk is downloaded again. */
+    @Test
+    public void testDownloadChunks_retry() throws Exception {
+        mServer.failRangeRequests(2);
+        assertTrue(
+                mCoordinator.downloadChunks(
+                        new HttpRangeDownloader(), mServer.getUrl(FILE_PATH), mDestFile));
+        assertArrayEquals(mContents, Files.readAllBytes(mDestFile.toPath()));
+        assertEquals(13, mServer.getRangeRequestCount());
+    }
+
+    /** Test that nothing is downloaded when the server does not support byte ranges. */
+    @Test
+    public void testDownloadChunks_noRangeSupport() throws Exception {
+        mServer.setSupportsRanges(false);
+        assertFalse(
+                mCoordinator.downloadChunks(
+                        new HttpRangeDownloader(), mServer.getUrl(FILE_PATH), mDestFile));
+        assertEquals(0, mServer.getRangeRequestCount());
+        assertEquals(0, mCoordinator.getChunkedDownloadCount());
+    }
+
+    /** Test that a file not larger than a chunk is not downloaded as chunks. */
+    @Test
+    public void testDownloadChunks_smallFile() throws Exception {
+        mServer.addFile("small", new byte[CHUNK_SIZE]);
+        assertFalse(
+                mCoordinator.downloadChunks(
+                        new HttpRangeDownloader(), mServer.getUrl("small"), mDestFile));
+        assertEquals(0, mServer.getRangeRequestCount());
+    }
+
+    /**
+     * Test that a chunk failing every attempt fails the download, and that the other chunks are
+     * stopped before the download returns.
+     */
+    @Test
+    public void testDownloadChunks_failure() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        IRangeFileDownloader source =
+                new IRangeFileDownloader() {
+                    @Override
+                    public long getRemoteFileSize(String remotePath) {
+                        return mContents.length;
+                    }
+
+                    @Override
+                    public void downloadRange(
+                            String remotePath, long start, long length, OutputStream out)
+                            throws IOException {
+                        if (start == 0) {
+                            throw new IOException("failed chunk");
+                        }
+                        running.incrementAndGet();
+                        try {
+                            Thread.sleep(200);
+                            out.write(new byte[(int) length]);
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        } finally {
+                            running.decrementAndGet();
+                        }
+                    }
+                };
+        try {
+            mCoordinator.downloadChunks(source, FILE_PATH, mDestFile);
+            fail("Should have thrown an exception.");
+        } catch (BuildRetrievalError expected) {
+            assertEquals(0, running.get());
+        }
+        assertEquals(0, mCoordinator.getChunkedDownloadCount());
+    }
+
+    /** Test that a failed chunked download falls back to downloading the whole file. */
+    @Test
+    public void testDownload_chunksFailed() throws Exception {
+        RangeFileDownloader downloader = EasyMock.createMock(RangeFileDownloader.class);
+        EasyMock.expect(downloader.getRemoteFileSize(FILE_PATH)).andReturn((long) mContents.length);
+        downloader.downloadRange(
+                EasyMock.eq(FILE_PATH),
+                EasyMock.anyLong(),
+                EasyMock.anyLong(),
+                EasyMock.anyObject(OutputStream.class));
+        EasyMock.expectLastCall().andThrow(new IOException("failed chunk")).anyTimes();
+        downloader.downloadFile(EasyMock.eq(FILE_PATH), EasyMock.eq(mDestFile));
+        EasyMock.expectLastCall()
+                .andAnswer(
+                        () -> {
+                            assertFalse(mDestFile.exists());
+                            FileUtil.writeToFile("contents", mDestFile);
+                            return null;
+                        });
+        EasyMock.replay(downloader);
+        mCoordinator.download(downloader, FILE_PATH, mDestFile);
+        EasyMock.verify(downloader);
+        assertEquals("contents", FileUtil.readStringFromFile(mDestFile));
+        assertEquals(0, mCoordinator.getChunkedDownloadCount());
+    }
+
+    /** Test that a downloader without range support downloads the whole file. */
+    @Test
+    public void testDownload_notRangeDownloader() throws Exception {
+        IFileDownloader downloader = EasyMock.createMock(IFileDownloader.class);
+        downloader.downloadFile(EasyMock.eq(FILE_PATH), EasyMock.eq(mDestFile));
+        EasyMock.expectLastCall()
+                .andAnswer(
+                        () -> {
+                            FileUtil.writeToFile("contents", mDestFile);
+                            return null;
+                        });
+        EasyMock.replay(downloader);
+        mCoordinator.download(downloader, FILE_PATH, mDestFile);
+        EasyMock.verify(downloader);
+        assertEquals(1, mCoordinator.getDownloadCount());
+        assertEquals(0, mCoordinator.getChunkedDownloadCount());
+        assertEquals("contents".length(), mCoordinator.getDownloadedBytes());
+    }
+
+    /** Test that only one download of the same key can be in flight. */
+    @Test
+    public void testRegister_coalesced() throws Exception {
+        CompletableFuture<Void> download = mCoordinator.register(FILE_PATH);
+        assertNotNull(download);
+        assertNull(mCoordinator.register(FILE_PATH));
+        CompletableFuture<Void> inFlight = mCoordinator.getInFlight(FILE_PATH);
+        Thread waiter = new Thread(() -> assertTrue(mCoordinator.await(inFlight)));
+        waiter.start();
+        mCoordinator.complete(FILE_PATH, download, null);
+        waiter.join();
+        assertNull(mCoordinator.getInFlight(FILE_PATH));
+        assertEquals(1, mCoordinator.getCoalescedCount());
+        assertNotNull(mCoordinator.register(FILE_PATH));
+    }
+
+    /** Test that waiting on a failed download reports the failure. */
+    @Test
+    public void testAwait_failed() throws Exception {
+        CompletableFuture<Void> download = mCoordinator.register(FILE_PATH);
+        mCoordinator.complete(FILE_PATH, download, new BuildRetrievalError("failed"));
+        assertFalse(mCoordinator.await(download));
+    }
+
+    /** Test that waiting on a download keeps the interrupted status of the thread. */
+    @Test
+    public void testAwait_interrupted() throws Exception {
+        CompletableFuture<Void> download = mCoordinator.register(FILE_PATH);
+        Thread.currentThread().interrupt();
+        try {
+            assertFalse(mCoordinator.await(download));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+            mCoordinator.complete(FILE_PATH, download, null);
+        }
+    }
+}
@@ -254,6 +254,24 @@ public class CommandSchedulerTest {
         verifyMocks();
     }
 
+    /** Test that interrupting the scheduler thread does not make its main loop spin. */
+    @Test
+    public void testRun_interrupted() throws Exception {
+        mMockManager.setNumDevices(1);
+        replayMocks();
+        mScheduler.start();
+        mScheduler.await();
+        long wakeCount = mScheduler.getWakeCount();
+        mScheduler.interrupt();
+        Thread.sleep(200);
+        assertTrue(mScheduler.isAlive());
+        long wakeUps = mScheduler.getWakeCount() - wakeCount;
+        assertTrue("Woke up " + wakeUps + " times", wakeUps < 10);
+        mScheduler.shutdown();
+        mScheduler.join();
+        verifyMocks();
+    }
+
     /** Test {@link CommandScheduler#run()} when one config has been added */
     @Test
     public void testRun_oneConfig() throws Throwable {
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.command.SchedulerEventQueue.SchedulerEvent;
+import com.android.tradefed.command.SchedulerEventQueue.SchedulerEventType;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Unit tests for {@link SchedulerEventQueue}. */
+@RunWith(JUnit4.class)
+public class SchedulerEventQueueTest {
+
+    private SchedulerEventQueue mQueue;
+    private long mCurrentTime = 1000L;
+
+    @Before
+    public void setUp() {
+        mQueue =
+                new SchedulerEventQueue() {
+                    @Override
+                    long getCurrentTime() {
+                        return mCurrentTime;
+                    }
+                };
+    }
+
+    /** Test that events of the same type are coalesced and keep the oldest timestamp. */
+    @Test
+    public void testWaitForEvents_coalesce() {
+        mQueue.post(SchedulerEventType.COMMAND_READY);
+        mCurrentTime += 50;
+        mQueue.post(SchedulerEventType.DEVICE_AVAILABLE);
+        mQueue.post(SchedulerEventType.COMMAND_READY);
+        List<SchedulerEvent> events = mQueue.waitForEvents(10);
+        assertEquals(2, events.size());
+        assertEquals(SchedulerEventType.COMMAND_READY, events.get(0).getType());
+        assertEquals(1000L, events.get(0).getTimestamp());
+        assertEquals(SchedulerEventType.DEVICE_AVAILABLE, events.get(1).getType());
+        assertEquals(1050L, events.get(1).getTimestamp());
+    }
+
+    /** Test that waiting returns an empty list when no event is posted in time. */
+    @Test
+    public void testWaitForEvents_timeout() {
+        SchedulerEventQueue queue = new SchedulerEventQueue();
+        assertTrue(queue.waitForEvents(10).isEmpty());
+        queue.post(SchedulerEventType.STATE_CHANGED);
+        assertEquals(1, queue.waitForEvents(10).size());
+        assertTrue(queue.waitForEvents(10).isEmpty());
+    }
+
+    /** Test that an event posted from another thread wakes up a waiting thread. */
+    @Test
+    public void testWaitForEvents_wakeUp() throws Exception {
+        SchedulerEventQueue queue = new SchedulerEventQueue();
+        Thread poster =
+                new Thread(
+                        () -> {
+                            try {
+                                Thread.sleep(50);
+                            } catch (InterruptedException e) {
+                                // ignore
+                            }
+                            queue.post(SchedulerEventType.COMMAND_RESCHEDULED);
+                        });
+        poster.start();
+        List<SchedulerEvent> events = queue.waitForEvents(0);
+        poster.join();
+        assertEquals(1, events.size());
+        assertEquals(SchedulerEventType.COMMAND_RESCHEDULED, events.get(0).getType());
+    }
+
+    /** Test that an interrupted wait keeps waiting for an event instead of returning. */
+    @Test
+    public void testWaitForEvents_interrupted() throws Exception {
+        SchedulerEventQueue queue = new SchedulerEventQueue();
+        List<SchedulerEvent> events = new ArrayList<>();
+        Thread waiter = new Thread(() -> events.addAll(queue.waitForEvents(0)));
+        waiter.start();
+        waiter.interrupt();
+        waiter.join(200);
+        assertTrue(waiter.isAlive());
+
+        queue.post(SchedulerEventType.COMMAND_READY);
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertEquals(1, events.size());
+    }
+
+    /** Test the work declared by each type of event. */
+    @Test
+    public void testEventType_requiredWork() {
+        assertTrue(SchedulerEventType.COMMAND_READY.requiresCommandProcessing());
+        assertFalse(SchedulerEventType.COMMAND_READY.requiresInvocationCheck());
+        assertTrue(SchedulerEventType.INVOCATION_CHECK.requiresInvocationCheck());
+        assertFalse(SchedulerEventType.INVOCATION_CHECK.requiresCommandProcessing());
+        assertFalse(SchedulerEventType.STATE_CHANGED.requiresCommandProcessing());
+        assertFalse(SchedulerEventType.STATE_CHANGED.requiresInvocationCheck());
+    }
+}
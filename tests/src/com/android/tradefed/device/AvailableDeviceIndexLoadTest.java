@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IDevice;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Load test for {@link AvailableDeviceIndex}. Compares the cost of a scheduling pass that runs
+ * {@link DeviceSelectionOptions#matches(IDevice)} for every command against every device, with
+ * the indexed pass that only re-evaluates the commands a newly available device could satisfy.
+ *
+ * <p>Not part of the unit tests, intended to be run manually.
+ */
+public class AvailableDeviceIndexLoadTest extends TestCase {
+
+    private static final int[] NUM_DEVICES = {10, 40, 100};
+    private static final int[] NUM_COMMANDS = {100, 500, 1000};
+    private static final int NUM_PRODUCTS = 8;
+    private static final int ITERATIONS = 20;
+
+    /** Run each combination of number of commands and number of devices. */
+    public void testScaling() {
+        for (int numDevices : NUM_DEVICES) {
+            for (int numCommands : NUM_COMMANDS) {
+                runScenario(numDevices, numCommands);
+            }
+        }
+    }
+
+    private void runScenario(int numDevices, int numCommands) {
+        Map<String, IDevice> devices = new HashMap<>();
+        AvailableDeviceIndex index = new AvailableDeviceIndex(serial -> devices.get(serial));
+        for (int i = 0; i < numDevices; i++) {
+            String product = "product" + (i % NUM_PRODUCTS);
+            IDevice device = AvailableDeviceIndexTest.createDevice("serial" + i, product);
+            devices.put(device.getSerialNumber(), device);
+            index.notifyDeviceStateChange(
+                    device.getSerialNumber(),
+                    DeviceAllocationState.Checking_Availability,
+                    DeviceAllocationState.Available);
+        }
+        List<DeviceSelectionOptions> commands = new ArrayList<>(numCommands);
+        for (int i = 0; i < numCommands; i++) {
+            DeviceSelectionOptions options = new DeviceSelectionOptions();
+            // Requires a product that no device has, so each command stays in the ready queue.
+            options.addProductType("product" + (NUM_PRODUCTS + (i % NUM_PRODUCTS)));
+            commands.add(options);
+        }
+
+        long start = System.nanoTime();
+        for (int iter = 0; iter < ITERATIONS; iter++) {
+            for (DeviceSelectionOptions options : commands) {
+                for (IDevice device : devices.values()) {
+                    options.matches(device);
+                }
+            }
+        }
+        long fullScan = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int iter = 0; iter < ITERATIONS; iter++) {
+            long generation = index.getGeneration();
+            // A single device becomes available again, as it would when freed.
+            String serial = "serial" + (iter % numDevices);
+            index.notifyDeviceStateChange(
+                    serial, DeviceAllocationState.Available, DeviceAllocationState.Allocated);
+            index.notifyDeviceStateChange(
+                    serial, DeviceAllocationState.Allocated, DeviceAllocationState.Available);
+            for (DeviceSelectionOptions options : commands) {
+                if (index.hasCandidate(options, generation)) {
+                    for (IDevice device : devices.values()) {
+                        options.matches(device);
+                    }
+                }
+            }
+        }
+        long indexed = (System.nanoTime() - start) / ITERATIONS;
+
+        System.out.println(
+                String.format(
+                        "devices=%d commands=%d full pass=%dus indexed pass=%dus",
+                        numDevices, numCommands, fullScan / 1000, indexed / 1000));
+    }
+
+    public static void main(String[] args) {
+        new AvailableDeviceIndexLoadTest().testScaling();
+    }
+}
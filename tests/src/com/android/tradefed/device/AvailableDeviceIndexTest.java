@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.ddmlib.IDevice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Unit tests for {@link AvailableDeviceIndex}. */
+@RunWith(JUnit4.class)
+public class AvailableDeviceIndexTest {
+
+    private Map<String, IDevice> mDevices;
+    private AvailableDeviceIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mDevices = new HashMap<>();
+        mIndex = new AvailableDeviceIndex(serial -> mDevices.get(serial));
+    }
+
+    /** Returns a physical-like device that reports the given board. */
+    static IDevice createDevice(String serial, String board) {
+        return new StubDevice(serial) {
+            @Override
+            public String getProperty(String name) {
+                if (DeviceProperties.BOARD.equals(name)) {
+                    return board;
+                }
+                return null;
+            }
+        };
+    }
+
+    private void makeAvailable(IDevice device) {
+        mDevices.put(device.getSerialNumber(), device);
+        mIndex.notifyDeviceStateChange(
+                device.getSerialNumber(),
+                DeviceAllocationState.Checking_Availability,
+                DeviceAllocationState.Available);
+    }
+
+    private DeviceSelectionOptions createOptions() {
+        return new DeviceSelectionOptions() {
+            @Override
+            public String fetchEnvironmentVariable(String name) {
+                return null;
+            }
+        };
+    }
+
+    /** Test that devices enter and leave the index with their allocation state. */
+    @Test
+    public void testAvailability() {
+        makeAvailable(createDevice("serial1", "walleye"));
+        makeAvailable(createDevice("serial2", "taimen"));
+        assertEquals(2, mIndex.size());
+        assertEquals(2, mIndex.getGeneration());
+        mIndex.notifyDeviceStateChange(
+                "serial1", DeviceAllocationState.Available, DeviceAllocationState.Allocated);
+        assertEquals(1, mIndex.size());
+        assertEquals(Arrays.asList("serial2"), mIndex.getCandidates(createOptions()));
+    }
+
+    /** Test that the product type filter only returns devices of the requested product. */
+    @Test
+    public void testGetCandidates_productType() {
+        makeAvailable(createDevice("serial1", "walleye"));
+        makeAvailable(createDevice("serial2", "taimen"));
+        DeviceSelectionOptions options = createOptions();
+        options.addProductType("taimen:userdebug");
+        assertEquals(Arrays.asList("serial2"), mIndex.getCandidates(options));
+        assertTrue(mIndex.hasCandidate(options, AvailableDeviceIndex.ANY_GENERATION));
+        options = createOptions();
+        options.addProductType("sailfish");
+        assertFalse(mIndex.hasCandidate(options, AvailableDeviceIndex.ANY_GENERATION));
+    }
+
+    /** Test that serial and excluded serial filters are applied. */
+    @Test
+    public void testGetCandidates_serials() {
+        makeAvailable(createDevice("serial1", "walleye"));
+        makeAvailable(createDevice("serial2", "walleye"));
+        DeviceSelectionOptions options = createOptions();
+        options.addExcludeSerial("serial1");
+        assertEquals(Arrays.asList("serial2"), mIndex.getCandidates(options));
+        options = createOptions();
+        options.setSerial("serial1", "serial3");
+        assertEquals(Arrays.asList("serial1"), mIndex.getCandidates(options));
+    }
+
+    /** Test that placeholder devices are only candidates for the matching requests. */
+    @Test
+    public void testGetCandidates_deviceClass() {
+        makeAvailable(createDevice("serial1", "walleye"));
+        makeAvailable(new TcpDevice("tcp-device-0"));
+        DeviceSelectionOptions options = createOptions();
+        options.setTcpDeviceRequested(true);
+        assertEquals(Arrays.asList("tcp-device-0"), mIndex.getCandidates(options));
+        assertEquals(Arrays.asList("serial1"), mIndex.getCandidates(createOptions()));
+    }
+
+    /** Test that only the devices available after a given generation are considered. */
+    @Test
+    public void testHasCandidate_sinceGeneration() {
+        makeAvailable(createDevice("serial1", "walleye"));
+        long generation = mIndex.getGeneration();
+        DeviceSelectionOptions options = createOptions();
+        options.addProductType("walleye");
+        assertFalse(mIndex.hasCandidate(options, generation));
+        makeAvailable(createDevice("serial2", "taimen"));
+        assertFalse(mIndex.hasCandidate(options, generation));
+        makeAvailable(createDevice("serial3", "walleye"));
+        assertTrue(mIndex.hasCandidate(options, generation));
+    }
+
+    /** Test that a device that cannot be resolved is always reported as a candidate. */
+    @Test
+    public void testHasCandidate_unresolved() {
+        mIndex.notifyDeviceStateChange(
+                "unknown", DeviceAllocationState.Allocated, DeviceAllocationState.Available);
+        DeviceSelectionOptions options = createOptions();
+        options.addProductType("walleye");
+        assertTrue(mIndex.hasCandidate(options, AvailableDeviceIndex.ANY_GENERATION));
+    }
+
+    /** Test that the device properties are matched, and queried without holding the index lock. */
+    @Test
+    public void testGetCandidates_properties() {
+        makeAvailable(createDevice("serial1", "walleye"));
+        makeAvailable(
+                new StubDevice("serial2") {
+                    @Override
+                    public String getProperty(String name) {
+                        assertFalse(Thread.holdsLock(mIndex));
+                        return "taimen";
+                    }
+                });
+        DeviceSelectionOptions options = createOptions();
+        options.addProperty(DeviceProperties.BOARD, "taimen");
+        assertEquals(Arrays.asList("serial2"), mIndex.getCandidates(options));
+        assertTrue(mIndex.hasCandidate(options, AvailableDeviceIndex.ANY_GENERATION));
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.util.StreamUtil;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link CollectingFileOutputReceiver}. */
+@RunWith(JUnit4.class)
+public class CollectingFileOutputReceiverTest {
+
+    /** Test that the output is collected in a file deleted when the source is closed. */
+    @Test
+    public void testGetData() throws Exception {
+        CollectingFileOutputReceiver receiver = new CollectingFileOutputReceiver("test");
+        byte[] data = "first line\nsecond line\n".getBytes();
+        receiver.addOutput(data, 0, 11);
+        receiver.addOutput(data, 11, data.length - 11);
+        receiver.flush();
+        try (InputStreamSource source = receiver.getData()) {
+            assertEquals(data.length, source.size());
+            assertEquals(
+                    "first line\nsecond line\n",
+                    StreamUtil.getStringFromStream(source.createInputStream()));
+        }
+    }
+
+    /** Test that no output is returned once the collection is cancelled. */
+    @Test
+    public void testCancel() throws Exception {
+        CollectingFileOutputReceiver receiver = new CollectingFileOutputReceiver("test");
+        byte[] data = "output".getBytes();
+        receiver.addOutput(data, 0, data.length);
+        receiver.cancel();
+        receiver.addOutput(data, 0, data.length);
+        try (InputStreamSource source = receiver.getData()) {
+            assertEquals(0, source.size());
+        }
+    }
+}
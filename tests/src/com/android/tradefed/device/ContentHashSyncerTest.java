@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Unit tests for {@link ContentHashSyncer}. */
+@RunWith(JUnit4.class)
+public class ContentHashSyncerTest {
+
+    private static final String REMOTE_DIR = "/data/local/tmp/data";
+
+    private ITestDevice mMockDevice;
+    private DirectoryPusher mMockPusher;
+    private ContentHashSyncer mSyncer;
+    private File mLocalDir;
+    private File mFile1;
+    private File mFile2;
+
+    @Before
+    public void setUp() throws Exception {
+        mMockDevice = Mockito.mock(ITestDevice.class);
+        mMockPusher = Mockito.mock(DirectoryPusher.class);
+        when(mMockPusher.pushFiles(Mockito.any(), Mockito.any())).thenReturn(true);
+        mSyncer =
+                new ContentHashSyncer(mMockDevice) {
+                    @Override
+                    DirectoryPusher createDirectoryPusher() {
+                        return mMockPusher;
+                    }
+                };
+        mLocalDir = FileUtil.createTempDir("content-hash-sync");
+        File subDir = new File(mLocalDir, "sub");
+        subDir.mkdirs();
+        mFile1 = new File(mLocalDir, "file1");
+        FileUtil.writeToFile("file1", mFile1);
+        mFile2 = new File(subDir, "file2");
+        FileUtil.writeToFile("file2", mFile2);
+        // Hidden files are not synced.
+        FileUtil.writeToFile("hidden", new File(mLocalDir, ".hidden"));
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mLocalDir);
+    }
+
+    /** Test that only the files whose content differs on the device are pushed. */
+    @Test
+    public void testSync() throws Exception {
+        when(mMockDevice.executeShellCommand(Mockito.anyString()))
+                .thenReturn(String.format("%s  file1\n", FileUtil.calculateMd5(mFile1)));
+        assertTrue(mSyncer.sync(mLocalDir, REMOTE_DIR));
+        // Both files are checked with a single command.
+        verify(mMockDevice).executeShellCommand(Mockito.startsWith("cd \"" + REMOTE_DIR));
+
+        Map<File, String> expected = new HashMap<>();
+        expected.put(mFile2, REMOTE_DIR + "/sub/file2");
+        verify(mMockPusher).pushFiles(Mockito.any(), Mockito.eq(expected));
+        assertEquals(1, mSyncer.getPushedFiles());
+    }
+
+    /** Test that files known to have changed are pushed without checking the device. */
+    @Test
+    public void testSync_manifest() throws Exception {
+        when(mMockDevice.executeShellCommand(Mockito.anyString()))
+                .thenReturn(
+                        String.format(
+                                "%s  file1\n%s  sub/file2\n",
+                                FileUtil.calculateMd5(mFile1), FileUtil.calculateMd5(mFile2)));
+        assertTrue(mSyncer.sync(mLocalDir, REMOTE_DIR));
+        assertEquals(0, mSyncer.getPushedFiles());
+
+        FileUtil.writeToFile("new content", mFile1);
+        assertTrue(mSyncer.sync(mLocalDir, REMOTE_DIR));
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<File, String>> captor = ArgumentCaptor.forClass(Map.class);
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<String>> dirs = ArgumentCaptor.forClass(List.class);
+        verify(mMockPusher).pushFiles(dirs.capture(), captor.capture());
+        assertEquals(1, captor.getValue().size());
+        assertEquals(REMOTE_DIR + "/file1", captor.getValue().get(mFile1));
+        // The changed file is not checked on the device.
+        verify(mMockDevice)
+                .executeShellCommand(
+                        "cd \"" + REMOTE_DIR + "\" && md5sum \"sub/file2\" 2>/dev/null");
+    }
+
+    /** Test parsing the output of md5sum. */
+    @Test
+    public void testParseRemoteHashes() {
+        Map<String, String> hashes = new HashMap<>();
+        ContentHashSyncer.parseRemoteHashes(
+                REMOTE_DIR,
+                "D41D8CD98F00B204E9800998ECF8427E  dir/file name\r\n"
+                        + "md5sum: missing: No such file or directory\n",
+                hashes);
+        assertEquals(1, hashes.size());
+        assertEquals(
+                "d41d8cd98f00b204e9800998ecf8427e", hashes.get(REMOTE_DIR + "/dir/file name"));
+    }
+}
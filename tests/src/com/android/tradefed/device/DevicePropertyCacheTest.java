@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Unit tests for {@link DevicePropertyCache}. */
+@RunWith(JUnit4.class)
+public class DevicePropertyCacheTest {
+
+    private static final long TTL_MS = 1000;
+
+    private long mCurrentTime = 0;
+    private int mLoads = 0;
+    private Map<String, String> mProperties = new HashMap<>();
+    private DevicePropertyCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = createCache(TTL_MS);
+    }
+
+    private DevicePropertyCache createCache(long ttlMs) {
+        return new DevicePropertyCache(ttlMs) {
+            @Override
+            long getCurrentTime() {
+                return mCurrentTime;
+            }
+        };
+    }
+
+    private String get(String name) throws DeviceNotAvailableException {
+        return mCache.get(
+                name,
+                key -> {
+                    mLoads++;
+                    return mProperties.get(key);
+                });
+    }
+
+    /** Test that the read-only properties are cached until invalidated. */
+    @Test
+    public void testGet_readOnly() throws Exception {
+        mProperties.put("ro.build.id", "BUILD");
+        assertEquals("BUILD", get("ro.build.id"));
+        mCurrentTime += 10 * TTL_MS;
+        mCache.invalidateMutable("sys.boot_completed");
+        assertEquals("BUILD", get("ro.build.id"));
+        assertEquals(1, mLoads);
+
+        mProperties.put("ro.build.id", "NEW_BUILD");
+        mCache.invalidateAll();
+        assertEquals("NEW_BUILD", get("ro.build.id"));
+        assertEquals(2, mLoads);
+        assertEquals("hits=1 misses=2 hit_rate=33% invalidations=1 size=1", mCache.getStats());
+    }
+
+    /** Test that read-only properties are not cached until they are set. */
+    @Test
+    public void testGet_readOnlyNotSet() throws Exception {
+        mProperties.put("ro.crypto.state", "");
+        assertEquals("", get("ro.crypto.state"));
+        mProperties.put("ro.crypto.state", "encrypted");
+        assertEquals("encrypted", get("ro.crypto.state"));
+        assertEquals("encrypted", get("ro.crypto.state"));
+        assertEquals(2, mLoads);
+    }
+
+    /** Test that the other properties are only cached for a short time. */
+    @Test
+    public void testGet_mutable() throws Exception {
+        mProperties.put("sys.boot_completed", "0");
+        assertEquals("0", get("sys.boot_completed"));
+        mProperties.put("sys.boot_completed", "1");
+        assertEquals("0", get("sys.boot_completed"));
+        mCurrentTime += TTL_MS;
+        assertEquals("1", get("sys.boot_completed"));
+        assertEquals(2, mLoads);
+
+        mProperties.put("persist.sys.test", "1");
+        assertEquals("1", get("persist.sys.test"));
+        mProperties.put("persist.sys.test", "2");
+        mCache.invalidateMutable("persist.sys.test");
+        assertEquals("2", get("persist.sys.test"));
+        assertEquals(4, mLoads);
+    }
+
+    /** Test that the other properties are not cached without a time to live. */
+    @Test
+    public void testGet_noTtl() throws Exception {
+        mCache = createCache(0);
+        mProperties.put("sys.boot_completed", "1");
+        get("sys.boot_completed");
+        get("sys.boot_completed");
+        assertEquals(2, mLoads);
+    }
+}
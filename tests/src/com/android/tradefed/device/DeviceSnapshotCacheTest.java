@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.android.ddmlib.IDevice;
+import com.android.tradefed.device.DeviceSnapshotCache.DeviceSnapshot;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link DeviceSnapshotCache}. */
+@RunWith(JUnit4.class)
+public class DeviceSnapshotCacheTest {
+
+    private static final String SERIAL = "serial";
+    private static final long TTL = 1000L;
+
+    private IDevice mMockDevice;
+    private DeviceSnapshotCache mCache;
+    private long mCurrentTime = 10000L;
+    private int mBatteryQueries = 0;
+
+    @Before
+    public void setUp() {
+        mMockDevice = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn(SERIAL);
+        mCache =
+                new DeviceSnapshotCache(TTL) {
+                    @Override
+                    long getCurrentTime() {
+                        return mCurrentTime;
+                    }
+
+                    @Override
+                    Integer queryBatteryLevel(IDevice device) {
+                        mBatteryQueries++;
+                        return 50;
+                    }
+                };
+    }
+
+    /** Test that a property is only queried once until the snapshot is invalidated. */
+    @Test
+    public void testGetProperty() {
+        EasyMock.expect(mMockDevice.getProperty(DeviceProperties.BOARD)).andReturn("walleye");
+        EasyMock.replay(mMockDevice);
+        DeviceSnapshot snapshot = mCache.getSnapshot(mMockDevice);
+        assertEquals("walleye", snapshot.getProperty(DeviceProperties.BOARD));
+        snapshot = mCache.getSnapshot(mMockDevice);
+        assertEquals("walleye", snapshot.getProperty(DeviceProperties.BOARD));
+        EasyMock.verify(mMockDevice);
+        assertEquals(1, mCache.getMissCount());
+        assertEquals(1, mCache.getHitCount());
+    }
+
+    /** Test that invalidating a device creates a new snapshot with a higher version. */
+    @Test
+    public void testInvalidate() {
+        EasyMock.replay(mMockDevice);
+        DeviceSnapshot snapshot = mCache.getSnapshot(mMockDevice);
+        assertEquals(0, snapshot.getVersion());
+        mCache.invalidate(SERIAL);
+        DeviceSnapshot newSnapshot = mCache.getSnapshot(mMockDevice);
+        assertNotSame(snapshot, newSnapshot);
+        assertEquals(1, newSnapshot.getVersion());
+        assertSame(newSnapshot, mCache.getSnapshot(mMockDevice));
+        assertEquals(1, mCache.getInvalidationCount());
+    }
+
+    /** Test that the battery level is refreshed once older than the time to live. */
+    @Test
+    public void testGetBatteryLevel_ttl() {
+        EasyMock.replay(mMockDevice);
+        DeviceSnapshot snapshot = mCache.getSnapshot(mMockDevice);
+        assertEquals(Integer.valueOf(50), snapshot.getBatteryLevel());
+        mCurrentTime += TTL - 1;
+        assertEquals(Integer.valueOf(50), snapshot.getBatteryLevel());
+        assertEquals(1, mBatteryQueries);
+        mCurrentTime += 1;
+        assertEquals(Integer.valueOf(50), snapshot.getBatteryLevel());
+        assertEquals(2, mBatteryQueries);
+        assertEquals(1, mCache.getStaleCount());
+    }
+
+    /** Test that {@link DeviceSelectionOptions} reads from the snapshot when one is provided. */
+    @Test
+    public void testMatchesWithSnapshot() {
+        EasyMock.expect(mMockDevice.getProperty(DeviceProperties.BOARD))
+                .andReturn("walleye")
+                .once();
+        EasyMock.expect(mMockDevice.getProperty(DeviceProperties.VARIANT))
+                .andReturn("walleye")
+                .once();
+        EasyMock.expect(mMockDevice.isEmulator()).andStubReturn(false);
+        EasyMock.replay(mMockDevice);
+        DeviceSelectionOptions options =
+                new DeviceSelectionOptions() {
+                    @Override
+                    public String fetchEnvironmentVariable(String name) {
+                        return null;
+                    }
+                };
+        options.addProductType("walleye:walleye");
+        options.setMinBatteryLevel(20);
+        assertTrue(options.matches(mMockDevice, mCache.getSnapshot(mMockDevice)));
+        assertTrue(options.matches(mMockDevice, mCache.getSnapshot(mMockDevice)));
+        options.setMinBatteryLevel(80);
+        assertFalse(options.matches(mMockDevice, mCache.getSnapshot(mMockDevice)));
+        EasyMock.verify(mMockDevice);
+        assertEquals(1, mBatteryQueries);
+    }
+}
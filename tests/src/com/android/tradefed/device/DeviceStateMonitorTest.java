@@ -20,6 +20,7 @@ import com.google.common.util.concurrent.SettableFuture;
 import com.android.ddmlib.CollectingOutputReceiver;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.IDevice.DeviceState;
+import com.android.ddmlib.IShellOutputReceiver;
 import com.android.tradefed.util.RunUtil;
 
 import junit.framework.TestCase;
@@ -325,6 +326,60 @@ public class DeviceStateMonitorTest extends TestCase {
         assertFalse(res);
     }
 
+    /**
+     * Test {@link DeviceStateMonitor#waitForBootComplete(long)} when the boot completion is
+     * detected by the long-lived shell command.
+     */
+    public void testWaitForBootComplete_shell() throws Exception {
+        IDevice mFakeDevice =
+                new StubDevice("serial") {
+                    @Override
+                    public void executeShellCommand(
+                            String command,
+                            IShellOutputReceiver receiver,
+                            long maxTimeToOutputResponse,
+                            TimeUnit maxTimeUnits) {
+                        assertEquals(NativeDeviceStateMonitor.BOOTCOMPLETE_WAIT_CMD, command);
+                        byte[] output =
+                                (NativeDeviceStateMonitor.BOOTCOMPLETE_MARKER + "\n").getBytes();
+                        receiver.addOutput(output, 0, output.length);
+                        receiver.flush();
+                    }
+
+                    @Override
+                    public Future<String> getSystemProperty(String name) {
+                        fail("boot property should not be polled");
+                        return null;
+                    }
+                };
+        mMonitor = new DeviceStateMonitor(mMockMgr, mFakeDevice, true);
+        mMonitor.setShellBootDetection(true);
+        assertTrue(mMonitor.waitForBootComplete(WAIT_TIMEOUT_NOT_REACHED_MS));
+        assertTrue(mMonitor.getBootDetectionStats().startsWith("boots=1 "));
+    }
+
+    /**
+     * Test {@link DeviceStateMonitor#waitForBootComplete(long)} when the shell command fails and
+     * the boot property is polled instead.
+     */
+    public void testWaitForBootComplete_shellFallback() throws Exception {
+        IDevice mFakeDevice =
+                new StubDevice("serial") {
+                    @Override
+                    public Future<String> getSystemProperty(String name) {
+                        SettableFuture<String> f = SettableFuture.create();
+                        f.set("1");
+                        return f;
+                    }
+                };
+        mMonitor = new DeviceStateMonitor(mMockMgr, mFakeDevice, true);
+        mMonitor.setShellBootDetection(true);
+        assertTrue(mMonitor.waitForBootComplete(WAIT_TIMEOUT_NOT_REACHED_MS));
+        assertTrue(mMonitor.getBootDetectionStats().startsWith("boots=1 "));
+        mMonitor.resetBootDetectionStats();
+        assertTrue(mMonitor.getBootDetectionStats().startsWith("boots=0 "));
+    }
+
     /**
      * Test {@link DeviceStateMonitor#waitForPmResponsive(long)} when package manager is already
      * responsive.
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.SyncService;
+import com.android.ddmlib.SyncService.ISyncProgressMonitor;
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Unit tests for {@link DirectoryPuller}. */
+@RunWith(JUnit4.class)
+public class DirectoryPullerTest {
+
+    private static final String REMOTE_DIR = "/data/local/traces";
+    private static final String LISTING =
+            ".\n./sub\n" + DirectoryPuller.FILES_MARKER + "\n./trace1\n./sub/trace2\n";
+
+    private ITestDevice mMockDevice;
+    private IDevice mMockIDevice;
+    private SyncService mMockSync;
+    private File mLocalDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mMockDevice = Mockito.mock(ITestDevice.class);
+        mMockIDevice = Mockito.mock(IDevice.class);
+        mMockSync = Mockito.mock(SyncService.class);
+        when(mMockDevice.getIDevice()).thenReturn(mMockIDevice);
+        when(mMockDevice.getSerialNumber()).thenReturn("serial");
+        when(mMockIDevice.getSyncService()).thenReturn(mMockSync);
+        mLocalDir = FileUtil.createTempDir("directory-puller");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mLocalDir);
+    }
+
+    /** Test parsing the listing of the remote tree. */
+    @Test
+    public void testParseListing() {
+        List<String> dirs = new ArrayList<>();
+        List<String> files = new ArrayList<>();
+        assertTrue(
+                DirectoryPuller.parseListing(
+                        LISTING + "find: ./private: Permission denied\n", dirs, files));
+        assertEquals(Arrays.asList("sub"), dirs);
+        assertEquals(Arrays.asList("trace1", "sub/trace2"), files);
+    }
+
+    /** Test that a missing remote directory is reported. */
+    @Test
+    public void testParseListing_missingDir() {
+        assertFalse(
+                DirectoryPuller.parseListing(
+                        "/system/bin/sh: cd: /data/local/traces: No such file or directory\n",
+                        new ArrayList<>(),
+                        new ArrayList<>()));
+    }
+
+    /** Test that the tree is listed once and the files are pulled through one session. */
+    @Test
+    public void testPull() throws Exception {
+        when(mMockDevice.executeShellCommand(Mockito.startsWith("cd \"" + REMOTE_DIR)))
+                .thenReturn(LISTING);
+        DirectoryPuller puller = new DirectoryPuller(mMockDevice, 1);
+        assertTrue(puller.pull(REMOTE_DIR, mLocalDir, false));
+
+        assertTrue(new File(mLocalDir, "sub").isDirectory());
+        verify(mMockDevice, times(1)).executeShellCommand(Mockito.anyString());
+        verify(mMockIDevice, times(1)).getSyncService();
+        verify(mMockSync)
+                .pullFile(
+                        Mockito.eq(REMOTE_DIR + "/trace1"),
+                        Mockito.eq(new File(mLocalDir, "trace1").getAbsolutePath()),
+                        Mockito.any(ISyncProgressMonitor.class));
+        verify(mMockSync)
+                .pullFile(
+                        Mockito.eq(REMOTE_DIR + "/sub/trace2"),
+                        Mockito.eq(new File(mLocalDir, "sub/trace2").getAbsolutePath()),
+                        Mockito.any(ISyncProgressMonitor.class));
+        assertEquals(2, puller.getPulledFiles());
+    }
+
+    /** Test that a file failing on every session is pulled through the device. */
+    @Test
+    public void testPull_fallback() throws Exception {
+        when(mMockDevice.executeShellCommand(Mockito.startsWith("cd \"" + REMOTE_DIR)))
+                .thenReturn(LISTING);
+        doThrow(new IOException("broken pipe"))
+                .when(mMockSync)
+                .pullFile(
+                        Mockito.eq(REMOTE_DIR + "/trace1"),
+                        Mockito.anyString(),
+                        Mockito.any(ISyncProgressMonitor.class));
+        File trace1 = new File(mLocalDir, "trace1");
+        when(mMockDevice.pullFile(REMOTE_DIR + "/trace1", trace1)).thenReturn(true);
+        DirectoryPuller puller = new DirectoryPuller(mMockDevice, 1);
+        assertTrue(puller.pull(REMOTE_DIR, mLocalDir, false));
+
+        verify(mMockDevice).pullFile(REMOTE_DIR + "/trace1", trace1);
+        assertEquals(2, puller.getPulledFiles());
+    }
+
+    /** Test that the files are pulled one by one when the tree cannot be archived. */
+    @Test
+    public void testPull_tarFailed() throws Exception {
+        when(mMockDevice.executeShellCommand(Mockito.startsWith("tar ")))
+                .thenReturn("tar: not found");
+        when(mMockDevice.executeShellCommand(Mockito.startsWith("cd \"" + REMOTE_DIR)))
+                .thenReturn(LISTING);
+        DirectoryPuller puller = new DirectoryPuller(mMockDevice, 1);
+        assertTrue(puller.pull(REMOTE_DIR, mLocalDir, true));
+
+        verify(mMockDevice).executeShellCommand(Mockito.startsWith("rm -f "));
+        verify(mMockDevice, Mockito.never())
+                .pullFile(Mockito.anyString(), Mockito.any(File.class));
+        assertEquals(2, puller.getPulledFiles());
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.SyncException;
+import com.android.ddmlib.SyncException.SyncError;
+import com.android.ddmlib.SyncService;
+import com.android.ddmlib.SyncService.ISyncProgressMonitor;
+import com.android.tradefed.util.FileUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/** Unit tests for {@link DirectoryPusher}. */
+@RunWith(JUnit4.class)
+public class DirectoryPusherTest {
+
+    private ITestDevice mMockDevice;
+    private IDevice mMockIDevice;
+    private SyncService mMockSync;
+    private File mLocalDir;
+    private File mFile1;
+    private File mFile2;
+
+    @Before
+    public void setUp() throws Exception {
+        mMockDevice = Mockito.mock(ITestDevice.class);
+        mMockIDevice = Mockito.mock(IDevice.class);
+        mMockSync = Mockito.mock(SyncService.class);
+        when(mMockDevice.getIDevice()).thenReturn(mMockIDevice);
+        when(mMockDevice.getSerialNumber()).thenReturn("serial");
+        when(mMockIDevice.getSyncService()).thenReturn(mMockSync);
+
+        mLocalDir = FileUtil.createTempDir("directory-pusher");
+        File subDir = new File(mLocalDir, "sub");
+        new File(subDir, "subsub").mkdirs();
+        mFile1 = new File(mLocalDir, "file1");
+        FileUtil.writeToFile("file1", mFile1);
+        mFile2 = new File(subDir, "file2");
+        FileUtil.writeToFile("file2", mFile2);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.recursiveDelete(mLocalDir);
+    }
+
+    /** Test that directories are created in one command and files pushed in one session. */
+    @Test
+    public void testPush() throws Exception {
+        DirectoryPusher pusher = new DirectoryPusher(mMockDevice, 1);
+        assertTrue(pusher.push(mLocalDir, "/data/local/tmp", new HashSet<>()));
+
+        verify(mMockDevice)
+                .executeShellCommand(
+                        "mkdir -p \"/data/local/tmp/sub\" \"/data/local/tmp/sub/subsub\"");
+        verify(mMockIDevice, times(1)).getSyncService();
+        verify(mMockSync)
+                .pushFile(
+                        Mockito.eq(mFile1.getAbsolutePath()),
+                        Mockito.eq("/data/local/tmp/file1"),
+                        Mockito.any(ISyncProgressMonitor.class));
+        verify(mMockSync)
+                .pushFile(
+                        Mockito.eq(mFile2.getAbsolutePath()),
+                        Mockito.eq("/data/local/tmp/sub/file2"),
+                        Mockito.any(ISyncProgressMonitor.class));
+        verify(mMockSync, times(1)).close();
+        assertEquals(2, pusher.getPushedFiles());
+        assertEquals(0, pusher.getRetries());
+    }
+
+    /** Test that a file failing to push is retried on a new session. */
+    @Test
+    public void testPush_retry() throws Exception {
+        doThrow(new IOException("broken pipe"))
+                .doNothing()
+                .when(mMockSync)
+                .pushFile(
+                        Mockito.eq(mFile1.getAbsolutePath()),
+                        Mockito.anyString(),
+                        Mockito.any(ISyncProgressMonitor.class));
+        DirectoryPusher pusher = new DirectoryPusher(mMockDevice, 1);
+        assertTrue(pusher.push(mLocalDir, "/data/local/tmp", new HashSet<>()));
+
+        verify(mMockIDevice, times(2)).getSyncService();
+        verify(mMockSync, times(2)).close();
+        verify(mMockDevice, Mockito.never())
+                .pushFile(Mockito.any(File.class), Mockito.anyString());
+        assertEquals(2, pusher.getPushedFiles());
+        assertEquals(1, pusher.getRetries());
+    }
+
+    /** Test that a file that cannot be pushed in bulk is pushed through the device. */
+    @Test
+    public void testPush_fallback() throws Exception {
+        doThrow(new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR, "Permission denied"))
+                .when(mMockSync)
+                .pushFile(
+                        Mockito.eq(mFile1.getAbsolutePath()),
+                        Mockito.anyString(),
+                        Mockito.any(ISyncProgressMonitor.class));
+        when(mMockDevice.pushFile(mFile1, "/data/local/tmp/file1")).thenReturn(false);
+        DirectoryPusher pusher = new DirectoryPusher(mMockDevice, 1);
+        assertFalse(pusher.push(mLocalDir, "/data/local/tmp", new HashSet<>()));
+        assertEquals(0, pusher.getRetries());
+    }
+
+    /** Test that excluded directories are neither created nor pushed. */
+    @Test
+    public void testPush_excluded() throws Exception {
+        HashSet<String> excluded = new HashSet<>();
+        excluded.add("sub");
+        DirectoryPusher pusher = new DirectoryPusher(mMockDevice);
+        assertTrue(pusher.push(mLocalDir, "/data/local/tmp", excluded));
+
+        verify(mMockDevice, Mockito.never()).executeShellCommand(Mockito.anyString());
+        assertEquals(1, pusher.getPushedFiles());
+    }
+
+    /** Test that nothing is pushed when the remote directories cannot be created. */
+    @Test
+    public void testPush_mkdirFailed() throws Exception {
+        when(mMockDevice.executeShellCommand(Mockito.startsWith("mkdir -p")))
+                .thenReturn("mkdir: '/data/local/tmp/sub': Permission denied\n");
+        DirectoryPusher pusher = new DirectoryPusher(mMockDevice, 1);
+        assertFalse(pusher.push(mLocalDir, "/data/local/tmp", new HashSet<>()));
+
+        verify(mMockIDevice, Mockito.never()).getSyncService();
+        assertEquals(0, pusher.getPushedFiles());
+    }
+
+    /** Test that many directories are created with several commands under the length limit. */
+    @Test
+    public void testPushFiles_mkdirBatches() throws Exception {
+        List<String> remoteDirs = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            remoteDirs.add(String.format("/data/local/tmp/directory%d", i));
+        }
+        DirectoryPusher pusher = new DirectoryPusher(mMockDevice, 1);
+        assertTrue(pusher.pushFiles(remoteDirs, new HashMap<>()));
+
+        ArgumentCaptor<String> commands = ArgumentCaptor.forClass(String.class);
+        verify(mMockDevice, Mockito.atLeast(2)).executeShellCommand(commands.capture());
+        int created = 0;
+        for (String command : commands.getAllValues()) {
+            assertTrue(command.length() <= DirectoryPusher.MAX_COMMAND_LENGTH);
+            created += command.split(" \"").length - 1;
+        }
+        assertEquals(remoteDirs.size(), created);
+    }
+
+    /** Test that a file whose push throws an unexpected exception is pushed through the device. */
+    @Test
+    public void testPush_runtimeException() throws Exception {
+        doThrow(new IllegalStateException("unexpected"))
+                .when(mMockSync)
+                .pushFile(
+                        Mockito.eq(mFile1.getAbsolutePath()),
+                        Mockito.anyString(),
+                        Mockito.any(ISyncProgressMonitor.class));
+        when(mMockDevice.pushFile(mFile1, "/data/local/tmp/file1")).thenReturn(true);
+        DirectoryPusher pusher = new DirectoryPusher(mMockDevice, 2);
+        assertTrue(pusher.push(mLocalDir, "/data/local/tmp", new HashSet<>()));
+
+        verify(mMockDevice).pushFile(mFile1, "/data/local/tmp/file1");
+        assertEquals(2, pusher.getPushedFiles());
+        assertEquals(0, pusher.getRetries());
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.device.IDeviceManager.IFastbootListener;
+import com.android.tradefed.util.RunUtil;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+/** Unit tests for {@link FastbootDeviceDiscovery}. */
+@RunWith(JUnit4.class)
+public class FastbootDeviceDiscoveryTest {
+
+    private Queue<Set<String>> mScans;
+    private List<Set<String>> mAdded;
+    private List<Set<String>> mRemoved;
+    private FastbootDeviceDiscovery mDiscovery;
+
+    /** A listener counting its notifications. */
+    private static class CountingListener implements IFastbootListener {
+        int mCount = 0;
+
+        @Override
+        public void stateUpdated() {
+            mCount++;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mScans = new LinkedList<>();
+        mAdded = new ArrayList<>();
+        mRemoved = new ArrayList<>();
+        FastbootHelper fastboot =
+                new FastbootHelper(RunUtil.getDefault(), "fastboot") {
+                    @Override
+                    public Set<String> getDevices() {
+                        return mScans.poll();
+                    }
+                };
+        mDiscovery =
+                new FastbootDeviceDiscovery(
+                        fastboot,
+                        (serials, added, removed) -> {
+                            mAdded.add(added);
+                            mRemoved.add(removed);
+                        }) {
+                    @Override
+                    UsbDeviceWatcher createUsbWatcher() {
+                        return null;
+                    }
+                };
+    }
+
+    private void addScan(String... serials) {
+        mScans.add(new HashSet<>(Arrays.asList(serials)));
+    }
+
+    /** Test that listeners are only notified when the devices in fastboot change. */
+    @Test
+    public void testScan_notifiesOnChange() {
+        CountingListener listener = new CountingListener();
+        mDiscovery.addListener(listener);
+        addScan();
+        addScan();
+        addScan("serial1");
+        addScan("serial1");
+        addScan();
+        // A new listener is notified once the first scan is done.
+        assertFalse(mDiscovery.scan());
+        assertEquals(1, listener.mCount);
+        assertFalse(mDiscovery.scan());
+        assertEquals(1, listener.mCount);
+        assertTrue(mDiscovery.scan());
+        assertEquals(2, listener.mCount);
+        assertFalse(mDiscovery.scan());
+        assertEquals(2, listener.mCount);
+        assertTrue(mDiscovery.scan());
+        assertEquals(3, listener.mCount);
+        assertEquals(new HashSet<>(Arrays.asList("serial1")), mAdded.get(2));
+        assertEquals(new HashSet<>(Arrays.asList("serial1")), mRemoved.get(4));
+        assertTrue(mAdded.get(4).isEmpty());
+    }
+
+    /** Test that a new listener is notified even when the scan fails. */
+    @Test
+    public void testScan_failed() {
+        CountingListener listener = new CountingListener();
+        mDiscovery.addListener(listener);
+        assertFalse(mDiscovery.scan());
+        assertEquals(1, listener.mCount);
+        assertTrue(mAdded.isEmpty());
+    }
+
+    /** Test that a removed listener is not notified anymore. */
+    @Test
+    public void testRemoveListener() {
+        CountingListener listener = new CountingListener();
+        mDiscovery.addListener(listener);
+        mDiscovery.removeListener(listener);
+        addScan("serial1");
+        assertTrue(mDiscovery.scan());
+        assertEquals(0, listener.mCount);
+    }
+
+    /** Test that polling backs off while nothing is in fastboot and nobody waits for it. */
+    @Test
+    public void testComputePollInterval_backoff() {
+        long interval = FastbootDeviceDiscovery.BASE_POLL_INTERVAL;
+        for (int i = 0; i < 10; i++) {
+            addScan();
+            mDiscovery.scan();
+            long next = mDiscovery.computePollInterval(false);
+            assertTrue(next >= interval);
+            interval = next;
+        }
+        assertEquals(FastbootDeviceDiscovery.MAX_POLL_INTERVAL, interval);
+        // A device in fastboot resets the interval.
+        addScan("serial1");
+        assertTrue(mDiscovery.scan());
+        assertEquals(
+                FastbootDeviceDiscovery.BASE_POLL_INTERVAL, mDiscovery.computePollInterval(true));
+        addScan("serial1");
+        assertFalse(mDiscovery.scan());
+        assertEquals(
+                FastbootDeviceDiscovery.BASE_POLL_INTERVAL, mDiscovery.computePollInterval(false));
+    }
+
+    /** Test that polling is fast while listeners wait for a fastboot state change. */
+    @Test
+    public void testComputePollInterval_listeners() {
+        mDiscovery.addListener(new CountingListener());
+        long interval = mDiscovery.computePollInterval(false);
+        assertEquals(FastbootDeviceDiscovery.ACTIVE_POLL_INTERVAL, interval);
+    }
+}
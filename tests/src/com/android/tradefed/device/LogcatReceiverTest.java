@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.android.tradefed.device.LogcatReceiver.IndexedOutputReceiver;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.util.StreamUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Calendar;
+
+/** Unit tests for {@link LogcatReceiver}. */
+@RunWith(JUnit4.class)
+public class LogcatReceiverTest {
+
+    private static final String LINE_1 = "12-11 03:15:41.015  1234  1234 I Tag: first\n";
+    private static final String LINE_2 = "12-11 03:15:42.520  1234  1234 E Tag: crash\n";
+    private static final String LINE_3 = "12-11 03:15:43.001  1234  1234 I Tag: third\n";
+
+    private IndexedOutputReceiver mReceiver;
+
+    @Before
+    public void setUp() {
+        mReceiver = new IndexedOutputReceiver("logcat", "serial", 1024 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        mReceiver.delete();
+    }
+
+    private static long date(int second, int millis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2017, Calendar.DECEMBER, 11, 3, 15, second);
+        calendar.set(Calendar.MILLISECOND, millis);
+        return calendar.getTimeInMillis();
+    }
+
+    private void addLines(String lines) {
+        mReceiver.addOutput(lines.getBytes(), 0, lines.length());
+    }
+
+    private static String read(InputStreamSource source) throws Exception {
+        try {
+            return StreamUtil.getStringFromSource(source);
+        } finally {
+            source.close();
+        }
+    }
+
+    /** Test that the slice is returned once the logcat was received past the end date. */
+    @Test
+    public void testGetDataSince() throws Exception {
+        addLines(LINE_1 + LINE_2 + LINE_3);
+        assertEquals(
+                LINE_2 + LINE_3, read(mReceiver.getDataSince(date(42, 0), date(42, 600), 0)));
+        // Not captured since the start date.
+        assertNull(mReceiver.getDataSince(date(40, 0), date(42, 600), 0));
+    }
+
+    /** Test that nothing is returned while the logcat was not received until the end date. */
+    @Test
+    public void testGetDataSince_notCaughtUp() throws Exception {
+        addLines(LINE_1 + LINE_2);
+        assertNull(mReceiver.getDataSince(date(41, 0), date(42, 600), 50));
+    }
+
+    /** Test that the slice waits for the logcat to be received until the end date. */
+    @Test
+    public void testGetDataSince_wait() throws Exception {
+        addLines(LINE_1);
+        Thread sender =
+                new Thread(
+                        () -> {
+                            try {
+                                Thread.sleep(100);
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                            addLines(LINE_2 + LINE_3);
+                        });
+        sender.start();
+        try {
+            assertEquals(
+                    LINE_2 + LINE_3,
+                    read(mReceiver.getDataSince(date(42, 0), date(42, 600), 10 * 1000)));
+        } finally {
+            sender.join();
+        }
+    }
+}
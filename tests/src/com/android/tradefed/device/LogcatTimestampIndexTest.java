@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Calendar;
+
+/** Unit tests for {@link LogcatTimestampIndex}. */
+@RunWith(JUnit4.class)
+public class LogcatTimestampIndexTest {
+
+    private static final String LINE_1 = "12-11 03:15:41.015  1234  1234 I Tag: first\n";
+    private static final String LINE_2 = "12-11 03:15:41.520  1234  1234 I Tag: second\n";
+    private static final String LINE_3 = "12-11 03:15:43.001  1234  1234 I Tag: third\n";
+    private static final String LOGCAT =
+            "--------- beginning of main\n" + LINE_1 + LINE_2 + LINE_3;
+
+    private LogcatTimestampIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mIndex = new LogcatTimestampIndex();
+    }
+
+    private static long date(int second, int millis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(2017, Calendar.DECEMBER, 11, 3, 15, second);
+        calendar.set(Calendar.MILLISECOND, millis);
+        return calendar.getTimeInMillis();
+    }
+
+    /** Test that the first line of each second is indexed, even when split across chunks. */
+    @Test
+    public void testGetPosition() {
+        byte[] data = LOGCAT.getBytes();
+        // Split in the middle of a timestamp.
+        int split = LOGCAT.indexOf(LINE_2) + 5;
+        mIndex.addOutput(data, 0, split);
+        mIndex.addOutput(data, split, data.length - split);
+
+        assertEquals(2, mIndex.size());
+        assertEquals(-1, mIndex.getPosition(date(40, 999)));
+        assertEquals(LOGCAT.indexOf(LINE_1), mIndex.getPosition(date(41, 600)));
+        assertEquals(LOGCAT.indexOf(LINE_3), mIndex.getPosition(date(42, 0)));
+        assertEquals(LOGCAT.indexOf(LINE_3), mIndex.getPosition(date(43, 0)));
+        assertEquals(data.length, mIndex.getPosition(date(44, 0)));
+    }
+
+    /** Test that the data is only complete until a date once a later second was received. */
+    @Test
+    public void testHasDataAfter() {
+        String logcat = LINE_1 + LINE_2;
+        mIndex.addOutput(logcat.getBytes(), 0, logcat.length());
+        assertTrue(mIndex.hasDataAfter(date(40, 999)));
+        assertFalse(mIndex.hasDataAfter(date(41, 0)));
+        mIndex.addOutput(LINE_3.getBytes(), 0, LINE_3.length());
+        assertTrue(mIndex.hasDataAfter(date(42, 500)));
+        assertFalse(mIndex.hasDataAfter(date(43, 0)));
+    }
+
+    /** Test that the lines going back in time are not indexed. */
+    @Test
+    public void testGetPosition_backInTime() {
+        String logcat = LINE_3 + LINE_1;
+        mIndex.addOutput(logcat.getBytes(), 0, logcat.length());
+        assertEquals(1, mIndex.size());
+        assertEquals(0, mIndex.getPosition(date(43, 0)));
+    }
+
+    /** Test that the seconds starting in discarded data are not available. */
+    @Test
+    public void testTrim() {
+        mIndex.addOutput(LOGCAT.getBytes(), 0, LOGCAT.length());
+        mIndex.trim(LOGCAT.indexOf(LINE_2));
+        assertEquals(1, mIndex.size());
+        assertEquals(-1, mIndex.getPosition(date(41, 0)));
+        assertEquals(LOGCAT.indexOf(LINE_3), mIndex.getPosition(date(43, 0)));
+
+        mIndex.clear();
+        mIndex.addOutput(LINE_1.getBytes(), 0, LINE_1.length());
+        assertEquals(0, mIndex.getPosition(date(41, 0)));
+    }
+}
@@ -2340,7 +2340,94 @@ public class NativeDeviceTest {
                 EasyMock.eq(String.format("logcat -v threadtime -t '%s'", dateFormatted)),
                 EasyMock.anyObject());
         EasyMock.replay(mMockIDevice);
-        mTestDevice.getLogcatSince(date);
+        try (InputStreamSource source = mTestDevice.getLogcatSince(date)) {
+            assertEquals(0, source.size());
+        }
+        EasyMock.verify(mMockIDevice);
+    }
+
+    /**
+     * Test that {@link NativeDevice#getLogcatSince(long)} slices the logcat captured on the host
+     * when the option is set, without querying the device.
+     */
+    @Test
+    public void testGetLogcatSince_fromHost() throws Exception {
+        long date = 1512990942000L;
+        LogcatReceiver receiver = Mockito.mock(LogcatReceiver.class);
+        InputStreamSource slice = new ByteArrayInputStreamSource("crash".getBytes());
+        doReturn(slice).when(receiver).getLogcatDataSince(date);
+        mTestDevice =
+                new TestableAndroidNativeDevice() {
+                    @Override
+                    LogcatReceiver createLogcatReceiver() {
+                        return receiver;
+                    }
+                };
+        new OptionSetter(mTestDevice.getOptions())
+                .setOptionValue("logcat-since-from-host", "true");
+        EasyMock.replay(mMockIDevice);
+        mTestDevice.startLogcat();
+
+        assertSame(slice, mTestDevice.getLogcatSince(date));
+        EasyMock.verify(mMockIDevice);
+    }
+
+    /**
+     * Test that {@link NativeDevice#getLogcatSince(long)} queries the device when the logcat
+     * captured on the host does not cover the request.
+     */
+    @Test
+    public void testGetLogcatSince_fromHostNotCovered() throws Exception {
+        long date = 1512990942000L;
+        LogcatReceiver receiver = Mockito.mock(LogcatReceiver.class);
+        doReturn(null).when(receiver).getLogcatDataSince(date);
+        mTestDevice =
+                new TestableAndroidNativeDevice() {
+                    @Override
+                    LogcatReceiver createLogcatReceiver() {
+                        return receiver;
+                    }
+                };
+        new OptionSetter(mTestDevice.getOptions())
+                .setOptionValue("logcat-since-from-host", "true");
+        EasyMock.expect(mMockIDevice.getProperty("ro.build.version.sdk")).andReturn("23");
+        String dateFormatted = new SimpleDateFormat("MM-dd HH:mm:ss.mmm").format(new Date(date));
+        mMockIDevice.executeShellCommand(
+                EasyMock.eq(String.format("logcat -v threadtime -t '%s'", dateFormatted)),
+                EasyMock.anyObject());
+        EasyMock.replay(mMockIDevice);
+        mTestDevice.startLogcat();
+
+        try (InputStreamSource source = mTestDevice.getLogcatSince(date)) {
+            assertEquals(0, source.size());
+        }
+        EasyMock.verify(mMockIDevice);
+    }
+
+    /** Test that {@link NativeDevice#getLogcatDump()} streams the logcat to a file. */
+    @Test
+    public void testGetLogcatDump() throws Exception {
+        mMockIDevice.executeShellCommand(
+                EasyMock.eq("logcat -v threadtime -d"),
+                (IShellOutputReceiver) EasyMock.anyObject(),
+                EasyMock.anyLong(),
+                EasyMock.eq(TimeUnit.MILLISECONDS));
+        EasyMock.expectLastCall()
+                .andAnswer(
+                        () -> {
+                            IShellOutputReceiver receiver =
+                                    (IShellOutputReceiver) EasyMock.getCurrentArguments()[1];
+                            byte[] data = "logcat line\n".getBytes();
+                            receiver.addOutput(data, 0, data.length);
+                            receiver.flush();
+                            return null;
+                        });
+        EasyMock.replay(mMockIDevice);
+        try (InputStreamSource source = mTestDevice.getLogcatDump()) {
+            assertTrue(source instanceof FileInputStreamSource);
+            assertEquals(
+                    "logcat line\n", StreamUtil.getStringFromStream(source.createInputStream()));
+        }
         EasyMock.verify(mMockIDevice);
     }
 
@@ -2610,4 +2697,48 @@ public class NativeDeviceTest {
         assertEquals(2, result.size());
         EasyMock.verify(mMockIDevice);
     }
+
+    /** Test that the read-only properties are cached until the device goes offline. */
+    @Test
+    public void testGetProperty_cached() throws Exception {
+        mTestDevice.getOptions().setPropertyCache(true);
+        EasyMock.expect(mMockIDevice.getProperty("ro.build.id")).andReturn("BUILD").times(2);
+        mMockStateMonitor.setState(TestDeviceState.NOT_AVAILABLE);
+        mMockStateMonitor.setState(TestDeviceState.ONLINE);
+        EasyMock.replay(mMockIDevice, mMockStateMonitor);
+
+        assertEquals("BUILD", mTestDevice.getProperty("ro.build.id"));
+        assertEquals("BUILD", mTestDevice.getProperty("ro.build.id"));
+        // The device may have been flashed while it was offline.
+        mTestDevice.setDeviceState(TestDeviceState.NOT_AVAILABLE);
+        mTestDevice.setDeviceState(TestDeviceState.ONLINE);
+        assertEquals("BUILD", mTestDevice.getProperty("ro.build.id"));
+        EasyMock.verify(mMockIDevice, mMockStateMonitor);
+        assertTrue(mTestDevice.getPropertyCache().getStats().startsWith("hits=1 misses=2"));
+    }
+
+    /**
+     * Test that a command that timed out on the persistent shell returns its partial output, and
+     * is not run a second time through the regular path.
+     */
+    @Test
+    public void testExecuteShellCommand_persistentShellTimeout() throws Exception {
+        PersistentShell shell = Mockito.mock(PersistentShell.class);
+        CommandResult partial = new CommandResult(CommandStatus.TIMED_OUT);
+        partial.setStdout("partial");
+        doReturn(partial).when(shell).execute("cmd", 100L);
+        mTestDevice =
+                new TestableAndroidNativeDevice() {
+                    @Override
+                    synchronized PersistentShell getPersistentShell() {
+                        return shell;
+                    }
+                };
+        mTestDevice.setCommandTimeout(100);
+        new OptionSetter(mTestDevice.getOptions()).setOptionValue("persistent-shell", "true");
+        EasyMock.replay(mMockIDevice);
+
+        assertEquals("partial", mTestDevice.executeShellCommand("cmd"));
+        EasyMock.verify(mMockIDevice);
+    }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.config.Option;
+import com.android.tradefed.testtype.DeviceTestCase;
+
+/**
+ * Micro-benchmark of {@link ITestDevice#executeShellCommand(String)}, comparing the latency of
+ * short commands opening a new adb connection each with commands run on a persistent shell.
+ *
+ * <p>Requires a physical device to be connected. Not part of the unit tests, intended to be run
+ * manually.
+ */
+public class PersistentShellLoadTest extends DeviceTestCase {
+
+    @Option(name = "iterations", description = "number of commands to run with each path")
+    private int mIterations = 200;
+
+    private static final String[] COMMANDS = {
+        "getprop ro.build.fingerprint", "settings get global airplane_mode_on", "echo 1"
+    };
+
+    private NativeDevice mDevice;
+    private boolean mPersistentShell;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDevice = (NativeDevice) getDevice();
+        mPersistentShell = mDevice.getOptions().usePersistentShell();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDevice.getOptions().setPersistentShell(mPersistentShell);
+        super.tearDown();
+    }
+
+    public void testCommandLatency() throws Exception {
+        for (String command : COMMANDS) {
+            long newConnectionUs = measure(command, false);
+            long persistentUs = measure(command, true);
+            System.out.println(
+                    String.format(
+                            "'%s' iterations=%d new connection=%dus/cmd persistent=%dus/cmd "
+                                    + "speedup=%.1fx",
+                            command,
+                            mIterations,
+                            newConnectionUs,
+                            persistentUs,
+                            (double) newConnectionUs / Math.max(1, persistentUs)));
+        }
+        System.out.println(mDevice.getPersistentShell().getStats());
+    }
+
+    /** Returns the average latency of the command in microseconds. */
+    private long measure(String command, boolean persistentShell) throws Exception {
+        mDevice.getOptions().setPersistentShell(persistentShell);
+        // Warm up, which also opens the persistent shell.
+        String expected = mDevice.executeShellCommand(command);
+        long start = System.nanoTime();
+        for (int i = 0; i < mIterations; i++) {
+            assertEquals(expected, mDevice.executeShellCommand(command));
+        }
+        return (System.nanoTime() - start) / 1000 / mIterations;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.RunUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+
+/** Unit tests for {@link PersistentShell}, run against a local shell. */
+@RunWith(JUnit4.class)
+public class PersistentShellTest {
+
+    private static final long TIMEOUT_MS = 10 * 1000;
+
+    private PersistentShell mShell;
+
+    @Before
+    public void setUp() {
+        mShell = new PersistentShell("test-shell", Arrays.asList("sh"), new RunUtil());
+    }
+
+    @After
+    public void tearDown() {
+        mShell.close();
+    }
+
+    /** Test that the output and exit code of each command are framed on the same shell. */
+    @Test
+    public void testExecute() {
+        CommandResult result = mShell.execute("echo hello; echo world", TIMEOUT_MS);
+        assertEquals(CommandStatus.SUCCESS, result.getStatus());
+        assertEquals("hello\nworld\n", result.getStdout());
+        assertEquals(0, (int) result.getExitCode());
+
+        result = mShell.execute("printf 'no new line' >&2; exit 3", TIMEOUT_MS);
+        assertEquals(CommandStatus.FAILED, result.getStatus());
+        assertEquals("no new line", result.getStdout());
+        assertEquals(3, (int) result.getExitCode());
+
+        // Commands reading their input do not consume the following commands.
+        result = mShell.execute("cat", TIMEOUT_MS);
+        assertEquals("", result.getStdout());
+        assertEquals("'quoted'\n", mShell.execute("echo \"'quoted'\"", TIMEOUT_MS).getStdout());
+        assertTrue(mShell.getStats().startsWith("commands=4 fallbacks=0 incomplete=0 opens=1"));
+    }
+
+    /**
+     * Test that a command timing out returns its partial output instead of falling back, and that
+     * the next command reopens the shell.
+     */
+    @Test
+    public void testExecute_timeout() {
+        CommandResult result = mShell.execute("echo partial; sleep 5", 200);
+        assertEquals(CommandStatus.TIMED_OUT, result.getStatus());
+        assertEquals("partial\n", result.getStdout());
+        assertEquals("ok\n", mShell.execute("echo ok", TIMEOUT_MS).getStdout());
+        assertTrue(mShell.getStats().startsWith("commands=1 fallbacks=0 incomplete=1 opens=2"));
+    }
+
+    /** Test that the timeout is the max time without output, not the max time of the command. */
+    @Test
+    public void testExecute_timeToOutput() {
+        CommandResult result =
+                mShell.execute("for i in 1 2 3 4 5 6; do echo $i; sleep 0.1; done", 400);
+        assertEquals(CommandStatus.SUCCESS, result.getStatus());
+        assertEquals("1\n2\n3\n4\n5\n6\n", result.getStdout());
+    }
+
+    /** Test that a shell that cannot be opened falls back. */
+    @Test
+    public void testExecute_openFailed() {
+        mShell = new PersistentShell("test-shell", Arrays.asList("false"), new RunUtil());
+        assertNull(mShell.execute("echo ok", TIMEOUT_MS));
+    }
+
+    /** Test quoting a command as a single shell argument. */
+    @Test
+    public void testQuote() {
+        assertEquals("'echo '\\''a b'\\'''", PersistentShell.quote("echo 'a b'"));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Unit tests for {@link ShellCommandBatch}. */
+@RunWith(JUnit4.class)
+public class ShellCommandBatchTest {
+
+    private static final String MARKER = "TF_BATCH_END_1";
+
+    private ITestDevice mMockDevice;
+    private ShellCommandBatch mBatch;
+
+    @Before
+    public void setUp() {
+        mMockDevice = Mockito.mock(ITestDevice.class);
+        mBatch = new ShellCommandBatch(mMockDevice, MARKER);
+    }
+
+    /** Test that the commands run with a single invocation, and their results are split. */
+    @Test
+    public void testRun() throws Exception {
+        when(mMockDevice.executeShellCommand(Mockito.anyString()))
+                .thenReturn(
+                        "1\n\n"
+                                + MARKER
+                                + "_0 0\n"
+                                + "\n"
+                                + MARKER
+                                + "_1 0\n"
+                                + "no new line\n"
+                                + MARKER
+                                + "_2 127\n");
+        List<CommandResult> results =
+                mBatch.run(Arrays.asList("getprop ro.debuggable", "setprop a b", "missing"));
+
+        verify(mMockDevice)
+                .executeShellCommand(
+                        mBatch.frame("getprop ro.debuggable", 0)
+                                + mBatch.frame("setprop a b", 1)
+                                + mBatch.frame("missing", 2));
+        assertEquals(3, results.size());
+        assertEquals("1\n", results.get(0).getStdout());
+        assertEquals(CommandStatus.SUCCESS, results.get(0).getStatus());
+        assertEquals("", results.get(1).getStdout());
+        assertEquals(0, (int) results.get(1).getExitCode());
+        assertEquals("no new line", results.get(2).getStdout());
+        assertEquals(CommandStatus.FAILED, results.get(2).getStatus());
+        assertEquals(127, (int) results.get(2).getExitCode());
+    }
+
+    /** Test that the commands not fitting in one command line are split in several invocations. */
+    @Test
+    public void testRun_split() throws Exception {
+        String longArg = new String(new char[DirectoryPusher.MAX_COMMAND_LENGTH / 2]);
+        List<String> commands = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            commands.add("echo " + longArg.replace('\0', 'a'));
+        }
+        when(mMockDevice.executeShellCommand(Mockito.anyString())).thenReturn("");
+        List<CommandResult> results = mBatch.run(commands);
+
+        verify(mMockDevice, times(3)).executeShellCommand(Mockito.anyString());
+        assertEquals(3, results.size());
+    }
+
+    /** Test that the commands whose framing is missing are reported. */
+    @Test
+    public void testParse_truncated() {
+        List<CommandResult> results =
+                mBatch.parse("ok\r\n" + MARKER + "_3 0\r\npartial output", 3, 5);
+        assertEquals(2, results.size());
+        assertEquals("ok", results.get(0).getStdout());
+        assertEquals(0, (int) results.get(0).getExitCode());
+        assertEquals(CommandStatus.EXCEPTION, results.get(1).getStatus());
+    }
+}
@@ -83,8 +83,12 @@ public class AtraceRunMetricCollectorTest {
         OptionSetter setter = new OptionSetter(mAtraceRunMetricCollector);
         setter.setOptionValue("directory-keys", "sdcard/srcdirectory");
 
-        Mockito.when(mMockDevice.pullDir(Mockito.eq("sdcard/srcdirectory"),
-                Mockito.any(File.class))).thenReturn(true);
+        Mockito.when(
+                        mMockDevice.bulkPullDir(
+                                Mockito.eq("sdcard/srcdirectory"),
+                                Mockito.any(File.class),
+                                Mockito.eq(false)))
+                .thenReturn(true);
 
         mAtraceRunMetricCollector.testRunStarted("fakeRun", 5);
         mAtraceRunMetricCollector.testRunEnded(500, new HashMap<String, Metric>());
@@ -170,8 +170,12 @@ public class FilePullerDeviceMetricCollectorTest {
         HashMap<String, Metric> currentMetrics = new HashMap<>();
         currentMetrics.put("coverageDirectory", TfMetricProtoUtil.stringToMetric("/data/coverage"));
 
-        Mockito.when(mMockDevice.pullDir(Mockito.eq("coverageDirectory"),
-                Mockito.any(File.class))).thenReturn(true);
+        Mockito.when(
+                        mMockDevice.bulkPullDir(
+                                Mockito.eq("coverageDirectory"),
+                                Mockito.any(File.class),
+                                Mockito.eq(false)))
+                .thenReturn(true);
 
         mFilePuller.testRunStarted("fakeRun", 5);
         mFilePuller.testRunEnded(500, currentMetrics);
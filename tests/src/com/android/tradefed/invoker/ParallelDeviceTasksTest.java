@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.invoker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.tradefed.command.remote.DeviceDescriptor;
+import com.android.tradefed.targetprep.TargetSetupError;
+import com.android.tradefed.util.MultiMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Unit tests for {@link ParallelDeviceTasks}. */
+@RunWith(JUnit4.class)
+public class ParallelDeviceTasksTest {
+
+    private static final List<String> DEVICES = Arrays.asList("device1", "device2", "device3");
+
+    private MultiMap<String, String> mDependencies;
+    private List<String> mRan;
+
+    @Before
+    public void setUp() {
+        mDependencies = new MultiMap<>();
+        mRan = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    /** Test that the tasks of independent devices run at the same time. */
+    @Test
+    public void testRun_parallel() throws Exception {
+        CountDownLatch allStarted = new CountDownLatch(DEVICES.size());
+        Map<String, Long> durations =
+                new ParallelDeviceTasks(DEVICES, mDependencies)
+                        .run(
+                                "test",
+                                deviceName -> {
+                                    allStarted.countDown();
+                                    // Only returns if every task started concurrently.
+                                    assertTrue(allStarted.await(10, TimeUnit.SECONDS));
+                                });
+        assertEquals(DEVICES, new ArrayList<>(durations.keySet()));
+    }
+
+    /** Test that a device task only starts after the tasks of its dependencies. */
+    @Test
+    public void testRun_dependencies() throws Exception {
+        mDependencies.put("device1", "device2");
+        mDependencies.put("device2", "device3");
+        new ParallelDeviceTasks(DEVICES, mDependencies).run("test", mRan::add);
+        assertEquals(Arrays.asList("device3", "device2", "device1"), mRan);
+    }
+
+    /**
+     * Test that errors are reported in the configuration order, and that the devices depending on
+     * a failed device are skipped.
+     */
+    @Test
+    public void testRun_errors() throws Exception {
+        mDependencies.put("device3", "device1");
+        CountDownLatch device2Failed = new CountDownLatch(1);
+        try {
+            new ParallelDeviceTasks(DEVICES, mDependencies)
+                    .run(
+                            "test",
+                            deviceName -> {
+                                mRan.add(deviceName);
+                                if ("device2".equals(deviceName)) {
+                                    device2Failed.countDown();
+                                    throw new TargetSetupError(
+                                            "device2 error", (DeviceDescriptor) null);
+                                }
+                                // Fail after device2 to check that the order is deterministic.
+                                assertTrue(device2Failed.await(10, TimeUnit.SECONDS));
+                                throw new IllegalStateException("device1 error");
+                            });
+            fail("Should have thrown an exception.");
+        } catch (IllegalStateException expected) {
+            assertEquals("device1 error", expected.getMessage());
+            assertEquals(1, expected.getSuppressed().length);
+            assertTrue(expected.getSuppressed()[0] instanceof TargetSetupError);
+        }
+        assertEquals(2, mRan.size());
+        assertFalse(mRan.contains("device3"));
+    }
+
+    /** Test that each device task runs on a thread named after the device. */
+    @Test
+    public void testRun_threadNames() throws Exception {
+        new ParallelDeviceTasks(DEVICES, mDependencies)
+                .run("test", deviceName -> mRan.add(Thread.currentThread().getName()));
+        assertTrue(mRan.contains("ParallelDeviceTasks-device1"));
+        assertTrue(mRan.contains("ParallelDeviceTasks-device2"));
+        assertTrue(mRan.contains("ParallelDeviceTasks-device3"));
+    }
+
+    /** Test that interrupting the caller stops waiting and interrupts the running tasks. */
+    @Test
+    public void testRun_interrupted() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch taskInterrupted = new CountDownLatch(1);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread caller =
+                new Thread(
+                        () -> {
+                            try {
+                                new ParallelDeviceTasks(Arrays.asList("device1"), mDependencies)
+                                        .run(
+                                                "test",
+                                                deviceName -> {
+                                                    started.countDown();
+                                                    try {
+                                                        new CountDownLatch(1).await();
+                                                    } catch (InterruptedException e) {
+                                                        taskInterrupted.countDown();
+                                                    }
+                                                });
+                            } catch (Exception e) {
+                                error.set(e);
+                            }
+                        });
+        caller.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        caller.interrupt();
+        caller.join(10000);
+        assertFalse(caller.isAlive());
+        assertTrue(error.get() instanceof InterruptedException);
+        assertTrue(taskInterrupted.await(10, TimeUnit.SECONDS));
+    }
+
+    /** Test that a dependency on an unknown device is rejected. */
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownDevice() {
+        mDependencies.put("device1", "device4");
+        new ParallelDeviceTasks(DEVICES, mDependencies);
+    }
+
+    /** Test that cyclic dependencies are rejected. */
+    @Test(expected = IllegalArgumentException.class)
+    public void testCyclicDependencies() {
+        mDependencies.put("device1", "device2");
+        mDependencies.put("device2", "device3");
+        mDependencies.put("device3", "device1");
+        new ParallelDeviceTasks(DEVICES, mDependencies);
+    }
+}
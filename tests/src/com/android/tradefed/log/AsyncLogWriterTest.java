@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests for {@link AsyncLogWriter}. */
+@RunWith(JUnit4.class)
+public class AsyncLogWriterTest {
+
+    /** An output stream whose first write waits to be released. */
+    private static class BlockingOutputStream extends ByteArrayOutputStream {
+        final CountDownLatch mWriting = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mWriting.countDown();
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            super.write(b, off, len);
+        }
+    }
+
+    /** Test that the records are written in order once flushed. */
+    @Test
+    public void testWrite() {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        AsyncLogWriter writer = new AsyncLogWriter(output, 16, true, "test-writer");
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            String line = String.format("line %d\n", i);
+            writer.write(line.getBytes());
+            expected.append(line);
+        }
+        writer.flush();
+        assertEquals(expected.toString(), output.toString());
+        writer.close();
+        writer.write("after close\n".getBytes());
+        assertEquals(expected.toString(), output.toString());
+    }
+
+    /** Test that the records are dropped and reported when the buffer is full. */
+    @Test
+    public void testWrite_drop() throws Exception {
+        BlockingOutputStream output = new BlockingOutputStream();
+        AsyncLogWriter writer = new AsyncLogWriter(output, 1, false, "test-writer");
+        writer.write("first\n".getBytes());
+        assertTrue(output.mWriting.await(5, TimeUnit.SECONDS));
+        // The writer is busy with the first record, the second one fills the buffer.
+        writer.write("second\n".getBytes());
+        writer.write("third\n".getBytes());
+        assertEquals(1, writer.getDroppedRecords());
+
+        output.mRelease.countDown();
+        writer.close();
+        String log = output.toString();
+        assertTrue(log, log.startsWith("first\n"));
+        assertTrue(log, log.contains("1 log lines dropped"));
+        assertTrue(log, log.endsWith("second\n"));
+    }
+
+    /** Test that a failing stream does not stop the writer, nor block the producers. */
+    @Test
+    public void testWrite_runtimeException() {
+        ByteArrayOutputStream output =
+                new ByteArrayOutputStream() {
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        if (new String(b, off, len).startsWith("fail")) {
+                            throw new IllegalStateException("failing stream");
+                        }
+                        super.write(b, off, len);
+                    }
+                };
+        AsyncLogWriter writer = new AsyncLogWriter(output, 1, true, "test-writer");
+        for (int i = 0; i < 10; i++) {
+            writer.write("fail\n".getBytes());
+        }
+        writer.write("last\n".getBytes());
+        writer.flush();
+        assertEquals("last\n", output.toString());
+        writer.close();
+    }
+}
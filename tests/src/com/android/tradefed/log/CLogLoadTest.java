@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import com.android.ddmlib.DdmPreferences;
+import com.android.ddmlib.Log;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import junit.framework.TestCase;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Micro-benchmark of {@link CLog}, comparing the cost of the messages dropped because of their
+ * level and of the formatting of the printed lines with the previous implementation, which
+ * formatted the message and looked up the caller before checking the level.
+ *
+ * <p>Not part of the unit tests, intended to be run manually.
+ */
+public class CLogLoadTest extends TestCase {
+
+    private static final int WARMUP_ITERATIONS = 100000;
+    private static final int ITERATIONS = 1000000;
+
+    private LogLevel mDdmLogLevel;
+    private ThreadGroup mThreadGroup;
+    private LogRegistry mLogRegistry;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDdmLogLevel = DdmPreferences.getLogLevel();
+        DdmPreferences.setLogLevel(LogLevel.VERBOSE.getStringValue());
+        mThreadGroup = new ThreadGroup("CLogLoadTest");
+        mLogRegistry =
+                new LogRegistry() {
+                    @Override
+                    ThreadGroup getCurrentThreadGroup() {
+                        return mThreadGroup;
+                    }
+
+                    @Override
+                    public void saveGlobalLog() {
+                        // empty on purpose, avoid leaving logs that we can't clean.
+                    }
+                };
+        StdoutLogger logger = new StdoutLogger();
+        logger.setLogLevel(LogLevel.INFO);
+        mLogRegistry.registerLogger(logger);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        CLog.setLogOutput(null);
+        mLogRegistry.unregisterLogger();
+        mLogRegistry.closeAndRemoveAllLogs();
+        DdmPreferences.setLogLevel(mDdmLogLevel.getStringValue());
+        super.tearDown();
+    }
+
+    /** Measures the cost of a debug message dropped because the logger is at the info level. */
+    public void testDroppedMessage() {
+        Log.setLogOutput(mLogRegistry);
+        Runnable eager = () -> Log.d(CLog.getClassName(1), String.format("value %d", 42));
+        measure("dropped message, previous", eager, WARMUP_ITERATIONS);
+        long eagerNs = measure("dropped message, previous", eager, ITERATIONS);
+
+        CLog.setLogOutput(mLogRegistry);
+        Runnable gated = () -> CLog.d("value %d", 42);
+        measure("dropped message, level checked first", gated, WARMUP_ITERATIONS);
+        long gatedNs = measure("dropped message, level checked first", gated, ITERATIONS);
+        System.out.println(
+                String.format("dropped message speedup=%.1fx", (double) eagerNs / gatedNs));
+    }
+
+    /** Measures the cost of formatting a printed line. */
+    public void testFormatLine() {
+        Runnable previous =
+                () -> {
+                    SimpleDateFormat formatter = new SimpleDateFormat("MM-dd HH:mm:ss");
+                    String.format(
+                            "%s %c/%s: %s\n",
+                            formatter.format(new Date()),
+                            LogLevel.INFO.getPriorityLetter(),
+                            "CLogLoadTest",
+                            "message");
+                };
+        measure("format line, previous", previous, WARMUP_ITERATIONS);
+        long previousNs = measure("format line, previous", previous, ITERATIONS);
+
+        Runnable current =
+                () -> LogUtil.getLogFormatString(LogLevel.INFO, "CLogLoadTest", "message");
+        measure("format line, current", current, WARMUP_ITERATIONS);
+        long currentNs = measure("format line, current", current, ITERATIONS);
+        System.out.println(
+                String.format("format line speedup=%.1fx", (double) previousNs / currentNs));
+    }
+
+    /** Returns the average time of the action in nanoseconds. */
+    private static long measure(String name, Runnable action, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            action.run();
+        }
+        long averageNs = Math.max(1, (System.nanoTime() - start) / iterations);
+        if (iterations != WARMUP_ITERATIONS) {
+            System.out.println(
+                    String.format("%s: iterations=%d %dns/call", name, iterations, averageNs));
+        }
+        return averageNs;
+    }
+}
@@ -107,6 +107,35 @@ public class FileLoggerTest {
         return message.substring(startIndex);
     }
 
+    /** Test that the lines written asynchronously are all in the log returned by getLog. */
+    @Test
+    public void testLogToLogger_async() throws Exception {
+        FileLogger logger = new FileLogger();
+        OptionSetter setter = new OptionSetter(logger);
+        setter.setOptionValue("async-write", "true");
+        setter.setOptionValue("async-buffer-size", "4");
+        logger.init();
+        StringBuilder expected = new StringBuilder();
+        try {
+            for (int i = 0; i < 50; i++) {
+                String message = String.format("line %d", i);
+                logger.printLog(LogLevel.INFO, LOG_TAG, message);
+                expected.append(LogUtil.getLogFormatString(LogLevel.INFO, LOG_TAG, message));
+            }
+            try (InputStreamSource logSource = logger.getLog()) {
+                String log = StreamUtil.getStringFromStream(logSource.createInputStream());
+                // The lines only differ from the expected ones by their timestamp.
+                assertEquals(
+                        expected.toString().replaceAll("\\d\\d:\\d\\d:\\d\\d", ""),
+                        log.replaceAll("\\d\\d:\\d\\d:\\d\\d", ""));
+            }
+        } finally {
+            logger.closeLog();
+        }
+        // Silently ignored after close
+        logger.writeToLog("after close");
+    }
+
     /**
      * Test behavior when {@link FileLogger#getLog()} is called after {@link FileLogger#closeLog()}.
      */
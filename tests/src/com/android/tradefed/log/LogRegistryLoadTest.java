@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import com.android.ddmlib.Log.LogLevel;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Contention micro-benchmark of {@link LogRegistry#getLogger()}, called for every log line. Each
+ * thread simulates an invocation with its own thread group and logger, and its lookups are
+ * compared with a lookup synchronized on a shared table as previously done.
+ *
+ * <p>Not part of the unit tests, intended to be run manually.
+ */
+public class LogRegistryLoadTest extends TestCase {
+
+    private static final int[] NUM_THREADS = {1, 8, 32};
+    private static final int LOOKUPS_PER_THREAD = 1000000;
+
+    private LogRegistry mLogRegistry;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLogRegistry =
+                new LogRegistry() {
+                    @Override
+                    public void saveGlobalLog() {
+                        // empty on purpose, avoid leaving logs that we can't clean.
+                    }
+                };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mLogRegistry.closeAndRemoveAllLogs();
+        super.tearDown();
+    }
+
+    public void testGetLoggerContention() throws Exception {
+        Map<ThreadGroup, ILeveledLogOutput> table = new Hashtable<>();
+        for (int numThreads : NUM_THREADS) {
+            long synchronizedNs =
+                    run(
+                            numThreads,
+                            () -> {
+                                ThreadGroup group = Thread.currentThread().getThreadGroup();
+                                table.put(group, new StdoutLogger());
+                                return () -> {
+                                    synchronized (table) {
+                                        return table.get(group);
+                                    }
+                                };
+                            });
+            long lockFreeNs =
+                    run(
+                            numThreads,
+                            () -> {
+                                mLogRegistry.registerLogger(new StdoutLogger());
+                                return mLogRegistry::getLogger;
+                            });
+            System.out.println(
+                    String.format(
+                            "threads=%d lookups/thread=%d synchronized=%dns/lookup "
+                                    + "lock-free=%dns/lookup speedup=%.1fx",
+                            numThreads,
+                            LOOKUPS_PER_THREAD,
+                            synchronizedNs,
+                            lockFreeNs,
+                            (double) synchronizedNs / Math.max(1, lockFreeNs)));
+            table.clear();
+        }
+    }
+
+    /** Looks up the logger of the thread. */
+    private interface Lookup {
+        ILeveledLogOutput getLogger();
+    }
+
+    /** Registers the logger of the thread and returns its lookup. */
+    private interface Setup {
+        Lookup register();
+    }
+
+    /** Returns the average time per lookup in nanoseconds, seen from each thread. */
+    private long run(int numThreads, Setup setup) throws Exception {
+        CountDownLatch ready = new CountDownLatch(numThreads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        long[] elapsedNs = new long[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int index = i;
+            ThreadGroup group = new ThreadGroup("invocation-" + i);
+            Thread thread =
+                    new Thread(
+                            group,
+                            () -> {
+                                Lookup lookup = setup.register();
+                                ready.countDown();
+                                try {
+                                    start.await();
+                                } catch (InterruptedException e) {
+                                    return;
+                                }
+                                long begin = System.nanoTime();
+                                for (int j = 0; j < LOOKUPS_PER_THREAD; j++) {
+                                    if (lookup.getLogger().getLogLevel() == LogLevel.ASSERT) {
+                                        throw new IllegalStateException();
+                                    }
+                                }
+                                elapsedNs[index] = System.nanoTime() - begin;
+                            });
+            threads.add(thread);
+            thread.start();
+        }
+        ready.await();
+        start.countDown();
+        long total = 0;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (long elapsed : elapsedNs) {
+            total += elapsed;
+        }
+        return total / numThreads / LOOKUPS_PER_THREAD;
+    }
+}
@@ -70,6 +70,25 @@ public class LogRegistryTest extends TestCase {
         mLogRegistry.unregisterLogger();
     }
 
+    /**
+     * Tests that {@link LogRegistry#getLogger} does not return a logger cached before it was
+     * unregistered or replaced.
+     */
+    public void testGetLogger_changed() {
+        StdoutLogger firstLogger = new StdoutLogger();
+        mLogRegistry.registerLogger(firstLogger);
+        assertEquals(firstLogger, mLogRegistry.getLogger());
+        assertEquals(firstLogger, mLogRegistry.getLogger());
+
+        mLogRegistry.unregisterLogger();
+        assertNotSame(firstLogger, mLogRegistry.getLogger());
+
+        StdoutLogger secondLogger = new StdoutLogger();
+        mLogRegistry.registerLogger(secondLogger);
+        assertEquals(secondLogger, mLogRegistry.getLogger());
+        mLogRegistry.unregisterLogger();
+    }
+
     /**
      * Tests that {@link LogRegistry#printLog} calls into the underlying logger's printLog method
      * when the logging level is appropriate for printing.
@@ -104,6 +123,18 @@ public class LogRegistryTest extends TestCase {
         mLogRegistry.unregisterLogger();
     }
 
+    /** Tests that {@link LogRegistry#isLoggable} uses the level of the logger of the thread. */
+    public void testIsLoggable() {
+        StdoutLogger stdoutLogger = new StdoutLogger();
+        stdoutLogger.setLogLevel(LogLevel.INFO);
+        mLogRegistry.registerLogger(stdoutLogger);
+
+        assertFalse(mLogRegistry.isLoggable(LogLevel.DEBUG));
+        assertTrue(mLogRegistry.isLoggable(LogLevel.INFO));
+        assertTrue(mLogRegistry.isLoggable(LogLevel.ERROR));
+        mLogRegistry.unregisterLogger();
+    }
+
     /**
      * Tests for ensuring new threads spawned without an explicit ThreadGroup will inherit the
      * same logger as the parent's logger.
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.log;
+
+import static org.junit.Assert.assertTrue;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Unit tests for {@link LogUtil}. */
+@RunWith(JUnit4.class)
+public class LogUtilTest {
+
+    private ILogRegistry mMockLogRegistry;
+
+    @Before
+    public void setUp() {
+        mMockLogRegistry = EasyMock.createMock(ILogRegistry.class);
+    }
+
+    @After
+    public void tearDown() {
+        CLog.setLogOutput(null);
+    }
+
+    /** Test that the messages below the level of the logger are dropped before formatting. */
+    @Test
+    public void testCLog_notLoggable() {
+        Object arg =
+                new Object() {
+                    @Override
+                    public String toString() {
+                        throw new AssertionError("message should not be formatted");
+                    }
+                };
+        EasyMock.expect(mMockLogRegistry.isLoggable(LogLevel.DEBUG)).andReturn(false);
+        EasyMock.replay(mMockLogRegistry);
+        CLog.setLogOutput(mMockLogRegistry);
+        CLog.d("dropped %s", arg);
+        EasyMock.verify(mMockLogRegistry);
+    }
+
+    /** Test that the messages at or above the level of the logger are printed. */
+    @Test
+    public void testCLog_loggable() {
+        EasyMock.expect(mMockLogRegistry.isLoggable(LogLevel.ERROR)).andReturn(true);
+        mMockLogRegistry.printLog(LogLevel.ERROR, "LogUtilTest", "printed 1");
+        EasyMock.replay(mMockLogRegistry);
+        CLog.setLogOutput(mMockLogRegistry);
+        CLog.e("printed %d", 1);
+        EasyMock.verify(mMockLogRegistry);
+    }
+
+    /** Test the format of the log lines. */
+    @Test
+    public void testGetLogFormatString() {
+        String line = LogUtil.getLogFormatString(LogLevel.WARN, "Tag", "message");
+        assertTrue(line, line.matches("\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d W/Tag: message\n"));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import static org.junit.Assert.assertEquals;
+
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/** Unit tests for {@link EventBufferingListener}. */
+@RunWith(JUnit4.class)
+public class EventBufferingListenerTest {
+
+    private ITestInvocationListener mMockListener;
+    private EventBufferingListener mBuffer;
+
+    @Before
+    public void setUp() {
+        mMockListener = EasyMock.createStrictMock(ITestInvocationListener.class);
+        mBuffer = new EventBufferingListener(mMockListener);
+    }
+
+    /** Test that the events are only replayed on flush, in order. */
+    @Test
+    public void testFlush() {
+        TestDescription test = new TestDescription("class", "test");
+        HashMap<String, Metric> metrics = new HashMap<>();
+        mMockListener.testRunStarted("run", 1);
+        mMockListener.testStarted(test, 5L);
+        mMockListener.testFailed(test, "trace");
+        mMockListener.testEnded(test, 10L, metrics);
+        mMockListener.testRunEnded(10L, metrics);
+        EasyMock.replay(mMockListener);
+
+        mBuffer.testRunStarted("run", 1);
+        mBuffer.testStarted(test, 5L);
+        mBuffer.testFailed(test, "trace");
+        mBuffer.testEnded(test, 10L, metrics);
+        mBuffer.testRunEnded(10L, metrics);
+        assertEquals(5, mBuffer.getBufferedEventCount());
+        mBuffer.flush();
+        assertEquals(0, mBuffer.getBufferedEventCount());
+        // Events are only replayed once.
+        mBuffer.flush();
+        EasyMock.verify(mMockListener);
+    }
+
+    /** Test that logs are forwarded right away. */
+    @Test
+    public void testLog() {
+        InputStreamSource source = new ByteArrayInputStreamSource(new byte[0]);
+        mMockListener.testLog("log", LogDataType.TEXT, source);
+        EasyMock.replay(mMockListener);
+
+        mBuffer.testLog("log", LogDataType.TEXT, source);
+        assertEquals(0, mBuffer.getBufferedEventCount());
+        EasyMock.verify(mMockListener);
+    }
+
+    /** Test that the events are replayed while holding the lock taken by the logs. */
+    @Test
+    public void testFlush_lock() {
+        List<Boolean> locked = new ArrayList<>();
+        ITestInvocationListener listener =
+                new ITestInvocationListener() {
+                    @Override
+                    public void testRunStarted(String runName, int testCount) {
+                        locked.add(Thread.holdsLock(this));
+                    }
+                };
+        EventBufferingListener buffer = new EventBufferingListener(listener);
+        buffer.testRunStarted("run", 1);
+        buffer.flush();
+        assertEquals(Arrays.asList(true), locked);
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Unit tests for {@link ResultForwarder}. */
+@RunWith(JUnit4.class)
+public class ResultForwarderTest {
+
+    private static final TestDescription TEST = new TestDescription("class", "test");
+
+    /** A listener recording the events it receives, optionally waiting at the first test. */
+    private static class RecordingListener implements ITestInvocationListener {
+        final List<String> mEvents = new CopyOnWriteArrayList<>();
+        final CountDownLatch mRelease;
+        final CountDownLatch mRunEnded = new CountDownLatch(1);
+
+        RecordingListener(boolean blocked) {
+            mRelease = new CountDownLatch(blocked ? 1 : 0);
+        }
+
+        @Override
+        public void testRunStarted(String runName, int testCount) {
+            mEvents.add("testRunStarted");
+        }
+
+        @Override
+        public void testStarted(TestDescription test) {
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            mEvents.add("testStarted");
+        }
+
+        @Override
+        public void testEnded(TestDescription test, HashMap<String, Metric> testMetrics) {
+            mEvents.add("testEnded");
+        }
+
+        @Override
+        public void testRunEnded(long elapsedTime, HashMap<String, Metric> runMetrics) {
+            mEvents.add("testRunEnded");
+            mRunEnded.countDown();
+        }
+
+        @Override
+        public void invocationEnded(long elapsedTime) {
+            mEvents.add("invocationEnded");
+        }
+    }
+
+    /** Sends the events of an invocation with a single test. */
+    private static void runInvocation(ResultForwarder forwarder) {
+        forwarder.invocationStarted(new InvocationContext());
+        forwarder.testRunStarted("run", 1);
+        forwarder.testStarted(TEST);
+        forwarder.testEnded(TEST, new HashMap<String, Metric>());
+        forwarder.testRunEnded(0L, new HashMap<String, Metric>());
+    }
+
+    /**
+     * Test that a slow listener does not delay the caller or the other listeners, and that all the
+     * events are delivered in order before invocationEnded.
+     */
+    @Test
+    public void testAsyncDispatch() throws Exception {
+        RecordingListener slow = new RecordingListener(true);
+        RecordingListener fast = new RecordingListener(false);
+        ResultForwarder forwarder = new ResultForwarder(Arrays.asList(slow, fast));
+        forwarder.enableAsyncDispatch(16);
+
+        runInvocation(forwarder);
+        assertTrue(fast.mRunEnded.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("testRunStarted"), slow.mEvents);
+
+        slow.mRelease.countDown();
+        forwarder.invocationEnded(0L);
+        List<String> expected =
+                Arrays.asList(
+                        "testRunStarted",
+                        "testStarted",
+                        "testEnded",
+                        "testRunEnded",
+                        "invocationEnded");
+        assertEquals(expected, slow.mEvents);
+        assertEquals(expected, fast.mEvents);
+    }
+
+    /** Test that a queue smaller than the pending events makes the caller wait, without loss. */
+    @Test
+    public void testAsyncDispatch_queueFull() throws Exception {
+        RecordingListener slow = new RecordingListener(true);
+        ResultForwarder forwarder = new ResultForwarder(slow);
+        forwarder.enableAsyncDispatch(1);
+
+        Thread caller = new Thread(() -> runInvocation(forwarder));
+        caller.start();
+        caller.join(200);
+        assertTrue(caller.isAlive());
+
+        slow.mRelease.countDown();
+        caller.join(5000);
+        forwarder.invocationEnded(0L);
+        assertEquals(
+                Arrays.asList(
+                        "testRunStarted",
+                        "testStarted",
+                        "testEnded",
+                        "testRunEnded",
+                        "invocationEnded"),
+                slow.mEvents);
+    }
+
+    /**
+     * Test that interrupting a caller waiting for a full queue still delivers every event to
+     * every listener, and keeps the interrupted status of the caller.
+     */
+    @Test
+    public void testAsyncDispatch_interrupted() throws Exception {
+        RecordingListener slow = new RecordingListener(true);
+        RecordingListener fast = new RecordingListener(false);
+        ResultForwarder forwarder = new ResultForwarder(Arrays.asList(slow, fast));
+        forwarder.enableAsyncDispatch(1);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread caller =
+                new Thread(
+                        () -> {
+                            runInvocation(forwarder);
+                            interrupted.set(Thread.currentThread().isInterrupted());
+                        });
+        caller.start();
+        caller.join(200);
+        caller.interrupt();
+        caller.join(200);
+        // Still waiting for room in the queue of the slow listener.
+        assertTrue(caller.isAlive());
+
+        slow.mRelease.countDown();
+        caller.join(5000);
+        assertTrue(interrupted.get());
+        forwarder.invocationEnded(0L);
+        List<String> expected =
+                Arrays.asList(
+                        "testRunStarted",
+                        "testStarted",
+                        "testEnded",
+                        "testRunEnded",
+                        "invocationEnded");
+        assertEquals(expected, slow.mEvents);
+        assertEquals(expected, fast.mEvents);
+    }
+
+    /** Test that the exception of a listener does not prevent the delivery to the others. */
+    @Test
+    public void testAsyncDispatch_exception() throws Exception {
+        ITestInvocationListener failing =
+                new ITestInvocationListener() {
+                    @Override
+                    public void testStarted(TestDescription test) {
+                        throw new RuntimeException("failing listener");
+                    }
+                };
+        RecordingListener listener = new RecordingListener(false);
+        ResultForwarder forwarder = new ResultForwarder(failing, listener);
+        forwarder.enableAsyncDispatch(16);
+
+        runInvocation(forwarder);
+        forwarder.invocationEnded(0L);
+        assertEquals(
+                Arrays.asList(
+                        "testRunStarted",
+                        "testStarted",
+                        "testEnded",
+                        "testRunEnded",
+                        "invocationEnded"),
+                listener.mEvents);
+    }
+
+    /** Test that each listener receives its own copy of the metrics, taken before the call. */
+    @Test
+    public void testAsyncDispatch_metrics() throws Exception {
+        ITestInvocationListener modifying =
+                new ITestInvocationListener() {
+                    @Override
+                    public void testEnded(
+                            TestDescription test, long endTime, HashMap<String, Metric> metrics) {
+                        metrics.put("added", Metric.getDefaultInstance());
+                    }
+                };
+        List<HashMap<String, Metric>> received = new CopyOnWriteArrayList<>();
+        ITestInvocationListener recording =
+                new ITestInvocationListener() {
+                    @Override
+                    public void testEnded(
+                            TestDescription test, long endTime, HashMap<String, Metric> metrics) {
+                        received.add(metrics);
+                    }
+                };
+        ResultForwarder forwarder = new ResultForwarder(modifying, recording);
+        forwarder.enableAsyncDispatch(16);
+
+        HashMap<String, Metric> metrics = new HashMap<>();
+        metrics.put("metric", Metric.getDefaultInstance());
+        forwarder.testEnded(TEST, 0L, metrics);
+        metrics.clear();
+        forwarder.invocationEnded(0L);
+        assertEquals(1, received.size());
+        assertEquals(Collections.singleton("metric"), received.get(0).keySet());
+    }
+}
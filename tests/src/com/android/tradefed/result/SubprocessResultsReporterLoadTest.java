@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.tradefed.config.ConfigurationDescriptor;
+import com.android.tradefed.config.OptionSetter;
+import com.android.tradefed.invoker.InvocationContext;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
+import com.android.tradefed.util.SubprocessTestResultsParser;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput benchmark of the events sent by {@link SubprocessResultsReporter} to {@link
+ * SubprocessTestResultsParser}, comparing the JSON events with the stream of protos, from the first
+ * event sent to the last one replayed by the parent.
+ *
+ * <p>Not part of the unit tests, intended to be run manually.
+ */
+public class SubprocessResultsReporterLoadTest extends TestCase {
+
+    private static final int NUM_TESTS = 100000;
+    private static final long JOIN_TIMEOUT_MS = 10 * 60 * 1000L;
+
+    /** A listener only counting the tests replayed. */
+    private static class CountingListener implements ITestInvocationListener {
+        final AtomicLong mTestEnded = new AtomicLong();
+
+        @Override
+        public void testEnded(TestDescription test, long endTime, HashMap<String, Metric> metrics) {
+            mTestEnded.incrementAndGet();
+        }
+    }
+
+    public void testThroughput() throws Exception {
+        // Warm up both paths before measuring them.
+        run(false, NUM_TESTS / 10);
+        run(true, NUM_TESTS / 10);
+        long jsonMs = run(false, NUM_TESTS);
+        long protoMs = run(true, NUM_TESTS);
+        System.out.println(
+                String.format(
+                        "tests=%d json=%dms (%d tests/s) proto=%dms (%d tests/s) speedup=%.1fx",
+                        NUM_TESTS,
+                        jsonMs,
+                        NUM_TESTS * 1000L / Math.max(1, jsonMs),
+                        protoMs,
+                        NUM_TESTS * 1000L / Math.max(1, protoMs),
+                        (double) jsonMs / Math.max(1, protoMs)));
+    }
+
+    /** Returns the time to send and replay an invocation with the given number of tests. */
+    private long run(boolean protoStream, int numTests) throws Exception {
+        CountingListener listener = new CountingListener();
+        SubprocessResultsReporter reporter =
+                new SubprocessResultsReporter() {
+                    @Override
+                    boolean isProtoStreamAccepted() {
+                        return protoStream;
+                    }
+                };
+        InvocationContext context = new InvocationContext();
+        context.setConfigurationDescriptor(new ConfigurationDescriptor());
+        try (SubprocessTestResultsParser receiver =
+                new SubprocessTestResultsParser(listener, true, new InvocationContext())) {
+            OptionSetter setter = new OptionSetter(reporter);
+            setter.setOptionValue(
+                    "subprocess-report-port", Integer.toString(receiver.getSocketServerPort()));
+            long start = System.currentTimeMillis();
+            reporter.invocationStarted(context);
+            reporter.testRunStarted("run", numTests);
+            HashMap<String, Metric> metrics = new HashMap<>();
+            for (int i = 0; i < numTests; i++) {
+                TestDescription test = new TestDescription("com.android.FakeTest", "test" + i);
+                reporter.testStarted(test, start);
+                reporter.testEnded(test, start, metrics);
+            }
+            reporter.testRunEnded(0L, metrics);
+            reporter.invocationEnded(0L);
+            reporter.close();
+            assertTrue(receiver.joinReceiver(JOIN_TIMEOUT_MS));
+            long elapsedMs = System.currentTimeMillis() - start;
+            assertEquals(numTests, listener.mTestEnded.get());
+            return elapsedMs;
+        }
+    }
+}
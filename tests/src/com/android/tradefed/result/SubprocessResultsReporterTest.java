@@ -17,11 +17,13 @@ package com.android.tradefed.result;
 
 import static org.junit.Assert.*;
 
+import com.android.tradefed.config.ConfigurationDescriptor;
 import com.android.tradefed.config.ConfigurationException;
 import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.invoker.InvocationContext;
 import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
 import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
 import com.android.tradefed.util.SubprocessTestResultsParser;
 
 import org.easymock.EasyMock;
@@ -32,6 +34,8 @@ import org.junit.runners.JUnit4;
 import java.io.File;
 import java.util.HashMap;
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -189,4 +193,114 @@ public class SubprocessResultsReporterTest {
             assertFalse(testLogCalled.get());
         }
     }
+
+    /**
+     * Test that when the parent accepts the proto stream, the events are sent as protos and
+     * replayed on the other side.
+     */
+    @Test
+    public void testPrintEvent_protoStream() throws Exception {
+        mReporter =
+                new SubprocessResultsReporter() {
+                    @Override
+                    boolean isProtoStreamAccepted() {
+                        return true;
+                    }
+                };
+        TestDescription testId = new TestDescription("com.fakeclass", "faketest");
+        ITestInvocationListener mMockListener =
+                EasyMock.createStrictMock(ITestInvocationListener.class);
+        InvocationContext context = new InvocationContext();
+        context.setConfigurationDescriptor(new ConfigurationDescriptor());
+        context.setTestTag("proto-tag");
+        InvocationContext mainContext = new InvocationContext();
+        SubprocessTestResultsParser receiver =
+                new SubprocessTestResultsParser(mMockListener, true, mainContext);
+        try {
+            OptionSetter setter = new OptionSetter(mReporter);
+            setter.setOptionValue(
+                    "subprocess-report-port", Integer.toString(receiver.getSocketServerPort()));
+            mMockListener.testRunStarted(
+                    EasyMock.eq("run"), EasyMock.eq(1), EasyMock.eq(0), EasyMock.anyLong());
+            mMockListener.testStarted(testId, 5L);
+            mMockListener.testFailed(testId, "fake failure");
+            mMockListener.testEnded(
+                    EasyMock.eq(testId),
+                    EasyMock.eq(10L),
+                    EasyMock.<HashMap<String, Metric>>anyObject());
+            mMockListener.testRunEnded(
+                    EasyMock.anyLong(), EasyMock.<HashMap<String, Metric>>anyObject());
+            EasyMock.replay(mMockListener);
+            mReporter.invocationStarted(context);
+            mReporter.testRunStarted("run", 1);
+            mReporter.testStarted(testId, 5L);
+            mReporter.testFailed(testId, "fake failure");
+            mReporter.testEnded(testId, 10L, new HashMap<String, Metric>());
+            mReporter.testRunEnded(100L, new HashMap<String, Metric>());
+            mReporter.invocationEnded(500L);
+            mReporter.close();
+            assertTrue(receiver.joinReceiver(LONG_TIMEOUT_MS));
+            EasyMock.verify(mMockListener);
+            assertNotNull(receiver.getStartTime());
+            assertEquals("proto-tag", mainContext.getTestTag());
+        } finally {
+            receiver.close();
+        }
+    }
+
+    /**
+     * Test that the logs sent over the proto stream are logged by any listener on the other side
+     * as soon as they are sent, even if the subprocess never ends its invocation, and that their
+     * temporary copies are deleted.
+     */
+    @Test
+    public void testTestLog_protoStream() throws Exception {
+        mReporter =
+                new SubprocessResultsReporter() {
+                    @Override
+                    boolean isProtoStreamAccepted() {
+                        return true;
+                    }
+                };
+        String dataName = "proto-log-" + System.nanoTime();
+        Map<String, String> logs = new ConcurrentHashMap<>();
+        // Not an ILogSaverListener, like the listeners receiving the JSON events.
+        ITestInvocationListener listener =
+                new ITestInvocationListener() {
+                    @Override
+                    public void testLog(
+                            String name, LogDataType dataType, InputStreamSource dataStream) {
+                        try {
+                            logs.put(
+                                    name,
+                                    StreamUtil.getStringFromStream(
+                                            dataStream.createInputStream()));
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+        InvocationContext context = new InvocationContext();
+        context.setConfigurationDescriptor(new ConfigurationDescriptor());
+        try (SubprocessTestResultsParser receiver =
+                new SubprocessTestResultsParser(listener, true, new InvocationContext())) {
+            OptionSetter setter = new OptionSetter(mReporter);
+            setter.setOptionValue(
+                    "subprocess-report-port", Integer.toString(receiver.getSocketServerPort()));
+            setter.setOptionValue("output-test-log", "true");
+
+            mReporter.invocationStarted(context);
+            mReporter.testLog(
+                    dataName, LogDataType.TEXT, new ByteArrayInputStreamSource("log".getBytes()));
+            // The subprocess dies before invocationEnded.
+            mReporter.close();
+            assertTrue(receiver.joinReceiver(LONG_TIMEOUT_MS));
+
+            assertEquals("log", logs.get("subprocess-" + dataName));
+            File[] copies =
+                    new File(System.getProperty("java.io.tmpdir"))
+                            .listFiles((dir, name) -> name.startsWith("subprocess-" + dataName));
+            assertEquals(0, copies.length);
+        }
+    }
 }
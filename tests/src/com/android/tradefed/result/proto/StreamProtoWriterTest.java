@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result.proto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.tradefed.result.proto.TestRecordProto.TestRecord;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Unit tests for {@link StreamProtoWriter}. */
+@RunWith(JUnit4.class)
+public class StreamProtoWriterTest {
+
+    /** Returns the ids of the records received so far. */
+    private static List<String> readRecordIds(ByteArrayOutputStream output) throws IOException {
+        List<String> ids = new ArrayList<>();
+        InputStream input = new ByteArrayInputStream(output.toByteArray());
+        TestRecord record = null;
+        while ((record = TestRecord.parseDelimitedFrom(input)) != null) {
+            ids.add(record.getTestRecordId());
+        }
+        return ids;
+    }
+
+    private static TestRecord createRecord(String id) {
+        return TestRecord.newBuilder().setTestRecordId(id).build();
+    }
+
+    /** Test that the batched records are sent once the batch is full or with the next record. */
+    @Test
+    public void testWrite_batch() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        StreamProtoWriter writer = new StreamProtoWriter(output, 2, 0L);
+        writer.write(createRecord("test1"), true);
+        assertEquals(0, readRecordIds(output).size());
+        writer.write(createRecord("test2"), true);
+        assertEquals(2, readRecordIds(output).size());
+
+        writer.write(createRecord("test3"), true);
+        writer.write(createRecord("run"), false);
+        assertEquals(4, readRecordIds(output).size());
+
+        writer.write(createRecord("test4"), true);
+        writer.close();
+        List<String> ids = readRecordIds(output);
+        assertEquals(5, ids.size());
+        assertEquals("test4", ids.get(4));
+        assertEquals("records=5 batches=3", writer.getStats());
+    }
+
+    /** Test that the batched records are sent after the maximum delay. */
+    @Test
+    public void testWrite_maxDelay() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        StreamProtoWriter writer = new StreamProtoWriter(output, 100, 10L);
+        try {
+            writer.write(createRecord("test1"), true);
+            long deadline = System.currentTimeMillis() + 5000L;
+            while (readRecordIds(output).isEmpty()) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10L);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /** Test that writing after close throws an exception. */
+    @Test
+    public void testWrite_closed() throws Exception {
+        StreamProtoWriter writer = new StreamProtoWriter(new ByteArrayOutputStream(), 1, 0L);
+        writer.close();
+        try {
+            writer.write(createRecord("test1"), false);
+            fail("Should have thrown an exception.");
+        } catch (IOException expected) {
+            // expected
+        }
+    }
+}
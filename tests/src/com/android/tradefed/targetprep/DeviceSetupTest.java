@@ -27,6 +27,8 @@ import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.TcpDevice;
 import com.android.tradefed.device.TestDeviceOptions;
 import com.android.tradefed.util.BinaryState;
+import com.android.tradefed.util.CommandResult;
+import com.android.tradefed.util.CommandStatus;
 import com.android.tradefed.util.FileUtil;
 
 import junit.framework.TestCase;
@@ -35,6 +37,7 @@ import org.easymock.Capture;
 import org.easymock.EasyMock;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 
 /**
@@ -1116,6 +1119,37 @@ public class DeviceSetupTest extends TestCase {
         EasyMock.verify(mMockDevice);
     }
 
+    /** Test that the settings and the commands are run with a single round trip each. */
+    public void testSetup_batchCommands() throws Exception {
+        doSetupExpectations();
+        doCheckExternalStoreSpaceExpectations();
+        EasyMock.expect(mMockDevice.getApiLevel()).andStubReturn(23);
+        CommandResult failed = new CommandResult(CommandStatus.FAILED);
+        failed.setExitCode(1);
+        EasyMock.expect(
+                        mMockDevice.executeShellCommands(
+                                Arrays.asList(
+                                        "settings put system key value",
+                                        "settings put global key2 value2")))
+                .andReturn(Arrays.asList(new CommandResult(CommandStatus.SUCCESS), failed));
+        EasyMock.expect(mMockDevice.executeShellCommands(Arrays.asList("cmd1", "cmd2")))
+                .andReturn(
+                        Arrays.asList(
+                                new CommandResult(CommandStatus.SUCCESS),
+                                new CommandResult(CommandStatus.SUCCESS)));
+        EasyMock.replay(mMockDevice);
+
+        OptionSetter setter = new OptionSetter(mDeviceSetup);
+        setter.setOptionValue("run-command", "cmd1");
+        setter.setOptionValue("run-command", "cmd2");
+        mDeviceSetup.setBatchCommands(true);
+        mDeviceSetup.setSystemSetting("key", "value");
+        mDeviceSetup.setGlobalSetting("key2", "value2");
+        mDeviceSetup.setUp(mMockDevice, mMockBuildInfo);
+
+        EasyMock.verify(mMockDevice);
+    }
+
     public void test_restore_settings() throws Exception {
         doSetupExpectations();
         doCheckExternalStoreSpaceExpectations();
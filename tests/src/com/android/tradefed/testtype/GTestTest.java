@@ -17,6 +17,7 @@ package com.android.tradefed.testtype;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -27,7 +28,9 @@ import com.android.tradefed.device.CollectingOutputReceiver;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.MockFileUtil;
+import com.android.tradefed.metrics.proto.MetricMeasurement.Metric;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.TestDescription;
 
 import org.easymock.EasyMock;
 import org.junit.Before;
@@ -36,6 +39,11 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 
@@ -153,6 +161,232 @@ public class GTestTest {
         verifyMocks();
     }
 
+    /** Test the run method when the test binaries are listed in a single pass. */
+    @Test
+    public void testRun_singlePassDiscovery() throws Exception {
+        final String nativeTestPath = GTest.DEFAULT_NATIVETEST_PATH;
+        final String testPath1 = nativeTestPath + "/test1/test1";
+        final String testPath2 = nativeTestPath + "/test2";
+        mSetter.setOptionValue("single-pass-discovery", "true");
+        String listing =
+                String.format(
+                        "-rwxr-xr-x %s\n-rw-r--r-- %s/test1/data.txt\n-rwxr-xr-x %s/lib.so\n"
+                                + "-rwxr-xr-x %s\nTF_GTEST_DISCOVERY_DONE\n",
+                        testPath2, nativeTestPath, nativeTestPath, testPath1);
+        // The directory is only listed once, the second run uses the cached listing.
+        EasyMock.expect(mMockITestDevice.executeShellCommand(EasyMock.startsWith("find ")))
+                .andReturn(listing);
+        for (int i = 0; i < 2; i++) {
+            mMockITestDevice.executeShellCommand(
+                    EasyMock.contains(testPath1),
+                    EasyMock.same(mMockReceiver),
+                    EasyMock.anyLong(),
+                    (TimeUnit) EasyMock.anyObject(),
+                    EasyMock.anyInt());
+            mMockITestDevice.executeShellCommand(
+                    EasyMock.contains(testPath2),
+                    EasyMock.same(mMockReceiver),
+                    EasyMock.anyLong(),
+                    (TimeUnit) EasyMock.anyObject(),
+                    EasyMock.anyInt());
+        }
+
+        replayMocks();
+        for (int i = 0; i < 2; i++) {
+            mGTest.doRunAllTestsInSubdirectory(
+                    nativeTestPath, mMockITestDevice, mMockInvocationListener);
+        }
+        verifyMocks();
+    }
+
+    /** Test that the listing of the test binaries is not reused by another invocation. */
+    @Test
+    public void testDiscoverTestBinaries_notShared() throws Exception {
+        String listing =
+                String.format(
+                        "-rwxr-xr-x %s/test1\nTF_GTEST_DISCOVERY_DONE\n",
+                        GTest.DEFAULT_NATIVETEST_PATH);
+        EasyMock.expect(mMockITestDevice.executeShellCommand(EasyMock.startsWith("find ")))
+                .andReturn(listing)
+                .times(2);
+
+        replayMocks();
+        for (int i = 0; i < 2; i++) {
+            assertEquals(
+                    1,
+                    new GTest()
+                            .discoverTestBinaries(
+                                    GTest.DEFAULT_NATIVETEST_PATH, mMockITestDevice)
+                            .size());
+        }
+        verifyMocks();
+    }
+
+    /** Test that the discovered binaries are ordered as a depth-first walk of the directories. */
+    @Test
+    public void testParseTestBinaries() {
+        List<String> binaries =
+                GTest.parseTestBinaries(
+                        "-rwxr-xr-x /data/nativetest/a-b\n"
+                                + "lrwxrwxrwx /data/nativetest/a/b\n"
+                                + "-rw-r--r-- /data/nativetest/a/c\n"
+                                + "find: /data/nativetest/d: Permission denied\n"
+                                + "TF_GTEST_DISCOVERY_DONE\n");
+        assertEquals(Arrays.asList("/data/nativetest/a/b", "/data/nativetest/a-b"), binaries);
+        // Incomplete listing
+        assertNull(GTest.parseTestBinaries("-rwxr-xr-x /data/nativetest/a-b\n"));
+    }
+
+    /**
+     * Test that binaries run concurrently report their results in the discovery order, and that
+     * serial binaries run alone.
+     */
+    @Test
+    public void testRun_parallelBinaries() throws Exception {
+        final String nativeTestPath = GTest.DEFAULT_NATIVETEST_PATH;
+        GTest gTest = new GTest();
+        gTest.setDevice(mMockITestDevice);
+        OptionSetter setter = new OptionSetter(gTest);
+        setter.setOptionValue("single-pass-discovery", "true");
+        setter.setOptionValue("parallel-binary-count", "2");
+        setter.setOptionValue("serial-binary-regex", ".*/test3");
+        EasyMock.expect(mMockITestDevice.executeShellCommand(EasyMock.startsWith("find ")))
+                .andReturn(
+                        String.format(
+                                "-rwxr-xr-x %1$s/test1\n-rwxr-xr-x %1$s/test2\n"
+                                        + "-rwxr-xr-x %1$s/test3\nTF_GTEST_DISCOVERY_DONE\n",
+                                nativeTestPath));
+        CountDownLatch test2Done = new CountDownLatch(1);
+        // test1 only completes once test2 completed, which requires them to run concurrently.
+        mMockITestDevice.executeShellCommand(
+                EasyMock.contains("test1"),
+                (IShellOutputReceiver) EasyMock.anyObject(),
+                EasyMock.anyLong(),
+                (TimeUnit) EasyMock.anyObject(),
+                EasyMock.anyInt());
+        EasyMock.expectLastCall()
+                .andAnswer(
+                        () -> {
+                            assertTrue(test2Done.await(10, TimeUnit.SECONDS));
+                            addGTestOutput(EasyMock.getCurrentArguments()[1], "Suite1.test");
+                            return null;
+                        });
+        mMockITestDevice.executeShellCommand(
+                EasyMock.contains("test2"),
+                (IShellOutputReceiver) EasyMock.anyObject(),
+                EasyMock.anyLong(),
+                (TimeUnit) EasyMock.anyObject(),
+                EasyMock.anyInt());
+        EasyMock.expectLastCall()
+                .andAnswer(
+                        () -> {
+                            addGTestOutput(EasyMock.getCurrentArguments()[1], "Suite2.test");
+                            test2Done.countDown();
+                            return null;
+                        });
+        mMockITestDevice.executeShellCommand(
+                EasyMock.contains("test3"),
+                (IShellOutputReceiver) EasyMock.anyObject(),
+                EasyMock.anyLong(),
+                (TimeUnit) EasyMock.anyObject(),
+                EasyMock.anyInt());
+        EasyMock.expectLastCall()
+                .andAnswer(
+                        () -> {
+                            addGTestOutput(EasyMock.getCurrentArguments()[1], "Suite3.test");
+                            return null;
+                        });
+        List<String> events = new ArrayList<>();
+        ITestInvocationListener listener =
+                new ITestInvocationListener() {
+                    @Override
+                    public void testRunStarted(String runName, int testCount) {
+                        events.add("started:" + runName);
+                    }
+
+                    @Override
+                    public void testStarted(TestDescription test) {
+                        events.add("test:" + test.getClassName());
+                    }
+
+                    @Override
+                    public void testRunEnded(long elapsedTime, HashMap<String, Metric> metrics) {
+                        events.add("ended");
+                    }
+                };
+
+        replayMocks();
+        gTest.doRunAllTestsInSubdirectory(nativeTestPath, mMockITestDevice, listener);
+        verifyMocks();
+        assertEquals(
+                Arrays.asList(
+                        "started:test1",
+                        "test:Suite1",
+                        "ended",
+                        "started:test2",
+                        "test:Suite2",
+                        "ended",
+                        "started:test3",
+                        "test:Suite3",
+                        "ended"),
+                events);
+    }
+
+    /** Test that the binaries run one after the other when a command runs after each of them. */
+    @Test
+    public void testRun_parallelBinaries_afterTestCmd() throws Exception {
+        final String nativeTestPath = GTest.DEFAULT_NATIVETEST_PATH;
+        GTest gTest = new GTest();
+        gTest.setDevice(mMockITestDevice);
+        OptionSetter setter = new OptionSetter(gTest);
+        setter.setOptionValue("single-pass-discovery", "true");
+        setter.setOptionValue("parallel-binary-count", "2");
+        setter.setOptionValue("after-test-cmd", "stop");
+        EasyMock.expect(mMockITestDevice.executeShellCommand(EasyMock.startsWith("find ")))
+                .andReturn(
+                        String.format(
+                                "-rwxr-xr-x %1$s/test1\n-rwxr-xr-x %1$s/test2\n"
+                                        + "TF_GTEST_DISCOVERY_DONE\n",
+                                nativeTestPath));
+        Thread caller = Thread.currentThread();
+        for (String binary : new String[] {"test1", "test2"}) {
+            mMockITestDevice.executeShellCommand(
+                    EasyMock.contains(binary),
+                    (IShellOutputReceiver) EasyMock.anyObject(),
+                    EasyMock.anyLong(),
+                    (TimeUnit) EasyMock.anyObject(),
+                    EasyMock.anyInt());
+            EasyMock.expectLastCall()
+                    .andAnswer(
+                            () -> {
+                                assertEquals(caller, Thread.currentThread());
+                                return null;
+                            });
+            EasyMock.expect(mMockITestDevice.executeShellCommand("stop")).andReturn("");
+        }
+
+        replayMocks();
+        gTest.doRunAllTestsInSubdirectory(
+                nativeTestPath, mMockITestDevice, new ITestInvocationListener() {});
+        verifyMocks();
+    }
+
+    /** Feed the output of a gtest binary with a single passing test to a result parser. */
+    private void addGTestOutput(Object receiver, String testName) {
+        String output =
+                String.format(
+                        "[==========] Running 1 test from 1 test case.\n"
+                                + "[----------] 1 test from %1$s\n"
+                                + "[ RUN      ] %2$s\n"
+                                + "[       OK ] %2$s (1 ms)\n"
+                                + "[----------] 1 test from %1$s (1 ms total)\n"
+                                + "[==========] 1 test from 1 test case ran. (1 ms total)\n"
+                                + "[  PASSED  ] 1 test.\n",
+                        testName.split("\\.")[0], testName);
+        byte[] bytes = output.getBytes();
+        ((IShellOutputReceiver) receiver).addOutput(bytes, 0, bytes.length);
+    }
+
     /** Test the run method when module name is specified */
     @Test
     public void testRun_moduleName() throws DeviceNotAvailableException {
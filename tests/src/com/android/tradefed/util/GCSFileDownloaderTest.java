@@ -17,6 +17,12 @@
 package com.android.tradefed.util;
 
 import com.android.tradefed.build.BuildRetrievalError;
+import com.android.tradefed.build.FileDownloadCoordinator;
+import com.android.tradefed.util.net.FakeHttpFileServer;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.storage.Storage;
 
 import org.junit.After;
 import org.junit.Assert;
@@ -25,12 +31,22 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
 
 /** Unit test for {@link GCSFileDownloader}. */
 @RunWith(JUnit4.class)
 public class GCSFileDownloaderTest {
 
+    private static final String OBJECT_PATH = "gs://bucket/file.bin";
+    /** Path of the media of {@link #OBJECT_PATH} in the storage API. */
+    private static final String MEDIA_PATH = "storage/v1/b/bucket/o/file.bin";
+
     private File mLocalRoot;
     private GCSFileDownloader mGCSFileDownloader;
 
@@ -112,4 +128,67 @@ public class GCSFileDownloaderTest {
             // Expected
         }
     }
+
+    /** Returns a {@link GCSFileDownloader} sending its storage API requests to the given server. */
+    private static GCSFileDownloader createServerDownloader(FakeHttpFileServer server, long size) {
+        return new GCSFileDownloader() {
+            @Override
+            protected Storage getStorage(Collection<String> scopes) {
+                return new Storage.Builder(
+                                new NetHttpTransport(), JacksonFactory.getDefaultInstance(), null)
+                        .setRootUrl(server.getUrl(""))
+                        .setApplicationName("unittest")
+                        .build();
+            }
+
+            @Override
+            public long getRemoteFileSize(String remotePath) throws IOException {
+                return size;
+            }
+        };
+    }
+
+    /** Test that only the requested range of the object is downloaded. */
+    @Test
+    public void testDownloadRange() throws Exception {
+        byte[] contents = new byte[4096];
+        new Random(0).nextBytes(contents);
+        FakeHttpFileServer server = new FakeHttpFileServer();
+        server.addFile(MEDIA_PATH, contents);
+        server.start();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            createServerDownloader(server, contents.length)
+                    .downloadRange(OBJECT_PATH, 1000, 500, out);
+            Assert.assertArrayEquals(Arrays.copyOfRange(contents, 1000, 1500), out.toByteArray());
+            Assert.assertEquals(1, server.getRangeRequestCount());
+            Assert.assertEquals(0, server.getFullRequestCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    /** Test that an object larger than a chunk is downloaded as ranged chunks. */
+    @Test
+    public void testDownloadRange_chunks() throws Exception {
+        byte[] contents = new byte[1024 * 4 + 17];
+        new Random(0).nextBytes(contents);
+        FakeHttpFileServer server = new FakeHttpFileServer();
+        server.addFile(MEDIA_PATH, contents);
+        server.start();
+        mLocalRoot = FileUtil.createTempFile("gcs-downloader-unittest", ".bin");
+        try {
+            Assert.assertTrue(
+                    new FileDownloadCoordinator(4, 1024)
+                            .downloadChunks(
+                                    createServerDownloader(server, contents.length),
+                                    OBJECT_PATH,
+                                    mLocalRoot));
+            Assert.assertArrayEquals(contents, Files.readAllBytes(mLocalRoot.toPath()));
+            Assert.assertEquals(5, server.getRangeRequestCount());
+            Assert.assertEquals(0, server.getFullRequestCount());
+        } finally {
+            server.stop();
+        }
+    }
 }
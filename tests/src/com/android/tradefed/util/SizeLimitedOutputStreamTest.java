@@ -59,4 +59,25 @@ public class SizeLimitedOutputStreamTest extends TestCase {
             outStream.delete();
         }
     }
+
+    /** Test getting the data from an offset, after some data was discarded. */
+    public void testGetData_offset() throws IOException {
+        final byte[] data = new byte[29];
+        for (byte i = 0; i < data.length; i++) {
+            data[i] = i;
+        }
+        SizeLimitedOutputStream outStream = new SizeLimitedOutputStream(20, 4, "foo", "bar");
+        try {
+            outStream.write(data);
+            assertEquals(10, outStream.getDiscardedSize());
+            try (InputStream readStream = outStream.getData(7)) {
+                byte[] readData = StreamUtil.getByteArrayListFromStream(readStream).getContents();
+                assertEquals(12, readData.length);
+                assertEquals(17, readData[0]);
+                assertEquals(28, readData[11]);
+            }
+        } finally {
+            outStream.delete();
+        }
+    }
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util.net;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A local HTTP server standing in for a remote file server in tests. Serves in-memory files with
+ * support for HEAD requests and single byte range GET requests.
+ */
+public class FakeHttpFileServer {
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final Map<String, byte[]> mFiles = new ConcurrentHashMap<>();
+    private final AtomicInteger mFullRequests = new AtomicInteger();
+    private final AtomicInteger mRangeRequests = new AtomicInteger();
+    private final AtomicInteger mRangeFailures = new AtomicInteger();
+    private volatile boolean mSupportsRanges = true;
+
+    public FakeHttpFileServer() throws IOException {
+        mServer =
+                HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/", this::handle);
+        mServer.setExecutor(mExecutor);
+    }
+
+    public void start() {
+        mServer.start();
+    }
+
+    public void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    /** Returns the url of a file served at the given path. */
+    public String getUrl(String path) {
+        return String.format("http://localhost:%d/%s", mServer.getAddress().getPort(), path);
+    }
+
+    public void addFile(String path, byte[] contents) {
+        mFiles.put("/" + path, contents);
+    }
+
+    /** Set whether the server advertises and serves byte ranges. */
+    public void setSupportsRanges(boolean supportsRanges) {
+        mSupportsRanges = supportsRanges;
+    }
+
+    /** Make the next given number of range requests fail with a server error. */
+    public void failRangeRequests(int count) {
+        mRangeFailures.set(count);
+    }
+
+    /** Returns the number of GET requests for a whole file. */
+    public int getFullRequestCount() {
+        return mFullRequests.get();
+    }
+
+    /** Returns the number of GET requests for a byte range, including the failed ones. */
+    public int getRangeRequestCount() {
+        return mRangeRequests.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] contents = mFiles.get(exchange.getRequestURI().getPath());
+            if (contents == null) {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, -1);
+                return;
+            }
+            if (mSupportsRanges) {
+                exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            }
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders()
+                        .add("Content-Length", Integer.toString(contents.length));
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+                return;
+            }
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range == null || !mSupportsRanges) {
+                mFullRequests.incrementAndGet();
+                sendBody(exchange, HttpURLConnection.HTTP_OK, contents, 0, contents.length);
+                return;
+            }
+            mRangeRequests.incrementAndGet();
+            Matcher m = RANGE_PATTERN.matcher(range);
+            if (!m.matches() || mRangeFailures.getAndDecrement() > 0) {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1);
+                return;
+            }
+            int start = Integer.parseInt(m.group(1));
+            int end = Math.min(Integer.parseInt(m.group(2)), contents.length - 1);
+            exchange.getResponseHeaders()
+                    .add(
+                            "Content-Range",
+                            String.format("bytes %d-%d/%d", start, end, contents.length));
+            sendBody(exchange, HttpURLConnection.HTTP_PARTIAL, contents, start, end - start + 1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void sendBody(
+            HttpExchange exchange, int code, byte[] contents, int offset, int length)
+            throws IOException {
+        exchange.sendResponseHeaders(code, length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(contents, offset, length);
+        }
+    }
+}